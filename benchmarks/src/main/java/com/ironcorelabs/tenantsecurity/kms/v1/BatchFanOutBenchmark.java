@@ -0,0 +1,104 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encrypts a batch of documents, each with its own key, the way encryptBatch does once its keys
+ * are back from the Tenant Security Proxy: every field of every document goes into one
+ * FieldWorkSplitter call. Compares that with encrypting the documents one call at a time, which
+ * can't spread small documents across threads. No Tenant Security Proxy is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchFanOutBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int batchSize;
+
+    @Param({"5"})
+    public int fieldsPerDocument;
+
+    @Param({"1024"})
+    public int fieldSize;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private final SecureRandom secureRandom = new SecureRandom();
+    private ExecutorService executor;
+    private FieldWorkSplitter splitter;
+    private Map<String, Map<String, byte[]>> documents;
+    private Map<String, SecretKeySpec> documentKeys;
+
+    @Setup(Level.Trial)
+    public void doSetup() {
+        executor = Executors.newFixedThreadPool(parallelism);
+        splitter = new FieldWorkSplitter(executor, parallelism,
+                TenantSecurityClient.DEFAULT_PARALLEL_FIELD_THRESHOLD);
+        documents = new HashMap<>();
+        documentKeys = new HashMap<>();
+        for (int i = 0; i < batchSize; i++) {
+            Map<String, byte[]> document = new HashMap<>();
+            for (int j = 0; j < fieldsPerDocument; j++) {
+                byte[] field = new byte[fieldSize];
+                secureRandom.nextBytes(field);
+                document.put("field" + j, field);
+            }
+            byte[] dek = new byte[32];
+            secureRandom.nextBytes(dek);
+            documents.put("doc" + i, document);
+            documentKeys.put("doc" + i, CryptoUtils.aesKey(dek));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void doTeardown() {
+        executor.shutdown();
+    }
+
+    private FieldWorkSplitter.FieldOperation encryptOperation(String documentId) {
+        SecretKeySpec documentKey = documentKeys.get(documentId);
+        return field -> CryptoUtils.encryptBytes(field, documentKey, secureRandom).join();
+    }
+
+    @Benchmark
+    public Map<String, Map<String, byte[]>> splitAcrossBatch() {
+        List<FieldWorkSplitter.DocumentWork<String>> work = new ArrayList<>(documents.size());
+        documents.forEach((documentId, document) -> work.add(new FieldWorkSplitter.DocumentWork<>(
+                documentId, document, encryptOperation(documentId))));
+        return splitter.processAll(work);
+    }
+
+    @Benchmark
+    public Map<String, Map<String, byte[]>> documentAtATime() {
+        Map<String, Map<String, byte[]>> encrypted = new HashMap<>();
+        documents.forEach((documentId, document) -> encrypted.put(documentId,
+                splitter.process(document, encryptOperation(documentId))));
+        return encrypted;
+    }
+}
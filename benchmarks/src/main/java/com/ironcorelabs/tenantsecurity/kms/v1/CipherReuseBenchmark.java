@@ -0,0 +1,69 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the per-field cost of encrypting small fields when a new Cipher and SecretKeySpec are
+ * created for every field (how the client used to work) against the thread local Cipher used by
+ * CryptoUtils. Lives in the client's package so it can call CryptoUtils directly; no Tenant
+ * Security Proxy is needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CipherReuseBenchmark {
+    @Param({"16", "256", "1024"})
+    public int fieldSize;
+
+    private final SecureRandom secureRandom = new SecureRandom();
+    private byte[] dek;
+    private SecretKeySpec documentKey;
+    private byte[] field;
+
+    @Setup
+    public void doSetup() {
+        dek = new byte[32];
+        secureRandom.nextBytes(dek);
+        documentKey = CryptoUtils.aesKey(dek);
+        field = new byte[fieldSize];
+        secureRandom.nextBytes(field);
+    }
+
+    @Benchmark
+    public byte[] newCipherPerField() throws Exception {
+        byte[] iv = new byte[CryptoUtils.IV_BYTE_LENGTH];
+        secureRandom.nextBytes(iv);
+        final Cipher cipher = Cipher.getInstance(CryptoUtils.AES_ALGO);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(dek, "AES"),
+                new GCMParameterSpec(CryptoUtils.GCM_TAG_BIT_LENGTH, iv));
+        byte[] encryptedBytes = cipher.doFinal(field);
+        byte[] header = CryptoUtils.generateHeader();
+        return ByteBuffer.allocate(header.length + iv.length + encryptedBytes.length).put(header)
+                .put(iv).put(encryptedBytes).array();
+    }
+
+    @Benchmark
+    public byte[] reusedCipherPerField() throws Exception {
+        return CryptoUtils.encryptBytes(field, documentKey, secureRandom).get();
+    }
+}
@@ -0,0 +1,100 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs TenantSecurityClient end to end against a FakeTenantSecurityProxy, so request building,
+ * the transport, response parsing and the crypto are all measured together without Docker or a
+ * KMS. Sample time mode reports the latency percentiles as well as throughput; add -t to change
+ * the number of concurrent callers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class ClientRoundtripBenchmark {
+    @Param({"blocking", "async-http1"})
+    public String transport;
+
+    @Param({"0", "5"})
+    public int tspLatencyMillis;
+
+    @Param({"1024"})
+    public int fieldSize;
+
+    @Param({"10"})
+    public int batchSize;
+
+    private FakeTenantSecurityProxy tsp;
+    private TenantSecurityClient client;
+    private final DocumentMetadata metadata = new DocumentMetadata("tenant", "benchmark", "sample");
+    private Map<String, byte[]> document;
+    private EncryptedDocument encryptedDocument;
+    private Map<String, Map<String, byte[]>> batch;
+
+    @Setup(Level.Trial)
+    public void doSetup() throws Exception {
+        tsp = FakeTenantSecurityProxy.builder()
+                .latency(tspLatencyMillis, tspLatencyMillis / 5, TimeUnit.MILLISECONDS).build();
+        TenantSecurityClient.Builder builder =
+                TenantSecurityClient.builder(tsp.getUrl(), tsp.getApiKey());
+        if (transport.equals("async-http1")) {
+            builder.asyncTransport(new AsyncTransportConfig(64, 2));
+        } else {
+            builder.requestThreadSize(64);
+        }
+        client = builder.build();
+        SecureRandom secureRandom = new SecureRandom();
+        byte[] field = new byte[fieldSize];
+        secureRandom.nextBytes(field);
+        document = new HashMap<>();
+        document.put("field", field);
+        encryptedDocument = client.encrypt(document, metadata).get();
+        batch = new HashMap<>();
+        for (int i = 0; i < batchSize; i++) {
+            batch.put("doc" + i, document);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void doTeardown() throws Exception {
+        client.close();
+        tsp.close();
+    }
+
+    @Benchmark
+    public EncryptedDocument encrypt() throws Exception {
+        return client.encrypt(document, metadata).get();
+    }
+
+    @Benchmark
+    public PlaintextDocument decrypt() throws Exception {
+        return client.decrypt(encryptedDocument, metadata).get();
+    }
+
+    @Benchmark
+    public BatchResult<EncryptedDocument> encryptBatch() throws Exception {
+        return client.encryptBatch(batch, metadata).get();
+    }
+}
@@ -0,0 +1,71 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures getting DEK bytes out of single and batch wrap responses from the Tenant Security
+ * Proxy, which TspJson decodes straight to bytes, against a bare base64 decode of one DEK. The
+ * per-key cost of the batch parse should stay flat as the batch grows. No Tenant Security Proxy is
+ * needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DekDecodeBenchmark {
+    @Param({"1", "100", "1000"})
+    public int batchSize;
+
+    private String base64Dek;
+    private byte[] wrapResponse;
+    private byte[] batchWrapResponse;
+
+    @Setup
+    public void doSetup() {
+        SecureRandom secureRandom = new SecureRandom();
+        StringBuilder batch = new StringBuilder("{\"keys\":{");
+        for (int i = 0; i < batchSize; i++) {
+            byte[] dek = new byte[32];
+            secureRandom.nextBytes(dek);
+            base64Dek = Base64.getEncoder().encodeToString(dek);
+            batch.append(i == 0 ? "" : ",").append("\"doc").append(i).append("\":{\"dek\":\"")
+                    .append(base64Dek).append("\",\"edek\":\"").append(base64Dek).append("\"}");
+        }
+        batchWrapResponse = batch.append("},\"failures\":{}}").toString()
+                .getBytes(StandardCharsets.UTF_8);
+        wrapResponse = ("{\"dek\":\"" + base64Dek + "\",\"edek\":\"" + base64Dek + "\"}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] base64Decode() {
+        return Base64.getDecoder().decode(base64Dek);
+    }
+
+    @Benchmark
+    public byte[] wrapResponse() throws Exception {
+        return TspJson.parseWrapResponse(wrapResponse).getDekBytes();
+    }
+
+    @Benchmark
+    public BatchWrappedDocumentKeys batchWrapResponse() throws Exception {
+        return TspJson.parseBatchWrapResponse(batchWrapResponse);
+    }
+}
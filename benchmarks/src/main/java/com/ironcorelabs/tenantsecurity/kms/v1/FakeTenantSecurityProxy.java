@@ -0,0 +1,528 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the Tenant Security Proxy, so the client can be load tested and
+ * benchmarked end to end without Docker or a cloud KMS. Implements the document wrap, batch-wrap,
+ * unwrap, batch-unwrap and rekey endpoints plus the security event endpoint on the JDK's
+ * HttpServer. DEKs are random and EDEKs are the DEK encrypted with AES-GCM under a master key
+ * held in memory, with the tenant ID as associated data, so an EDEK only unwraps for the tenant it
+ * was wrapped for.
+ *
+ * Latency and failures can be injected. Every request waits for the configured latency plus up to
+ * the jitter, and a share of requests wait for the tail latency instead. The wait happens on a
+ * scheduler rather than a handler thread, so slow responses don't limit throughput, and the
+ * response is then written back on a handler thread so the scheduler only keeps time. A share of
+ * requests fail with the configured error code, and a share of the documents in otherwise
+ * successful batch requests come back as per-document failures.
+ *
+ * Can also be run on its own with `java -cp benchmarks.jar
+ * com.ironcorelabs.tenantsecurity.kms.v1.FakeTenantSecurityProxy [port] [apiKey]` to point any
+ * client, such as the integration tests, at it.
+ */
+public final class FakeTenantSecurityProxy implements Closeable {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    static {
+        // Without TCP_NODELAY small responses wait on the client's delayed ACK, which adds ~40ms to
+        // every request. Read once when the JDK's HttpServer is first used.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final Builder config;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ScheduledExecutorService delays;
+    private final SecretKeySpec masterKey;
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final String authorization;
+
+    private FakeTenantSecurityProxy(Builder config) throws IOException {
+        this.config = config;
+        this.authorization = "cmk " + config.apiKey;
+        byte[] key = new byte[32];
+        secureRandom.nextBytes(key);
+        this.masterKey = new SecretKeySpec(key, "AES");
+        this.handlers = Executors.newFixedThreadPool(config.threads, daemon("fake-tsp"));
+        this.delays = Executors.newSingleThreadScheduledExecutor(daemon("fake-tsp-latency"));
+        this.server = HttpServer.create(new InetSocketAddress("localhost", config.port), 1024);
+        this.server.setExecutor(handlers);
+        this.server.createContext("/api/1/", this::handle);
+        this.server.start();
+    }
+
+    /**
+     * Create a builder for a fake TSP. With no options set it listens on a free port, accepts the
+     * API key "apiKey" and responds as fast as it can without failures.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Get the URL to pass to TenantSecurityClient as the TSP domain.
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Get the API key the fake TSP accepts.
+     */
+    public String getApiKey() {
+        return config.apiKey;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        delays.shutdownNow();
+        handlers.shutdownNow();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Builder builder = builder();
+        if (args.length > 0) {
+            builder.port(Integer.parseInt(args[0]));
+        }
+        if (args.length > 1) {
+            builder.apiKey(args[1]);
+        }
+        FakeTenantSecurityProxy tsp = builder.build();
+        System.out.println("Fake Tenant Security Proxy listening at " + tsp.getUrl());
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Options for a FakeTenantSecurityProxy.
+     */
+    public static final class Builder {
+        private int port;
+        private String apiKey = "apiKey";
+        private int threads = Runtime.getRuntime().availableProcessors() * 2;
+        private long latencyMicros;
+        private long jitterMicros;
+        private double tailRate;
+        private long tailLatencyMicros;
+        private double errorRate;
+        private TenantSecurityErrorCodes errorCode = TenantSecurityErrorCodes.KMS_UNREACHABLE;
+        private double documentErrorRate;
+
+        private Builder() {}
+
+        /**
+         * @param port Port to listen on, or 0 for any free port.
+         */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * @param apiKey API key requests must send. Any other key gets a 401.
+         */
+        public Builder apiKey(String apiKey) {
+            this.apiKey = apiKey;
+            return this;
+        }
+
+        /**
+         * @param threads Number of threads parsing requests and wrapping keys.
+         */
+        public Builder threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * @param latency Time every request waits before its response is sent.
+         * @param jitter  Max random time added to the latency.
+         * @param unit    Unit of both values.
+         */
+        public Builder latency(long latency, long jitter, TimeUnit unit) {
+            this.latencyMicros = unit.toMicros(latency);
+            this.jitterMicros = unit.toMicros(jitter);
+            return this;
+        }
+
+        /**
+         * @param rate    Share of requests, from 0 to 1, which wait for the tail latency instead.
+         * @param latency Time those requests wait before their response is sent.
+         * @param unit    Unit of the latency.
+         */
+        public Builder tailLatency(double rate, long latency, TimeUnit unit) {
+            this.tailRate = rate;
+            this.tailLatencyMicros = unit.toMicros(latency);
+            return this;
+        }
+
+        /**
+         * @param rate Share of requests, from 0 to 1, which fail as a whole.
+         * @param code Error code the failed requests respond with.
+         */
+        public Builder errors(double rate, TenantSecurityErrorCodes code) {
+            this.errorRate = rate;
+            this.errorCode = code;
+            return this;
+        }
+
+        /**
+         * @param rate Share of documents in batch requests, from 0 to 1, which fail on their own
+         *             with the error code set by errors.
+         */
+        public Builder documentErrors(double rate) {
+            this.documentErrorRate = rate;
+            return this;
+        }
+
+        /**
+         * Start the fake TSP.
+         */
+        public FakeTenantSecurityProxy build() throws IOException {
+            return new FakeTenantSecurityProxy(this);
+        }
+    }
+
+    /**
+     * Fields of a request body that any of the endpoints use.
+     */
+    private static final class Request {
+        String tenantId;
+        String edek;
+        String newTenantId;
+        List<String> documentIds = new ArrayList<>();
+        Map<String, String> edeks = new LinkedHashMap<>();
+    }
+
+    /**
+     * Status and body of a response. A null body sends no content.
+     */
+    private static final class Reply {
+        final int status;
+        final byte[] body;
+
+        Reply(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Failure of a single key operation, sent either as the whole response or as one entry of a
+     * batch response's failures.
+     */
+    private static final class KeyFailure extends Exception {
+        private static final long serialVersionUID = 1L;
+        final TenantSecurityErrorCodes code;
+
+        KeyFailure(TenantSecurityErrorCodes code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    private interface Body {
+        void write(JsonGenerator generator) throws IOException, KeyFailure;
+    }
+
+    private void handle(HttpExchange exchange) {
+        Reply reply;
+        try {
+            reply = respond(exchange);
+        } catch (Exception e) {
+            reply = error(500, TenantSecurityErrorCodes.UNKNOWN_ERROR, e.toString());
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = random.nextDouble() < config.tailRate ? config.tailLatencyMicros
+                : config.latencyMicros
+                        + (config.jitterMicros > 0 ? random.nextLong(config.jitterMicros + 1) : 0);
+        Reply response = reply;
+        if (delay > 0) {
+            delays.schedule(() -> sendOnHandler(exchange, response), delay,
+                    TimeUnit.MICROSECONDS);
+        } else {
+            send(exchange, response);
+        }
+    }
+
+    private void sendOnHandler(HttpExchange exchange, Reply reply) {
+        try {
+            handlers.execute(() -> send(exchange, reply));
+        } catch (RejectedExecutionException e) {
+            // Closed while the response was delayed
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, Reply reply) {
+        try {
+            if (reply.body == null) {
+                exchange.sendResponseHeaders(reply.status, -1);
+            } else {
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(reply.status, reply.body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(reply.body);
+                }
+            }
+        } catch (IOException e) {
+            // The client went away, nothing left to do
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Reply respond(HttpExchange exchange) throws IOException {
+        if (!authorization.equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            return new Reply(401, null);
+        }
+        String path = exchange.getRequestURI().getPath().substring("/api/1/".length());
+        Request request;
+        try (InputStream in = exchange.getRequestBody()) {
+            request = parse(readAll(in));
+        } catch (IOException e) {
+            return error(400, TenantSecurityErrorCodes.INVALID_REQUEST_BODY, e.getMessage());
+        }
+        if (request.tenantId == null) {
+            return error(400, TenantSecurityErrorCodes.INVALID_REQUEST_BODY, "Missing tenantId.");
+        }
+        if (config.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < config.errorRate) {
+            return error(500, config.errorCode, "Injected failure.");
+        }
+        switch (path) {
+            case "document/wrap":
+                return ok(generator -> writeWrappedKey(generator, request.tenantId));
+            case "document/batch-wrap":
+                return batch(request.documentIds,
+                        (generator, id) -> writeWrappedKey(generator, request.tenantId));
+            case "document/unwrap":
+                return ok(generator -> writeDek(generator,
+                        unwrap(request.edek, request.tenantId)));
+            case "document/batch-unwrap":
+                return batch(new ArrayList<>(request.edeks.keySet()), (generator,
+                        id) -> writeDek(generator, unwrap(request.edeks.get(id), request.tenantId)));
+            case "document/rekey":
+                return ok(generator -> {
+                    byte[] dek = unwrap(request.edek, request.tenantId);
+                    writeDek(generator, dek);
+                    generator.writeStringField("edek", wrap(dek, request.newTenantId));
+                });
+            case "event/security-event":
+                return new Reply(204, null);
+            default:
+                return new Reply(404, null);
+        }
+    }
+
+    private interface DocumentBody {
+        void write(JsonGenerator generator, String id) throws IOException, KeyFailure;
+    }
+
+    private Reply ok(Body body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            generator.writeStartObject();
+            body.write(generator);
+            generator.writeEndObject();
+        } catch (KeyFailure e) {
+            return error(e.code == TenantSecurityErrorCodes.INVALID_PROVIDED_EDEK ? 400 : 500,
+                    e.code, e.getMessage());
+        }
+        return new Reply(200, out.toByteArray());
+    }
+
+    private Reply batch(List<String> ids, DocumentBody document) throws IOException {
+        Map<String, KeyFailure> failures = new LinkedHashMap<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + ids.size() * 128);
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("keys");
+            for (String id : ids) {
+                if (config.documentErrorRate > 0
+                        && ThreadLocalRandom.current().nextDouble() < config.documentErrorRate) {
+                    failures.put(id, new KeyFailure(config.errorCode, "Injected failure."));
+                    continue;
+                }
+                // Build the entry on its own so a failure partway through doesn't leave half an
+                // object in the response
+                ByteArrayOutputStream entry = new ByteArrayOutputStream(128);
+                try (JsonGenerator entryGenerator = JSON_FACTORY.createGenerator(entry)) {
+                    entryGenerator.writeStartObject();
+                    document.write(entryGenerator, id);
+                    entryGenerator.writeEndObject();
+                } catch (KeyFailure e) {
+                    failures.put(id, e);
+                    continue;
+                }
+                generator.writeFieldName(id);
+                generator.writeRawValue(new String(entry.toByteArray(), StandardCharsets.UTF_8));
+            }
+            generator.writeEndObject();
+            generator.writeObjectFieldStart("failures");
+            for (Map.Entry<String, KeyFailure> failure : failures.entrySet()) {
+                generator.writeObjectFieldStart(failure.getKey());
+                generator.writeNumberField("code", failure.getValue().code.getCode());
+                generator.writeStringField("message", failure.getValue().getMessage());
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+        return new Reply(200, out.toByteArray());
+    }
+
+    private static Reply error(int status, TenantSecurityErrorCodes code, String message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeNumberField("code", code.getCode());
+            generator.writeStringField("message", message == null ? code.getMessage() : message);
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new Reply(status, out.toByteArray());
+    }
+
+    private void writeWrappedKey(JsonGenerator generator, String tenantId)
+            throws IOException, KeyFailure {
+        byte[] dek = new byte[32];
+        secureRandom.nextBytes(dek);
+        writeDek(generator, dek);
+        generator.writeStringField("edek", wrap(dek, tenantId));
+    }
+
+    private static void writeDek(JsonGenerator generator, byte[] dek) throws IOException {
+        generator.writeStringField("dek", Base64.getEncoder().encodeToString(dek));
+    }
+
+    private String wrap(byte[] dek, String tenantId) throws KeyFailure {
+        if (tenantId == null) {
+            throw new KeyFailure(TenantSecurityErrorCodes.INVALID_REQUEST_BODY,
+                    "Missing newTenantId.");
+        }
+        byte[] iv = new byte[IV_LENGTH];
+        secureRandom.nextBytes(iv);
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(tenantId.getBytes(StandardCharsets.UTF_8));
+            byte[] encrypted = cipher.doFinal(dek);
+            return Base64.getEncoder().encodeToString(
+                    ByteBuffer.allocate(iv.length + encrypted.length).put(iv).put(encrypted)
+                            .array());
+        } catch (GeneralSecurityException e) {
+            throw new KeyFailure(TenantSecurityErrorCodes.KMS_WRAP_FAILED, e.toString());
+        }
+    }
+
+    private byte[] unwrap(String edek, String tenantId) throws KeyFailure {
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(edek == null ? "" : edek);
+        } catch (IllegalArgumentException e) {
+            bytes = new byte[0];
+        }
+        if (bytes.length <= IV_LENGTH) {
+            throw new KeyFailure(TenantSecurityErrorCodes.INVALID_PROVIDED_EDEK,
+                    "Provided EDEK was not valid.");
+        }
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, masterKey,
+                    new GCMParameterSpec(TAG_BITS, bytes, 0, IV_LENGTH));
+            cipher.updateAAD(tenantId.getBytes(StandardCharsets.UTF_8));
+            return cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH);
+        } catch (GeneralSecurityException e) {
+            // Wrong tenant or an EDEK from another fake TSP
+            throw new KeyFailure(TenantSecurityErrorCodes.KMS_UNWRAP_FAILED,
+                    "EDEK could not be unwrapped for this tenant.");
+        }
+    }
+
+    private static Request parse(byte[] body) throws IOException {
+        Request request = new Request();
+        try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Request body was not a JSON object.");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals("tenantId")) {
+                    request.tenantId = parser.getText();
+                } else if (field.equals("encryptedDocumentKey")) {
+                    request.edek = parser.getText();
+                } else if (field.equals("newTenantId")) {
+                    request.newTenantId = parser.getText();
+                } else if (field.equals("documentIds") && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                        request.documentIds.add(parser.getText());
+                    }
+                } else if (field.equals("edeks") && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String id = parser.getCurrentName();
+                        parser.nextToken();
+                        request.edeks.put(id, parser.getText());
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return request;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,89 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encrypts and decrypts one document the way the client's encryptFields and decryptFields do,
+ * with the same per-field operations run through a FieldWorkSplitter. The document is
+ * payloadSize bytes split evenly across fieldCount fields, and the splitter spreads the work
+ * across up to parallelism threads. Run with -prof gc to see bytes allocated per operation. No
+ * Tenant Security Proxy is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class FieldCryptoBenchmark {
+    @Param({"16", "1024", "65536", "1048576", "67108864"})
+    public int payloadSize;
+
+    @Param({"1", "10", "100"})
+    public int fieldCount;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private final SecureRandom secureRandom = new SecureRandom();
+    private ExecutorService executor;
+    private FieldWorkSplitter splitter;
+    private SecretKeySpec documentKey;
+    private Map<String, byte[]> document;
+    private Map<String, byte[]> encryptedDocument;
+
+    @Setup(Level.Trial)
+    public void doSetup() {
+        executor = Executors.newFixedThreadPool(parallelism);
+        splitter = new FieldWorkSplitter(executor, parallelism,
+                TenantSecurityClient.DEFAULT_PARALLEL_FIELD_THRESHOLD);
+        byte[] dek = new byte[32];
+        secureRandom.nextBytes(dek);
+        documentKey = CryptoUtils.aesKey(dek);
+        int fieldSize = Math.max(1, payloadSize / fieldCount);
+        document = new HashMap<>();
+        for (int i = 0; i < fieldCount; i++) {
+            byte[] field = new byte[fieldSize];
+            secureRandom.nextBytes(field);
+            document.put("field" + i, field);
+        }
+        encryptedDocument = encryptFields();
+    }
+
+    @TearDown(Level.Trial)
+    public void doTeardown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public Map<String, byte[]> encryptFields() {
+        return splitter.process(document,
+                field -> CryptoUtils.encryptBytes(field, documentKey, secureRandom).join());
+    }
+
+    @Benchmark
+    public Map<String, byte[]> decryptFields() {
+        return splitter.process(encryptedDocument,
+                field -> CryptoUtils.decryptDocument(field, documentKey).join());
+    }
+}
@@ -0,0 +1,91 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encrypts one document across a matrix of field counts and field sizes, comparing one
+ * supplyAsync task per field (how the client used to work) against FieldWorkSplitter. Both use a
+ * fixed pool sized to the number of cores. No Tenant Security Proxy is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FieldSplittingBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int fieldCount;
+
+    @Param({"16", "1024", "65536"})
+    public int fieldSize;
+
+    @Param({"32768"})
+    public int parallelFieldThreshold;
+
+    private final SecureRandom secureRandom = new SecureRandom();
+    private ExecutorService executor;
+    private FieldWorkSplitter splitter;
+    private SecretKeySpec documentKey;
+    private Map<String, byte[]> document;
+
+    @Setup(Level.Trial)
+    public void doSetup() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        executor = Executors.newFixedThreadPool(cores);
+        splitter = new FieldWorkSplitter(executor, cores, parallelFieldThreshold);
+        byte[] dek = new byte[32];
+        secureRandom.nextBytes(dek);
+        documentKey = CryptoUtils.aesKey(dek);
+        document = new HashMap<>();
+        for (int i = 0; i < fieldCount; i++) {
+            byte[] field = new byte[fieldSize];
+            secureRandom.nextBytes(field);
+            document.put("field" + i, field);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void doTeardown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public Map<String, byte[]> taskPerField() {
+        Map<String, CompletableFuture<byte[]>> encryptOps = document.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey,
+                        entry -> CompletableFuture.supplyAsync(() -> CryptoUtils
+                                .encryptBytes(entry.getValue(), documentKey, secureRandom).join(),
+                                executor)));
+        return encryptOps.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().join()));
+    }
+
+    @Benchmark
+    public Map<String, byte[]> workSplitter() {
+        return splitter.process(document,
+                field -> CryptoUtils.encryptBytes(field, documentKey, secureRandom).join());
+    }
+}
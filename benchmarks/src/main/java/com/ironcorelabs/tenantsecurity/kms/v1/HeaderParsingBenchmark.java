@@ -0,0 +1,62 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the fixed per-field cost of the IronCore header: writing it on encrypt and checking and
+ * stripping it on decrypt. None of these should scale with the field size, so a regression that
+ * copies the field shows up as a jump in time and in allocation (-prof gc) at the larger sizes.
+ * No Tenant Security Proxy is needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeaderParsingBenchmark {
+    @Param({"16", "1024", "1048576"})
+    public int fieldSize;
+
+    private byte[] encryptedField;
+
+    @Setup
+    public void doSetup() {
+        SecureRandom secureRandom = new SecureRandom();
+        byte[] dek = new byte[32];
+        secureRandom.nextBytes(dek);
+        byte[] field = new byte[fieldSize];
+        secureRandom.nextBytes(field);
+        encryptedField =
+                CryptoUtils.encryptBytes(field, CryptoUtils.aesKey(dek), secureRandom).join();
+    }
+
+    @Benchmark
+    public byte[] generateHeader() {
+        return CryptoUtils.generateHeader();
+    }
+
+    @Benchmark
+    public boolean isCiphertext() {
+        return CryptoUtils.isCiphertext(encryptedField) && !CryptoUtils.isSegmented(encryptedField);
+    }
+
+    @Benchmark
+    public ByteBuffer parseDocumentParts() {
+        return CryptoUtils.parseDocumentParts(encryptedField).join();
+    }
+}
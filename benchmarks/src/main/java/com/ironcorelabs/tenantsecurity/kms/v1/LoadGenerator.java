@@ -0,0 +1,337 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.io.PrintStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TenantSecurityException;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Drives TenantSecurityClient operations from many threads and reports throughput, latency
+ * percentiles and errors per operation. JMH's average time says nothing about the tail under
+ * concurrency, which is what this is for.
+ *
+ * Two load models are supported:
+ * <ul>
+ * <li>open: operations are started at the target rate whether or not earlier ones have finished,
+ * the way independent users arrive. Latency is measured from when each operation was scheduled to
+ * start, so time spent behind a slow operation is counted rather than hidden (coordinated
+ * omission).</li>
+ * <li>closed: each thread starts its next operation once the last one finishes. With a target
+ * rate, each thread is paced to its share of it and latency is again measured from the scheduled
+ * start. Without one the threads run flat out and only service time is measured.</li>
+ * </ul>
+ *
+ * Runs against any TSP URL, or starts a FakeTenantSecurityProxy when no URL is given. Options are
+ * passed as --name=value:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.ironcorelabs.tenantsecurity.kms.v1.LoadGenerator \
+ *     --mode=open --rate=2000 --threads=8 --duration=60 --operations=encrypt,decrypt
+ * </pre>
+ *
+ * <ul>
+ * <li>url, api-key, tenant: TSP to use. Without a url a fake TSP is started, configured by
+ * fake-latency-ms, fake-tail-rate, fake-tail-latency-ms and fake-error-rate.</li>
+ * <li>operations: any of encrypt, decrypt, encryptBatch and decryptBatch, run in turn. Defaults to
+ * all four.</li>
+ * <li>mode: open or closed. Defaults to closed.</li>
+ * <li>rate: target operations per second across all threads. Required for open mode.</li>
+ * <li>threads: number of threads starting operations. Defaults to 8.</li>
+ * <li>max-outstanding: open mode cap on operations in flight, so an overloaded TSP can't exhaust
+ * memory. Defaults to 10000.</li>
+ * <li>warmup, duration: seconds of unrecorded and recorded load. Default to 10 and 30.</li>
+ * <li>fields, field-size, batch-size: shape of each document and batch. Default to 1, 1024 and
+ * 10.</li>
+ * <li>async-transport: max in flight requests for the async transport, otherwise the blocking
+ * transport is used.</li>
+ * </ul>
+ */
+public final class LoadGenerator {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final Map<String, String> options;
+    private final DocumentMetadata metadata;
+    private final List<Operation> operations = new ArrayList<>();
+
+    /**
+     * One operation being driven along with its recorded latencies and errors.
+     */
+    private static final class Operation {
+        final String name;
+        final Supplier<CompletableFuture<?>> start;
+        // Latency in microseconds
+        final Recorder latency = new Recorder(3);
+        final LongAdder documentFailures = new LongAdder();
+        final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+        Operation(String name, Supplier<CompletableFuture<?>> start) {
+            this.name = name;
+            this.start = start;
+        }
+
+        void reset() {
+            latency.reset();
+            documentFailures.reset();
+            errors.clear();
+        }
+
+        void record(long scheduledAt, Object result, Throwable error) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduledAt);
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException
+                        || error instanceof ExecutionException ? error.getCause() : error;
+                String key = cause instanceof TenantSecurityException
+                        ? ((TenantSecurityException) cause).getErrorCode().name()
+                        : cause.getClass().getSimpleName();
+                errors.computeIfAbsent(key, k -> new LongAdder()).increment();
+                return;
+            }
+            if (result instanceof BatchResult) {
+                documentFailures.add(((BatchResult<?>) result).getFailures().size());
+            }
+            latency.recordValue(micros);
+        }
+    }
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.metadata = new DocumentMetadata(option("tenant", "tenant-gcp"), "load-generator",
+                "sample");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new LoadGenerator(options).run(System.out);
+        // The client's and fake TSP's threads are daemons or shut down, but don't wait on them
+        System.exit(0);
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return Double.parseDouble(option(name, Double.toString(defaultValue)));
+    }
+
+    private void run(PrintStream out) throws Exception {
+        FakeTenantSecurityProxy fakeTsp = null;
+        String url = options.get("url");
+        String apiKey = option("api-key", "0WUaXesNgbTAuLwn");
+        if (url == null) {
+            long latency = intOption("fake-latency-ms", 5);
+            fakeTsp = FakeTenantSecurityProxy.builder().apiKey(apiKey)
+                    .latency(latency, latency / 5, TimeUnit.MILLISECONDS)
+                    .tailLatency(doubleOption("fake-tail-rate", 0.001),
+                            intOption("fake-tail-latency-ms", 200), TimeUnit.MILLISECONDS)
+                    .errors(doubleOption("fake-error-rate", 0),
+                            TenantSecurityErrorCodes.KMS_UNREACHABLE)
+                    .build();
+            url = fakeTsp.getUrl();
+            out.println("Started fake TSP at " + url);
+        }
+        TenantSecurityClient.Builder builder = TenantSecurityClient.builder(url, apiKey);
+        if (options.containsKey("async-transport")) {
+            builder.asyncTransport(new AsyncTransportConfig(intOption("async-transport", 64), 2));
+        }
+        try (TenantSecurityClient client = builder.build()) {
+            createOperations(client);
+            String mode = option("mode", "closed");
+            int threads = intOption("threads", 8);
+            double rate = doubleOption("rate", 0);
+            if (mode.equals("open") && rate <= 0) {
+                throw new IllegalArgumentException("Open mode needs a --rate.");
+            }
+            out.printf("Running %s loop, %d threads, %s, operations %s%n", mode, threads,
+                    rate > 0 ? rate + " ops/s" : "unpaced", option("operations", "all"));
+            long warmupNanos = TimeUnit.SECONDS.toNanos(intOption("warmup", 10));
+            long durationNanos = TimeUnit.SECONDS.toNanos(intOption("duration", 30));
+            long start = System.nanoTime();
+            long recordFrom = start + warmupNanos;
+            long end = recordFrom + durationNanos;
+            List<Thread> workers = new ArrayList<>();
+            Semaphore outstanding = new Semaphore(intOption("max-outstanding", 10000));
+            for (int i = 0; i < threads; i++) {
+                int worker = i;
+                Runnable loop = mode.equals("open")
+                        ? () -> openLoop(worker, threads, rate, start, end, outstanding)
+                        : () -> closedLoop(worker, threads, rate, start, end);
+                Thread thread = new Thread(loop, "load-generator-" + i);
+                thread.start();
+                workers.add(thread);
+            }
+            LockSupport.parkNanos(recordFrom - System.nanoTime());
+            operations.forEach(Operation::reset);
+            for (Thread thread : workers) {
+                thread.join();
+            }
+            // Let open loop operations still in flight finish so they're counted
+            outstanding.acquire(intOption("max-outstanding", 10000));
+            report(out, (System.nanoTime() - recordFrom) / 1e9);
+        } finally {
+            if (fakeTsp != null) {
+                fakeTsp.close();
+            }
+        }
+    }
+
+    private void createOperations(TenantSecurityClient client) throws Exception {
+        SecureRandom random = new SecureRandom();
+        Map<String, byte[]> document = new HashMap<>();
+        for (int i = 0; i < intOption("fields", 1); i++) {
+            byte[] field = new byte[intOption("field-size", 1024)];
+            random.nextBytes(field);
+            document.put("field" + i, field);
+        }
+        Map<String, Map<String, byte[]>> batch = new HashMap<>();
+        for (int i = 0; i < intOption("batch-size", 10); i++) {
+            batch.put("doc" + i, document);
+        }
+        List<String> names = Arrays.asList(
+                option("operations", "encrypt,decrypt,encryptBatch,decryptBatch").split(","));
+        for (String name : names) {
+            switch (name) {
+                case "encrypt":
+                    operations.add(new Operation(name, () -> client.encrypt(document, metadata)));
+                    break;
+                case "decrypt": {
+                    EncryptedDocument encrypted = client.encrypt(document, metadata).get();
+                    operations.add(
+                            new Operation(name, () -> client.decrypt(encrypted, metadata)));
+                    break;
+                }
+                case "encryptBatch":
+                    operations.add(
+                            new Operation(name, () -> client.encryptBatch(batch, metadata)));
+                    break;
+                case "decryptBatch": {
+                    Map<String, EncryptedDocument> encrypted =
+                            client.encryptBatch(batch, metadata).get().getDocuments();
+                    operations.add(new Operation(name,
+                            () -> client.decryptBatch(encrypted, metadata)));
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown operation " + name);
+            }
+        }
+    }
+
+    /**
+     * Start this thread's share of the rate on schedule without waiting for completions.
+     */
+    private void openLoop(int worker, int threads, double rate, long start, long end,
+            Semaphore outstanding) {
+        long interval = (long) (1e9 * threads / rate);
+        // Stagger the threads so their starts interleave instead of bunching up
+        long scheduledAt = start + interval * worker / threads;
+        for (long i = worker; scheduledAt < end; i += threads) {
+            LockSupport.parkNanos(scheduledAt - System.nanoTime());
+            Operation operation = operations.get((int) (i % operations.size()));
+            long scheduled = scheduledAt;
+            outstanding.acquireUninterruptibly();
+            CompletableFuture<?> result;
+            try {
+                result = operation.start.get();
+            } catch (RuntimeException e) {
+                result = new CompletableFuture<>();
+                result.completeExceptionally(e);
+            }
+            result.whenComplete((value, error) -> {
+                operation.record(scheduled, value, error);
+                outstanding.release();
+            });
+            scheduledAt += interval;
+        }
+    }
+
+    /**
+     * Run one operation at a time, paced to this thread's share of the rate if there is one.
+     */
+    private void closedLoop(int worker, int threads, double rate, long start, long end) {
+        long interval = rate > 0 ? (long) (1e9 * threads / rate) : 0;
+        long scheduledAt = start + interval * worker / threads;
+        for (long i = worker; System.nanoTime() < end; i += threads) {
+            if (interval > 0) {
+                LockSupport.parkNanos(scheduledAt - System.nanoTime());
+            } else {
+                scheduledAt = System.nanoTime();
+            }
+            Operation operation = operations.get((int) (i % operations.size()));
+            try {
+                operation.record(scheduledAt, operation.start.get().get(), null);
+            } catch (Exception e) {
+                operation.record(scheduledAt, null, e);
+            }
+            scheduledAt += interval;
+        }
+    }
+
+    private void report(PrintStream out, double seconds) {
+        out.printf("%n%-14s %10s %10s", "operation", "ops/s", "count");
+        for (double percentile : PERCENTILES) {
+            out.printf(" %9s", "p" + (percentile % 1 == 0 ? Integer.toString((int) percentile)
+                    : Double.toString(percentile)));
+        }
+        out.printf(" %9s %9s %8s%n", "max", "mean", "errors");
+        Histogram all = new Histogram(3);
+        for (Operation operation : operations) {
+            Histogram histogram = operation.latency.getIntervalHistogram();
+            all.add(histogram);
+            printRow(out, operation.name, histogram, seconds, operation.errors.values().stream()
+                    .mapToLong(LongAdder::sum).sum());
+        }
+        if (operations.size() > 1) {
+            long errors = operations.stream().flatMap(o -> o.errors.values().stream())
+                    .mapToLong(LongAdder::sum).sum();
+            printRow(out, "all", all, seconds, errors);
+        }
+        out.println("Latencies in ms.");
+        for (Operation operation : operations) {
+            if (!operation.errors.isEmpty()) {
+                out.printf("%s errors: %s%n", operation.name, new TreeMap<>(operation.errors));
+            }
+            if (operation.documentFailures.sum() > 0) {
+                out.printf("%s failed documents: %d%n", operation.name,
+                        operation.documentFailures.sum());
+            }
+        }
+    }
+
+    private static void printRow(PrintStream out, String name, Histogram histogram,
+            double seconds, long errors) {
+        out.printf("%-14s %10.1f %10d", name, histogram.getTotalCount() / seconds,
+                histogram.getTotalCount());
+        for (double percentile : PERCENTILES) {
+            out.printf(" %9.2f", histogram.getValueAtPercentile(percentile) / 1000.0);
+        }
+        out.printf(" %9.2f %9.2f %8d%n", histogram.getMaxValue() / 1000.0,
+                histogram.getMean() / 1000.0, errors);
+    }
+}
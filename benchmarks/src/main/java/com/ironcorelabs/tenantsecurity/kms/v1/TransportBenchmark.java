@@ -0,0 +1,157 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.AsyncEntityProducers;
+import org.apache.hc.core5.http.nio.entity.BasicAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AsyncResponseBuilder;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the TSP transports by sending a burst of concurrent wrap requests to an in-process
+ * HTTP/1.1 or h2c server that answers with a canned wrap response after an
+ * optional delay. Every transport is given the same concurrency (threads for the blocking
+ * transport, permits for the async ones) so the difference is how the requests are carried. No
+ * Tenant Security Proxy is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+    private static final String WRAP_RESPONSE =
+            "{\"dek\":\"3q2+796tvu/erb7v3q2+796tvu/erb7v3q2+796tvu8=\",\"edek\":\"CsABCiQAN7B3qN1vc3T0\"}";
+
+    @Param({"blocking-http1", "async-http1", "async-http2"})
+    public String transport;
+
+    @Param({"0", "5"})
+    public int serverLatencyMillis;
+
+    @Param({"64"})
+    public int concurrency;
+
+    private ScheduledExecutorService responseDelayer;
+    private HttpAsyncServer server;
+    private TenantSecurityRequest request;
+    private final DocumentMetadata metadata =
+            new DocumentMetadata("tenant", "benchmark", "transport");
+
+    @Setup(Level.Trial)
+    public void doSetup() throws Exception {
+        responseDelayer = Executors.newSingleThreadScheduledExecutor();
+        // The server can't detect h2c prior knowledge on a cleartext port, so pick its protocol
+        HttpVersionPolicy serverVersion = transport.endsWith("http2")
+                ? HttpVersionPolicy.FORCE_HTTP_2
+                : HttpVersionPolicy.FORCE_HTTP_1;
+        server = H2ServerBootstrap.bootstrap().setVersionPolicy(serverVersion)
+                .register("*", new WrapHandler()).create();
+        server.start();
+        int port = ((InetSocketAddress) server
+                .listen(new InetSocketAddress("localhost", 0), URIScheme.HTTP).get().getAddress())
+                        .getPort();
+        TspTransport tspTransport;
+        switch (transport) {
+            case "blocking-http1":
+                tspTransport = new BlockingHttpTransport(concurrency, 20000);
+                break;
+            case "async-http1":
+                tspTransport =
+                        new AsyncHttpTransport(new AsyncTransportConfig(concurrency, 2), 20000);
+                break;
+            case "async-http2":
+                tspTransport = new AsyncHttpTransport(
+                        new AsyncTransportConfig(concurrency, 2, true), 20000);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+        request = new TenantSecurityRequest("http://localhost:" + port, "apiKey", tspTransport);
+    }
+
+    @TearDown(Level.Trial)
+    public void doTeardown() throws IOException {
+        request.close();
+        server.close(CloseMode.IMMEDIATE);
+        responseDelayer.shutdown();
+    }
+
+    @Benchmark
+    public List<WrappedDocumentKey> concurrentWraps() {
+        List<CompletableFuture<WrappedDocumentKey>> pending = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            pending.add(request.wrapKey(metadata));
+        }
+        List<WrappedDocumentKey> keys = new ArrayList<>(concurrency);
+        for (CompletableFuture<WrappedDocumentKey> key : pending) {
+            keys.add(key.join());
+        }
+        return keys;
+    }
+
+    private final class WrapHandler
+            implements AsyncServerRequestHandler<Message<HttpRequest, byte[]>> {
+        @Override
+        public AsyncRequestConsumer<Message<HttpRequest, byte[]>> prepare(HttpRequest request,
+                EntityDetails entityDetails, HttpContext context) {
+            return new BasicRequestConsumer<>(
+                    entityDetails == null ? null : new BasicAsyncEntityConsumer());
+        }
+
+        @Override
+        public void handle(Message<HttpRequest, byte[]> message, ResponseTrigger responseTrigger,
+                HttpContext context) throws HttpException, IOException {
+            Runnable respond = () -> {
+                try {
+                    responseTrigger.submitResponse(AsyncResponseBuilder.create(200)
+                            .setEntity(AsyncEntityProducers.create(WRAP_RESPONSE,
+                                    ContentType.APPLICATION_JSON))
+                            .build(), context);
+                } catch (HttpException | IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+            if (serverLatencyMillis == 0) {
+                respond.run();
+            } else {
+                // Delay without holding a server I/O thread so the server isn't the bottleneck
+                responseDelayer.schedule(respond, serverLatencyMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
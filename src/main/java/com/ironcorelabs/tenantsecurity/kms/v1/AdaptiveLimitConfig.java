@@ -0,0 +1,122 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+/**
+ * Settings for the adaptive limit on requests in flight to the Tenant Security Proxy. The limit is
+ * adjusted with additive increase/multiplicative decrease (AIMD): while requests complete within
+ * the latency threshold and the limit is being used, it grows by about one request per limit's
+ * worth of completed requests. When a request times out, can't reach the TSP, or takes longer than
+ * the latency threshold, the limit is multiplied by the backoff ratio. Requests made while the
+ * limit is reached fail immediately with CONCURRENCY_LIMIT_EXCEEDED instead of waiting on a
+ * degraded TSP.
+ */
+public final class AdaptiveLimitConfig {
+    /**
+     * Default starting limit. Value is 20.
+     */
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+
+    /**
+     * Default lowest limit. Value is 1.
+     */
+    public static final int DEFAULT_MIN_LIMIT = 1;
+
+    /**
+     * Default highest limit. Value is 200.
+     */
+    public static final int DEFAULT_MAX_LIMIT = 200;
+
+    /**
+     * Default latency above which a request reduces the limit, in ms. Value is 1000.
+     */
+    public static final long DEFAULT_LATENCY_THRESHOLD_MILLIS = 1000;
+
+    /**
+     * Default factor the limit is multiplied by when it is reduced. Value is 0.9.
+     */
+    public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdMillis;
+    private final double backoffRatio;
+
+    /**
+     * Constructor for AdaptiveLimitConfig which uses the default settings.
+     */
+    public AdaptiveLimitConfig() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT,
+                DEFAULT_LATENCY_THRESHOLD_MILLIS, DEFAULT_BACKOFF_RATIO);
+    }
+
+    /**
+     * Constructor for AdaptiveLimitConfig.
+     *
+     * @param initialLimit           Starting limit, between the min and max limits.
+     * @param minLimit               Lowest limit, at least 1.
+     * @param maxLimit               Highest limit.
+     * @param latencyThresholdMillis Latency above which a request reduces the limit, in ms.
+     * @param backoffRatio           Factor the limit is multiplied by when it is reduced, greater
+     *                               than 0 and less than 1.
+     * @throws IllegalArgumentException If any value is out of range.
+     */
+    public AdaptiveLimitConfig(int initialLimit, int minLimit, int maxLimit,
+            long latencyThresholdMillis, double backoffRatio) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException(
+                    "Values provided for min and max limit must be greater than 0 and the max must be at least the min!");
+        }
+        if (initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException(
+                    "Value provided for initial limit must be between the min and max limit!");
+        }
+        if (latencyThresholdMillis < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for latency threshold must be greater than 0!");
+        }
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for backoff ratio must be between 0 and 1!");
+        }
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdMillis = latencyThresholdMillis;
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * Get the starting limit.
+     */
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    /**
+     * Get the lowest limit.
+     */
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    /**
+     * Get the highest limit.
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Get the latency above which a request reduces the limit, in ms.
+     */
+    public long getLatencyThresholdMillis() {
+        return latencyThresholdMillis;
+    }
+
+    /**
+     * Get the factor the limit is multiplied by when it is reduced.
+     */
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+}
@@ -0,0 +1,63 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limit on requests in flight which adapts with additive increase/multiplicative decrease. Unlike
+ * AsyncLimiter, requests over the limit are rejected rather than queued, so callers fail fast while
+ * the TSP is degraded instead of piling up behind it.
+ */
+final class AdaptiveLimiter {
+    private final AdaptiveLimitConfig config;
+    private final long latencyThresholdNanos;
+    private double limit;
+    private int inFlight;
+
+    AdaptiveLimiter(AdaptiveLimitConfig config) {
+        this.config = config;
+        this.latencyThresholdNanos =
+                TimeUnit.MILLISECONDS.toNanos(config.getLatencyThresholdMillis());
+        this.limit = config.getInitialLimit();
+    }
+
+    /**
+     * Take a slot if fewer requests than the limit are in flight. Every successful call must be
+     * followed by exactly one call to onComplete or onIgnored.
+     */
+    synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Release a slot and adjust the limit based on how the request went.
+     *
+     * @param latencyNanos How long the request took.
+     * @param dropped      Whether the request timed out or couldn't reach the TSP.
+     */
+    synchronized void onComplete(long latencyNanos, boolean dropped) {
+        // Only grow the limit when it is actually being used, otherwise a quiet period would let
+        // it drift up to the max without any evidence the TSP can take that many
+        boolean limitInUse = inFlight * 2 >= limit;
+        inFlight--;
+        if (dropped || latencyNanos > latencyThresholdNanos) {
+            limit = Math.max(config.getMinLimit(), limit * config.getBackoffRatio());
+        } else if (limitInUse) {
+            limit = Math.min(config.getMaxLimit(), limit + 1 / limit);
+        }
+    }
+
+    /**
+     * Release a slot without adjusting the limit.
+     */
+    synchronized void onIgnored() {
+        inFlight--;
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+}
@@ -0,0 +1,187 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import com.ironcorelabs.tenantsecurity.utils.CompletableFutures;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.TimeValue;
+
+/**
+ * Transport that uses the non-blocking Apache HTTP client over either a pool of HTTP/1.1
+ * connections or a single multiplexed HTTP/2 connection. No thread is held while a request is in
+ * flight, and the number of requests in flight at once is limited by an AsyncLimiter rather than by
+ * a thread pool.
+ */
+final class AsyncHttpTransport implements TspTransport {
+    private final CloseableHttpAsyncClient httpClient;
+    // Null for HTTP/2, which multiplexes every request over one connection instead of pooling
+    private final PoolingAsyncClientConnectionManager connectionManager;
+    private final AsyncLimiter limiter;
+    private final RequestConfig requestConfig;
+    private final int readTimeout;
+    private final ClientMetrics metrics;
+    private final Closeable poolMetrics;
+
+    AsyncHttpTransport(AsyncTransportConfig config, int timeout) {
+        this(config, timeout, timeout, 0, 0, ClientMetrics.NONE);
+    }
+
+    /**
+     * @param config               Max in flight requests, I/O thread and protocol settings.
+     * @param connectTimeout       Connect timeout in ms.
+     * @param readTimeout          Socket and response timeout in ms.
+     * @param connectionTimeToLive Max age of a pooled HTTP/1.1 connection in ms, or 0 for no
+     *                             limit.
+     * @param keepAlive            Max idle time of a pooled HTTP/1.1 connection in ms, or 0 to use
+     *                             the server's Keep-Alive header.
+     * @param metrics              Where to record the time requests wait for a permit and
+     *                             connection pool usage.
+     */
+    AsyncHttpTransport(AsyncTransportConfig config, int connectTimeout, int readTimeout,
+            long connectionTimeToLive, long keepAlive, ClientMetrics metrics) {
+        int permits = config.getMaxInFlightRequests();
+        ConnectionConfig.Builder connectionConfigBuilder =
+                ConnectionConfig.custom().setConnectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                        .setSocketTimeout(readTimeout, TimeUnit.MILLISECONDS);
+        if (connectionTimeToLive > 0) {
+            connectionConfigBuilder.setTimeToLive(connectionTimeToLive, TimeUnit.MILLISECONDS);
+        }
+        ConnectionConfig connectionConfig = connectionConfigBuilder.build();
+        IOReactorConfig ioReactorConfig =
+                IOReactorConfig.custom().setIoThreadCount(config.getIoThreads()).build();
+        this.readTimeout = readTimeout;
+        this.metrics = metrics;
+        this.requestConfig = RequestConfig.custom()
+                .setResponseTimeout(readTimeout, TimeUnit.MILLISECONDS).build();
+        if (config.isHttp2()) {
+            // One multiplexed connection per route. The TSP never pushes, so turn that off.
+            // H2Config's max concurrent streams is only what we advertise to the server, so the
+            // limiter is what caps the streams we open.
+            this.httpClient = HttpAsyncClients.customHttp2()
+                    .setH2Config(H2Config.custom().setPushEnabled(false).build())
+                    .setDefaultConnectionConfig(connectionConfig)
+                    .setIOReactorConfig(ioReactorConfig).setDefaultRequestConfig(requestConfig)
+                    .build();
+            this.connectionManager = null;
+        } else {
+            this.connectionManager =
+                    PoolingAsyncClientConnectionManagerBuilder.create().setMaxConnTotal(permits)
+                            .setMaxConnPerRoute(permits)
+                            .setDefaultConnectionConfig(connectionConfig)
+                            .setDefaultTlsConfig(TlsConfig.custom()
+                                    .setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_1).build())
+                            .build();
+            HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setIOReactorConfig(ioReactorConfig).setDefaultRequestConfig(requestConfig);
+            if (keepAlive > 0) {
+                builder.setKeepAliveStrategy(
+                        (response, context) -> TimeValue.ofMilliseconds(keepAlive));
+            }
+            this.httpClient = builder.build();
+        }
+        this.httpClient.start();
+        // The only limit on requests in flight, including HTTP/2 streams. The server may advertise
+        // a lower stream limit, in which case the client queues the excess internally.
+        this.limiter = new AsyncLimiter(permits);
+        this.poolMetrics = metrics.connectionPool(this::getConnectionPoolStats);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.httpClient.close(CloseMode.GRACEFUL);
+        } finally {
+            this.poolMetrics.close();
+        }
+    }
+
+    @Override
+    public ConnectionPoolStats getConnectionPoolStats() {
+        if (connectionManager == null) {
+            // Count streams on the shared connection instead
+            int inFlight = limiter.getInFlight();
+            return new ConnectionPoolStats(inFlight, limiter.getQueueDepth(),
+                    limiter.getPermits() - inFlight, limiter.getPermits());
+        }
+        PoolStats stats = connectionManager.getTotalStats();
+        return new ConnectionPoolStats(stats.getLeased(), stats.getPending(),
+                stats.getAvailable(), stats.getMax());
+    }
+
+    @Override
+    public CompletableFuture<Response> post(String url, Map<String, String> headers,
+            byte[] body) {
+        return post(url, headers, body, null);
+    }
+
+    @Override
+    public CompletableFuture<Response> post(String url, Map<String, String> headers, byte[] body,
+            Deadline deadline) {
+        long submittedAt = metrics == ClientMetrics.NONE ? 0 : System.nanoTime();
+        return limiter.submit(() -> {
+            if (metrics != ClientMetrics.NONE) {
+                metrics.queueWait(ClientMetrics.WorkQueue.REQUEST,
+                        System.nanoTime() - submittedAt);
+            }
+            CompletableFuture<Response> response = new CompletableFuture<>();
+            // The request may have waited a while for a permit, so check before sending
+            if (deadline != null && deadline.isExpired()) {
+                response.completeExceptionally(Deadline.exceeded("sending the request"));
+                return response;
+            }
+            SimpleRequestBuilder builder =
+                    SimpleRequestBuilder.post(url).setBody(body, ContentType.APPLICATION_JSON);
+            headers.forEach(builder::addHeader);
+            if (deadline != null) {
+                // A request config replaces the client default rather than being merged with it
+                builder.setRequestConfig(RequestConfig.copy(requestConfig)
+                        .setResponseTimeout(Deadline.timeoutMillis(deadline, readTimeout),
+                                TimeUnit.MILLISECONDS)
+                        .build());
+            }
+            SimpleHttpRequest request = builder.build();
+            Future<SimpleHttpResponse> exchange =
+                    httpClient.execute(request, new FutureCallback<SimpleHttpResponse>() {
+                        @Override
+                        public void completed(SimpleHttpResponse result) {
+                            response.complete(
+                                    new Response(result.getCode(), result.getBodyBytes()));
+                        }
+
+                        @Override
+                        public void failed(Exception e) {
+                            response.completeExceptionally(e);
+                        }
+
+                        @Override
+                        public void cancelled() {
+                            response.cancel(false);
+                        }
+                    });
+            // Cancelling the response aborts the exchange, which also frees the permit
+            return CompletableFutures.propagateCancellation(response, exchange);
+        });
+    }
+}
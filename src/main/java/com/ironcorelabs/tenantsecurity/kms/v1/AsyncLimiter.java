@@ -0,0 +1,133 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import com.ironcorelabs.tenantsecurity.utils.CompletableFutures;
+
+/**
+ * Limits how many asynchronous operations are in flight at once without blocking any threads.
+ * Operations submitted while every permit is taken wait in a FIFO queue and are started by
+ * whichever thread completes the operation that frees up a permit. Cancelling the future for an
+ * operation removes it from the queue if it hasn't started and cancels it if it has.
+ */
+final class AsyncLimiter {
+    private final int permits;
+    private final AtomicInteger available;
+    private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    // ConcurrentLinkedQueue.size() walks the whole queue, so track the depth separately
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    // Set while this thread is draining the queue, so an operation that completes synchronously
+    // releases its permit to the loop already running instead of recursing into another one
+    private final ThreadLocal<Boolean> draining = ThreadLocal.withInitial(() -> false);
+
+    AsyncLimiter(int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException("Number of permits must be greater than 0!");
+        }
+        this.permits = permits;
+        this.available = new AtomicInteger(permits);
+    }
+
+    /**
+     * Start the operation once a permit is available. The permit is released when the operation's
+     * future completes.
+     */
+    <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable start = () -> {
+            if (result.isDone()) {
+                // Cancelled after it was taken off the queue, so hand the permit straight back
+                release();
+                return;
+            }
+            CompletableFuture<T> started;
+            try {
+                started = operation.get();
+            } catch (RuntimeException e) {
+                started = new CompletableFuture<>();
+                started.completeExceptionally(e);
+            }
+            CompletableFutures.propagateCancellation(result, started);
+            started.whenComplete((value, error) -> {
+                release();
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+        };
+        queueDepth.incrementAndGet();
+        waiting.add(start);
+        result.whenComplete((value, error) -> {
+            // Drop an operation that was cancelled while waiting for a permit
+            if (result.isCancelled() && waiting.remove(start)) {
+                queueDepth.decrementAndGet();
+            }
+        });
+        drain();
+        return result;
+    }
+
+    /**
+     * Get the number of operations waiting for a permit.
+     */
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Get the number of operations holding a permit.
+     */
+    int getInFlight() {
+        return permits - available.get();
+    }
+
+    /**
+     * Get the max number of operations in flight at once.
+     */
+    int getPermits() {
+        return permits;
+    }
+
+    private void release() {
+        available.incrementAndGet();
+        drain();
+    }
+
+    private void drain() {
+        if (draining.get()) {
+            return;
+        }
+        draining.set(true);
+        try {
+            drainQueue();
+        } finally {
+            draining.set(false);
+        }
+    }
+
+    private void drainQueue() {
+        while (!waiting.isEmpty()) {
+            int permits = available.get();
+            if (permits == 0) {
+                // The thread that releases the next permit will pick up the queue
+                return;
+            }
+            if (!available.compareAndSet(permits, permits - 1)) {
+                continue;
+            }
+            Runnable next = waiting.poll();
+            if (next == null) {
+                // Another thread took the last waiting operation, give the permit back and check
+                // the queue again in case something was added in between
+                available.incrementAndGet();
+                continue;
+            }
+            queueDepth.decrementAndGet();
+            next.run();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+/**
+ * Settings for the non-blocking HTTP transport. Instead of holding a thread from the web request
+ * pool for each round trip to the Tenant Security Proxy, requests are sent and received by a small
+ * number of I/O threads and the number of requests in flight at once is limited by an explicit
+ * permit count. Requests made while every permit is in use wait in a queue without holding a
+ * thread.
+ *
+ * With HTTP/1.1 each in-flight request uses its own connection, so the connection pool is sized to
+ * the number of permits. With HTTP/2 every request is multiplexed over a single connection to the
+ * Tenant Security Proxy and the permit count is the max number of concurrent streams on that
+ * connection. HTTP/2 is negotiated with ALPN for https URLs and uses prior knowledge (h2c) for http
+ * URLs, so the proxy or load balancer in front of the Tenant Security Proxy must support it.
+ */
+public final class AsyncTransportConfig {
+    /**
+     * Default max number of requests in flight to the Tenant Security Proxy at once. Value is 256.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 256;
+
+    /**
+     * Default number of I/O threads. Value is 2.
+     */
+    public static final int DEFAULT_IO_THREADS = 2;
+
+    private final int maxInFlightRequests;
+    private final int ioThreads;
+    private final boolean http2;
+
+    /**
+     * Constructor for AsyncTransportConfig which uses the default permit count and I/O threads.
+     */
+    public AsyncTransportConfig() {
+        this(DEFAULT_MAX_IN_FLIGHT_REQUESTS, DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * Constructor for AsyncTransportConfig which uses HTTP/1.1.
+     *
+     * @param maxInFlightRequests Max number of requests in flight to the Tenant Security Proxy at
+     *                            once.
+     * @param ioThreads           Number of threads used to send requests and read responses.
+     * @throws IllegalArgumentException If either value is less than 1.
+     */
+    public AsyncTransportConfig(int maxInFlightRequests, int ioThreads) {
+        this(maxInFlightRequests, ioThreads, false);
+    }
+
+    /**
+     * Constructor for AsyncTransportConfig.
+     *
+     * @param maxInFlightRequests Max number of requests in flight to the Tenant Security Proxy at
+     *                            once. When using HTTP/2 this is the max number of concurrent
+     *                            streams on the connection.
+     * @param ioThreads           Number of threads used to send requests and read responses.
+     * @param http2               Whether to multiplex requests over one HTTP/2 connection instead
+     *                            of using a pool of HTTP/1.1 connections.
+     * @throws IllegalArgumentException If either number is less than 1.
+     */
+    public AsyncTransportConfig(int maxInFlightRequests, int ioThreads, boolean http2) {
+        if (maxInFlightRequests < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for max in flight requests must be greater than 0!");
+        }
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for I/O thread count must be greater than 0!");
+        }
+        this.maxInFlightRequests = maxInFlightRequests;
+        this.ioThreads = ioThreads;
+        this.http2 = http2;
+    }
+
+    /**
+     * Get the max number of requests in flight at once.
+     */
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * Get the number of I/O threads.
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Get whether requests are multiplexed over HTTP/2.
+     */
+    public boolean isHttp2() {
+        return http2;
+    }
+}
@@ -16,6 +16,15 @@ public class BatchDocumentKeys<T> {
     @Key
     private Map<String, ErrorResponse> failures;
 
+    // This empty constructor needed for JSON deserialization
+    public BatchDocumentKeys() {
+    }
+
+    BatchDocumentKeys(Map<String, T> keys, Map<String, ErrorResponse> failures) {
+        this.keys = keys;
+        this.failures = failures;
+    }
+
     public Map<String, T> getKeys() {
         return this.keys;
     }
@@ -1,4 +1,23 @@
 package com.ironcorelabs.tenantsecurity.kms.v1;
 
+import java.util.Map;
+
 public class BatchUnwrappedDocumentKeys extends BatchDocumentKeys<UnwrappedDocumentKey> {
+    // This empty constructor needed for JSON deserialization
+    public BatchUnwrappedDocumentKeys() {
+    }
+
+    BatchUnwrappedDocumentKeys(Map<String, UnwrappedDocumentKey> keys,
+            Map<String, ErrorResponse> failures) {
+        super(keys, failures);
+    }
+
+    /**
+     * Zero the DEK of every key in the batch.
+     */
+    void destroy() {
+        if (getKeys() != null) {
+            getKeys().values().forEach(UnwrappedDocumentKey::destroy);
+        }
+    }
 };
\ No newline at end of file
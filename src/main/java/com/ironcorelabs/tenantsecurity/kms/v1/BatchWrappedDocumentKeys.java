@@ -1,3 +1,23 @@
 package com.ironcorelabs.tenantsecurity.kms.v1;
 
-public class BatchWrappedDocumentKeys extends BatchDocumentKeys<WrappedDocumentKey>{};
\ No newline at end of file
+import java.util.Map;
+
+public class BatchWrappedDocumentKeys extends BatchDocumentKeys<WrappedDocumentKey> {
+    // This empty constructor needed for JSON deserialization
+    public BatchWrappedDocumentKeys() {
+    }
+
+    BatchWrappedDocumentKeys(Map<String, WrappedDocumentKey> keys,
+            Map<String, ErrorResponse> failures) {
+        super(keys, failures);
+    }
+
+    /**
+     * Zero the DEK of every key in the batch.
+     */
+    void destroy() {
+        if (getKeys() != null) {
+            getKeys().values().forEach(WrappedDocumentKey::destroy);
+        }
+    }
+};
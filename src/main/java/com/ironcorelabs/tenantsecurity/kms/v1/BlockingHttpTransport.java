@@ -0,0 +1,311 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TspServiceException;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Transport that makes each request with the blocking Google HTTP client on a fixed size thread
+ * pool. The number of requests in flight at once is limited by the size of the pool. This is the
+ * default transport. It can instead run each request on its own virtual thread, in which case the
+ * number in flight is limited by a semaphore.
+ */
+final class BlockingHttpTransport implements TspTransport {
+    private static final String JSON_CONTENT_TYPE = "application/json";
+    // Request being made on the current thread, so the interceptor can attach the Apache request
+    private static final ThreadLocal<InFlightRequest> CURRENT_REQUEST = new ThreadLocal<>();
+
+    // Fixed sized thread pool for web requests. Limit the amount of parallel web
+    // requests that we let go out at any given time. We don't want to DoS our
+    // Tenant Security Proxy with too many requests at the same time. The size of
+    // this thread pools is configurable on construction.
+    private final ExecutorService webRequestExecutor;
+    // Whether the executor was created by this transport and should be shut down on close
+    private final boolean ownsExecutor;
+    // Limits the requests in flight when the executor itself doesn't. Null for fixed size pools.
+    private final Semaphore permits;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final HttpRequestFactory requestFactory;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final ClientMetrics metrics;
+    private final Closeable poolMetrics;
+
+    BlockingHttpTransport(int requestThreadSize, int timeout) {
+        this(Executors.newFixedThreadPool(requestThreadSize), true, requestThreadSize, timeout,
+                timeout, 0, 0, null, ClientMetrics.NONE);
+    }
+
+    /**
+     * @param webRequestExecutor   Executor to make the blocking requests on.
+     * @param ownsExecutor         Whether to shut down the executor when the transport is closed.
+     * @param maxConnections       Size of the connection pool to the TSP.
+     * @param connectTimeout       Connect timeout in ms.
+     * @param readTimeout          Read timeout in ms.
+     * @param connectionTimeToLive Max age of a pooled connection in ms, or 0 for no limit.
+     * @param keepAlive            Max idle time of a pooled connection in ms, or 0 to use the
+     *                             server's Keep-Alive header.
+     * @param permits              Limit on requests in flight, or null if the executor limits
+     *                             them itself.
+     * @param metrics              Where to record the time requests wait to start and connection
+     *                             pool usage.
+     */
+    BlockingHttpTransport(ExecutorService webRequestExecutor, boolean ownsExecutor,
+            int maxConnections, int connectTimeout, int readTimeout, long connectionTimeToLive,
+            long keepAlive, Semaphore permits, ClientMetrics metrics) {
+        this.webRequestExecutor = webRequestExecutor;
+        this.ownsExecutor = ownsExecutor;
+        this.permits = permits;
+        this.connectionManager = provideConnectionManager(maxConnections, maxConnections,
+                connectionTimeToLive);
+        this.requestFactory = provideHttpRequestFactory(connectionManager, keepAlive);
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.metrics = metrics;
+        this.poolMetrics = metrics.connectionPool(this::getConnectionPoolStats);
+    }
+
+    /**
+     * Create a transport which runs each request on a new virtual thread, allowing at most
+     * maxConcurrentRequests in flight at once. Falls back to a fixed size pool of that many
+     * platform threads if the running JDK doesn't support virtual threads.
+     *
+     * @param maxConcurrentRequests Max requests in flight to the TSP.
+     * @param connectTimeout        Connect timeout in ms.
+     * @param readTimeout           Read timeout in ms.
+     * @param connectionTimeToLive  Max age of a pooled connection in ms, or 0 for no limit.
+     * @param keepAlive             Max idle time of a pooled connection in ms, or 0 to use the
+     *                              server's Keep-Alive header.
+     * @param metrics               Where to record the time requests wait to start.
+     */
+    static BlockingHttpTransport withVirtualThreads(int maxConcurrentRequests, int connectTimeout,
+            int readTimeout, long connectionTimeToLive, long keepAlive, ClientMetrics metrics) {
+        ExecutorService virtualThreads = VirtualThreads.newThreadPerTaskExecutor();
+        if (virtualThreads == null) {
+            return new BlockingHttpTransport(Executors.newFixedThreadPool(maxConcurrentRequests),
+                    true, maxConcurrentRequests, connectTimeout, readTimeout, connectionTimeToLive,
+                    keepAlive, null, metrics);
+        }
+        return new BlockingHttpTransport(virtualThreads, true, maxConcurrentRequests,
+                connectTimeout, readTimeout, connectionTimeToLive, keepAlive,
+                new Semaphore(maxConcurrentRequests, true), metrics);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.ownsExecutor) {
+            this.webRequestExecutor.shutdown();
+        }
+        // Close the pooled connections, which also fails any request still using one
+        this.connectionManager.shutdown();
+        this.poolMetrics.close();
+    }
+
+    @Override
+    public ConnectionPoolStats getConnectionPoolStats() {
+        PoolStats stats = connectionManager.getTotalStats();
+        return new ConnectionPoolStats(stats.getLeased(), stats.getPending(),
+                stats.getAvailable(), stats.getMax());
+    }
+
+    @Override
+    public CompletableFuture<Response> post(String url, Map<String, String> headers,
+            byte[] body) {
+        return post(url, headers, body, null);
+    }
+
+    @Override
+    public CompletableFuture<Response> post(String url, Map<String, String> headers, byte[] body,
+            Deadline deadline) {
+        CompletableFuture<Response> response = new CompletableFuture<>();
+        InFlightRequest inFlight = new InFlightRequest();
+        long submittedAt = metrics == ClientMetrics.NONE ? 0 : System.nanoTime();
+        Future<?> task = webRequestExecutor.submit(() -> {
+            try {
+                response.complete(send(url, headers, body, deadline, inFlight, submittedAt));
+            } catch (Throwable e) {
+                response.completeExceptionally(e);
+            }
+        });
+        response.whenComplete((value, error) -> {
+            if (response.isCancelled()) {
+                // Take the request out of the executor's queue if it hasn't started, otherwise
+                // interrupt any wait for a permit and abort the HTTP exchange
+                task.cancel(true);
+                if (webRequestExecutor instanceof ThreadPoolExecutor && task instanceof Runnable) {
+                    ((ThreadPoolExecutor) webRequestExecutor).remove((Runnable) task);
+                }
+                inFlight.abort();
+            }
+        });
+        return response;
+    }
+
+    private Response send(String url, Map<String, String> headers, byte[] body,
+            Deadline deadline, InFlightRequest inFlight, long submittedAt)
+            throws IOException, TspServiceException {
+        // The request may have waited a while for a thread, so check before going further
+        if (deadline != null && deadline.isExpired()) {
+            throw Deadline.exceeded("sending the request");
+        }
+        if (permits != null) {
+            try {
+                if (deadline == null) {
+                    permits.acquire();
+                } else if (!permits.tryAcquire(deadline.remaining(TimeUnit.NANOSECONDS),
+                        TimeUnit.NANOSECONDS)) {
+                    throw Deadline.exceeded("sending the request");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }
+        if (metrics != ClientMetrics.NONE) {
+            metrics.queueWait(ClientMetrics.WorkQueue.REQUEST, System.nanoTime() - submittedAt);
+        }
+        CURRENT_REQUEST.set(inFlight);
+        try {
+            // Build new headers for each request. Otherwise Google will keep appending their
+            // custom user agent string and it will grow big enough to cause header overflow
+            // errors.
+            HttpHeaders httpHeaders = new HttpHeaders();
+            headers.forEach(httpHeaders::set);
+            HttpResponse resp = requestFactory
+                    .buildPostRequest(new GenericUrl(url),
+                            new ByteArrayContent(JSON_CONTENT_TYPE, body))
+                    .setHeaders(httpHeaders)
+                    .setReadTimeout(Deadline.timeoutMillis(deadline, this.readTimeout))
+                    .setConnectTimeout(Deadline.timeoutMillis(deadline, this.connectTimeout))
+                    // We want to parse out error codes, so don't throw when we get a non-200
+                    // response code
+                    .setThrowExceptionOnExecuteError(false).execute();
+            try {
+                return new Response(resp.getStatusCode(), readBody(resp));
+            } finally {
+                resp.disconnect();
+            }
+        } finally {
+            CURRENT_REQUEST.remove();
+            if (permits != null) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Handle for aborting the Apache request behind a Google HTTP client request, which doesn't
+     * expose it. The request is attached by an interceptor on the thread making the request.
+     */
+    private static final class InFlightRequest {
+        private HttpUriRequest request;
+        private boolean aborted;
+
+        synchronized void attach(HttpUriRequest request) {
+            this.request = request;
+            if (aborted) {
+                request.abort();
+            }
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            if (request != null) {
+                request.abort();
+            }
+        }
+    }
+
+    private static byte[] readBody(HttpResponse resp) throws IOException {
+        InputStream content = resp.getContent();
+        if (content == null) {
+            return new byte[0];
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Create the connection pool for http requests, for situations where large numbers of requests
+     * are desired.
+     *
+     * @param maxConnections       global max connections
+     * @param maxRouteConnections  max connections for a single HTTP endpoint
+     * @param connectionTimeToLive max age of a pooled connection in ms, or 0 for no limit
+     * @return Connection pool with the provided limits.
+     */
+    static PoolingHttpClientConnectionManager provideConnectionManager(int maxConnections,
+            int maxRouteConnections, long connectionTimeToLive) {
+        final PoolingHttpClientConnectionManager cm = connectionTimeToLive > 0
+                ? new PoolingHttpClientConnectionManager(connectionTimeToLive,
+                        TimeUnit.MILLISECONDS)
+                : new PoolingHttpClientConnectionManager();
+        // Increase max total connections
+        cm.setMaxTotal(maxConnections);
+        // Increase default max connection per route
+        cm.setDefaultMaxPerRoute(maxRouteConnections);
+        return cm;
+    }
+
+    /**
+     * Create the factory for http requests on top of the provided connection pool.
+     *
+     * @param cm        connection pool to make requests with
+     * @param keepAlive max idle time of a pooled connection in ms, or 0 to use the server's
+     *                  Keep-Alive header
+     * @return HttpRequestFactory with connection pooling enabled.
+     */
+    static HttpRequestFactory provideHttpRequestFactory(PoolingHttpClientConnectionManager cm,
+            long keepAlive) {
+        // Same behavior as HttpClients.createMinimal, plus the keep-alive override
+        HttpClientBuilder builder = HttpClients.custom().setConnectionManager(cm)
+                .disableRedirectHandling().disableAutomaticRetries().disableCookieManagement()
+                .disableAuthCaching().disableContentCompression();
+        if (keepAlive > 0) {
+            builder.setKeepAliveStrategy((response, context) -> keepAlive);
+        }
+        // Runs before a connection is leased, so an abort from then on ends the exchange
+        builder.addInterceptorFirst((HttpRequestInterceptor) (request, context) -> {
+            InFlightRequest inFlight = CURRENT_REQUEST.get();
+            if (inFlight != null && request instanceof HttpRequestWrapper
+                    && ((HttpRequestWrapper) request).getOriginal() instanceof HttpUriRequest) {
+                inFlight.attach((HttpUriRequest) ((HttpRequestWrapper) request).getOriginal());
+            }
+        });
+        final CloseableHttpClient httpClient = builder.build();
+        final HttpTransport httpTransport = new ApacheHttpTransport(httpClient);
+
+        return httpTransport.createRequestFactory();
+    }
+}
@@ -0,0 +1,86 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+/**
+ * Settings for per-tenant bulkheads in front of the Tenant Security Proxy. Each tenant gets its
+ * own reserved number of requests in flight, and all tenants share an overflow pool for requests
+ * beyond that. Requests that can't get either wait in a queue for their tenant. A freed reserved
+ * permit goes to the next request of the same tenant, and a freed overflow permit goes to the
+ * tenants with waiting requests in turn, so a tenant whose KMS is slow can only hold its own
+ * reserved permits and its share of the overflow rather than every request slot.
+ */
+public final class BulkheadConfig {
+    /**
+     * Default requests in flight reserved for each tenant. Value is 4.
+     */
+    public static final int DEFAULT_PERMITS_PER_TENANT = 4;
+
+    /**
+     * Default requests in flight shared by all tenants beyond their reserved permits. Value is 16.
+     */
+    public static final int DEFAULT_OVERFLOW_PERMITS = 16;
+
+    /**
+     * Default max requests waiting for each tenant. Value is 100.
+     */
+    public static final int DEFAULT_MAX_QUEUED_PER_TENANT = 100;
+
+    private final int permitsPerTenant;
+    private final int overflowPermits;
+    private final int maxQueuedPerTenant;
+
+    /**
+     * Constructor for BulkheadConfig which uses the default settings.
+     */
+    public BulkheadConfig() {
+        this(DEFAULT_PERMITS_PER_TENANT, DEFAULT_OVERFLOW_PERMITS, DEFAULT_MAX_QUEUED_PER_TENANT);
+    }
+
+    /**
+     * Constructor for BulkheadConfig.
+     *
+     * @param permitsPerTenant   Requests in flight reserved for each tenant.
+     * @param overflowPermits    Requests in flight shared by all tenants beyond their reserved
+     *                           permits. May be 0.
+     * @param maxQueuedPerTenant Max requests waiting for each tenant. Requests beyond this fail
+     *                           immediately with CONCURRENCY_LIMIT_EXCEEDED. May be 0.
+     * @throws IllegalArgumentException If any value is out of range.
+     */
+    public BulkheadConfig(int permitsPerTenant, int overflowPermits, int maxQueuedPerTenant) {
+        if (permitsPerTenant < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for permits per tenant must be greater than 0!");
+        }
+        if (overflowPermits < 0) {
+            throw new IllegalArgumentException(
+                    "Value provided for overflow permits must not be negative!");
+        }
+        if (maxQueuedPerTenant < 0) {
+            throw new IllegalArgumentException(
+                    "Value provided for max queued per tenant must not be negative!");
+        }
+        this.permitsPerTenant = permitsPerTenant;
+        this.overflowPermits = overflowPermits;
+        this.maxQueuedPerTenant = maxQueuedPerTenant;
+    }
+
+    /**
+     * Get the requests in flight reserved for each tenant.
+     */
+    public int getPermitsPerTenant() {
+        return permitsPerTenant;
+    }
+
+    /**
+     * Get the requests in flight shared by all tenants beyond their reserved permits.
+     */
+    public int getOverflowPermits() {
+        return overflowPermits;
+    }
+
+    /**
+     * Get the max requests waiting for each tenant.
+     */
+    public int getMaxQueuedPerTenant() {
+        return maxQueuedPerTenant;
+    }
+}
@@ -0,0 +1,76 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+/**
+ * Point in time counters for a tenant's bulkhead. All values are zero if bulkheads are not enabled
+ * or the tenant hasn't made any requests. The counts of queued and rejected requests and wait times
+ * start over once the tenant has had nothing in flight or queued for ten minutes.
+ */
+public final class BulkheadStats {
+    private final int inFlight;
+    private final int queueDepth;
+    private final long queued;
+    private final long rejected;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+
+    BulkheadStats(int inFlight, int queueDepth, long queued, long rejected, long totalWaitNanos,
+            long maxWaitNanos) {
+        this.inFlight = inFlight;
+        this.queueDepth = queueDepth;
+        this.queued = queued;
+        this.rejected = rejected;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    /**
+     * Get the number of the tenant's requests currently in flight, using either reserved or
+     * overflow permits.
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Get the number of the tenant's requests currently waiting for a permit.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Get the number of the tenant's requests that had to wait for a permit and have since been
+     * started.
+     */
+    public long getQueued() {
+        return queued;
+    }
+
+    /**
+     * Get the number of the tenant's requests that failed because its queue was full.
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Get the total time the tenant's started requests spent waiting for a permit, in ns.
+     */
+    public long getTotalWaitNanos() {
+        return totalWaitNanos;
+    }
+
+    /**
+     * Get the longest time one of the tenant's requests waited for a permit, in ns.
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    /**
+     * Get the average time the tenant's requests that had to wait spent waiting, in ns.
+     */
+    public long getAverageWaitNanos() {
+        return queued == 0 ? 0 : totalWaitNanos / queued;
+    }
+}
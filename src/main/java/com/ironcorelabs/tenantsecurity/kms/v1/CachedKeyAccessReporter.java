@@ -0,0 +1,88 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import com.ironcorelabs.tenantsecurity.logdriver.v1.DataEvent;
+import com.ironcorelabs.tenantsecurity.logdriver.v1.EventMetadata;
+
+/**
+ * Keeps a count of the DEKs served from the client side cache and periodically reports them to the
+ * Tenant Security Proxy. The TSP never sees these accesses, so without this a tenant's logs would
+ * only show the first unwrap of a cached key. Accesses are grouped by tenant, requesting user or
+ * service and data label, and each group is sent as a single DECRYPT security event that carries
+ * the number of accesses rather than one event per access.
+ */
+final class CachedKeyAccessReporter {
+    static final String ACCESS_COUNT_FIELD = "cachedDekAccessCount";
+
+    private final TenantSecurityRequest encryptionService;
+    private final ConcurrentHashMap<AccessKey, Long> accessCounts = new ConcurrentHashMap<>();
+
+    CachedKeyAccessReporter(TenantSecurityRequest encryptionService) {
+        this.encryptionService = encryptionService;
+    }
+
+    /**
+     * Record a DEK served from the cache for a request with the provided metadata.
+     */
+    void recordAccess(DocumentMetadata metadata) {
+        accessCounts.merge(new AccessKey(metadata.getTenantId(),
+                metadata.getRequestingUserOrServiceId(), metadata.getDataLabel()), 1L, Long::sum);
+    }
+
+    /**
+     * Send a security event for every group of accesses recorded since the last flush. Reporting is
+     * best effort, so failures to send an event are ignored.
+     */
+    CompletableFuture<Void> flush() {
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        for (AccessKey key : accessCounts.keySet()) {
+            // Removing the entry is atomic with respect to merge(), so accesses recorded after this
+            // point start a new count instead of being lost.
+            Long count = accessCounts.remove(key);
+            if (count == null) {
+                continue;
+            }
+            Map<String, String> otherData = new HashMap<>();
+            otherData.put(ACCESS_COUNT_FIELD, count.toString());
+            EventMetadata metadata = new EventMetadata(key.tenantId, key.requestingUserOrServiceId,
+                    key.dataLabel, otherData);
+            sent.add(encryptionService.logSecurityEvent(DataEvent.DECRYPT, metadata)
+                    .exceptionally(e -> null));
+        }
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private static final class AccessKey {
+        private final String tenantId;
+        private final String requestingUserOrServiceId;
+        private final String dataLabel;
+
+        AccessKey(String tenantId, String requestingUserOrServiceId, String dataLabel) {
+            this.tenantId = tenantId;
+            this.requestingUserOrServiceId = requestingUserOrServiceId;
+            this.dataLabel = dataLabel;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof AccessKey)) {
+                return false;
+            }
+            AccessKey that = (AccessKey) other;
+            return tenantId.equals(that.tenantId)
+                    && requestingUserOrServiceId.equals(that.requestingUserOrServiceId)
+                    && Objects.equals(dataLabel, that.dataLabel);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tenantId, requestingUserOrServiceId, dataLabel);
+        }
+    }
+}
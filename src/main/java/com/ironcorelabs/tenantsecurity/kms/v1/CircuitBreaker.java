@@ -0,0 +1,148 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Count based circuit breaker. Records whether each of the most recent calls failed in a ring
+ * buffer and opens once enough of them have. State changes are rare and every method is short, so
+ * it is simply synchronized.
+ */
+final class CircuitBreaker {
+    private final CircuitBreakerConfig config;
+    private final LongSupplier nanoClock;
+    private final long openDurationNanos;
+
+    // Outcomes of the most recent calls while closed, true for a failure
+    private final boolean[] window;
+    private int next;
+    private int recorded;
+    private int failures;
+
+    private CircuitBreakerState state = CircuitBreakerState.CLOSED;
+    private long openedAt;
+    private int trialsStarted;
+    private int trialsSucceeded;
+
+    // Callers holding the breaker and when the last one let go, so that idle breakers can be dropped
+    private int users;
+    private long releasedAt;
+
+    CircuitBreaker(CircuitBreakerConfig config, LongSupplier nanoClock) {
+        this.config = config;
+        this.nanoClock = nanoClock;
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(config.getOpenDurationMillis());
+        this.window = new boolean[config.getWindowSize()];
+        this.releasedAt = nanoClock.getAsLong();
+    }
+
+    /**
+     * Mark the breaker as in use until the matching release, so that it isn't seen as idle.
+     */
+    synchronized void retain() {
+        users++;
+    }
+
+    synchronized void release() {
+        users--;
+        releasedAt = nanoClock.getAsLong();
+    }
+
+    /**
+     * Whether the breaker is closed, unused, and has been for at least the provided time. Dropping
+     * such a breaker only forgets the outcomes of calls that are that old.
+     */
+    synchronized boolean isIdle(long idleNanos) {
+        return state == CircuitBreakerState.CLOSED && users == 0
+                && nanoClock.getAsLong() - releasedAt >= idleNanos;
+    }
+
+    /**
+     * Check whether a call may be made. Every call that is allowed must be followed by exactly one
+     * of onSuccess, onFailure or onIgnored.
+     */
+    synchronized boolean tryAcquire() {
+        if (state == CircuitBreakerState.OPEN) {
+            if (nanoClock.getAsLong() - openedAt < openDurationNanos) {
+                return false;
+            }
+            state = CircuitBreakerState.HALF_OPEN;
+            trialsStarted = 0;
+            trialsSucceeded = 0;
+        }
+        if (state == CircuitBreakerState.HALF_OPEN) {
+            if (trialsStarted >= config.getHalfOpenCalls()) {
+                return false;
+            }
+            trialsStarted++;
+        }
+        return true;
+    }
+
+    synchronized void onSuccess() {
+        if (state == CircuitBreakerState.HALF_OPEN) {
+            if (++trialsSucceeded >= config.getHalfOpenCalls()) {
+                close();
+            }
+        } else if (state == CircuitBreakerState.CLOSED) {
+            record(false);
+        }
+    }
+
+    synchronized void onFailure() {
+        if (state == CircuitBreakerState.HALF_OPEN) {
+            open();
+        } else if (state == CircuitBreakerState.CLOSED) {
+            record(true);
+            if (recorded >= config.getMinimumCalls()
+                    && failures >= config.getFailureRateThreshold() * recorded) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * The call didn't tell us anything about the health of what this breaker protects, for
+     * example because it was rejected by another breaker. Frees up its trial slot if half open.
+     */
+    synchronized void onIgnored() {
+        if (state == CircuitBreakerState.HALF_OPEN && trialsStarted > trialsSucceeded) {
+            trialsStarted--;
+        }
+    }
+
+    synchronized CircuitBreakerState getState() {
+        if (state == CircuitBreakerState.OPEN
+                && nanoClock.getAsLong() - openedAt >= openDurationNanos) {
+            return CircuitBreakerState.HALF_OPEN;
+        }
+        return state;
+    }
+
+    private void record(boolean failed) {
+        if (recorded == window.length) {
+            if (window[next]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        window[next] = failed;
+        if (failed) {
+            failures++;
+        }
+        next = (next + 1) % window.length;
+    }
+
+    private void open() {
+        state = CircuitBreakerState.OPEN;
+        openedAt = nanoClock.getAsLong();
+    }
+
+    private void close() {
+        state = CircuitBreakerState.CLOSED;
+        next = 0;
+        recorded = 0;
+        failures = 0;
+    }
+}
@@ -0,0 +1,132 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+/**
+ * Settings for the circuit breakers in front of the Tenant Security Proxy. The client keeps one
+ * breaker for the TSP as a whole and one for each tenant, all using these settings. The TSP
+ * breaker opens when requests can't reach the TSP, so every request fails fast while it is down.
+ * A tenant's breaker opens when requests for that tenant time out or its KMS is unreachable, so a
+ * single degraded KMS can't tie up requests that other tenants need.
+ *
+ * Each breaker records the outcome of its most recent requests. Once at least the minimum number
+ * of calls have been recorded and the share of them that failed reaches the failure rate
+ * threshold, the breaker opens and requests fail immediately with CIRCUIT_BREAKER_OPEN. After the
+ * open duration it lets a few trial requests through, closing again if they all succeed.
+ */
+public final class CircuitBreakerConfig {
+    /**
+     * Default share of recorded calls that must fail to open a breaker. Value is 0.5.
+     */
+    public static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+
+    /**
+     * Default number of most recent calls recorded by each breaker. Value is 20.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+
+    /**
+     * Default number of calls that must be recorded before a breaker can open. Value is 10.
+     */
+    public static final int DEFAULT_MINIMUM_CALLS = 10;
+
+    /**
+     * Default time a breaker stays open before letting trial requests through, in ms. Value is
+     * 5000.
+     */
+    public static final long DEFAULT_OPEN_DURATION_MILLIS = 5000;
+
+    /**
+     * Default number of trial requests let through by a half open breaker. Value is 3.
+     */
+    public static final int DEFAULT_HALF_OPEN_CALLS = 3;
+
+    private final double failureRateThreshold;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final long openDurationMillis;
+    private final int halfOpenCalls;
+
+    /**
+     * Constructor for CircuitBreakerConfig which uses the default settings.
+     */
+    public CircuitBreakerConfig() {
+        this(DEFAULT_FAILURE_RATE_THRESHOLD, DEFAULT_WINDOW_SIZE, DEFAULT_MINIMUM_CALLS,
+                DEFAULT_OPEN_DURATION_MILLIS, DEFAULT_HALF_OPEN_CALLS);
+    }
+
+    /**
+     * Constructor for CircuitBreakerConfig.
+     *
+     * @param failureRateThreshold Share of recorded calls that must fail to open a breaker, greater
+     *                             than 0 and at most 1.
+     * @param windowSize           Number of most recent calls recorded by each breaker.
+     * @param minimumCalls         Number of calls that must be recorded before a breaker can open.
+     *                             At most the window size.
+     * @param openDurationMillis   Time a breaker stays open before letting trial requests through,
+     *                             in ms.
+     * @param halfOpenCalls        Number of trial requests let through by a half open breaker.
+     * @throws IllegalArgumentException If any value is out of range.
+     */
+    public CircuitBreakerConfig(double failureRateThreshold, int windowSize, int minimumCalls,
+            long openDurationMillis, int halfOpenCalls) {
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for failure rate threshold must be greater than 0 and at most 1!");
+        }
+        if (windowSize < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for circuit breaker window size must be greater than 0!");
+        }
+        if (minimumCalls < 1 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException(
+                    "Value provided for minimum calls must be between 1 and the window size!");
+        }
+        if (openDurationMillis < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for open duration must be greater than 0!");
+        }
+        if (halfOpenCalls < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for half open calls must be greater than 0!");
+        }
+        this.failureRateThreshold = failureRateThreshold;
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.openDurationMillis = openDurationMillis;
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * Get the share of recorded calls that must fail to open a breaker.
+     */
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * Get the number of most recent calls recorded by each breaker.
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Get the number of calls that must be recorded before a breaker can open.
+     */
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /**
+     * Get the time a breaker stays open before letting trial requests through, in ms.
+     */
+    public long getOpenDurationMillis() {
+        return openDurationMillis;
+    }
+
+    /**
+     * Get the number of trial requests let through by a half open breaker.
+     */
+    public int getHalfOpenCalls() {
+        return halfOpenCalls;
+    }
+}
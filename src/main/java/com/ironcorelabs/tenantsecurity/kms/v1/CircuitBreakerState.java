@@ -0,0 +1,21 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+/**
+ * State of a circuit breaker in front of the Tenant Security Proxy.
+ */
+public enum CircuitBreakerState {
+    /**
+     * Requests are sent normally and their outcomes are recorded.
+     */
+    CLOSED,
+    /**
+     * Too many recent requests failed. Requests fail immediately with CIRCUIT_BREAKER_OPEN until
+     * the open duration has passed.
+     */
+    OPEN,
+    /**
+     * The open duration has passed and a limited number of trial requests are being let through.
+     * The breaker closes if they succeed and opens again if any of them fail.
+     */
+    HALF_OPEN
+}
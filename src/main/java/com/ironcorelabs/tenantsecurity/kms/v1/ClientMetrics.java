@@ -0,0 +1,107 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.io.Closeable;
+import java.util.function.Supplier;
+
+/**
+ * Receives measurements from the client's hot paths so they can be exported to a metrics library.
+ * Every method has an empty default, so an implementation only overrides what it records.
+ * MicrometerClientMetrics records all of them to a Micrometer MeterRegistry; other libraries, such
+ * as OpenTelemetry, can be supported by implementing this interface or through a Micrometer
+ * registry which bridges to them.
+ *
+ * Metrics are off unless set with TenantSecurityClient.Builder.metrics or
+ * SharedTransport.Builder.metrics, in which case no measurements are taken at all. Methods are
+ * called on the client's request, crypto and I/O threads, so implementations must be thread safe
+ * and should return quickly.
+ */
+public interface ClientMetrics {
+    /**
+     * Tenant Security Proxy endpoint a request was made to.
+     */
+    enum Endpoint {
+        WRAP, BATCH_WRAP, UNWRAP, BATCH_UNWRAP, REKEY, SECURITY_EVENT
+    }
+
+    /**
+     * Queue a task can wait in before running.
+     */
+    enum WorkQueue {
+        // Waiting for a web request thread or permit to send a request to the TSP
+        REQUEST,
+        // Waiting for a thread of the AES thread pool
+        CRYPTO
+    }
+
+    /**
+     * Direction of an AES operation.
+     */
+    enum CryptoOperation {
+        ENCRYPT, DECRYPT
+    }
+
+    /**
+     * Implementation that records nothing, used when metrics aren't enabled.
+     */
+    ClientMetrics NONE = new ClientMetrics() {};
+
+    /**
+     * Called when a task starts running after waiting in one of the client's queues.
+     *
+     * @param queue     Queue the task waited in.
+     * @param waitNanos Time spent waiting, in ns.
+     */
+    default void queueWait(WorkQueue queue, long waitNanos) {}
+
+    /**
+     * Called for every request sent to the Tenant Security Proxy, including each retry. The
+     * latency includes any time spent waiting for a web request thread or permit, which is also
+     * reported on its own to queueWait.
+     *
+     * @param endpoint     Endpoint the request was made to.
+     * @param latencyNanos Time from handing the request to the transport until the response was
+     *                     parsed or the request failed, in ns.
+     * @param error        Error the request failed with, or null if it succeeded.
+     */
+    default void tspRequest(Endpoint endpoint, long latencyNanos, TenantSecurityErrorCodes error) {}
+
+    /**
+     * Called for every batch request sent to the Tenant Security Proxy.
+     *
+     * @param endpoint  BATCH_WRAP or BATCH_UNWRAP.
+     * @param documents Number of documents in the request.
+     */
+    default void batchSize(Endpoint endpoint, int documents) {}
+
+    /**
+     * Called for every error returned to a caller once any retries are done, including each
+     * failed document of a batch call and errors raised by the client itself, such as
+     * CIRCUIT_BREAKER_OPEN.
+     *
+     * @param endpoint Endpoint of the operation that failed.
+     * @param error    Error the operation failed with.
+     */
+    default void error(Endpoint endpoint, TenantSecurityErrorCodes error) {}
+
+    /**
+     * Called after a field or buffer is encrypted or decrypted. Dividing the bytes by the time
+     * gives AES throughput.
+     *
+     * @param operation Whether the data was encrypted or decrypted.
+     * @param bytes     Size of the input, in bytes.
+     * @param nanos     Time taken, in ns.
+     */
+    default void crypto(CryptoOperation operation, long bytes, long nanos) {}
+
+    /**
+     * Called once when a transport is created, with a way to read its connection pool usage, for
+     * metrics libraries which poll gauges. The returned handle is closed when the transport is, so
+     * that closed transports stop being read and can be garbage collected.
+     *
+     * @param stats Returns the current connection pool usage.
+     * @return Handle which stops reading the transport's connection pool usage when closed.
+     */
+    default Closeable connectionPool(Supplier<ConnectionPoolStats> stats) {
+        return () -> {};
+    }
+}
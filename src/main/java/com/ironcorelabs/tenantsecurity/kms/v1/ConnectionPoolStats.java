@@ -0,0 +1,54 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+/**
+ * Point in time usage of the connections to the Tenant Security Proxy. For the HTTP/2 transport,
+ * which multiplexes every request over one connection, the values count streams instead.
+ */
+public final class ConnectionPoolStats {
+    private final int leased;
+    private final int pending;
+    private final int available;
+    private final int max;
+
+    ConnectionPoolStats(int leased, int pending, int available, int max) {
+        this.leased = leased;
+        this.pending = pending;
+        this.available = available;
+        this.max = max;
+    }
+
+    /**
+     * Get the number of connections currently being used by a request.
+     */
+    public int getLeased() {
+        return leased;
+    }
+
+    /**
+     * Get the number of requests waiting for a connection.
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * Get the number of idle connections kept open in the pool.
+     */
+    public int getAvailable() {
+        return available;
+    }
+
+    /**
+     * Get the max number of connections the pool will open.
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * Get the share of the pool in use, from 0 to 1.
+     */
+    public double getUtilization() {
+        return max == 0 ? 0 : (double) leased / max;
+    }
+}
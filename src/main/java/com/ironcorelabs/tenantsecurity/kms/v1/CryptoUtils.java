@@ -0,0 +1,588 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import com.ironcorelabs.tenantsecurity.utils.CompletableFutures;
+
+/**
+ * AES-GCM helpers used to encrypt and decrypt document fields, along with the handling of the
+ * IronCore document header that is prepended to every encrypted field.
+ */
+final class CryptoUtils {
+    static final String AES_ALGO = "AES/GCM/NoPadding";
+    static final int IV_BYTE_LENGTH = 12;
+    static final int GCM_TAG_BIT_LENGTH = 128;
+    // the size of the fixed length portion of the header (version, magic, size)
+    static final int DOCUMENT_HEADER_META_LENGTH = 7;
+    static final byte CURRENT_DOCUMENT_HEADER_VERSION = 3;
+    // Documents with this header version are split into individually authenticated segments so
+    // that a range of the plaintext can be decrypted without decrypting the whole document.
+    static final byte SEGMENTED_DOCUMENT_HEADER_VERSION = 4;
+    static final byte[] DOCUMENT_MAGIC = {73, 82, 79, 78}; // bytes for ASCII IRON
+                                                           // characters
+    // Size of the buffer used to move data between the streams provided to the streaming
+    // encrypt/decrypt methods and the cipher.
+    static final int STREAM_CHUNK_SIZE = 64 * 1024;
+    static final int GCM_TAG_BYTE_LENGTH = GCM_TAG_BIT_LENGTH / 8;
+    // The variable length portion of a segmented header holds the plaintext segment size as a 4
+    // byte big endian int.
+    static final int SEGMENTED_HEADER_LENGTH = 4;
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    // Upper bound on segment size to avoid huge allocations from a corrupted or malicious header.
+    static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    // Looking up the provider in Cipher.getInstance is a measurable cost relative to encrypting a
+    // small field. Ciphers aren't thread safe, so each thread (in practice the fixed size
+    // encryption thread pool) keeps its own instance which is re-initialized for every use.
+    private static final ThreadLocal<Cipher> AES_CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(AES_ALGO);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to create " + AES_ALGO + " cipher.", e);
+        }
+    });
+
+    private CryptoUtils() {}
+
+    /**
+     * Get the AES-GCM cipher for the current thread. Callers must init() it before every use and
+     * must not hold on to it across calls into other CryptoUtils methods.
+     */
+    static Cipher getCipher() {
+        return AES_CIPHER.get();
+    }
+
+    /**
+     * Create the AES key spec for a DEK. This should be done once per document rather than once
+     * per field.
+     */
+    static SecretKeySpec aesKey(byte[] dek) {
+        return new SecretKeySpec(dek, "AES");
+    }
+
+    /**
+     * Generate a header to mark the encrypted document as ours. Right now this is all constant; in
+     * the future this will contain a protobuf bytes header of variable length.
+     */
+    static byte[] generateHeader() {
+        final byte headerVersion = CURRENT_DOCUMENT_HEADER_VERSION;
+        final byte[] magic = DOCUMENT_MAGIC;
+        final byte[] headerSize = {(byte) 0, (byte) 0};
+        return ByteBuffer.allocate(DOCUMENT_HEADER_META_LENGTH).put(headerVersion).put(magic)
+                .put(headerSize).array();
+    }
+
+    /**
+     * Check that the given bytes contain 4 bytes of ASCII representing "IRON" document magic. This
+     * magic should start at index 1, after the expected header version byte.
+     */
+    private static boolean containsIroncoreMagic(byte[] bytes) {
+        return bytes.length >= 5
+                && ByteBuffer.wrap(bytes, 1, 4).compareTo(ByteBuffer.wrap(DOCUMENT_MAGIC)) == 0;
+    }
+
+    /**
+     * Multiply the header size bytes at the 5th and 6th indices to get the header size. If those
+     * bytes don't exist this will throw.
+     */
+    private static int getHeaderSize(byte[] bytes) {
+        return bytes[5] * 256 + bytes[6];
+    }
+
+    /**
+     * Check that the fixed length portion of a header has the expected version, the IRON magic and
+     * a valid header size.
+     */
+    private static boolean isValidHeaderMeta(byte[] bytes) {
+        return (bytes[0] == CURRENT_DOCUMENT_HEADER_VERSION
+                || bytes[0] == SEGMENTED_DOCUMENT_HEADER_VERSION) && containsIroncoreMagic(bytes)
+                && getHeaderSize(bytes) >= 0;
+    }
+
+    /**
+     * Check if the provided encrypted document uses the segmented format. Assumes the bytes have
+     * already been checked with isCiphertext.
+     */
+    static boolean isSegmented(byte[] document) {
+        return document[0] == SEGMENTED_DOCUMENT_HEADER_VERSION;
+    }
+
+    /**
+     * Check if an IronCore header is present in some bytes, indicating that it is ciphertext.
+     */
+    static boolean isCiphertext(byte[] bytes) {
+        // Header size is variable for CMK encrypted docs depending on whether
+        // the header is present. Expect at least one byte following the header
+        // that would have been encrypted.
+        return bytes.length > DOCUMENT_HEADER_META_LENGTH && isValidHeaderMeta(bytes);
+    }
+
+    /**
+     * Parses the header off the encrypted document and returns a ByteBuffer wrapping the document
+     * bytes. Once the header contains metadata we care about, this will return a class containing
+     * the document bytes and the header.
+     */
+    static CompletableFuture<ByteBuffer> parseDocumentParts(byte[] document) {
+        return CompletableFutures.tryCatchNonFatal(() -> {
+            if (!isCiphertext(document) || isSegmented(document)) {
+                throw new IllegalArgumentException(
+                        "Provided bytes were not an Ironcore encrypted document.");
+            }
+            int totalHeaderSize = getHeaderSize(document) + DOCUMENT_HEADER_META_LENGTH;
+            int newLength = document.length - totalHeaderSize;
+            return ByteBuffer.wrap(document, totalHeaderSize, newLength);
+        });
+    }
+
+    /**
+     * Get the number of bytes that encrypting a plaintext of the provided length will produce,
+     * including the header, IV and authentication tag.
+     */
+    static int encryptedLength(int plaintextLength) {
+        return DOCUMENT_HEADER_META_LENGTH + IV_BYTE_LENGTH + plaintextLength
+                + GCM_TAG_BYTE_LENGTH;
+    }
+
+    /**
+     * Given the provided document bytes and an AES key, encrypt and return the encrypted bytes.
+     */
+    static CompletableFuture<byte[]> encryptBytes(byte[] document, SecretKeySpec documentKey,
+            SecureRandom secureRandom) {
+        return CompletableFutures.tryCatchNonFatal(() -> {
+            // Allocate the result once and have the cipher write straight into it after the
+            // header and IV.
+            byte[] encrypted = new byte[encryptedLength(document.length)];
+            encryptBuffer(ByteBuffer.wrap(document), ByteBuffer.wrap(encrypted), documentKey,
+                    secureRandom);
+            return encrypted;
+        });
+    }
+
+    /**
+     * Given the provided encrypted document (which has an IV prepended to it) and an AES key,
+     * decrypt and return the decrypted bytes.
+     */
+    static CompletableFuture<byte[]> decryptBytes(ByteBuffer encryptedDocument,
+            SecretKeySpec documentKey) {
+        return CompletableFutures.tryCatchNonFatal(() -> {
+            if (encryptedDocument.remaining() < IV_BYTE_LENGTH + GCM_TAG_BYTE_LENGTH) {
+                throw new IllegalArgumentException(
+                        "Provided bytes were not an Ironcore encrypted document.");
+            }
+            final Cipher cipher = getCipher();
+            if (encryptedDocument.hasArray()) {
+                // Read the IV and ciphertext straight out of the backing array rather than
+                // copying them out first.
+                byte[] bytes = encryptedDocument.array();
+                int offset = encryptedDocument.arrayOffset() + encryptedDocument.position();
+                cipher.init(Cipher.DECRYPT_MODE, documentKey,
+                        new GCMParameterSpec(GCM_TAG_BIT_LENGTH, bytes, offset, IV_BYTE_LENGTH));
+                return cipher.doFinal(bytes, offset + IV_BYTE_LENGTH,
+                        encryptedDocument.remaining() - IV_BYTE_LENGTH);
+            }
+            byte[] decrypted =
+                    new byte[encryptedDocument.remaining() - IV_BYTE_LENGTH - GCM_TAG_BYTE_LENGTH];
+            decryptBody(encryptedDocument, ByteBuffer.wrap(decrypted), documentKey);
+            return decrypted;
+        });
+    }
+
+    /**
+     * Encrypt the remaining bytes of the plaintext buffer and write the header, IV and ciphertext
+     * into the output buffer starting at its current position. The plaintext buffer's position is
+     * moved to its limit and the output buffer's position is moved past the written bytes. Either
+     * buffer may be a heap or direct buffer. Returns the number of bytes written.
+     */
+    static int encryptBuffer(ByteBuffer plaintext, ByteBuffer output, SecretKeySpec documentKey,
+            SecureRandom secureRandom) throws Exception {
+        int encryptedLength = encryptedLength(plaintext.remaining());
+        if (output.remaining() < encryptedLength) {
+            throw new IllegalArgumentException(String.format(
+                    "Output buffer has %d bytes remaining but %d are needed.", output.remaining(),
+                    encryptedLength));
+        }
+        byte[] iv = new byte[IV_BYTE_LENGTH];
+        secureRandom.nextBytes(iv);
+        final Cipher cipher = getCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, documentKey, new GCMParameterSpec(GCM_TAG_BIT_LENGTH, iv));
+
+        // Store the IV at the front of the resulting encrypted data
+        output.put(generateHeader()).put(iv);
+        cipher.doFinal(plaintext, output);
+        return encryptedLength;
+    }
+
+    /**
+     * Decrypt the encrypted document (header, IV and ciphertext) in the remaining bytes of the
+     * encrypted buffer and write the plaintext into the output buffer starting at its current
+     * position. The encrypted buffer's position is moved to its limit and the output buffer's
+     * position is moved past the written bytes. Either buffer may be a heap or direct buffer.
+     * Only the non-segmented format is supported. Returns the number of bytes written.
+     */
+    static int decryptBuffer(ByteBuffer encrypted, ByteBuffer output, SecretKeySpec documentKey)
+            throws Exception {
+        if (encrypted.remaining() <= DOCUMENT_HEADER_META_LENGTH) {
+            throw new IllegalArgumentException(
+                    "Provided bytes were not an Ironcore encrypted document.");
+        }
+        byte[] headerMeta = new byte[DOCUMENT_HEADER_META_LENGTH];
+        encrypted.get(headerMeta);
+        if (!isValidHeaderMeta(headerMeta) || headerMeta[0] != CURRENT_DOCUMENT_HEADER_VERSION
+                || encrypted.remaining() < getHeaderSize(headerMeta) + IV_BYTE_LENGTH
+                        + GCM_TAG_BYTE_LENGTH) {
+            throw new IllegalArgumentException(
+                    "Provided bytes were not a non-segmented Ironcore encrypted document.");
+        }
+        // The variable length portion of the header isn't used yet, so skip over it
+        encrypted.position(encrypted.position() + getHeaderSize(headerMeta));
+        return decryptBody(encrypted, output, documentKey);
+    }
+
+    /**
+     * Decrypt the IV and ciphertext in the remaining bytes of the encrypted buffer into the
+     * output buffer.
+     */
+    private static int decryptBody(ByteBuffer encrypted, ByteBuffer output,
+            SecretKeySpec documentKey) throws Exception {
+        int decryptedLength = encrypted.remaining() - IV_BYTE_LENGTH - GCM_TAG_BYTE_LENGTH;
+        if (output.remaining() < decryptedLength) {
+            throw new IllegalArgumentException(String.format(
+                    "Output buffer has %d bytes remaining but %d are needed.", output.remaining(),
+                    decryptedLength));
+        }
+        byte[] iv = new byte[IV_BYTE_LENGTH];
+        encrypted.get(iv);
+        final Cipher cipher = getCipher();
+        cipher.init(Cipher.DECRYPT_MODE, documentKey, new GCMParameterSpec(GCM_TAG_BIT_LENGTH, iv));
+        return cipher.doFinal(encrypted, output);
+    }
+
+    /**
+     * Decrypt a full encrypted document field, handling both the single AES-GCM message format and
+     * the segmented format.
+     */
+    static CompletableFuture<byte[]> decryptDocument(byte[] document, SecretKeySpec documentKey) {
+        if (isCiphertext(document) && isSegmented(document)) {
+            return CompletableFutures
+                    .tryCatchNonFatal(() -> decryptSegmented(document, documentKey));
+        }
+        return parseDocumentParts(document)
+                .thenCompose(encryptedDocument -> decryptBytes(encryptedDocument, documentKey));
+    }
+
+    /**
+     * Encrypt everything read from the input stream with the provided AES key and write the
+     * header, IV and ciphertext to the output stream. The output is byte for byte the same format
+     * produced by encryptBytes, but only a fixed size chunk of the plaintext is held in memory at
+     * any point in time. Neither stream is closed.
+     */
+    static void encryptStream(InputStream input, OutputStream output, SecretKeySpec documentKey,
+            SecureRandom secureRandom) throws Exception {
+        byte[] iv = new byte[IV_BYTE_LENGTH];
+        secureRandom.nextBytes(iv);
+
+        final Cipher cipher = getCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, documentKey,
+                new GCMParameterSpec(GCM_TAG_BIT_LENGTH, iv));
+
+        output.write(generateHeader());
+        output.write(iv);
+        byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            byte[] encrypted = cipher.update(buffer, 0, read);
+            if (encrypted != null) {
+                output.write(encrypted);
+            }
+        }
+        output.write(cipher.doFinal());
+        output.flush();
+    }
+
+    /**
+     * Read an encrypted document (header, IV and ciphertext) from the input stream, decrypt it
+     * with the provided AES key and write the plaintext to the output stream. Neither stream is
+     * closed.
+     *
+     * Note that AES-GCM can only verify the authentication tag once all of the ciphertext has been
+     * seen, and the JCE provider will not release any plaintext before that happens. Memory use on
+     * decrypt is therefore bounded by the provider's internal buffer rather than by
+     * STREAM_CHUNK_SIZE, but no additional copies of the document are made here.
+     */
+    static void decryptStream(InputStream input, OutputStream output, SecretKeySpec documentKey)
+            throws Exception {
+        byte[] headerMeta = new byte[DOCUMENT_HEADER_META_LENGTH];
+        readFully(input, headerMeta);
+        if (!isValidHeaderMeta(headerMeta)) {
+            throw new IllegalArgumentException(
+                    "Provided bytes were not an Ironcore encrypted document.");
+        }
+        if (headerMeta[0] == SEGMENTED_DOCUMENT_HEADER_VERSION) {
+            decryptSegmentedStream(headerMeta, input, output, documentKey);
+            return;
+        }
+        // The variable length portion of the header isn't used yet, so skip over it
+        readFully(input, new byte[getHeaderSize(headerMeta)]);
+        byte[] iv = new byte[IV_BYTE_LENGTH];
+        readFully(input, iv);
+
+        final Cipher cipher = getCipher();
+        cipher.init(Cipher.DECRYPT_MODE, documentKey,
+                new GCMParameterSpec(GCM_TAG_BIT_LENGTH, iv));
+        byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            byte[] decrypted = cipher.update(buffer, 0, read);
+            if (decrypted != null) {
+                output.write(decrypted);
+            }
+        }
+        output.write(cipher.doFinal());
+        output.flush();
+    }
+
+    /**
+     * Encrypt the provided document bytes into the segmented format. The plaintext is split into
+     * segments of segmentSize bytes which are each encrypted with AES-GCM under a nonce derived
+     * from the random IV, the segment index and whether it is the final segment. The header is
+     * used as additional authenticated data for every segment. The layout is:
+     *
+     * [version 4][IRON][header size = 4][segment size][IV][segment 0 + tag]...[segment N + tag]
+     *
+     * An empty document is encrypted as a single empty final segment.
+     */
+    static byte[] encryptSegmented(byte[] document, SecretKeySpec documentKey,
+            SecureRandom secureRandom, int segmentSize) throws Exception {
+        if (segmentSize < 1 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException(String.format(
+                    "Segment size must be between 1 and %d bytes.", MAX_SEGMENT_SIZE));
+        }
+        int segmentCount = Math.max(1, (document.length + segmentSize - 1) / segmentSize);
+        int headerLength = DOCUMENT_HEADER_META_LENGTH + SEGMENTED_HEADER_LENGTH;
+        byte[] encrypted = new byte[headerLength + IV_BYTE_LENGTH + document.length
+                + segmentCount * GCM_TAG_BYTE_LENGTH];
+        byte[] iv = new byte[IV_BYTE_LENGTH];
+        secureRandom.nextBytes(iv);
+        ByteBuffer.wrap(encrypted).put(SEGMENTED_DOCUMENT_HEADER_VERSION).put(DOCUMENT_MAGIC)
+                .putShort((short) SEGMENTED_HEADER_LENGTH).putInt(segmentSize).put(iv);
+
+        final Cipher cipher = getCipher();
+        int outputOffset = headerLength + IV_BYTE_LENGTH;
+        for (int i = 0; i < segmentCount; i++) {
+            int plaintextOffset = i * segmentSize;
+            int plaintextLength = Math.min(segmentSize, document.length - plaintextOffset);
+            cipher.init(Cipher.ENCRYPT_MODE, documentKey, new GCMParameterSpec(GCM_TAG_BIT_LENGTH,
+                    segmentNonce(iv, i, i == segmentCount - 1)));
+            cipher.updateAAD(encrypted, 0, headerLength);
+            outputOffset += cipher.doFinal(document, plaintextOffset, plaintextLength, encrypted,
+                    outputOffset);
+        }
+        return encrypted;
+    }
+
+    /**
+     * Decrypt the entirety of a segmented encrypted document.
+     */
+    static byte[] decryptSegmented(byte[] document, SecretKeySpec documentKey) throws Exception {
+        SegmentedDocument parsed = SegmentedDocument.parse(document);
+        return decryptSegmentedRange(parsed, documentKey, 0, parsed.plaintextLength);
+    }
+
+    /**
+     * Decrypt up to length bytes of plaintext starting at offset from a segmented encrypted
+     * document. Only the segments which cover the requested range are decrypted. Like an HTTP
+     * range request, a range that extends past the end of the document is truncated to the end of
+     * the document.
+     */
+    static byte[] decryptSegmentedRange(byte[] document, SecretKeySpec documentKey, int offset,
+            int length) throws Exception {
+        return decryptSegmentedRange(SegmentedDocument.parse(document), documentKey, offset,
+                length);
+    }
+
+    private static byte[] decryptSegmentedRange(SegmentedDocument document,
+            SecretKeySpec documentKey, int offset, int length) throws Exception {
+        if (offset < 0 || length < 0 || offset > document.plaintextLength) {
+            throw new IllegalArgumentException(String.format(
+                    "Requested range (offset %d, length %d) is outside of the %d byte document.",
+                    offset, length, document.plaintextLength));
+        }
+        int end = (int) Math.min((long) offset + length, document.plaintextLength);
+        byte[] result = new byte[end - offset];
+        if (result.length == 0) {
+            return result;
+        }
+        final Cipher cipher = getCipher();
+        int segmentSize = document.segmentSize;
+        int firstSegment = offset / segmentSize;
+        int lastSegment = (end - 1) / segmentSize;
+        for (int i = firstSegment; i <= lastSegment; i++) {
+            byte[] segment = document.decryptSegment(cipher, documentKey, i);
+            int segmentStart = i * segmentSize;
+            int copyFrom = Math.max(offset, segmentStart);
+            int copyTo = Math.min(end, segmentStart + segment.length);
+            System.arraycopy(segment, copyFrom - segmentStart, result, copyFrom - offset,
+                    copyTo - copyFrom);
+        }
+        return result;
+    }
+
+    /**
+     * Decrypt a segmented document from a stream whose fixed length header has already been read.
+     * Each segment is authenticated and written to the output as soon as it has been read, so
+     * memory use is bounded by the segment size.
+     */
+    private static void decryptSegmentedStream(byte[] headerMeta, InputStream input,
+            OutputStream output, SecretKeySpec documentKey) throws Exception {
+        if (getHeaderSize(headerMeta) != SEGMENTED_HEADER_LENGTH) {
+            throw new IllegalArgumentException(
+                    "Provided bytes were not an Ironcore encrypted document.");
+        }
+        byte[] header = new byte[DOCUMENT_HEADER_META_LENGTH + SEGMENTED_HEADER_LENGTH];
+        System.arraycopy(headerMeta, 0, header, 0, DOCUMENT_HEADER_META_LENGTH);
+        readFully(input, header, DOCUMENT_HEADER_META_LENGTH, SEGMENTED_HEADER_LENGTH);
+        int segmentSize = validateSegmentSize(
+                ByteBuffer.wrap(header, DOCUMENT_HEADER_META_LENGTH, 4).getInt());
+        byte[] iv = new byte[IV_BYTE_LENGTH];
+        readFully(input, iv);
+
+        final Cipher cipher = getCipher();
+        // Read one byte past the end of each segment so we know whether it's the final one.
+        byte[] segment = new byte[segmentSize + GCM_TAG_BYTE_LENGTH + 1];
+        int filled = readUpTo(input, segment, 0, segment.length);
+        for (int i = 0;; i++) {
+            boolean isLast = filled < segment.length;
+            cipher.init(Cipher.DECRYPT_MODE, documentKey,
+                    new GCMParameterSpec(GCM_TAG_BIT_LENGTH, segmentNonce(iv, i, isLast)));
+            cipher.updateAAD(header);
+            output.write(cipher.doFinal(segment, 0, isLast ? filled : segment.length - 1));
+            if (isLast) {
+                break;
+            }
+            segment[0] = segment[segment.length - 1];
+            filled = 1 + readUpTo(input, segment, 1, segment.length - 1);
+        }
+        output.flush();
+    }
+
+    /**
+     * Derive the nonce for a segment by XORing the segment index into bytes 7-10 of the IV and the
+     * final segment flag into byte 11.
+     */
+    static byte[] segmentNonce(byte[] iv, int segmentIndex, boolean isLastSegment) {
+        byte[] nonce = iv.clone();
+        nonce[7] ^= (byte) (segmentIndex >>> 24);
+        nonce[8] ^= (byte) (segmentIndex >>> 16);
+        nonce[9] ^= (byte) (segmentIndex >>> 8);
+        nonce[10] ^= (byte) segmentIndex;
+        nonce[11] ^= isLastSegment ? (byte) 1 : (byte) 0;
+        return nonce;
+    }
+
+    private static int validateSegmentSize(int segmentSize) {
+        if (segmentSize < 1 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException(
+                    "Segmented Ironcore document header contained an invalid segment size.");
+        }
+        return segmentSize;
+    }
+
+    /**
+     * The parts of a segmented encrypted document needed to locate and decrypt its segments.
+     */
+    private static final class SegmentedDocument {
+        private final byte[] bytes;
+        private final int headerLength;
+        private final int segmentSize;
+        private final byte[] iv;
+        private final int bodyOffset;
+        private final int segmentCount;
+        private final int plaintextLength;
+
+        private SegmentedDocument(byte[] bytes, int segmentSize, byte[] iv, int segmentCount,
+                int plaintextLength) {
+            this.bytes = bytes;
+            this.headerLength = DOCUMENT_HEADER_META_LENGTH + SEGMENTED_HEADER_LENGTH;
+            this.segmentSize = segmentSize;
+            this.iv = iv;
+            this.bodyOffset = headerLength + IV_BYTE_LENGTH;
+            this.segmentCount = segmentCount;
+            this.plaintextLength = plaintextLength;
+        }
+
+        static SegmentedDocument parse(byte[] document) {
+            int headerLength = DOCUMENT_HEADER_META_LENGTH + SEGMENTED_HEADER_LENGTH;
+            if (!isCiphertext(document) || !isSegmented(document)
+                    || getHeaderSize(document) != SEGMENTED_HEADER_LENGTH
+                    || document.length < headerLength + IV_BYTE_LENGTH + GCM_TAG_BYTE_LENGTH) {
+                throw new IllegalArgumentException(
+                        "Provided bytes were not a segmented Ironcore encrypted document.");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(document, DOCUMENT_HEADER_META_LENGTH,
+                    SEGMENTED_HEADER_LENGTH + IV_BYTE_LENGTH);
+            int segmentSize = validateSegmentSize(buffer.getInt());
+            byte[] iv = new byte[IV_BYTE_LENGTH];
+            buffer.get(iv);
+
+            int bodyLength = document.length - headerLength - IV_BYTE_LENGTH;
+            int encryptedSegmentSize = segmentSize + GCM_TAG_BYTE_LENGTH;
+            int segmentCount = (bodyLength + encryptedSegmentSize - 1) / encryptedSegmentSize;
+            if (bodyLength - (segmentCount - 1) * encryptedSegmentSize < GCM_TAG_BYTE_LENGTH) {
+                throw new IllegalArgumentException(
+                        "Segmented Ironcore encrypted document was truncated.");
+            }
+            return new SegmentedDocument(document, segmentSize, iv, segmentCount,
+                    bodyLength - segmentCount * GCM_TAG_BYTE_LENGTH);
+        }
+
+        byte[] decryptSegment(Cipher cipher, SecretKeySpec key, int index) throws Exception {
+            int encryptedSegmentSize = segmentSize + GCM_TAG_BYTE_LENGTH;
+            int start = bodyOffset + index * encryptedSegmentSize;
+            int length = Math.min(encryptedSegmentSize, bytes.length - start);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BIT_LENGTH,
+                    segmentNonce(iv, index, index == segmentCount - 1)));
+            cipher.updateAAD(bytes, 0, headerLength);
+            return cipher.doFinal(bytes, start, length);
+        }
+    }
+
+    /**
+     * Read from the input stream into the provided range of the array until it is full or the
+     * stream ends. Returns the number of bytes read.
+     */
+    private static int readUpTo(InputStream input, byte[] bytes, int offset, int length)
+            throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = input.read(bytes, offset + total, length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static void readFully(InputStream input, byte[] bytes) throws IOException {
+        readFully(input, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Fill the provided array from the input stream, failing if the stream ends first.
+     */
+    private static void readFully(InputStream input, byte[] bytes, int offset, int length)
+            throws IOException {
+        if (readUpTo(input, bytes, offset, length) != length) {
+            throw new IllegalArgumentException(
+                    "Provided stream ended before the Ironcore document header was read.");
+        }
+    }
+}
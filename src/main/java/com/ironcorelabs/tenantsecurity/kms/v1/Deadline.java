@@ -0,0 +1,90 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TspServiceException;
+
+/**
+ * Point in time by which an operation must finish. The client checks it after each wait along the
+ * way (for a request thread or permit, for a retry backoff, and for a crypto thread) and fails
+ * the operation with DEADLINE_EXCEEDED once it has passed, so work the caller has already given
+ * up on is dropped instead of being sent to the Tenant Security Proxy. Requests that are sent use
+ * the time remaining as their read timeout if it is shorter than the configured one.
+ */
+public final class Deadline {
+    private final long expiresAtNanos;
+
+    private Deadline(long expiresAtNanos) {
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    /**
+     * Create a deadline the provided amount of time from now.
+     *
+     * @param duration Time allowed for the operation.
+     * @param unit     Unit of the duration.
+     * @return New deadline.
+     * @throws IllegalArgumentException If the duration is negative.
+     */
+    public static Deadline after(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("Value provided for deadline must not be negative!");
+        }
+        return new Deadline(System.nanoTime() + unit.toNanos(duration));
+    }
+
+    /**
+     * Whether the deadline has passed.
+     *
+     * @return True if no time remains.
+     */
+    public boolean isExpired() {
+        return remaining(TimeUnit.NANOSECONDS) == 0;
+    }
+
+    /**
+     * Get the time remaining until the deadline.
+     *
+     * @param unit Unit to return the time in.
+     * @return Time remaining, or 0 if the deadline has passed.
+     */
+    public long remaining(TimeUnit unit) {
+        return unit.convert(Math.max(0, expiresAtNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the error an operation fails with once its deadline has passed.
+     *
+     * @param stage What the operation was about to do, for the error message.
+     */
+    static TspServiceException exceeded(String stage) {
+        return new TspServiceException(TenantSecurityErrorCodes.DEADLINE_EXCEEDED, 0,
+                String.format("Deadline passed before %s.", stage));
+    }
+
+    /**
+     * Fail the current stage of an operation if it has a deadline which has passed.
+     *
+     * @throws CompletionException Wrapping the DEADLINE_EXCEEDED error.
+     */
+    static void check(Deadline deadline, String stage) {
+        if (deadline != null && deadline.isExpired()) {
+            throw new CompletionException(exceeded(stage));
+        }
+    }
+
+    /**
+     * Get the timeout to use for a step of an operation with an optional deadline: the configured
+     * timeout, or the time remaining if that is shorter. A timeout of 0 means no timeout for the
+     * HTTP clients, so the configured timeout may be 0 but the result never is when there is a
+     * deadline.
+     */
+    static int timeoutMillis(Deadline deadline, int configuredTimeout) {
+        if (deadline == null) {
+            return configuredTimeout;
+        }
+        long remaining = Math.max(1, deadline.remaining(TimeUnit.MILLISECONDS));
+        return (int) (configuredTimeout > 0 ? Math.min(configuredTimeout, remaining)
+                : Math.min(Integer.MAX_VALUE, remaining));
+    }
+}
@@ -0,0 +1,160 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * Size and TTL bounded least recently used cache from a tenant's EDEK to its unwrapped DEK. The
+ * cache keeps its own off heap copy of every DEK and hands out copies, so it can zero key material
+ * as soon as it is evicted, expires or the cache is closed without affecting callers.
+ */
+final class DekCache {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LongSupplier nanoClock;
+    private final LinkedHashMap<CacheKey, CacheEntry> entries;
+
+    // Guarded by entries
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    DekCache(DekCacheConfig config) {
+        this(config, System::nanoTime);
+    }
+
+    DekCache(DekCacheConfig config, LongSupplier nanoClock) {
+        this.maxEntries = config.getMaxEntries();
+        this.ttlNanos = config.getTtlMillis() * 1000000;
+        this.nanoClock = nanoClock;
+        // Access ordered so the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+                if (size() > maxEntries) {
+                    eldest.getValue().destroy();
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get a copy of the DEK for the provided tenant and EDEK, or null if it isn't cached or has
+     * expired.
+     */
+    DocumentKey get(String tenantId, String edek) {
+        CacheKey key = new CacheKey(tenantId, edek);
+        synchronized (entries) {
+            CacheEntry entry = entries.get(key);
+            if (entry != null && entry.isExpired(nanoClock.getAsLong())) {
+                entries.remove(key);
+                entry.destroy();
+                evictions++;
+                entry = null;
+            }
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return entry.dek.copy();
+        }
+    }
+
+    /**
+     * Store a copy of the provided DEK for the tenant and EDEK.
+     */
+    void put(String tenantId, String edek, DocumentKey dek) {
+        CacheEntry entry = new CacheEntry(dek.copy(), nanoClock.getAsLong() + ttlNanos);
+        synchronized (entries) {
+            CacheEntry previous = entries.put(new CacheKey(tenantId, edek), entry);
+            if (previous != null) {
+                previous.destroy();
+            }
+        }
+    }
+
+    /**
+     * Remove and zero every DEK that has expired.
+     */
+    void evictExpired() {
+        long now = nanoClock.getAsLong();
+        synchronized (entries) {
+            Iterator<CacheEntry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                CacheEntry entry = iterator.next();
+                if (entry.isExpired(now)) {
+                    entry.destroy();
+                    iterator.remove();
+                    evictions++;
+                }
+            }
+        }
+    }
+
+    DekCacheStats getStats() {
+        synchronized (entries) {
+            return new DekCacheStats(hits, misses, evictions, entries.size());
+        }
+    }
+
+    /**
+     * Zero and remove every DEK.
+     */
+    void clear() {
+        synchronized (entries) {
+            entries.values().forEach(CacheEntry::destroy);
+            entries.clear();
+        }
+    }
+
+    private static final class CacheKey {
+        private final String tenantId;
+        private final String edek;
+
+        CacheKey(String tenantId, String edek) {
+            this.tenantId = tenantId;
+            this.edek = edek;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey that = (CacheKey) other;
+            return tenantId.equals(that.tenantId) && edek.equals(that.edek);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tenantId, edek);
+        }
+    }
+
+    private static final class CacheEntry {
+        private final DocumentKey dek;
+        private final long expiresAtNanos;
+
+        CacheEntry(DocumentKey dek, long expiresAtNanos) {
+            this.dek = dek;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        boolean isExpired(long nowNanos) {
+            return nowNanos - expiresAtNanos >= 0;
+        }
+
+        void destroy() {
+            dek.close();
+        }
+    }
+}
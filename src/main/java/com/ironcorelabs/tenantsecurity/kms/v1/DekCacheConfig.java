@@ -0,0 +1,83 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+/**
+ * Settings for the optional client side cache of unwrapped document keys (DEKs). When enabled,
+ * decrypting a document whose EDEK was recently unwrapped reuses the DEK instead of making another
+ * request to the Tenant Security Proxy. Entries are scoped to a tenant, bounded in number and
+ * expire after a fixed time to live. Because the TSP never sees requests served from the cache,
+ * the client periodically reports the number of cached key accesses to each tenant as DECRYPT
+ * security events.
+ */
+public final class DekCacheConfig {
+    /**
+     * Default interval between reports of cached key accesses. Value is 10 seconds.
+     */
+    public static final long DEFAULT_EVENT_FLUSH_INTERVAL_MILLIS = 10000;
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final long eventFlushIntervalMillis;
+
+    /**
+     * Constructor for DekCacheConfig which reports cached key accesses at the default interval.
+     *
+     * @param maxEntries Maximum number of DEKs to hold. The least recently used DEK is evicted
+     *                   when the cache is full.
+     * @param ttlMillis  How long a DEK may be reused after it was unwrapped, in milliseconds.
+     * @throws IllegalArgumentException If either value is not greater than 0.
+     */
+    public DekCacheConfig(int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, DEFAULT_EVENT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Constructor for DekCacheConfig.
+     *
+     * @param maxEntries               Maximum number of DEKs to hold. The least recently used DEK
+     *                                 is evicted when the cache is full.
+     * @param ttlMillis                How long a DEK may be reused after it was unwrapped, in
+     *                                 milliseconds.
+     * @param eventFlushIntervalMillis How often cached key accesses are reported to the Tenant
+     *                                 Security Proxy and expired DEKs are removed, in milliseconds.
+     * @throws IllegalArgumentException If any value is not greater than 0.
+     */
+    public DekCacheConfig(int maxEntries, long ttlMillis, long eventFlushIntervalMillis) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for DEK cache max entries must be greater than 0!");
+        }
+        if (ttlMillis < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for DEK cache TTL must be greater than 0!");
+        }
+        if (eventFlushIntervalMillis < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for DEK cache event flush interval must be greater than 0!");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.eventFlushIntervalMillis = eventFlushIntervalMillis;
+    }
+
+    /**
+     * Get the maximum number of DEKs the cache will hold.
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Get how long a DEK may be reused after it was unwrapped, in milliseconds.
+     */
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * Get how often cached key accesses are reported and expired DEKs are removed, in
+     * milliseconds.
+     */
+    public long getEventFlushIntervalMillis() {
+        return eventFlushIntervalMillis;
+    }
+}
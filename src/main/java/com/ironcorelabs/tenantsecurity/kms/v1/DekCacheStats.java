@@ -0,0 +1,47 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+/**
+ * Point in time counters for the client side DEK cache. All values are zero if the cache is not
+ * enabled.
+ */
+public final class DekCacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int size;
+
+    DekCacheStats(long hits, long misses, long evictions, int size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+    }
+
+    /**
+     * Get the number of unwraps that were served from the cache.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of unwraps that had to be sent to the Tenant Security Proxy.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of DEKs that were removed because the cache was full or they expired.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Get the number of DEKs currently held.
+     */
+    public int getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,209 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-tenant pools of DEK/EDEK pairs that were wrapped ahead of time. Taking a key from a pool
+ * that has dropped below the refill threshold kicks off a batch wrap request to top it back up.
+ * Only one refill per tenant is in flight at a time, and after a failed refill no new refill is
+ * attempted for that tenant until REFILL_FAILURE_BACKOFF_MILLIS has passed so a struggling TSP
+ * isn't sent a batch request on every encrypt. evictExpired is run periodically to zero keys that
+ * aged out of the pool of a tenant that stopped encrypting, and to drop such tenants' pools.
+ */
+final class DekPool {
+    static final long REFILL_FAILURE_BACKOFF_MILLIS = 1000;
+
+    private final DekPoolConfig config;
+    private final BiFunction<Collection<String>, DocumentMetadata, CompletableFuture<BatchWrappedDocumentKeys>> batchWrap;
+    private final LongSupplier nanoClock;
+    private final ConcurrentHashMap<String, TenantPool> pools = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder exhaustions = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder refillFailures = new LongAdder();
+
+    DekPool(DekPoolConfig config,
+            BiFunction<Collection<String>, DocumentMetadata, CompletableFuture<BatchWrappedDocumentKeys>> batchWrap) {
+        this(config, batchWrap, System::nanoTime);
+    }
+
+    DekPool(DekPoolConfig config,
+            BiFunction<Collection<String>, DocumentMetadata, CompletableFuture<BatchWrappedDocumentKeys>> batchWrap,
+            LongSupplier nanoClock) {
+        this.config = config;
+        this.batchWrap = batchWrap;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Take a pre-generated key for the metadata's tenant, or return null if the pool is empty.
+     * Refills the pool in the background if it is running low.
+     */
+    WrappedDocumentKey take(DocumentMetadata metadata) {
+        long now = nanoClock.getAsLong();
+        // Marking the pool as used inside compute means evictExpired, which also goes through
+        // compute, can't drop it between the lookup and the refill below
+        TenantPool pool = pools.compute(metadata.getTenantId(), (tenantId, existing) -> {
+            TenantPool used = existing == null ? new TenantPool() : existing;
+            used.lastTakenNanos = now;
+            return used;
+        });
+        long maxAgeNanos = config.getMaxKeyAgeMillis() * 1000000;
+        WrappedDocumentKey key = null;
+        PooledKey pooled;
+        while (key == null && (pooled = pool.keys.poll()) != null) {
+            pool.size.decrementAndGet();
+            if (now - pooled.createdAtNanos >= maxAgeNanos) {
+                pooled.key.destroy();
+                expired.increment();
+            } else {
+                key = pooled.key;
+            }
+        }
+        if (pool.size.get() < config.getRefillThreshold()) {
+            refill(pool, metadata, now);
+        }
+        if (key == null) {
+            exhaustions.increment();
+        } else {
+            hits.increment();
+        }
+        return key;
+    }
+
+    private void refill(TenantPool pool, DocumentMetadata metadata, long now) {
+        if (closed || now - pool.lastFailureNanos < REFILL_FAILURE_BACKOFF_MILLIS * 1000000
+                || !pool.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        int count = config.getPoolSize() - pool.size.get();
+        if (count <= 0) {
+            pool.refilling.set(false);
+            return;
+        }
+        // The batch endpoint needs an ID for each key, but pooled keys aren't tied to a document
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(Integer.toString(i));
+        }
+        CompletableFuture<BatchWrappedDocumentKeys> request;
+        try {
+            request = batchWrap.apply(ids, metadata);
+        } catch (RuntimeException e) {
+            request = new CompletableFuture<>();
+            request.completeExceptionally(e);
+        }
+        request.whenComplete((response, error) -> {
+            if (error != null
+                    || (response.getFailures() != null && !response.getFailures().isEmpty())) {
+                refillFailures.increment();
+                pool.lastFailureNanos = nanoClock.getAsLong();
+            }
+            try {
+                if (response != null && response.getKeys() != null) {
+                    long createdAt = nanoClock.getAsLong();
+                    for (WrappedDocumentKey key : response.getKeys().values()) {
+                        pool.keys.add(new PooledKey(key, createdAt));
+                        pool.size.incrementAndGet();
+                    }
+                }
+                if (closed) {
+                    // Closed while this refill was in flight
+                    clear();
+                }
+            } catch (RuntimeException e) {
+                refillFailures.increment();
+                pool.lastFailureNanos = nanoClock.getAsLong();
+            } finally {
+                pool.refilling.set(false);
+            }
+        });
+    }
+
+    /**
+     * Zero and remove the keys that have been in the pool longer than the max key age, then drop
+     * the pools of tenants which haven't taken a key for that long and have nothing left.
+     */
+    void evictExpired() {
+        long now = nanoClock.getAsLong();
+        long maxAgeNanos = config.getMaxKeyAgeMillis() * 1000000;
+        for (TenantPool pool : pools.values()) {
+            for (PooledKey pooled : pool.keys) {
+                // remove only succeeds for one of this and a concurrent take
+                if (now - pooled.createdAtNanos >= maxAgeNanos && pool.keys.remove(pooled)) {
+                    pool.size.decrementAndGet();
+                    pooled.key.destroy();
+                    expired.increment();
+                }
+            }
+        }
+        for (String tenantId : pools.keySet()) {
+            pools.computeIfPresent(tenantId,
+                    (id, pool) -> pool.size.get() == 0 && !pool.refilling.get()
+                            && now - pool.lastTakenNanos >= maxAgeNanos ? null : pool);
+        }
+    }
+
+    /**
+     * Number of tenants with a pool.
+     */
+    int getTenantCount() {
+        return pools.size();
+    }
+
+    DekPoolStats getStats() {
+        int size = pools.values().stream().mapToInt(pool -> pool.size.get()).sum();
+        return new DekPoolStats(hits.sum(), exhaustions.sum(), expired.sum(), refillFailures.sum(),
+                size);
+    }
+
+    /**
+     * Zero and remove every pooled key and stop refilling.
+     */
+    void close() {
+        closed = true;
+        clear();
+    }
+
+    private void clear() {
+        for (TenantPool pool : pools.values()) {
+            PooledKey pooled;
+            while ((pooled = pool.keys.poll()) != null) {
+                pool.size.decrementAndGet();
+                pooled.key.destroy();
+            }
+        }
+    }
+
+    private static final class TenantPool {
+        private final ConcurrentLinkedQueue<PooledKey> keys = new ConcurrentLinkedQueue<>();
+        // ConcurrentLinkedQueue.size() walks the whole queue, so track the size separately
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        // Start far enough in the past that the first refill is never held back
+        private volatile long lastFailureNanos = Long.MIN_VALUE / 2;
+        private volatile long lastTakenNanos;
+    }
+
+    private static final class PooledKey {
+        private final WrappedDocumentKey key;
+        private final long createdAtNanos;
+
+        PooledKey(WrappedDocumentKey key, long createdAtNanos) {
+            this.key = key;
+            this.createdAtNanos = createdAtNanos;
+        }
+    }
+}
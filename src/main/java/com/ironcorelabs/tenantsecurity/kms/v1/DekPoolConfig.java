@@ -0,0 +1,67 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+/**
+ * Settings for the optional per-tenant pool of pre-generated document keys. When enabled, encrypt
+ * takes a DEK/EDEK pair that was already wrapped by the tenant's KMS instead of waiting on a wrap
+ * request to the Tenant Security Proxy. Pools are refilled in the background with batch wrap
+ * requests whenever they drop below the refill threshold. If a tenant's pool is empty, encrypt
+ * falls back to wrapping a new key as usual.
+ *
+ * Keys in a pool are wrapped using the metadata of the encrypt call that triggered the refill, so
+ * the wrap events in the tenant's logs will carry that metadata rather than the metadata of the
+ * call that eventually uses each key.
+ */
+public final class DekPoolConfig {
+    private final int poolSize;
+    private final int refillThreshold;
+    private final long maxKeyAgeMillis;
+
+    /**
+     * Constructor for DekPoolConfig.
+     *
+     * @param poolSize        Number of keys to keep in each tenant's pool when it is refilled.
+     * @param refillThreshold Refill a tenant's pool when it holds fewer than this many keys. Must
+     *                        not be greater than poolSize.
+     * @param maxKeyAgeMillis How long a pre-generated key can wait in the pool before it is
+     *                        discarded instead of being used, in milliseconds.
+     * @throws IllegalArgumentException If any value is out of range.
+     */
+    public DekPoolConfig(int poolSize, int refillThreshold, long maxKeyAgeMillis) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for DEK pool size must be greater than 0!");
+        }
+        if (refillThreshold < 1 || refillThreshold > poolSize) {
+            throw new IllegalArgumentException(
+                    "Value provided for DEK pool refill threshold must be between 1 and the pool size!");
+        }
+        if (maxKeyAgeMillis < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for DEK pool max key age must be greater than 0!");
+        }
+        this.poolSize = poolSize;
+        this.refillThreshold = refillThreshold;
+        this.maxKeyAgeMillis = maxKeyAgeMillis;
+    }
+
+    /**
+     * Get the number of keys each tenant's pool is filled to.
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Get the number of keys below which a tenant's pool is refilled.
+     */
+    public int getRefillThreshold() {
+        return refillThreshold;
+    }
+
+    /**
+     * Get how long a key can wait in the pool before it is discarded, in milliseconds.
+     */
+    public long getMaxKeyAgeMillis() {
+        return maxKeyAgeMillis;
+    }
+}
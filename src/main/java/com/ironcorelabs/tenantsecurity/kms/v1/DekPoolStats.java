@@ -0,0 +1,56 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+/**
+ * Point in time counters for the pool of pre-generated document keys. All values are zero if the
+ * pool is not enabled.
+ */
+public final class DekPoolStats {
+    private final long hits;
+    private final long exhaustions;
+    private final long expired;
+    private final long refillFailures;
+    private final int size;
+
+    DekPoolStats(long hits, long exhaustions, long expired, long refillFailures, int size) {
+        this.hits = hits;
+        this.exhaustions = exhaustions;
+        this.expired = expired;
+        this.refillFailures = refillFailures;
+        this.size = size;
+    }
+
+    /**
+     * Get the number of encrypts that used a key from the pool.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of encrypts that found their tenant's pool empty and had to wrap a new key.
+     */
+    public long getExhaustions() {
+        return exhaustions;
+    }
+
+    /**
+     * Get the number of keys that were discarded because they exceeded the max key age.
+     */
+    public long getExpired() {
+        return expired;
+    }
+
+    /**
+     * Get the number of background refill requests that failed.
+     */
+    public long getRefillFailures() {
+        return refillFailures;
+    }
+
+    /**
+     * Get the number of keys currently held across all tenants.
+     */
+    public int getSize() {
+        return size;
+    }
+}
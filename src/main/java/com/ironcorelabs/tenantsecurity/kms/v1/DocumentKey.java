@@ -0,0 +1,93 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A document encryption key (DEK) held in a direct buffer, off the Java heap, so the key material
+ * isn't copied around by the garbage collector and can be wiped as soon as it is no longer needed.
+ * The JCE only accepts keys on the heap, so aesKey() copies the DEK into a SecretKeySpec, zeroing
+ * its own temporary copy; callers make one SecretKeySpec per document and drop it once the
+ * document's fields are done. close() zeroes the buffer, after which the key can't be used.
+ */
+final class DocumentKey implements AutoCloseable {
+    private final ByteBuffer key;
+    // Guarded by this, so a key can't be zeroed while it is being read
+    private boolean closed;
+
+    private DocumentKey(ByteBuffer key) {
+        this.key = key;
+    }
+
+    /**
+     * Move the provided DEK into a new direct buffer. The provided array is zeroed.
+     */
+    static DocumentKey moveFrom(byte[] dek) {
+        ByteBuffer key = ByteBuffer.allocateDirect(dek.length);
+        key.put(dek);
+        Arrays.fill(dek, (byte) 0);
+        return new DocumentKey(key);
+    }
+
+    /**
+     * Copy the DEK into a new direct buffer which can be closed independently of this one.
+     */
+    synchronized DocumentKey copy() {
+        ByteBuffer copy = ByteBuffer.allocateDirect(this.key.capacity());
+        copy.put(open());
+        return new DocumentKey(copy);
+    }
+
+    /**
+     * Make an AES key from the DEK for use with a Cipher.
+     */
+    SecretKeySpec aesKey() {
+        byte[] bytes = getBytes();
+        try {
+            return CryptoUtils.aesKey(bytes);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Copy the DEK onto the heap. The caller is responsible for zeroing the copy.
+     */
+    synchronized byte[] getBytes() {
+        ByteBuffer key = open();
+        byte[] bytes = new byte[key.remaining()];
+        key.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Zero the DEK. Closing a key more than once has no effect.
+     */
+    @Override
+    public synchronized void close() {
+        if (!this.closed) {
+            this.closed = true;
+            for (int i = 0; i < this.key.capacity(); i++) {
+                this.key.put(i, (byte) 0);
+            }
+        }
+    }
+
+    synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Get a view of the whole DEK with its own position, so concurrent readers don't interfere.
+     * Must be called holding the lock.
+     */
+    private ByteBuffer open() {
+        if (this.closed) {
+            throw new IllegalStateException("Document key has already been closed.");
+        }
+        ByteBuffer view = this.key.duplicate();
+        view.clear();
+        return view;
+    }
+}
@@ -1,8 +1,10 @@
 package com.ironcorelabs.tenantsecurity.kms.v1;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import com.fasterxml.jackson.core.JsonGenerator;
 
 /**
  * Holds metadata fields as part of an encrypted document. Each encrypted document will have
@@ -185,4 +187,33 @@ public class DocumentMetadata {
         postData.put("customFields", customFields);
         return postData;
     }
+
+    /**
+     * Write the same fields as getAsPostData() directly to a JSON object that the caller has
+     * already started, without building the intermediate Maps.
+     */
+    void writePostData(JsonGenerator generator) throws IOException {
+        generator.writeStringField("tenantId", tenantId);
+
+        generator.writeObjectFieldStart("iclFields");
+        writeStringFieldIfSet(generator, "requestId", requestId);
+        writeStringFieldIfSet(generator, "sourceIp", sourceIp);
+        writeStringFieldIfSet(generator, "objectId", objectId);
+        writeStringFieldIfSet(generator, "requestingId", requestingUserOrServiceId);
+        writeStringFieldIfSet(generator, "dataLabel", dataLabel);
+        generator.writeEndObject();
+
+        generator.writeObjectFieldStart("customFields");
+        for (Map.Entry<String, String> entry : otherData.entrySet()) {
+            generator.writeStringField(entry.getKey(), entry.getValue());
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeStringFieldIfSet(JsonGenerator generator, String name, String value)
+            throws IOException {
+        if (value != null) {
+            generator.writeStringField(name, value);
+        }
+    }
 }
@@ -9,7 +9,7 @@ import com.ironcorelabs.tenantsecurity.kms.v1.exception.*;
  */
 public class ErrorResponse {
 
-    // just for testing
+    // Used by tests and the streaming batch response parser
     protected ErrorResponse(int code, String message) {
         this.code = code;
         this.message = message;
@@ -0,0 +1,213 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a crypto operation over every field of one or more documents, splitting the work so that
+ * parallelism scales with the amount of data rather than the number of fields. Fields at or above
+ * the large field threshold each get their own unit of work. Smaller fields are grouped into units
+ * of roughly the threshold size, so a document made of many tiny fields is handled by one or a few
+ * units instead of one task per field.
+ *
+ * The calling thread always works through the units itself, and helper tasks on the executor claim
+ * units from the same list. The caller only ever waits on units that a running helper has already
+ * claimed, so this is safe to call from a thread of the executor it hands work to.
+ */
+final class FieldWorkSplitter {
+    // Approximate fixed cost of one field (cipher init, IV, result allocation) in bytes of AES
+    // work, so a group of tiny fields isn't undercounted.
+    static final int FIELD_OVERHEAD_BYTES = 512;
+
+    /**
+     * Encrypts or decrypts one field.
+     */
+    interface FieldOperation {
+        byte[] apply(byte[] field) throws Exception;
+    }
+
+    /**
+     * The fields of one document along with the operation to apply to each of them.
+     */
+    static final class DocumentWork<K> {
+        private final K id;
+        private final Map<String, byte[]> fields;
+        private final FieldOperation operation;
+
+        DocumentWork(K id, Map<String, byte[]> fields, FieldOperation operation) {
+            this.id = id;
+            this.fields = fields;
+            this.operation = operation;
+        }
+    }
+
+    private static final class FieldItem {
+        private final int document;
+        private final String name;
+        private final byte[] value;
+        private final FieldOperation operation;
+
+        FieldItem(int document, String name, byte[] value, FieldOperation operation) {
+            this.document = document;
+            this.name = name;
+            this.value = value;
+            this.operation = operation;
+        }
+    }
+
+    private final Executor executor;
+    private final int maxHelpers;
+    private final int largeFieldThreshold;
+
+    /**
+     * @param executor            Executor to run helper tasks on.
+     * @param parallelism         Max number of threads, including the caller, working on one call.
+     * @param largeFieldThreshold Size in bytes at which a field gets its own unit of work and the
+     *                            target size of each group of smaller fields.
+     */
+    FieldWorkSplitter(Executor executor, int parallelism, int largeFieldThreshold) {
+        this.executor = executor;
+        this.maxHelpers = Math.max(0, parallelism - 1);
+        this.largeFieldThreshold = largeFieldThreshold;
+    }
+
+    /**
+     * Apply the operation to every field of the document.
+     */
+    Map<String, byte[]> process(Map<String, byte[]> fields, FieldOperation operation) {
+        List<DocumentWork<Integer>> work = new ArrayList<>(1);
+        work.add(new DocumentWork<>(0, fields, operation));
+        return processAll(work).get(0);
+    }
+
+    /**
+     * Apply each document's operation to every one of its fields. Any failure fails the whole call
+     * with a CompletionException.
+     */
+    <K> Map<K, Map<String, byte[]>> processAll(List<DocumentWork<K>> documents) {
+        List<FieldItem> items = new ArrayList<>();
+        for (int i = 0; i < documents.size(); i++) {
+            DocumentWork<K> document = documents.get(i);
+            for (Map.Entry<String, byte[]> field : document.fields.entrySet()) {
+                items.add(new FieldItem(i, field.getKey(), field.getValue(), document.operation));
+            }
+        }
+        byte[][] results = new byte[items.size()][];
+        List<int[]> units = split(items);
+
+        if (units.size() == 1 || maxHelpers == 0) {
+            for (int i = 0; i < items.size(); i++) {
+                results[i] = applyOrThrow(items.get(i));
+            }
+        } else {
+            runUnits(items, units, results);
+        }
+
+        Map<K, Map<String, byte[]>> output = new HashMap<>();
+        for (DocumentWork<K> document : documents) {
+            output.put(document.id, new HashMap<>(document.fields.size() * 4 / 3 + 1));
+        }
+        for (int i = 0; i < items.size(); i++) {
+            FieldItem item = items.get(i);
+            output.get(documents.get(item.document).id).put(item.name, results[i]);
+        }
+        return output;
+    }
+
+    /**
+     * Group items into units of work, each of which is the array of item indexes it covers.
+     */
+    private List<int[]> split(List<FieldItem> items) {
+        List<int[]> units = new ArrayList<>();
+        List<Integer> small = new ArrayList<>();
+        long smallWeight = 0;
+        for (int i = 0; i < items.size(); i++) {
+            int length = items.get(i).value.length;
+            if (length >= largeFieldThreshold) {
+                units.add(new int[] {i});
+            } else {
+                small.add(i);
+                smallWeight += length + FIELD_OVERHEAD_BYTES;
+                if (smallWeight >= largeFieldThreshold) {
+                    units.add(toArray(small));
+                    small.clear();
+                    smallWeight = 0;
+                }
+            }
+        }
+        if (!small.isEmpty()) {
+            units.add(toArray(small));
+        }
+        return units;
+    }
+
+    private static int[] toArray(List<Integer> indexes) {
+        int[] array = new int[indexes.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = indexes.get(i);
+        }
+        return array;
+    }
+
+    private void runUnits(List<FieldItem> items, List<int[]> units, byte[][] results) {
+        AtomicInteger nextUnit = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(units.size());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable worker = () -> {
+            int unit;
+            while ((unit = nextUnit.getAndIncrement()) < units.size()) {
+                try {
+                    // Skip the remaining work once anything has failed
+                    if (failure.get() == null) {
+                        for (int item : units.get(unit)) {
+                            results[item] = items.get(item).operation.apply(items.get(item).value);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        int helpers = Math.min(units.size() - 1, maxHelpers);
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                // The caller picks up anything a helper would have done
+                break;
+            }
+        }
+        worker.run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+        Throwable cause = failure.get();
+        if (cause != null) {
+            throw cause instanceof CompletionException ? (CompletionException) cause
+                    : new CompletionException(cause);
+        }
+    }
+
+    private static byte[] applyOrThrow(FieldItem item) {
+        try {
+            return item.operation.apply(item.value);
+        } catch (CompletionException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+}
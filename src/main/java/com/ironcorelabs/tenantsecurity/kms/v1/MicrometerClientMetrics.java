@@ -0,0 +1,174 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * ClientMetrics which records to a Micrometer MeterRegistry. Requires micrometer-core on the
+ * classpath, which is an optional dependency of this library. Meters are created the first time
+ * each set of tags is used and kept in tables keyed by the enums they're tagged with, so recording
+ * is an array read plus the meter update.
+ *
+ * Meters recorded, all prefixed with tenant_security:
+ * <ul>
+ * <li>queue.wait: timer tagged with queue (request or crypto).</li>
+ * <li>tsp.requests: timer tagged with endpoint and outcome (success or the error code).</li>
+ * <li>tsp.batch.size: distribution summary of documents per batch request, tagged with
+ * endpoint.</li>
+ * <li>errors: counter tagged with endpoint and code.</li>
+ * <li>crypto.bytes and crypto.duration: counter and timer tagged with operation. The rate of
+ * crypto.bytes is AES throughput in bytes/s.</li>
+ * <li>connections.leased, connections.pending, connections.available and connections.max:
+ * gauges of connection pool usage, tagged with transport so that each transport sharing the
+ * registry has its own. They are removed from the registry when the transport is closed.</li>
+ * </ul>
+ */
+public final class MicrometerClientMetrics implements ClientMetrics {
+    private static final String PREFIX = "tenant_security.";
+    // Tells apart the connection pool gauges of transports recording to the same registry
+    private static final AtomicLong TRANSPORT_IDS = new AtomicLong();
+
+    /**
+     * Meters keyed by an enum, created on first use. Racing creators are harmless since registering
+     * an existing meter returns it.
+     */
+    private static final class MeterTable<K extends Enum<K>, M> {
+        private final AtomicReferenceArray<M> meters;
+        private final Function<K, M> create;
+
+        MeterTable(Class<K> keys, Function<K, M> create) {
+            this.meters = new AtomicReferenceArray<>(keys.getEnumConstants().length);
+            this.create = create;
+        }
+
+        M get(K key) {
+            M meter = meters.get(key.ordinal());
+            if (meter == null) {
+                meter = create.apply(key);
+                meters.set(key.ordinal(), meter);
+            }
+            return meter;
+        }
+    }
+
+    private final MeterRegistry registry;
+    private final MeterTable<WorkQueue, Timer> queueWaits;
+    private final MeterTable<Endpoint, Timer> tspSuccesses;
+    private final EnumMap<Endpoint, MeterTable<TenantSecurityErrorCodes, Timer>> tspFailures =
+            new EnumMap<>(Endpoint.class);
+    private final MeterTable<Endpoint, DistributionSummary> batchSizes;
+    private final EnumMap<Endpoint, MeterTable<TenantSecurityErrorCodes, Counter>> errors =
+            new EnumMap<>(Endpoint.class);
+    private final MeterTable<CryptoOperation, Counter> cryptoBytes;
+    private final MeterTable<CryptoOperation, Timer> cryptoDurations;
+
+    /**
+     * @param registry Registry to record meters to.
+     */
+    public MicrometerClientMetrics(MeterRegistry registry) {
+        if (registry == null) {
+            throw new IllegalArgumentException("No value provided for meter registry!");
+        }
+        this.registry = registry;
+        this.queueWaits = new MeterTable<>(WorkQueue.class,
+                queue -> Timer.builder(PREFIX + "queue.wait").tag("queue", tagValue(queue))
+                        .description("Time tasks waited for a thread or permit")
+                        .register(registry));
+        this.tspSuccesses =
+                new MeterTable<>(Endpoint.class, endpoint -> tspTimer(endpoint, "success"));
+        this.batchSizes = new MeterTable<>(Endpoint.class,
+                endpoint -> DistributionSummary.builder(PREFIX + "tsp.batch.size")
+                        .tag("endpoint", tagValue(endpoint)).baseUnit("documents")
+                        .description("Documents per batch request to the Tenant Security Proxy")
+                        .register(registry));
+        // Only the per endpoint tables are created up front, which leaves the maps read only
+        for (Endpoint endpoint : Endpoint.values()) {
+            tspFailures.put(endpoint, new MeterTable<>(TenantSecurityErrorCodes.class,
+                    error -> tspTimer(endpoint, tagValue(error))));
+            errors.put(endpoint, new MeterTable<>(TenantSecurityErrorCodes.class,
+                    error -> Counter.builder(PREFIX + "errors").tag("endpoint", tagValue(endpoint))
+                            .tag("code", tagValue(error))
+                            .description("Errors returned to callers").register(registry)));
+        }
+        this.cryptoBytes = new MeterTable<>(CryptoOperation.class,
+                operation -> Counter.builder(PREFIX + "crypto.bytes")
+                        .tag("operation", tagValue(operation)).baseUnit("bytes")
+                        .description("Bytes encrypted or decrypted").register(registry));
+        this.cryptoDurations = new MeterTable<>(CryptoOperation.class,
+                operation -> Timer.builder(PREFIX + "crypto.duration")
+                        .tag("operation", tagValue(operation))
+                        .description("Time spent encrypting or decrypting")
+                        .register(registry));
+    }
+
+    @Override
+    public void queueWait(WorkQueue queue, long waitNanos) {
+        queueWaits.get(queue).record(waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void tspRequest(Endpoint endpoint, long latencyNanos, TenantSecurityErrorCodes error) {
+        Timer timer = error == null ? tspSuccesses.get(endpoint)
+                : tspFailures.get(endpoint).get(error);
+        timer.record(latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void batchSize(Endpoint endpoint, int documents) {
+        batchSizes.get(endpoint).record(documents);
+    }
+
+    @Override
+    public void error(Endpoint endpoint, TenantSecurityErrorCodes error) {
+        errors.get(endpoint).get(error).increment();
+    }
+
+    @Override
+    public void crypto(CryptoOperation operation, long bytes, long nanos) {
+        cryptoBytes.get(operation).increment(bytes);
+        cryptoDurations.get(operation).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public Closeable connectionPool(Supplier<ConnectionPoolStats> stats) {
+        String transport = Long.toString(TRANSPORT_IDS.incrementAndGet());
+        // Gauges only hold a weak reference to the object they read, so hold on to it until the
+        // transport is closed and the gauges are removed
+        List<Meter> gauges = Arrays.asList(
+                Gauge.builder(PREFIX + "connections.leased", stats, s -> s.get().getLeased())
+                        .tag("transport", transport).strongReference(true).register(registry),
+                Gauge.builder(PREFIX + "connections.pending", stats, s -> s.get().getPending())
+                        .tag("transport", transport).strongReference(true).register(registry),
+                Gauge.builder(PREFIX + "connections.available", stats,
+                        s -> s.get().getAvailable()).tag("transport", transport)
+                        .strongReference(true).register(registry),
+                Gauge.builder(PREFIX + "connections.max", stats, s -> s.get().getMax())
+                        .tag("transport", transport).strongReference(true).register(registry));
+        return () -> gauges.forEach(registry::remove);
+    }
+
+    private Timer tspTimer(Endpoint endpoint, String outcome) {
+        return Timer.builder(PREFIX + "tsp.requests").tag("endpoint", tagValue(endpoint))
+                .tag("outcome", outcome)
+                .description("Latency of requests to the Tenant Security Proxy")
+                .register(registry);
+    }
+
+    private static String tagValue(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+}
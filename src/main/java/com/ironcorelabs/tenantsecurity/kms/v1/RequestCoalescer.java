@@ -0,0 +1,198 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TspServiceException;
+
+/**
+ * Collects single document requests that share the same metadata and sends them as one batch
+ * request. Requests are grouped by the metadata's post data, so only requests that would have sent
+ * identical metadata to the Tenant Security Proxy end up in the same batch. Each request is given
+ * an ID within its batch and completed from that ID's entry in the batch response. Requests
+ * cancelled before their batch is sent are left out of it. Once sent, the batch request is shared,
+ * so it is never cancelled on behalf of a single caller; results for callers that cancelled in the
+ * meantime are handed to discard so their keys can be zeroed. Once closed, open batches are sent
+ * and new requests fail.
+ *
+ * @param <T> Type of the per-request input, e.g. the EDEK to unwrap.
+ * @param <K> Type of the per-request result in the batch response.
+ */
+final class RequestCoalescer<T, K> {
+    /**
+     * Sends one batch of requests, keyed by their ID within the batch.
+     */
+    interface BatchSender<T, K> {
+        CompletableFuture<? extends BatchDocumentKeys<K>> send(Map<String, T> requests,
+                DocumentMetadata metadata);
+    }
+
+    private final RequestCoalescingConfig config;
+    private final ScheduledExecutorService scheduler;
+    private final BatchSender<T, K> sender;
+    private final Consumer<? super K> discard;
+    private final ConcurrentHashMap<Map<String, Object>, Batch<T, K>> pending =
+            new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    RequestCoalescer(RequestCoalescingConfig config, ScheduledExecutorService scheduler,
+            BatchSender<T, K> sender, Consumer<? super K> discard) {
+        this.config = config;
+        this.scheduler = scheduler;
+        this.sender = sender;
+        this.discard = discard;
+    }
+
+    /**
+     * Add a request to the open batch for its metadata, starting a new batch if there isn't one.
+     * Fails with UNABLE_TO_MAKE_REQUEST if the coalescer has been closed.
+     */
+    CompletableFuture<K> submit(T request, DocumentMetadata metadata) {
+        CompletableFuture<K> result = new CompletableFuture<>();
+        if (closed) {
+            result.completeExceptionally(new TspServiceException(
+                    TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, 0,
+                    "Tenant Security Client has been closed."));
+            return result;
+        }
+        Map<String, Object> batchKey = metadata.getAsPostData();
+        List<Batch<T, K>> created = new ArrayList<>(1);
+        List<Batch<T, K>> full = new ArrayList<>(1);
+        pending.compute(batchKey, (key, batch) -> {
+            if (batch == null) {
+                batch = new Batch<>(metadata);
+                created.add(batch);
+            }
+            batch.requests.put(Integer.toString(batch.results.size()), request);
+            batch.results.add(result);
+            if (batch.results.size() >= config.getMaxBatchSize()) {
+                full.add(batch);
+                return null;
+            }
+            return batch;
+        });
+        if (!full.isEmpty()) {
+            send(full.get(0));
+        } else if (!created.isEmpty()) {
+            // Scheduled outside of compute so the map's lock isn't held while the scheduler is
+            // called
+            scheduleSend(batchKey, created.get(0));
+        }
+        return result;
+    }
+
+    /**
+     * Send every open batch and fail requests submitted from now on.
+     */
+    void close() {
+        closed = true;
+        flush();
+    }
+
+    /**
+     * Immediately send every open batch.
+     */
+    void flush() {
+        for (Map<String, Object> key : pending.keySet()) {
+            Batch<T, K> batch = pending.remove(key);
+            if (batch != null) {
+                send(batch);
+            }
+        }
+    }
+
+    /**
+     * Send the batch once its window is up, unless it was already sent for reaching the max size.
+     * If the scheduler was shut down or the coalescer closed in the meantime, send it right away
+     * instead so its requests don't wait forever.
+     */
+    private void scheduleSend(Map<String, Object> key, Batch<T, K> batch) {
+        try {
+            scheduler.schedule(() -> {
+                if (pending.remove(key, batch)) {
+                    send(batch);
+                }
+            }, config.getWindowMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            if (pending.remove(key, batch)) {
+                send(batch);
+            }
+            return;
+        }
+        if (closed && pending.remove(key, batch)) {
+            send(batch);
+        }
+    }
+
+    private void send(Batch<T, K> batch) {
+        // Leave out requests that were cancelled while the batch was open
+        Map<String, T> requests = batch.requests;
+        for (int i = 0; i < batch.results.size(); i++) {
+            if (batch.results.get(i).isCancelled()) {
+                if (requests == batch.requests) {
+                    requests = new HashMap<>(batch.requests);
+                }
+                requests.remove(Integer.toString(i));
+            }
+        }
+        if (requests.isEmpty()) {
+            return;
+        }
+        CompletableFuture<? extends BatchDocumentKeys<K>> response;
+        try {
+            response = sender.send(requests, batch.metadata);
+        } catch (RuntimeException e) {
+            batch.results.forEach(result -> result.completeExceptionally(e));
+            return;
+        }
+        response.whenComplete((batchResponse, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause()
+                        : error;
+                batch.results.forEach(result -> result.completeExceptionally(cause));
+                return;
+            }
+            Map<String, K> keys = batchResponse.getKeys() == null ? new HashMap<>()
+                    : batchResponse.getKeys();
+            Map<String, ErrorResponse> failures = batchResponse.getFailures() == null
+                    ? new HashMap<>()
+                    : batchResponse.getFailures();
+            for (int i = 0; i < batch.results.size(); i++) {
+                String id = Integer.toString(i);
+                CompletableFuture<K> result = batch.results.get(i);
+                if (keys.containsKey(id)) {
+                    K key = keys.get(id);
+                    if (!result.complete(key)) {
+                        // The caller cancelled after the batch was sent
+                        discard.accept(key);
+                    }
+                } else if (failures.containsKey(id)) {
+                    result.completeExceptionally(failures.get(id).toTenantSecurityException(0));
+                } else {
+                    result.completeExceptionally(
+                            new TspServiceException(TenantSecurityErrorCodes.UNKNOWN_ERROR, 0,
+                                    "Batch response from the Tenant Security Proxy did not include a result for this request."));
+                }
+            }
+        });
+    }
+
+    private static final class Batch<T, K> {
+        private final DocumentMetadata metadata;
+        private final Map<String, T> requests = new HashMap<>();
+        private final List<CompletableFuture<K>> results = new ArrayList<>();
+
+        Batch(DocumentMetadata metadata) {
+            this.metadata = metadata;
+        }
+    }
+}
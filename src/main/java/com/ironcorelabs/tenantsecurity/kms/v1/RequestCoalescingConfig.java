@@ -0,0 +1,68 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+/**
+ * Settings for coalescing concurrent single document wrap and unwrap requests into batch requests
+ * to the Tenant Security Proxy. Requests for the same tenant with identical metadata that arrive
+ * within the window are sent together as one batch-wrap or batch-unwrap request, and each caller's
+ * result is completed from the batch response. A batch is sent as soon as it reaches the max batch
+ * size, or when the window closes, whichever comes first.
+ *
+ * Coalescing trades up to one window of added latency per request for far fewer requests to the
+ * Tenant Security Proxy.
+ */
+public final class RequestCoalescingConfig {
+    /**
+     * Default time to collect requests before sending a batch, in ms. Value is 2.
+     */
+    public static final long DEFAULT_WINDOW_MILLIS = 2;
+
+    /**
+     * Default max number of requests sent in one batch. Value is 100.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    private final long windowMillis;
+    private final int maxBatchSize;
+
+    /**
+     * Constructor for RequestCoalescingConfig which uses the default window and max batch size.
+     */
+    public RequestCoalescingConfig() {
+        this(DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Constructor for RequestCoalescingConfig.
+     *
+     * @param windowMillis Max time to wait for more requests before sending a batch, in ms.
+     * @param maxBatchSize Number of requests at which a batch is sent without waiting for the
+     *                     window to close.
+     * @throws IllegalArgumentException If either value is less than 1.
+     */
+    public RequestCoalescingConfig(long windowMillis, int maxBatchSize) {
+        if (windowMillis < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for request coalescing window must be greater than 0!");
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for request coalescing max batch size must be greater than 0!");
+        }
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Get the max time to wait for more requests before sending a batch, in ms.
+     */
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Get the number of requests at which a batch is sent immediately.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+}
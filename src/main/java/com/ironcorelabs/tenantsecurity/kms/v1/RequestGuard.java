@@ -0,0 +1,279 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TenantSecurityException;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TspServiceException;
+import com.ironcorelabs.tenantsecurity.utils.CompletableFutures;
+
+/**
+ * Guards each attempt of a request to the TSP with a circuit breaker for the TSP as a whole, one
+ * for the request's tenant, and an adaptive limit on requests in flight. Any of them may be
+ * disabled. A request that is turned away fails immediately with CIRCUIT_BREAKER_OPEN or
+ * CONCURRENCY_LIMIT_EXCEEDED, neither of which is retried.
+ *
+ * Outcomes are split by who is at fault. Failing to reach the TSP or a gateway error in front of it
+ * counts against the TSP breaker. A timeout or KMS unreachable error counts against the tenant's
+ * breaker only, since a TSP waiting on one tenant's slow KMS is still serving everyone else.
+ * Tenant breakers which are closed and haven't been used for a while are dropped, so the number
+ * kept is bounded by the tenants that are active rather than every tenant ever seen.
+ */
+final class RequestGuard {
+    private enum Outcome {
+        SUCCESS, TENANT_FAILURE, TIMEOUT, TSP_FAILURE,
+        // The caller's deadline passed, which says nothing about the TSP or tenant
+        IGNORED,
+        // The caller gave up on the request, so its latency says nothing either
+        CANCELLED
+    }
+
+    // How long a closed tenant breaker is kept without being used, and so how often to look for them
+    private static final long TENANT_BREAKER_IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final CircuitBreakerConfig breakerConfig;
+    private final CircuitBreaker tspBreaker;
+    private final ConcurrentMap<String, CircuitBreaker> tenantBreakers = new ConcurrentHashMap<>();
+    private final AdaptiveLimiter limiter;
+    private final LongSupplier nanoClock;
+    private final AtomicLong lastEviction;
+
+    /**
+     * @param breakerConfig Settings for the circuit breakers, or null to disable them.
+     * @param limitConfig   Settings for the adaptive limit, or null to disable it.
+     */
+    RequestGuard(CircuitBreakerConfig breakerConfig, AdaptiveLimitConfig limitConfig) {
+        this(breakerConfig, limitConfig, System::nanoTime);
+    }
+
+    RequestGuard(CircuitBreakerConfig breakerConfig, AdaptiveLimitConfig limitConfig,
+            LongSupplier nanoClock) {
+        this.breakerConfig = breakerConfig;
+        this.tspBreaker =
+                breakerConfig == null ? null : new CircuitBreaker(breakerConfig, nanoClock);
+        this.limiter = limitConfig == null ? null : new AdaptiveLimiter(limitConfig);
+        this.nanoClock = nanoClock;
+        this.lastEviction = new AtomicLong(nanoClock.getAsLong());
+    }
+
+    /**
+     * Make the request if the breakers and limit allow it and record how it went.
+     */
+    <T> CompletableFuture<T> execute(String tenantId, Supplier<CompletableFuture<T>> request) {
+        CircuitBreaker tenantBreaker = tenantBreaker(tenantId);
+        CompletableFuture<T> result = execute(tenantBreaker, tenantId, request);
+        if (tenantBreaker != null) {
+            // Runs once the outcome has been recorded, or right away if the request was rejected
+            result.whenComplete((value, error) -> tenantBreaker.release());
+        }
+        return result;
+    }
+
+    private <T> CompletableFuture<T> execute(CircuitBreaker tenantBreaker, String tenantId,
+            Supplier<CompletableFuture<T>> request) {
+        if (tspBreaker != null && !tspBreaker.tryAcquire()) {
+            return rejected(TenantSecurityErrorCodes.CIRCUIT_BREAKER_OPEN,
+                    "Circuit breaker for the Tenant Security Proxy is open.");
+        }
+        if (tenantBreaker != null && !tenantBreaker.tryAcquire()) {
+            tspBreaker.onIgnored();
+            return rejected(TenantSecurityErrorCodes.CIRCUIT_BREAKER_OPEN,
+                    String.format("Circuit breaker for tenant '%s' is open.", tenantId));
+        }
+        if (limiter != null && !limiter.tryAcquire()) {
+            if (tspBreaker != null) {
+                tspBreaker.onIgnored();
+            }
+            if (tenantBreaker != null) {
+                tenantBreaker.onIgnored();
+            }
+            return rejected(TenantSecurityErrorCodes.CONCURRENCY_LIMIT_EXCEEDED, String.format(
+                    "Limit of %d requests in flight to the Tenant Security Proxy was reached.",
+                    limiter.getLimit()));
+        }
+        long start = nanoClock.getAsLong();
+        CompletableFuture<T> result;
+        try {
+            result = request.get();
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        CompletableFuture<T> guarded = result.whenComplete((value, error) -> {
+            Outcome outcome = classify(value, error);
+            if (tspBreaker != null) {
+                if (outcome == Outcome.TSP_FAILURE) {
+                    tspBreaker.onFailure();
+                } else if (outcome == Outcome.IGNORED || outcome == Outcome.CANCELLED) {
+                    tspBreaker.onIgnored();
+                } else {
+                    tspBreaker.onSuccess();
+                }
+            }
+            if (tenantBreaker != null) {
+                if (outcome == Outcome.TSP_FAILURE || outcome == Outcome.IGNORED
+                        || outcome == Outcome.CANCELLED) {
+                    tenantBreaker.onIgnored();
+                } else if (outcome == Outcome.SUCCESS) {
+                    tenantBreaker.onSuccess();
+                } else {
+                    tenantBreaker.onFailure();
+                }
+            }
+            if (limiter != null) {
+                if (outcome == Outcome.CANCELLED) {
+                    limiter.onIgnored();
+                } else {
+                    limiter.onComplete(nanoClock.getAsLong() - start,
+                            outcome == Outcome.TIMEOUT || outcome == Outcome.TSP_FAILURE);
+                }
+            }
+        });
+        return CompletableFutures.propagateCancellation(guarded, result);
+    }
+
+    /**
+     * Get the state of the circuit breaker for the TSP as a whole. Always closed if disabled.
+     */
+    CircuitBreakerState getState() {
+        return tspBreaker == null ? CircuitBreakerState.CLOSED : tspBreaker.getState();
+    }
+
+    /**
+     * Get the state of the circuit breaker for the tenant. Always closed if disabled or the tenant
+     * hasn't made a request yet.
+     */
+    CircuitBreakerState getState(String tenantId) {
+        CircuitBreaker breaker = tenantId == null ? null : tenantBreakers.get(tenantId);
+        return breaker == null ? CircuitBreakerState.CLOSED : breaker.getState();
+    }
+
+    /**
+     * Get the current adaptive limit on requests in flight, or 0 if disabled.
+     */
+    int getConcurrencyLimit() {
+        return limiter == null ? 0 : limiter.getLimit();
+    }
+
+    /**
+     * Number of tenant circuit breakers currently kept.
+     */
+    int getTenantBreakerCount() {
+        return tenantBreakers.size();
+    }
+
+    /**
+     * Get the tenant's breaker, creating it if needed, retained for the caller to release.
+     */
+    private CircuitBreaker tenantBreaker(String tenantId) {
+        if (breakerConfig == null || tenantId == null) {
+            return null;
+        }
+        evictIdleBreakers();
+        // Retaining inside compute means eviction, which also goes through compute, can't drop the
+        // breaker between the lookup and the retain
+        return tenantBreakers.compute(tenantId, (id, breaker) -> {
+            CircuitBreaker retained =
+                    breaker == null ? new CircuitBreaker(breakerConfig, nanoClock) : breaker;
+            retained.retain();
+            return retained;
+        });
+    }
+
+    /**
+     * Drop the tenant breakers which have been idle for a while. Only one caller looks at a time,
+     * and at most once per idle period.
+     */
+    private void evictIdleBreakers() {
+        long now = nanoClock.getAsLong();
+        long last = lastEviction.get();
+        if (now - last < TENANT_BREAKER_IDLE_NANOS || !lastEviction.compareAndSet(last, now)) {
+            return;
+        }
+        for (String tenantId : tenantBreakers.keySet()) {
+            tenantBreakers.computeIfPresent(tenantId, (id, breaker) -> breaker
+                    .isIdle(TENANT_BREAKER_IDLE_NANOS) ? null : breaker);
+        }
+    }
+
+    private static <T> CompletableFuture<T> rejected(TenantSecurityErrorCodes code,
+            String message) {
+        CompletableFuture<T> rejected = new CompletableFuture<>();
+        rejected.completeExceptionally(new TspServiceException(code, 0, message));
+        return rejected;
+    }
+
+    private static Outcome classify(Object value, Throwable error) {
+        if (error == null) {
+            // A batch where every document failed because the KMS was unreachable says as much
+            // about the tenant as a failed single request
+            if (value instanceof BatchDocumentKeys) {
+                BatchDocumentKeys<?> batch = (BatchDocumentKeys<?>) value;
+                if ((batch.getKeys() == null || batch.getKeys().isEmpty())
+                        && batch.getFailures() != null && !batch.getFailures().isEmpty()
+                        && batch.getFailures().values().stream().allMatch(failure -> failure
+                                .getCode() == TenantSecurityErrorCodes.KMS_UNREACHABLE.getCode())) {
+                    return Outcome.TENANT_FAILURE;
+                }
+            }
+            return Outcome.SUCCESS;
+        }
+        Throwable cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause()
+                : error;
+        if (cause instanceof CancellationException) {
+            return Outcome.CANCELLED;
+        }
+        if (!(cause instanceof TenantSecurityException)) {
+            return Outcome.SUCCESS;
+        }
+        TenantSecurityException e = (TenantSecurityException) cause;
+        TenantSecurityErrorCodes code = e.getErrorCode();
+        int status = e.getHttpResponseCode();
+        if (code == TenantSecurityErrorCodes.DEADLINE_EXCEEDED) {
+            return Outcome.IGNORED;
+        }
+        if (code == TenantSecurityErrorCodes.KMS_UNREACHABLE) {
+            return Outcome.TENANT_FAILURE;
+        }
+        if (code == TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST && status == 0) {
+            // A connect timeout means the TSP itself can't be reached, not that it's waiting on a
+            // tenant's KMS, so it's checked before the read timeouts it extends or wraps
+            return isConnectFailure(e) || !isTimeout(e) ? Outcome.TSP_FAILURE : Outcome.TIMEOUT;
+        }
+        if (code == TenantSecurityErrorCodes.UNKNOWN_ERROR
+                && (status == 502 || status == 503 || status == 504)) {
+            return Outcome.TSP_FAILURE;
+        }
+        return Outcome.SUCCESS;
+    }
+
+    private static boolean isConnectFailure(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof org.apache.hc.client5.http.ConnectTimeoutException
+                    || t instanceof org.apache.hc.client5.http.HttpHostConnectException
+                    || t instanceof org.apache.http.conn.ConnectTimeoutException
+                    || t instanceof org.apache.http.conn.HttpHostConnectException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTimeout(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof SocketTimeoutException || t instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
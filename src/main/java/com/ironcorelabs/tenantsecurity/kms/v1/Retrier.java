@@ -0,0 +1,320 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.io.Closeable;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TenantSecurityException;
+import com.ironcorelabs.tenantsecurity.utils.CompletableFutures;
+
+/**
+ * Retries requests to the Tenant Security Proxy which fail with a transient error, waiting a
+ * jittered exponential backoff between attempts on a scheduler thread rather than blocking. Every
+ * request deposits a fraction of a retry into a shared budget and every retry withdraws a whole
+ * one, so retries stop once they would exceed the configured share of traffic.
+ */
+final class Retrier implements Closeable {
+    // The budget is kept in thousandths of a retry so that fractional deposits can use a long
+    private static final long RETRY_COST = 1000;
+
+    private final RetryConfig config;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final AtomicLong budget;
+    private final long budgetDeposit;
+    private final long maxBudget;
+
+    Retrier(RetryConfig config) {
+        this(config, Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tenant-security-retry");
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    Retrier(RetryConfig config, ScheduledExecutorService scheduler, boolean ownsScheduler) {
+        this.config = config;
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+        this.budgetDeposit = Math.round(config.getBudgetRatio() * RETRY_COST);
+        this.maxBudget = Math.max(config.getMinRetries(), 1) * RETRY_COST;
+        this.budget = new AtomicLong(config.getMinRetries() * RETRY_COST);
+    }
+
+    /**
+     * Stop scheduling new retries. Retries which are already waiting on their delay are still made.
+     */
+    @Override
+    public void close() {
+        if (this.ownsScheduler) {
+            this.scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Whether a failed request should be retried. See TenantSecurityException.isRetryable.
+     */
+    static boolean isRetryable(Throwable error) {
+        Throwable cause = unwrap(error);
+        return cause instanceof TenantSecurityException
+                && ((TenantSecurityException) cause).isRetryable();
+    }
+
+    /**
+     * Whether a failed request that isn't idempotent should be retried. Only retryable failures
+     * where the connection to the TSP was never made are, since otherwise the TSP may have received
+     * and acted on the request before it failed.
+     */
+    static boolean isRetryableUnsent(Throwable error) {
+        if (!isRetryable(error)) {
+            return false;
+        }
+        for (Throwable cause = unwrap(error).getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException
+                    || cause instanceof NoRouteToHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null
+                ? error.getCause()
+                : error;
+    }
+
+    /**
+     * A document that failed within a successful batch response was received by the TSP, so only a
+     * failure to reach the tenant's KMS is worth retrying.
+     */
+    private static boolean isRetryable(ErrorResponse failure) {
+        return failure.getCode() == TenantSecurityErrorCodes.KMS_UNREACHABLE.getCode();
+    }
+
+    /**
+     * Run the request, retrying it while it fails with a retryable error, attempts remain and the
+     * budget allows.
+     */
+    <T> CompletableFuture<T> execute(Supplier<CompletableFuture<T>> request) {
+        return execute(request, null);
+    }
+
+    /**
+     * Run the request like execute, but don't retry if the backoff would run past the deadline.
+     */
+    <T> CompletableFuture<T> execute(Supplier<CompletableFuture<T>> request, Deadline deadline) {
+        return execute(request, deadline, Retrier::isRetryable);
+    }
+
+    /**
+     * Run the request like execute, but only retry the failures which the predicate accepts.
+     */
+    <T> CompletableFuture<T> execute(Supplier<CompletableFuture<T>> request, Deadline deadline,
+            Predicate<Throwable> retryable) {
+        deposit();
+        return attempt(request, 1, deadline, retryable, new AtomicInteger());
+    }
+
+    /**
+     * Make the numbered attempt, recording its number in attempts before it's made so that callers
+     * can tell how many attempts the final result took.
+     */
+    private <T> CompletableFuture<T> attempt(Supplier<CompletableFuture<T>> request, int number,
+            Deadline deadline, Predicate<Throwable> retryable, AtomicInteger attempts) {
+        attempts.set(number);
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<T> current = call(request);
+        // A cancelled attempt fails with a CancellationException, which is never retried
+        CompletableFutures.propagateCancellation(result, current);
+        current.whenComplete((value, error) -> {
+            long delay;
+            if (error == null) {
+                result.complete(value);
+            } else if (number < config.getMaxAttempts() && retryable.test(error)
+                    && (delay = retryDelay(number, deadline)) >= 0 && tryWithdraw()) {
+                forward(afterBackoff(delay,
+                        () -> attempt(request, number + 1, deadline, retryable, attempts), error),
+                        result);
+            } else {
+                result.completeExceptionally(error);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Run a batch request for the provided document IDs, retrying the whole request like execute.
+     * Once it succeeds, the documents which failed with a retryable error are requested again on
+     * their own until they succeed, run out of attempts or the budget runs out. The result merges
+     * the keys and failures of every attempt.
+     */
+    <K, B extends BatchDocumentKeys<K>> CompletableFuture<B> executeBatch(
+            Collection<String> documentIds,
+            Function<Collection<String>, CompletableFuture<B>> request,
+            BiFunction<Map<String, K>, Map<String, ErrorResponse>, B> createResult) {
+        return executeBatch(documentIds, request, createResult, null);
+    }
+
+    /**
+     * Run the batch request like executeBatch, but don't retry if the backoff would run past the
+     * deadline.
+     */
+    <K, B extends BatchDocumentKeys<K>> CompletableFuture<B> executeBatch(
+            Collection<String> documentIds,
+            Function<Collection<String>, CompletableFuture<B>> request,
+            BiFunction<Map<String, K>, Map<String, ErrorResponse>, B> createResult,
+            Deadline deadline) {
+        CompletableFuture<B> result = new CompletableFuture<>();
+        AtomicInteger attempts = new AtomicInteger();
+        deposit();
+        CompletableFuture<B> first = attempt(() -> request.apply(documentIds), 1, deadline,
+                Retrier::isRetryable, attempts);
+        CompletableFutures.propagateCancellation(result, first);
+        first.whenComplete((response, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                // Per-document retries share the attempts of the whole request
+                forward(retryFailures(response, attempts.get() + 1, request, createResult,
+                        deadline), result);
+            }
+        });
+        return result;
+    }
+
+    private <K, B extends BatchDocumentKeys<K>> CompletableFuture<B> retryFailures(B response,
+            int number, Function<Collection<String>, CompletableFuture<B>> request,
+            BiFunction<Map<String, K>, Map<String, ErrorResponse>, B> createResult,
+            Deadline deadline) {
+        List<String> retryIds = response.getFailures().entrySet().stream()
+                .filter(failure -> isRetryable(failure.getValue())).map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        if (retryIds.isEmpty() || number > config.getMaxAttempts()) {
+            return CompletableFuture.completedFuture(response);
+        }
+        long delay = retryDelay(number - 1, deadline);
+        if (delay < 0 || !tryWithdraw()) {
+            return CompletableFuture.completedFuture(response);
+        }
+        CompletableFuture<B> result = new CompletableFuture<>();
+        CompletableFuture<B> retry =
+                afterBackoff(delay, () -> call(() -> request.apply(retryIds)), null);
+        CompletableFutures.propagateCancellation(result, retry);
+        retry.whenComplete((retryResponse, error) -> {
+            if (error != null) {
+                // Keep the failures from the previous attempt
+                result.complete(response);
+                return;
+            }
+            Map<String, K> keys = new HashMap<>(response.getKeys());
+            keys.putAll(retryResponse.getKeys());
+            Map<String, ErrorResponse> failures = new HashMap<>(response.getFailures());
+            retryIds.forEach(failures::remove);
+            failures.putAll(retryResponse.getFailures());
+            forward(retryFailures(createResult.apply(keys, failures), number + 1, request,
+                    createResult, deadline), result);
+        });
+        return result;
+    }
+
+    /**
+     * Pick the backoff for the given retry, or -1 if the retry wouldn't start before the deadline.
+     */
+    private long retryDelay(int retry, Deadline deadline) {
+        long delay = backoffMillis(retry);
+        if (deadline != null && delay >= deadline.remaining(TimeUnit.MILLISECONDS)) {
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * Run the request after the delay. Fails with the provided error, or the rejection if there
+     * isn't one, if the scheduler has been shut down.
+     */
+    private <T> CompletableFuture<T> afterBackoff(long delayMillis,
+            Supplier<CompletableFuture<T>> request, Throwable errorIfRejected) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            // Cancelling the result before the delay is up unschedules the request
+            CompletableFutures.propagateCancellation(result, scheduler
+                    .schedule(() -> forward(call(request), result), delayMillis,
+                            TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(errorIfRejected != null ? errorIfRejected : e);
+        }
+        return result;
+    }
+
+    /**
+     * Complete the result with the outcome of the source, cancelling the source if the result is
+     * cancelled first.
+     */
+    private static <T> void forward(CompletableFuture<T> source, CompletableFuture<T> result) {
+        CompletableFutures.propagateCancellation(result, source);
+        source.whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(error);
+            }
+        });
+    }
+
+    /**
+     * Random delay between zero and the exponential backoff for the given retry (1 for the first),
+     * capped at the max delay.
+     */
+    long backoffMillis(int retry) {
+        long ceiling = config.getBaseDelayMillis() << Math.min(retry - 1, 30);
+        if (ceiling < 0 || ceiling > config.getMaxDelayMillis()) {
+            ceiling = config.getMaxDelayMillis();
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> request) {
+        try {
+            return request.get();
+        } catch (Throwable e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private void deposit() {
+        budget.accumulateAndGet(budgetDeposit, (balance, deposit) -> Math.min(maxBudget,
+                balance + deposit));
+    }
+
+    private boolean tryWithdraw() {
+        long balance;
+        do {
+            balance = budget.get();
+            if (balance < RETRY_COST) {
+                return false;
+            }
+        } while (!budget.compareAndSet(balance, balance - RETRY_COST));
+        return true;
+    }
+}
@@ -0,0 +1,127 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+/**
+ * Settings for retrying requests to the Tenant Security Proxy that fail with a transient error: the
+ * request couldn't be made, the TSP couldn't reach the tenant's KMS (KMS_UNREACHABLE), or a proxy
+ * in front of the TSP returned 502, 503 or 504. See TenantSecurityException.isRetryable.
+ *
+ * Each retry waits a random time between zero and an exponentially growing delay, so that clients
+ * which failed together don't retry together. Retries are also limited by a budget: every request
+ * earns a fraction of a retry, and a retry is only made if a whole one has been earned. This keeps
+ * retries to a fixed share of traffic when the TSP or KMS is down, rather than multiplying the load
+ * on it. For batch requests only the documents that failed with a transient error are retried.
+ */
+public final class RetryConfig {
+    /**
+     * Default max number of attempts for a request, including the first. Value is 3.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /**
+     * Default upper bound of the delay before the first retry, in ms. Value is 50.
+     */
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 50;
+
+    /**
+     * Default upper bound of the delay before any retry, in ms. Value is 2000.
+     */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 2000;
+
+    /**
+     * Default number of retries earned by each request. Value is 0.2, so retries can add at most
+     * 20% to the requests sent to the TSP.
+     */
+    public static final double DEFAULT_BUDGET_RATIO = 0.2;
+
+    /**
+     * Default number of retries which can always be made, so that retries still happen when there
+     * is very little traffic. Value is 10.
+     */
+    public static final int DEFAULT_MIN_RETRIES = 10;
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final double budgetRatio;
+    private final int minRetries;
+
+    /**
+     * Constructor for RetryConfig which uses the default settings.
+     */
+    public RetryConfig() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS,
+                DEFAULT_BUDGET_RATIO, DEFAULT_MIN_RETRIES);
+    }
+
+    /**
+     * Constructor for RetryConfig.
+     *
+     * @param maxAttempts     Max number of attempts for a request, including the first.
+     * @param baseDelayMillis Upper bound of the delay before the first retry, in ms. Doubles for
+     *                        each following retry.
+     * @param maxDelayMillis  Upper bound of the delay before any retry, in ms.
+     * @param budgetRatio     Number of retries earned by each request, from 0 to 1.
+     * @param minRetries      Number of retries which can be made without having been earned. Also
+     *                        the most retries that can be saved up.
+     * @throws IllegalArgumentException If any value is out of range.
+     */
+    public RetryConfig(int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+            double budgetRatio, int minRetries) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for max attempts must be greater than 0!");
+        }
+        if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException(
+                    "Values provided for retry delays must not be negative and the max delay must be at least the base delay!");
+        }
+        if (budgetRatio < 0 || budgetRatio > 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for retry budget ratio must be between 0 and 1!");
+        }
+        if (minRetries < 0) {
+            throw new IllegalArgumentException(
+                    "Value provided for min retries must not be negative!");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.budgetRatio = budgetRatio;
+        this.minRetries = minRetries;
+    }
+
+    /**
+     * Get the max number of attempts for a request, including the first.
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Get the upper bound of the delay before the first retry, in ms.
+     */
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    /**
+     * Get the upper bound of the delay before any retry, in ms.
+     */
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * Get the number of retries earned by each request.
+     */
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * Get the number of retries which can be made without having been earned.
+     */
+    public int getMinRetries() {
+        return minRetries;
+    }
+}
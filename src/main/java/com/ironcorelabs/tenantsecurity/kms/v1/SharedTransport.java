@@ -0,0 +1,230 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Connection pool and threads used to make requests to the Tenant Security Proxy, which can be
+ * shared by any number of clients via TenantSecurityClient.Builder.transport. Sharing a transport
+ * avoids creating a new connection pool and request threads for every client, which makes
+ * creating a client cheap for services that create one per tenant or per test. Clients never close
+ * a shared transport; the caller closes it once every client using it has been closed.
+ */
+public final class SharedTransport implements Closeable {
+    private final TspTransport transport;
+
+    private SharedTransport(TspTransport transport) {
+        this.transport = transport;
+    }
+
+    TspTransport getTransport() {
+        return transport;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.transport.close();
+    }
+
+    /**
+     * Create a builder for a SharedTransport. Any option that isn't set uses the same default as
+     * the TenantSecurityClient constructors.
+     *
+     * @return Builder which can be used to configure and create a transport.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builder for SharedTransport. The same options are available on TenantSecurityClient.Builder
+     * for a transport which belongs to a single client.
+     */
+    public static final class Builder {
+        private int requestThreadSize = TenantSecurityClient.DEFAULT_REQUEST_THREADPOOL_SIZE;
+        private int connectTimeout = TenantSecurityClient.DEFAULT_TIMEOUT;
+        private int readTimeout = TenantSecurityClient.DEFAULT_TIMEOUT;
+        private long connectionTimeToLive;
+        private long keepAlive;
+        private AsyncTransportConfig asyncTransportConfig;
+        private ExecutorService ioExecutor;
+        private int virtualThreadRequests;
+        private ClientMetrics metrics = ClientMetrics.NONE;
+
+        private Builder() {}
+
+        /**
+         * @param requestThreadSize Number of threads to use for fixed-size web request thread
+         *                          pool, which is also the size of the connection pool.
+         * @return This builder.
+         */
+        public Builder requestThreadSize(int requestThreadSize) {
+            this.requestThreadSize = requestThreadSize;
+            return this;
+        }
+
+        /**
+         * @param timeout Request to TSP read and connect timeout in ms.
+         * @return This builder.
+         */
+        public Builder timeout(int timeout) {
+            this.connectTimeout = timeout;
+            this.readTimeout = timeout;
+            return this;
+        }
+
+        /**
+         * @param connectTimeout Time allowed to open a connection to the TSP, in ms.
+         * @return This builder.
+         */
+        public Builder connectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * @param readTimeout Time allowed to wait for the TSP to respond once a request is sent, in
+         *                    ms.
+         * @return This builder.
+         */
+        public Builder readTimeout(int readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        /**
+         * Close pooled connections once they have been open this long, so that they are spread
+         * back out across TSP instances behind a load balancer. Not used by the HTTP/2 transport.
+         * Defaults to 0, which keeps connections open for as long as the TSP allows.
+         *
+         * @param connectionTimeToLive Max age of a pooled connection in ms.
+         * @return This builder.
+         */
+        public Builder connectionTimeToLive(long connectionTimeToLive) {
+            if (connectionTimeToLive < 0) {
+                throw new IllegalArgumentException(
+                        "Value provided for connection time to live must not be negative!");
+            }
+            this.connectionTimeToLive = connectionTimeToLive;
+            return this;
+        }
+
+        /**
+         * Close pooled connections which have been idle this long. Not used by the HTTP/2
+         * transport. Defaults to 0, which uses the Keep-Alive header sent by the TSP and otherwise
+         * keeps idle connections open indefinitely.
+         *
+         * @param keepAlive Max idle time of a pooled connection in ms.
+         * @return This builder.
+         */
+        public Builder keepAlive(long keepAlive) {
+            if (keepAlive < 0) {
+                throw new IllegalArgumentException(
+                        "Value provided for keep-alive must not be negative!");
+            }
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * Send requests with a non-blocking HTTP client instead of the fixed-size web request
+         * thread pool. When set, the request thread size is not used.
+         *
+         * @param asyncTransportConfig Max in flight requests and I/O thread settings.
+         * @return This builder.
+         */
+        public Builder asyncTransport(AsyncTransportConfig asyncTransportConfig) {
+            this.asyncTransportConfig = asyncTransportConfig;
+            return this;
+        }
+
+        /**
+         * Make blocking requests on the provided executor instead of a fixed-size pool created by
+         * the transport. The request thread size is still used as the size of the connection pool.
+         * Not used by the asyncTransport. The executor is not shut down when the transport is
+         * closed.
+         *
+         * @param ioExecutor Executor for blocking requests to the Tenant Security Proxy.
+         * @return This builder.
+         */
+        public Builder ioExecutor(ExecutorService ioExecutor) {
+            if (ioExecutor == null) {
+                throw new IllegalArgumentException("No value provided for I/O executor!");
+            }
+            this.ioExecutor = ioExecutor;
+            return this;
+        }
+
+        /**
+         * On JDK 21 and later, make each blocking request on its own virtual thread with at most
+         * maxConcurrentRequests in flight at once. On older JDKs a fixed-size pool of
+         * maxConcurrentRequests platform threads is used instead. Ignored if asyncTransport or
+         * ioExecutor is set.
+         *
+         * @param maxConcurrentRequests Max requests in flight to the TSP.
+         * @return This builder.
+         */
+        public Builder virtualThreads(int maxConcurrentRequests) {
+            if (maxConcurrentRequests < 1) {
+                throw new IllegalArgumentException(
+                        "Value provided for max concurrent requests must be greater than 0!");
+            }
+            this.virtualThreadRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        /**
+         * Record request queue wait times and connection pool usage. Clients using a shared
+         * transport record their own metrics via TenantSecurityClient.Builder.metrics.
+         *
+         * @param metrics Where to record measurements.
+         * @return This builder.
+         */
+        public Builder metrics(ClientMetrics metrics) {
+            if (metrics == null) {
+                throw new IllegalArgumentException("No value provided for metrics!");
+            }
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Create the configured transport.
+         *
+         * @return New SharedTransport.
+         * @throws IllegalArgumentException If any option is invalid.
+         */
+        public SharedTransport build() {
+            return new SharedTransport(buildTransport());
+        }
+
+        TspTransport buildTransport() {
+            if (requestThreadSize < 1) {
+                throw new IllegalArgumentException(
+                        "Value provided for request threadpool size must be greater than 0!");
+            }
+            return newTransport();
+        }
+
+        private TspTransport newTransport() {
+            if (asyncTransportConfig != null) {
+                return new AsyncHttpTransport(asyncTransportConfig, connectTimeout, readTimeout,
+                        connectionTimeToLive, keepAlive, metrics);
+            }
+            if (ioExecutor != null) {
+                return new BlockingHttpTransport(ioExecutor, false, requestThreadSize,
+                        connectTimeout, readTimeout, connectionTimeToLive, keepAlive, null,
+                        metrics);
+            }
+            if (virtualThreadRequests > 0) {
+                return BlockingHttpTransport.withVirtualThreads(virtualThreadRequests,
+                        connectTimeout, readTimeout, connectionTimeToLive, keepAlive, metrics);
+            }
+            return new BlockingHttpTransport(Executors.newFixedThreadPool(requestThreadSize), true,
+                    requestThreadSize, connectTimeout, readTimeout, connectionTimeToLive, keepAlive,
+                    null, metrics);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+/**
+ * Holds the result of encrypting or decrypting a stream or buffer with the Tenant Security KMS
+ * client. The encrypted or decrypted bytes have already been written to the provided output, so
+ * this only contains the encrypted document key (EDEK) that was used.
+ */
+public final class StreamingResponse {
+    private final String edek;
+
+    public StreamingResponse(String edek) {
+        this.edek = edek;
+    }
+
+    /**
+     * Get the encrypted document encryption key (EDEK) used to encrypt/decrypt the output.
+     */
+    public String getEncryptedDocumentEncryptionKey() {
+        return edek;
+    }
+
+    /**
+     * Shorthand method for getEncryptedDocumentEncryptionKey()
+     */
+    public String getEdek() {
+        return getEncryptedDocumentEncryptionKey();
+    }
+}
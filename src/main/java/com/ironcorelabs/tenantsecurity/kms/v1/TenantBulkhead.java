@@ -0,0 +1,303 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TspServiceException;
+import com.ironcorelabs.tenantsecurity.utils.CompletableFutures;
+
+/**
+ * Partitions requests in flight by tenant without blocking any threads. Each tenant has reserved
+ * permits plus access to a shared overflow pool. Requests that can't get a permit wait in their
+ * tenant's FIFO queue. Freed overflow permits are offered to the waiting tenants round robin, so
+ * a tenant with a deep queue doesn't get every overflow permit ahead of a tenant with one request.
+ * Cancelled requests leave the queue, and cancel the request itself if it already started.
+ * Tenants with nothing in flight or queued for a while are forgotten, along with their counters.
+ *
+ * Permit bookkeeping is a handful of field updates, so it is done under a single lock. Requests
+ * are always started outside of it.
+ */
+final class TenantBulkhead {
+    private enum Permit {
+        RESERVED, OVERFLOW
+    }
+
+    // How long a tenant's partition is kept with nothing in flight or queued, and so how often to
+    // look for them
+    private static final long IDLE_PARTITION_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private static final class Waiter {
+        final long enqueuedAt;
+        final Consumer<Permit> start;
+        final CompletableFuture<?> result;
+
+        Waiter(long enqueuedAt, Consumer<Permit> start, CompletableFuture<?> result) {
+            this.enqueuedAt = enqueuedAt;
+            this.start = start;
+            this.result = result;
+        }
+    }
+
+    private static final class Partition {
+        final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+        // When the partition last had nothing in flight or queued
+        long idleSince;
+        int reservedInUse;
+        int overflowInUse;
+        long queued;
+        long rejected;
+        long totalWaitNanos;
+        long maxWaitNanos;
+
+        Partition(long now) {
+            this.idleSince = now;
+        }
+
+        boolean isEmpty() {
+            return reservedInUse == 0 && overflowInUse == 0 && queue.isEmpty();
+        }
+    }
+
+    private final BulkheadConfig config;
+    private final LongSupplier nanoClock;
+    private final Map<String, Partition> partitions = new HashMap<>();
+    // Partitions with waiting requests, in the order they'll be offered the next overflow permit
+    private final ArrayDeque<Partition> overflowTurns = new ArrayDeque<>();
+    private int overflowAvailable;
+    private long lastEviction;
+    private boolean closed;
+    // Requests to start once this thread finishes starting the current one. Set while a thread is
+    // starting requests, so one that completes synchronously hands its permit on without
+    // recursing.
+    private final ThreadLocal<ArrayDeque<Runnable>> starting = new ThreadLocal<>();
+
+    TenantBulkhead(BulkheadConfig config) {
+        this(config, System::nanoTime);
+    }
+
+    TenantBulkhead(BulkheadConfig config, LongSupplier nanoClock) {
+        this.config = config;
+        this.nanoClock = nanoClock;
+        this.overflowAvailable = config.getOverflowPermits();
+        this.lastEviction = nanoClock.getAsLong();
+    }
+
+    /**
+     * Start the request once the tenant has a permit. The permit is released when the request's
+     * future completes. Fails with CONCURRENCY_LIMIT_EXCEEDED if the tenant's queue is full, and
+     * with UNABLE_TO_MAKE_REQUEST if the bulkhead has been closed.
+     */
+    <T> CompletableFuture<T> submit(String tenantId, Supplier<CompletableFuture<T>> request) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Partition partition;
+        Permit permit = null;
+        synchronized (this) {
+            if (closed) {
+                result.completeExceptionally(closedException());
+                return result;
+            }
+            long now = nanoClock.getAsLong();
+            evictIdlePartitions(now);
+            partition = partitions.computeIfAbsent(tenantId, id -> new Partition(now));
+            // Go to the back of the line if anyone for this tenant is already waiting
+            if (partition.queue.isEmpty()) {
+                permit = tryAcquire(partition);
+            }
+            if (permit == null) {
+                if (partition.queue.size() >= config.getMaxQueuedPerTenant()) {
+                    partition.rejected++;
+                    result.completeExceptionally(new TspServiceException(
+                            TenantSecurityErrorCodes.CONCURRENCY_LIMIT_EXCEEDED, 0,
+                            String.format("Too many requests are queued for tenant '%s'.",
+                                    tenantId)));
+                    return result;
+                }
+                Partition owner = partition;
+                Waiter waiter =
+                        new Waiter(now, granted -> start(owner, granted, request, result), result);
+                partition.queue.add(waiter);
+                if (partition.queue.size() == 1) {
+                    overflowTurns.add(partition);
+                }
+                result.whenComplete((value, error) -> {
+                    if (result.isCancelled()) {
+                        remove(owner, waiter);
+                    }
+                });
+                return result;
+            }
+        }
+        Partition owner = partition;
+        Permit granted = permit;
+        run(() -> start(owner, granted, request, result));
+        return result;
+    }
+
+    /**
+     * Fail every request still waiting for a permit and any submitted from now on. Requests already
+     * in flight are left to finish.
+     */
+    void close() {
+        ArrayDeque<Waiter> waiting = new ArrayDeque<>();
+        synchronized (this) {
+            closed = true;
+            for (Partition partition : partitions.values()) {
+                waiting.addAll(partition.queue);
+                partition.queue.clear();
+            }
+            overflowTurns.clear();
+        }
+        for (Waiter waiter : waiting) {
+            waiter.result.completeExceptionally(closedException());
+        }
+    }
+
+    /**
+     * Get the current counters for the tenant.
+     */
+    synchronized BulkheadStats getStats(String tenantId) {
+        Partition partition = partitions.get(tenantId);
+        if (partition == null) {
+            return new BulkheadStats(0, 0, 0, 0, 0, 0);
+        }
+        return new BulkheadStats(partition.reservedInUse + partition.overflowInUse,
+                partition.queue.size(), partition.queued, partition.rejected,
+                partition.totalWaitNanos, partition.maxWaitNanos);
+    }
+
+    private Permit tryAcquire(Partition partition) {
+        if (partition.reservedInUse < config.getPermitsPerTenant()) {
+            partition.reservedInUse++;
+            return Permit.RESERVED;
+        }
+        if (overflowAvailable > 0) {
+            overflowAvailable--;
+            partition.overflowInUse++;
+            return Permit.OVERFLOW;
+        }
+        return null;
+    }
+
+    /**
+     * Take a cancelled request out of its tenant's queue, if it's still waiting.
+     */
+    private synchronized void remove(Partition partition, Waiter waiter) {
+        if (partition.queue.remove(waiter) && partition.queue.isEmpty()) {
+            overflowTurns.remove(partition);
+            if (partition.isEmpty()) {
+                partition.idleSince = nanoClock.getAsLong();
+            }
+        }
+    }
+
+    /**
+     * Forget the tenants which have had nothing in flight or queued for a while. Looks at most once
+     * per idle period. Must hold the lock.
+     */
+    private void evictIdlePartitions(long now) {
+        if (now - lastEviction < IDLE_PARTITION_NANOS) {
+            return;
+        }
+        lastEviction = now;
+        partitions.values().removeIf(partition -> partition.isEmpty()
+                && now - partition.idleSince >= IDLE_PARTITION_NANOS);
+    }
+
+    private static TspServiceException closedException() {
+        return new TspServiceException(TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, 0,
+                "Tenant Security Client has been closed.");
+    }
+
+    private <T> void start(Partition partition, Permit permit,
+            Supplier<CompletableFuture<T>> request, CompletableFuture<T> result) {
+        if (result.isDone()) {
+            // Cancelled after being handed a permit, so pass the permit on
+            release(partition, permit);
+            return;
+        }
+        CompletableFuture<T> started;
+        try {
+            started = request.get();
+        } catch (RuntimeException e) {
+            started = new CompletableFuture<>();
+            started.completeExceptionally(e);
+        }
+        CompletableFutures.propagateCancellation(result, started);
+        started.whenComplete((value, error) -> {
+            release(partition, permit);
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+    }
+
+    private void release(Partition partition, Permit permit) {
+        Waiter next = null;
+        synchronized (this) {
+            if (permit == Permit.RESERVED) {
+                if (partition.queue.isEmpty()) {
+                    partition.reservedInUse--;
+                } else {
+                    // Hand the permit straight to the tenant's next request
+                    next = poll(partition);
+                    if (partition.queue.isEmpty()) {
+                        overflowTurns.remove(partition);
+                    }
+                }
+            } else {
+                partition.overflowInUse--;
+                Partition turn = overflowTurns.poll();
+                if (turn == null) {
+                    overflowAvailable++;
+                } else {
+                    next = poll(turn);
+                    turn.overflowInUse++;
+                    if (!turn.queue.isEmpty()) {
+                        overflowTurns.add(turn);
+                    }
+                }
+            }
+            if (partition.isEmpty()) {
+                partition.idleSince = nanoClock.getAsLong();
+            }
+        }
+        if (next != null) {
+            Waiter waiter = next;
+            run(() -> waiter.start.accept(permit));
+        }
+    }
+
+    // Must hold the lock
+    private Waiter poll(Partition partition) {
+        Waiter waiter = partition.queue.poll();
+        long waited = nanoClock.getAsLong() - waiter.enqueuedAt;
+        partition.queued++;
+        partition.totalWaitNanos += waited;
+        partition.maxWaitNanos = Math.max(partition.maxWaitNanos, waited);
+        return waiter;
+    }
+
+    private void run(Runnable task) {
+        ArrayDeque<Runnable> pending = starting.get();
+        if (pending != null) {
+            pending.add(task);
+            return;
+        }
+        pending = new ArrayDeque<>();
+        starting.set(pending);
+        try {
+            for (Runnable next = task; next != null; next = pending.poll()) {
+                next.run();
+            }
+        } finally {
+            starting.remove();
+        }
+    }
+}
@@ -2,19 +2,33 @@ package com.ironcorelabs.tenantsecurity.kms.v1;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.security.Security;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import javax.crypto.Cipher;
-import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import com.ironcorelabs.tenantsecurity.kms.v1.exception.TenantSecurityException;
 import com.ironcorelabs.tenantsecurity.logdriver.v1.EventMetadata;
@@ -27,21 +41,58 @@ import com.ironcorelabs.tenantsecurity.utils.CompletableFutures;
  * @author IronCore Labs
  */
 public final class TenantSecurityClient implements Closeable {
-    private static final String AES_ALGO = "AES/GCM/NoPadding";
-    private static final int IV_BYTE_LENGTH = 12;
-    private static final int GCM_TAG_BIT_LENGTH = 128;
-    // the size of the fixed length portion of the header (version, magic, size)
-    private static final int DOCUMENT_HEADER_META_LENGTH = 7;
-    private static final byte CURRENT_DOCUMENT_HEADER_VERSION = 3;
-    private static final byte[] DOCUMENT_MAGIC = {73, 82, 79, 78}; // bytes for ASCII IRON
-                                                                   // characters
     private final SecureRandom secureRandom;
 
     // Use fixed size thread pool for CPU bound operations (crypto ops). Defaults to
-    // CPU-cores but configurable on construction.
-    private ExecutorService encryptionExecutor;
+    // CPU-cores but configurable on construction. All crypto work runs here or on the calling
+    // thread, never on the common ForkJoinPool.
+    private final ExecutorService encryptionExecutor;
+    // Whether encryptionExecutor was created by the client and should be shut down on close
+    private final boolean ownsEncryptionExecutor;
+    // Runs tasks on encryptionExecutor, recording how long each waited if metrics are enabled
+    private final Executor cryptoTaskExecutor;
+    // Where measurements are recorded. ClientMetrics.NONE if not enabled.
+    private final ClientMetrics metrics;
 
-    private TenantSecurityRequest encryptionService;
+    private final TenantSecurityRequest encryptionService;
+    // Whether the transport was created by the client and should be closed with it
+    private final boolean ownsTransport;
+    // Retries transient request failures. Null if not enabled.
+    private final Retrier retrier;
+    // Circuit breakers and adaptive concurrency limit around TSP requests. Null if not enabled.
+    private final RequestGuard requestGuard;
+    // Per-tenant partitions of requests in flight to the TSP. Null if not enabled.
+    private final TenantBulkhead bulkhead;
+
+    // Default random number generator, created on first use and shared across clients
+    private static SecureRandom sharedSecureRandom;
+
+    static {
+        // Update the crypto policy to allow us to use 256 bit AES keys. This is a JVM wide
+        // setting, so it only needs to be set once rather than by every client.
+        Security.setProperty("crypto.policy", "unlimited");
+    }
+
+    // Splits the per-field crypto of each call between the calling thread and encryptionExecutor.
+    private final FieldWorkSplitter fieldWorkSplitter;
+
+    // Optional cache of unwrapped DEKs along with the reporting of cached accesses and the thread
+    // that periodically flushes those reports and removes expired keys. All null if not enabled.
+    private final DekCache dekCache;
+    private final CachedKeyAccessReporter cachedKeyAccessReporter;
+    private final ScheduledExecutorService dekCacheMaintenanceExecutor;
+    // How long close waits for the last cached access reports to be sent
+    private static final long ACCESS_REPORT_FLUSH_TIMEOUT_MILLIS = 10000;
+
+    // Optional per-tenant pools of pre-generated keys used by encrypt. Null if not enabled.
+    private final DekPool dekPool;
+    private final ScheduledExecutorService dekPoolMaintenanceExecutor;
+
+    // Optional coalescing of single wrap/unwrap requests into batch requests, along with the
+    // thread that sends each batch when its window closes. All null if not enabled.
+    private final RequestCoalescer<Void, WrappedDocumentKey> wrapCoalescer;
+    private final RequestCoalescer<String, UnwrappedDocumentKey> unwrapCoalescer;
+    private final ScheduledExecutorService coalescingExecutor;
 
     /**
      * Default size of web request thread pool. Value value is 25.
@@ -54,6 +105,18 @@ public final class TenantSecurityClient implements Closeable {
      */
     public static int DEFAULT_AES_THREADPOOL_SIZE = Runtime.getRuntime().availableProcessors();
 
+    /**
+     * Default read and connect timeout for requests to the Tenant Security Proxy, in ms. Value is
+     * 20 seconds.
+     */
+    public static int DEFAULT_TIMEOUT = 20000;
+
+    /**
+     * Default size at which a field is encrypted/decrypted on its own thread rather than together
+     * with other small fields, in bytes. Value is 32 KiB.
+     */
+    public static int DEFAULT_PARALLEL_FIELD_THRESHOLD = 32 * 1024;
+
     /**
      * Constructor for TenantSecurityKMSClient class that uses the SecureRandom
      * NativePRNGNonBlocking instance for random number generation.
@@ -63,8 +126,7 @@ public final class TenantSecurityClient implements Closeable {
      * @throws Exception If the provided domain is invalid.
      */
     public TenantSecurityClient(String tspDomain, String apiKey) throws Exception {
-        this(tspDomain, apiKey, DEFAULT_REQUEST_THREADPOOL_SIZE, DEFAULT_AES_THREADPOOL_SIZE,
-                SecureRandom.getInstance("NativePRNGNonBlocking"));
+        this(builder(tspDomain, apiKey));
     }
 
     /**
@@ -80,8 +142,8 @@ public final class TenantSecurityClient implements Closeable {
      */
     public TenantSecurityClient(String tspDomain, String apiKey, int requestThreadSize,
             int aesThreadSize) throws Exception {
-        this(tspDomain, apiKey, requestThreadSize, aesThreadSize,
-                SecureRandom.getInstance("NativePRNGNonBlocking"));
+        this(builder(tspDomain, apiKey).requestThreadSize(requestThreadSize)
+                .aesThreadSize(aesThreadSize));
     }
 
     /**
@@ -99,8 +161,8 @@ public final class TenantSecurityClient implements Closeable {
      */
     public TenantSecurityClient(String tspDomain, String apiKey, int requestThreadSize,
             int aesThreadSize, int timeout) throws Exception {
-        this(tspDomain, apiKey, requestThreadSize, aesThreadSize,
-                SecureRandom.getInstance("NativePRNGNonBlocking"), timeout);
+        this(builder(tspDomain, apiKey).requestThreadSize(requestThreadSize)
+                .aesThreadSize(aesThreadSize).timeout(timeout));
     }
 
     /**
@@ -118,7 +180,7 @@ public final class TenantSecurityClient implements Closeable {
      */
     public TenantSecurityClient(String tspDomain, String apiKey, int requestThreadSize,
             int aesThreadSize, SecureRandom randomGen) throws Exception {
-        this(tspDomain, apiKey, requestThreadSize, aesThreadSize, randomGen, 20000);
+        this(tspDomain, apiKey, requestThreadSize, aesThreadSize, randomGen, DEFAULT_TIMEOUT);
     }
 
     /**
@@ -137,198 +199,832 @@ public final class TenantSecurityClient implements Closeable {
      */
     public TenantSecurityClient(String tspDomain, String apiKey, int requestThreadSize,
             int aesThreadSize, SecureRandom randomGen, int timeout) throws Exception {
+        this(builder(tspDomain, apiKey).requestThreadSize(requestThreadSize)
+                .aesThreadSize(aesThreadSize).randomGen(randomGen).timeout(timeout));
+    }
+
+    private TenantSecurityClient(Builder builder) throws Exception {
+        String tspDomain = builder.tspDomain;
+        String apiKey = builder.apiKey;
+        int aesThreadSize = builder.aesThreadSize;
+        DekCacheConfig dekCacheConfig = builder.dekCacheConfig;
+        DekPoolConfig dekPoolConfig = builder.dekPoolConfig;
+        RequestCoalescingConfig coalescingConfig = builder.coalescingConfig;
         // Use the URL class to validate the form of the provided TSP domain URL
         new URL(tspDomain);
         if (apiKey == null || apiKey.isEmpty()) {
             throw new IllegalArgumentException("No value provided for apiKey!");
         }
-        if (randomGen == null) {
-            throw new IllegalArgumentException("No value provided for random number generator!");
-        }
-        if (requestThreadSize < 1) {
-            throw new IllegalArgumentException(
-                    "Value provided for request threadpool size must be greater than 0!");
-        }
         if (aesThreadSize < 1) {
             throw new IllegalArgumentException(
                     "Value provided for AES threadpool size must be greater than 0!");
         }
 
-        this.encryptionExecutor = Executors.newFixedThreadPool(aesThreadSize);
+        if (builder.parallelFieldThreshold < 1) {
+            throw new IllegalArgumentException(
+                    "Value provided for parallel field threshold must be greater than 0!");
+        }
+        // Get the RNG before any threads are started, so a JVM without NativePRNGNonBlocking fails
+        // here without leaking them
+        this.secureRandom =
+                builder.randomGen == null ? defaultSecureRandom() : builder.randomGen;
 
-        this.encryptionService =
-                new TenantSecurityRequest(tspDomain, apiKey, requestThreadSize, timeout);
+        this.retrier = builder.retryConfig == null ? null : new Retrier(builder.retryConfig);
+        this.requestGuard =
+                builder.circuitBreakerConfig == null && builder.adaptiveLimitConfig == null
+                        ? null
+                        : new RequestGuard(builder.circuitBreakerConfig,
+                                builder.adaptiveLimitConfig);
+        this.bulkhead =
+                builder.bulkheadConfig == null ? null : new TenantBulkhead(builder.bulkheadConfig);
+        this.metrics = builder.metrics;
+        if (builder.sharedTransport != null) {
+            this.encryptionService = new TenantSecurityRequest(tspDomain, apiKey,
+                    builder.sharedTransport.getTransport(), this.retrier, this.requestGuard,
+                    this.bulkhead, this.metrics);
+            this.ownsTransport = false;
+        } else {
+            this.encryptionService = new TenantSecurityRequest(tspDomain, apiKey,
+                    builder.transportBuilder.buildTransport(), this.retrier, this.requestGuard,
+                    this.bulkhead, this.metrics);
+            this.ownsTransport = true;
+        }
 
-        // Update the crypto policy to allow us to use 256 bit AES keys
-        Security.setProperty("crypto.policy", "unlimited");
-        this.secureRandom = randomGen;
+        if (builder.cryptoExecutor != null) {
+            this.encryptionExecutor = builder.cryptoExecutor;
+            this.ownsEncryptionExecutor = false;
+        } else {
+            this.encryptionExecutor = Executors.newFixedThreadPool(aesThreadSize);
+            this.ownsEncryptionExecutor = true;
+        }
+        this.cryptoTaskExecutor = this.metrics == ClientMetrics.NONE ? this.encryptionExecutor
+                : timedExecutor(this.encryptionExecutor, this.metrics);
+        this.fieldWorkSplitter = new FieldWorkSplitter(this.cryptoTaskExecutor, aesThreadSize,
+                builder.parallelFieldThreshold);
+
+        if (dekCacheConfig != null) {
+            this.dekCache = new DekCache(dekCacheConfig);
+            this.cachedKeyAccessReporter = new CachedKeyAccessReporter(this.encryptionService);
+            this.dekCacheMaintenanceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "tenant-security-dek-cache");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = dekCacheConfig.getEventFlushIntervalMillis();
+            this.dekCacheMaintenanceExecutor.scheduleWithFixedDelay(() -> {
+                this.dekCache.evictExpired();
+                this.cachedKeyAccessReporter.flush();
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.dekCache = null;
+            this.cachedKeyAccessReporter = null;
+            this.dekCacheMaintenanceExecutor = null;
+        }
+
+        if (dekPoolConfig != null) {
+            this.dekPool = new DekPool(dekPoolConfig, this.encryptionService::batchWrapKeys);
+            this.dekPoolMaintenanceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "tenant-security-dek-pool");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Keys are checked for age when taken, so this only bounds how long an idle tenant's
+            // expired keys are held, to at most twice the max age
+            long interval = dekPoolConfig.getMaxKeyAgeMillis();
+            this.dekPoolMaintenanceExecutor.scheduleWithFixedDelay(this.dekPool::evictExpired,
+                    interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.dekPool = null;
+            this.dekPoolMaintenanceExecutor = null;
+        }
+
+        if (coalescingConfig != null) {
+            this.coalescingExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "tenant-security-request-coalescer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.wrapCoalescer = new RequestCoalescer<>(coalescingConfig, this.coalescingExecutor,
+                    (requests, metadata) -> this.encryptionService
+                            .batchWrapKeys(requests.keySet(), metadata),
+                    WrappedDocumentKey::destroy);
+            this.unwrapCoalescer = new RequestCoalescer<>(coalescingConfig,
+                    this.coalescingExecutor, this.encryptionService::batchUnwrapKeys,
+                    UnwrappedDocumentKey::destroy);
+        } else {
+            this.coalescingExecutor = null;
+            this.wrapCoalescer = null;
+            this.unwrapCoalescer = null;
+        }
+    }
+
+    /**
+     * Get the NativePRNGNonBlocking instance shared by every client that wasn't given its own
+     * SecureRandom. It is thread safe, so there's no need to create one per client.
+     */
+    private static synchronized SecureRandom defaultSecureRandom() throws Exception {
+        if (sharedSecureRandom == null) {
+            sharedSecureRandom = SecureRandom.getInstance("NativePRNGNonBlocking");
+        }
+        return sharedSecureRandom;
     }
 
     public void close() throws IOException {
-        this.encryptionService.close();
-        this.encryptionExecutor.shutdown();
+        if (this.coalescingExecutor != null) {
+            // Send anything still waiting on its window before the request pool is shut down
+            this.wrapCoalescer.close();
+            this.unwrapCoalescer.close();
+            this.coalescingExecutor.shutdown();
+        }
+        if (this.dekCache != null) {
+            this.dekCacheMaintenanceExecutor.shutdown();
+            // Report any outstanding cached accesses and wait for them to be sent before the
+            // request pool is shut down. Reporting is best effort, so give up after a while.
+            try {
+                this.cachedKeyAccessReporter.flush().get(ACCESS_REPORT_FLUSH_TIMEOUT_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                // Dropped
+            }
+            this.dekCache.clear();
+        }
+        if (this.dekPool != null) {
+            this.dekPoolMaintenanceExecutor.shutdown();
+            this.dekPool.close();
+        }
+        if (this.bulkhead != null) {
+            // Fail requests still waiting for a tenant permit rather than leaving them hanging
+            this.bulkhead.close();
+        }
+        if (this.retrier != null) {
+            this.retrier.close();
+        }
+        if (this.ownsTransport) {
+            this.encryptionService.close();
+        }
+        if (this.ownsEncryptionExecutor) {
+            this.encryptionExecutor.shutdown();
+        }
     }
 
     /**
-     * Utility method to create a new client instance which returns a CompletableFuture to help
-     * handle error situations which can occur on class construction.
+     * Create a builder for a TenantSecurityClient. Allows for setting the same options as the
+     * constructors along with options that are only available through the builder.
      *
      * @param tspDomain Domain where the Tenant Security Proxy is running.
      * @param apiKey    Key to use for requests to the Tenant Security Proxy.
-     * @return CompletableFuture that resolves in a instance of the TenantSecurityKMSClient class.
+     * @return Builder which can be used to configure and create a client.
      */
-    public static CompletableFuture<TenantSecurityClient> create(String tspDomain, String apiKey) {
-        return CompletableFutures
-                .tryCatchNonFatal(() -> new TenantSecurityClient(tspDomain, apiKey));
+    public static Builder builder(String tspDomain, String apiKey) {
+        return new Builder(tspDomain, apiKey);
+    }
+
+    /**
+     * Builder for TenantSecurityClient. Any option that isn't set uses the same default as the
+     * constructors.
+     */
+    public static final class Builder {
+        private final String tspDomain;
+        private final String apiKey;
+        // Options for the transport this client creates if it isn't given a shared one
+        private final SharedTransport.Builder transportBuilder = SharedTransport.builder();
+        private SharedTransport sharedTransport;
+        private int aesThreadSize = DEFAULT_AES_THREADPOOL_SIZE;
+        private SecureRandom randomGen;
+        private DekCacheConfig dekCacheConfig;
+        private DekPoolConfig dekPoolConfig;
+        private RequestCoalescingConfig coalescingConfig;
+        private int parallelFieldThreshold = DEFAULT_PARALLEL_FIELD_THRESHOLD;
+        private ExecutorService cryptoExecutor;
+        private RetryConfig retryConfig;
+        private CircuitBreakerConfig circuitBreakerConfig;
+        private AdaptiveLimitConfig adaptiveLimitConfig;
+        private BulkheadConfig bulkheadConfig;
+        private ClientMetrics metrics = ClientMetrics.NONE;
+
+        private Builder(String tspDomain, String apiKey) {
+            this.tspDomain = tspDomain;
+            this.apiKey = apiKey;
+        }
+
+        /**
+         * @param requestThreadSize Number of threads to use for fixed-size web request thread
+         *                          pool.
+         * @return This builder.
+         */
+        public Builder requestThreadSize(int requestThreadSize) {
+            this.transportBuilder.requestThreadSize(requestThreadSize);
+            return this;
+        }
+
+        /**
+         * @param aesThreadSize Number of threads to use for fixed-size AES operations threadpool.
+         * @return This builder.
+         */
+        public Builder aesThreadSize(int aesThreadSize) {
+            this.aesThreadSize = aesThreadSize;
+            return this;
+        }
+
+        /**
+         * @param randomGen Instance of SecureRandom to use for PRNG when performing encryption
+         *                  operations. Defaults to the NativePRNGNonBlocking instance.
+         * @return This builder.
+         */
+        public Builder randomGen(SecureRandom randomGen) {
+            if (randomGen == null) {
+                throw new IllegalArgumentException(
+                        "No value provided for random number generator!");
+            }
+            this.randomGen = randomGen;
+            return this;
+        }
+
+        /**
+         * @param timeout Request to TSP read and connect timeout in ms.
+         * @return This builder.
+         */
+        public Builder timeout(int timeout) {
+            this.transportBuilder.timeout(timeout);
+            return this;
+        }
+
+        /**
+         * @param connectTimeout Time allowed to open a connection to the TSP, in ms. Defaults to
+         *                       the timeout.
+         * @return This builder.
+         */
+        public Builder connectTimeout(int connectTimeout) {
+            this.transportBuilder.connectTimeout(connectTimeout);
+            return this;
+        }
+
+        /**
+         * @param readTimeout Time allowed to wait for the TSP to respond once a request is sent, in
+         *                    ms. Defaults to the timeout.
+         * @return This builder.
+         */
+        public Builder readTimeout(int readTimeout) {
+            this.transportBuilder.readTimeout(readTimeout);
+            return this;
+        }
+
+        /**
+         * Enable the client side cache of unwrapped document keys. Disabled by default.
+         *
+         * @param dekCacheConfig Size, TTL and reporting settings for the cache.
+         * @return This builder.
+         */
+        public Builder dekCache(DekCacheConfig dekCacheConfig) {
+            this.dekCacheConfig = dekCacheConfig;
+            return this;
+        }
+
+        /**
+         * Enable the per-tenant pools of pre-generated document keys used by encrypt. Disabled by
+         * default.
+         *
+         * @param dekPoolConfig Pool size, refill threshold and max key age settings for the pools.
+         * @return This builder.
+         */
+        public Builder dekPool(DekPoolConfig dekPoolConfig) {
+            this.dekPoolConfig = dekPoolConfig;
+            return this;
+        }
+
+        /**
+         * Enable coalescing of concurrent single document wrap and unwrap requests into batch
+         * requests to the Tenant Security Proxy. Disabled by default.
+         *
+         * @param coalescingConfig Window and max batch size settings.
+         * @return This builder.
+         */
+        public Builder requestCoalescing(RequestCoalescingConfig coalescingConfig) {
+            this.coalescingConfig = coalescingConfig;
+            return this;
+        }
+
+        /**
+         * Send requests to the Tenant Security Proxy with a non-blocking HTTP client instead of
+         * the default fixed-size web request thread pool. When set, the request thread size is not
+         * used.
+         *
+         * @param asyncTransportConfig Max in flight requests and I/O thread settings.
+         * @return This builder.
+         */
+        public Builder asyncTransport(AsyncTransportConfig asyncTransportConfig) {
+            this.transportBuilder.asyncTransport(asyncTransportConfig);
+            return this;
+        }
+
+        /**
+         * Close pooled connections to the Tenant Security Proxy once they have been open this
+         * long, so that they are spread back out across TSP instances behind a load balancer. Not
+         * used by the HTTP/2 transport. Defaults to 0, which keeps connections open for as long as
+         * the TSP allows.
+         *
+         * @param connectionTimeToLive Max age of a pooled connection in ms.
+         * @return This builder.
+         */
+        public Builder connectionTimeToLive(long connectionTimeToLive) {
+            this.transportBuilder.connectionTimeToLive(connectionTimeToLive);
+            return this;
+        }
+
+        /**
+         * Close pooled connections to the Tenant Security Proxy which have been idle this long.
+         * Not used by the HTTP/2 transport. Defaults to 0, which uses the Keep-Alive header sent
+         * by the TSP and otherwise keeps idle connections open indefinitely.
+         *
+         * @param keepAlive Max idle time of a pooled connection in ms.
+         * @return This builder.
+         */
+        public Builder keepAlive(long keepAlive) {
+            this.transportBuilder.keepAlive(keepAlive);
+            return this;
+        }
+
+        /**
+         * Make requests to the Tenant Security Proxy with a transport shared with other clients
+         * instead of creating a new one. When set, the request thread size, timeout, connection
+         * and I/O options of this builder are not used. The transport is not closed when the
+         * client is closed.
+         *
+         * @param sharedTransport Transport created with SharedTransport.builder().
+         * @return This builder.
+         */
+        public Builder transport(SharedTransport sharedTransport) {
+            if (sharedTransport == null) {
+                throw new IllegalArgumentException("No value provided for shared transport!");
+            }
+            this.sharedTransport = sharedTransport;
+            return this;
+        }
+
+        /**
+         * Retry requests to the Tenant Security Proxy which fail with a transient error, with
+         * jittered exponential backoff and a budget that limits retries to a share of traffic.
+         * Batch requests only retry the documents which failed. Disabled by default.
+         *
+         * @param retryConfig Attempt, backoff and budget settings.
+         * @return This builder.
+         */
+        public Builder retry(RetryConfig retryConfig) {
+            this.retryConfig = retryConfig;
+            return this;
+        }
+
+        /**
+         * Put circuit breakers in front of the Tenant Security Proxy, one for the TSP as a whole
+         * and one per tenant. While a breaker is open, requests it covers fail immediately with
+         * CIRCUIT_BREAKER_OPEN instead of waiting out the request timeout, so a degraded TSP or
+         * tenant KMS doesn't tie up the web request threads. Disabled by default.
+         *
+         * @param circuitBreakerConfig Failure rate and open duration settings.
+         * @return This builder.
+         */
+        public Builder circuitBreaker(CircuitBreakerConfig circuitBreakerConfig) {
+            this.circuitBreakerConfig = circuitBreakerConfig;
+            return this;
+        }
+
+        /**
+         * Limit the requests in flight to the Tenant Security Proxy with a limit that grows while
+         * requests are fast and shrinks when they are slow or fail. Requests over the limit fail
+         * immediately with CONCURRENCY_LIMIT_EXCEEDED. Disabled by default.
+         *
+         * @param adaptiveLimitConfig Starting, min and max limit and latency threshold settings.
+         * @return This builder.
+         */
+        public Builder adaptiveConcurrencyLimit(AdaptiveLimitConfig adaptiveLimitConfig) {
+            this.adaptiveLimitConfig = adaptiveLimitConfig;
+            return this;
+        }
+
+        /**
+         * Partition requests in flight to the Tenant Security Proxy by tenant, so a tenant whose
+         * KMS is slow can't take every request slot from the others. Each tenant gets reserved
+         * permits and shares an overflow pool, and requests beyond that wait in a per-tenant queue.
+         * Disabled by default.
+         *
+         * @param bulkheadConfig Reserved, overflow and queue size settings.
+         * @return This builder.
+         */
+        public Builder tenantBulkheads(BulkheadConfig bulkheadConfig) {
+            this.bulkheadConfig = bulkheadConfig;
+            return this;
+        }
+
+        /**
+         * Fields at least this large are encrypted/decrypted on their own thread. Smaller fields
+         * are grouped together into units of about this size so that documents with many small
+         * fields don't pay thread hand-off costs for each one. Defaults to 32 KiB.
+         *
+         * @param parallelFieldThreshold Size in bytes.
+         * @return This builder.
+         */
+        public Builder parallelFieldThreshold(int parallelFieldThreshold) {
+            this.parallelFieldThreshold = parallelFieldThreshold;
+            return this;
+        }
+
+        /**
+         * Run all encryption and decryption work on the provided executor instead of a fixed-size
+         * pool created by the client. The AES thread size is still used as the number of threads
+         * a single call spreads its fields across. The executor is not shut down when the client
+         * is closed.
+         *
+         * @param cryptoExecutor Executor for CPU bound crypto work.
+         * @return This builder.
+         */
+        public Builder cryptoExecutor(ExecutorService cryptoExecutor) {
+            if (cryptoExecutor == null) {
+                throw new IllegalArgumentException("No value provided for crypto executor!");
+            }
+            this.cryptoExecutor = cryptoExecutor;
+            return this;
+        }
+
+        /**
+         * Make the blocking requests to the Tenant Security Proxy on the provided executor instead
+         * of a fixed-size pool created by the client. The request thread size is still used as the
+         * size of the connection pool. Not used by the asyncTransport, which does its I/O on its
+         * own I/O threads. The executor is not shut down when the client is closed.
+         *
+         * @param ioExecutor Executor for blocking requests to the Tenant Security Proxy.
+         * @return This builder.
+         */
+        public Builder ioExecutor(ExecutorService ioExecutor) {
+            this.transportBuilder.ioExecutor(ioExecutor);
+            return this;
+        }
+
+        /**
+         * On JDK 21 and later, make each blocking request to the Tenant Security Proxy on its own
+         * virtual thread instead of on the fixed-size web request thread pool, with at most
+         * maxConcurrentRequests in flight at once. This allows many more requests to be waiting
+         * on the TSP without a platform thread for each. On older JDKs a fixed-size pool of
+         * maxConcurrentRequests platform threads is used instead. When set, the request thread
+         * size is not used. Ignored if asyncTransport or ioExecutor is set.
+         *
+         * @param maxConcurrentRequests Max requests in flight to the TSP.
+         * @return This builder.
+         */
+        public Builder virtualThreads(int maxConcurrentRequests) {
+            this.transportBuilder.virtualThreads(maxConcurrentRequests);
+            return this;
+        }
+
+        /**
+         * Record request latency, queue wait times, batch sizes, errors, AES throughput and
+         * connection pool usage. See MicrometerClientMetrics to record them to a Micrometer
+         * MeterRegistry. Disabled by default, in which case nothing is measured.
+         *
+         * @param metrics Where to record measurements.
+         * @return This builder.
+         */
+        public Builder metrics(ClientMetrics metrics) {
+            if (metrics == null) {
+                throw new IllegalArgumentException("No value provided for metrics!");
+            }
+            this.metrics = metrics;
+            this.transportBuilder.metrics(metrics);
+            return this;
+        }
+
+        /**
+         * Create the configured client.
+         *
+         * @return New TenantSecurityClient.
+         * @throws Exception If the provided domain is invalid or any option is invalid.
+         */
+        public TenantSecurityClient build() throws Exception {
+            return new TenantSecurityClient(this);
+        }
     }
 
     /**
-     * Generate a header to mark the encrypted document as ours. Right now this is all constant; in
-     * the future this will contain a protobuf bytes header of variable length.
+     * Get the current counters of the client side DEK cache. All counters are zero if the cache
+     * isn't enabled.
+     *
+     * @return Hit, miss and eviction counts along with the current cache size.
      */
-    private static byte[] generateHeader() {
-        final byte headerVersion = CURRENT_DOCUMENT_HEADER_VERSION;
-        final byte[] magic = DOCUMENT_MAGIC;
-        final byte[] headerSize = {(byte) 0, (byte) 0};
-        return ByteBuffer.allocate(DOCUMENT_HEADER_META_LENGTH).put(headerVersion).put(magic)
-                .put(headerSize).array();
+    public DekCacheStats getDekCacheStats() {
+        return this.dekCache == null ? new DekCacheStats(0, 0, 0, 0) : this.dekCache.getStats();
     }
 
     /**
-     * Given the provided document bytes and an AES key, encrypt and return the encrypted bytes.
+     * Get the current counters of the pre-generated DEK pools. All counters are zero if the pools
+     * aren't enabled.
+     *
+     * @return Pool hit, exhaustion, expiry and refill failure counts along with the current number
+     *         of pooled keys.
      */
-    private CompletableFuture<byte[]> encryptBytes(byte[] document, byte[] documentKey) {
-        byte[] iv = new byte[IV_BYTE_LENGTH];
-        secureRandom.nextBytes(iv);
+    public DekPoolStats getDekPoolStats() {
+        return this.dekPool == null ? new DekPoolStats(0, 0, 0, 0, 0) : this.dekPool.getStats();
+    }
 
-        return CompletableFutures.tryCatchNonFatal(() -> {
-            final Cipher cipher = Cipher.getInstance(AES_ALGO);
-            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(documentKey, "AES"),
-                    new GCMParameterSpec(GCM_TAG_BIT_LENGTH, iv));
-            byte[] encryptedBytes = cipher.doFinal(document);
-            byte[] header = generateHeader();
+    /**
+     * Get the state of the circuit breaker for the Tenant Security Proxy as a whole. Always closed
+     * if circuit breakers aren't enabled.
+     *
+     * @return Current breaker state.
+     */
+    public CircuitBreakerState getCircuitBreakerState() {
+        return this.requestGuard == null ? CircuitBreakerState.CLOSED
+                : this.requestGuard.getState();
+    }
 
-            // Store the IV at the front of the resulting encrypted data
-            return ByteBuffer.allocate(header.length + IV_BYTE_LENGTH + encryptedBytes.length)
-                    .put(header).put(iv).put(encryptedBytes).array();
-        });
+    /**
+     * Get the state of the circuit breaker for a tenant. Always closed if circuit breakers aren't
+     * enabled or no requests have been made for the tenant.
+     *
+     * @param tenantId Tenant to get the breaker state of.
+     * @return Current breaker state.
+     */
+    public CircuitBreakerState getCircuitBreakerState(String tenantId) {
+        return this.requestGuard == null ? CircuitBreakerState.CLOSED
+                : this.requestGuard.getState(tenantId);
     }
 
     /**
-     * Check that the given bytes contain 4 bytes of ASCII representing "IRON" document magic. This
-     * magic should start at index 1, after the expected header version byte.
+     * Get the current queue depth, wait time and in flight counters of a tenant's bulkhead. All
+     * counters are zero if bulkheads aren't enabled.
+     *
+     * @param tenantId Tenant to get the counters of.
+     * @return Requests in flight and waiting along with wait time totals.
      */
-    private static boolean containsIroncoreMagic(byte[] bytes) {
-        return bytes.length >= 5
-                && ByteBuffer.wrap(bytes, 1, 4).compareTo(ByteBuffer.wrap(DOCUMENT_MAGIC)) == 0;
+    public BulkheadStats getBulkheadStats(String tenantId) {
+        return this.bulkhead == null ? new BulkheadStats(0, 0, 0, 0, 0, 0)
+                : this.bulkhead.getStats(tenantId);
     }
 
     /**
-     * Multiply the header size bytes at the 5th and 6th indices to get the header size. If those
-     * bytes don't exist this will throw.
+     * Get the current usage of the connections to the Tenant Security Proxy. This is the usage of
+     * the whole transport, so it includes the requests of every client sharing it.
+     *
+     * @return Connections in use, idle and waited for along with the pool's max size.
      */
-    private static int getHeaderSize(byte[] bytes) {
-        return bytes[5] * 256 + bytes[6];
+    public ConnectionPoolStats getConnectionPoolStats() {
+        return this.encryptionService.getConnectionPoolStats();
     }
 
     /**
-     * Check if an IronCore header is present in some bytes, indicating that it is ciphertext.
+     * Get the current adaptive limit on requests in flight to the Tenant Security Proxy.
      *
-     * @param bytes bytes to be checked
+     * @return Current limit, or 0 if the adaptive limit isn't enabled.
      */
-    public static boolean isCiphertext(byte[] bytes) {
-        // Header size is variable for CMK encrypted docs depending on whether
-        // the header is present. Expect at least one byte following the header
-        // that would have been encrypted.
-        return bytes.length > DOCUMENT_HEADER_META_LENGTH
-                && bytes[0] == CURRENT_DOCUMENT_HEADER_VERSION && containsIroncoreMagic(bytes)
-                && getHeaderSize(bytes) >= 0;
+    public int getConcurrencyLimit() {
+        return this.requestGuard == null ? 0 : this.requestGuard.getConcurrencyLimit();
     }
 
     /**
-     * Parses the header off the encrypted document and returns a ByteBuffer wrapping the document
-     * bytes. Once the header contains metadata we care about, this will return a class containing
-     * the document bytes and the header.
+     * Get a new DEK/EDEK pair, taking it from the tenant's pool if pooling is enabled and falling
+     * back to a wrap request if the pool is empty.
      */
-    private static CompletableFuture<ByteBuffer> parseDocumentParts(byte[] document) {
-        return CompletableFutures.tryCatchNonFatal(() -> {
-            if (!isCiphertext(document)) {
-                throw new IllegalArgumentException(
-                        "Provided bytes were not an Ironcore encrypted document.");
+    private CompletableFuture<WrappedDocumentKey> wrapKey(DocumentMetadata metadata,
+            Deadline deadline) {
+        if (this.dekPool != null) {
+            WrappedDocumentKey pooledKey = this.dekPool.take(metadata);
+            if (pooledKey != null) {
+                return CompletableFuture.completedFuture(pooledKey);
+            }
+        }
+        if (this.wrapCoalescer != null) {
+            // The coalesced batch is shared with other callers, so the deadline can only be
+            // checked before joining it
+            return deadline != null && deadline.isExpired()
+                    ? expired("requesting a document key")
+                    : this.wrapCoalescer.submit(null, metadata);
+        }
+        return this.encryptionService.wrapKey(metadata, deadline);
+    }
+
+    private static <T> CompletableFuture<T> expired(String stage) {
+        CompletableFuture<T> expired = new CompletableFuture<>();
+        expired.completeExceptionally(Deadline.exceeded(stage));
+        return expired;
+    }
+
+    private <K, T> CompletableFuture<T> afterKey(CompletableFuture<K> keyRequest,
+            Consumer<? super K> destroy, Function<? super K, ? extends T> crypto) {
+        return afterKey(keyRequest, cryptoTaskExecutor, destroy, crypto);
+    }
+
+    /**
+     * Run the crypto for an operation on the executor once its key request completes, then zero
+     * the keys with destroy whether or not the crypto succeeded. Cancelling the returned future
+     * cancels the key request too, which skips the crypto and drops or aborts the request to the
+     * Tenant Security Proxy. If the keys arrive anyway they are zeroed, but only if the crypto
+     * never started; a crypto task that is already running keeps its keys until it finishes.
+     */
+    static <K, T> CompletableFuture<T> afterKey(CompletableFuture<K> keyRequest,
+            Executor executor, Consumer<? super K> destroy,
+            Function<? super K, ? extends T> crypto) {
+        // Claimed by whichever of the crypto task or the cancellation gets to the keys first
+        AtomicBoolean claimed = new AtomicBoolean();
+        CompletableFuture<T> result = keyRequest.thenApplyAsync(keys -> {
+            if (!claimed.compareAndSet(false, true)) {
+                throw new CancellationException();
+            }
+            try {
+                return crypto.apply(keys);
+            } finally {
+                destroy.accept(keys);
+            }
+        }, executor);
+        result.whenComplete((value, error) -> {
+            if (error instanceof CancellationException) {
+                keyRequest.thenAccept(keys -> {
+                    if (claimed.compareAndSet(false, true)) {
+                        destroy.accept(keys);
+                    }
+                });
             }
-            int totalHeaderSize = getHeaderSize(document) + DOCUMENT_HEADER_META_LENGTH;
-            int newLength = document.length - totalHeaderSize;
-            return ByteBuffer.wrap(document, totalHeaderSize, newLength);
         });
+        return CompletableFutures.propagateCancellation(result, keyRequest);
+    }
+
+    /**
+     * Wrap the executor so each task records how long it waited to start.
+     */
+    private static Executor timedExecutor(Executor executor, ClientMetrics metrics) {
+        return task -> {
+            long queuedAt = System.nanoTime();
+            executor.execute(() -> {
+                metrics.queueWait(ClientMetrics.WorkQueue.CRYPTO, System.nanoTime() - queuedAt);
+                task.run();
+            });
+        };
     }
 
     /**
-     * Given the provided encrypted document (which has an IV prepended to it) and an AES key,
-     * decrypt and return the decrypted bytes.
+     * Wrap the operation so each field records its size and how long it took, if metrics are
+     * enabled.
      */
-    private CompletableFuture<byte[]> decryptBytes(ByteBuffer encryptedDocument,
-            byte[] documentKey) {
-        byte[] iv = new byte[IV_BYTE_LENGTH];
+    private FieldWorkSplitter.FieldOperation timed(ClientMetrics.CryptoOperation operation,
+            FieldWorkSplitter.FieldOperation fieldOperation) {
+        if (this.metrics == ClientMetrics.NONE) {
+            return fieldOperation;
+        }
+        return field -> {
+            long start = System.nanoTime();
+            byte[] result = fieldOperation.apply(field);
+            this.metrics.crypto(operation, field.length, System.nanoTime() - start);
+            return result;
+        };
+    }
 
-        // Pull out the IV from the front of the encrypted data
-        encryptedDocument.get(iv);
-        byte[] encryptedBytes = new byte[encryptedDocument.remaining()];
-        encryptedDocument.get(encryptedBytes);
+    /**
+     * Unwrap the provided EDEK with the Tenant Security Proxy, coalescing the request into a batch
+     * if enabled.
+     */
+    private CompletableFuture<DocumentKey> requestUnwrapKey(String edek,
+            DocumentMetadata metadata, Deadline deadline) {
+        if (this.unwrapCoalescer == null) {
+            return this.encryptionService.unwrapKey(edek, metadata, deadline);
+        }
+        if (deadline != null && deadline.isExpired()) {
+            return expired("unwrapping the document key");
+        }
+        CompletableFuture<UnwrappedDocumentKey> coalesced =
+                this.unwrapCoalescer.submit(edek, metadata);
+        return CompletableFutures.propagateCancellation(
+                coalesced.thenApply(UnwrappedDocumentKey::getDocumentKey), coalesced);
+    }
 
-        return CompletableFutures.tryCatchNonFatal(() -> {
-            final Cipher cipher = Cipher.getInstance(AES_ALGO);
-            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(documentKey, "AES"),
-                    new GCMParameterSpec(GCM_TAG_BIT_LENGTH, iv));
-            return cipher.doFinal(encryptedBytes);
+    /**
+     * Unwrap the provided EDEK, using the DEK cache if it is enabled.
+     */
+    private CompletableFuture<DocumentKey> unwrapKey(String edek, DocumentMetadata metadata,
+            Deadline deadline) {
+        if (this.dekCache == null) {
+            return this.requestUnwrapKey(edek, metadata, deadline);
+        }
+        DocumentKey cachedDek = this.dekCache.get(metadata.getTenantId(), edek);
+        if (cachedDek != null) {
+            this.cachedKeyAccessReporter.recordAccess(metadata);
+            return CompletableFuture.completedFuture(cachedDek);
+        }
+        CompletableFuture<DocumentKey> request = this.requestUnwrapKey(edek, metadata, deadline);
+        return CompletableFutures.propagateCancellation(request.thenApply(dek -> {
+            this.dekCache.put(metadata.getTenantId(), edek, dek);
+            return dek;
+        }), request);
+    }
+
+    /**
+     * Unwrap the provided map of EDEKs, using the DEK cache if it is enabled. Only the EDEKs that
+     * aren't cached are sent to the Tenant Security Proxy.
+     */
+    private CompletableFuture<BatchUnwrappedDocumentKeys> batchUnwrapKeys(
+            Map<String, String> edeks, DocumentMetadata metadata, Deadline deadline) {
+        if (this.dekCache == null) {
+            return this.encryptionService.batchUnwrapKeys(edeks, metadata, deadline);
+        }
+        String tenantId = metadata.getTenantId();
+        Map<String, UnwrappedDocumentKey> cachedKeys = new HashMap<>();
+        Map<String, String> uncachedEdeks = new HashMap<>();
+        edeks.forEach((id, edek) -> {
+            DocumentKey cachedDek = this.dekCache.get(tenantId, edek);
+            if (cachedDek != null) {
+                this.cachedKeyAccessReporter.recordAccess(metadata);
+                cachedKeys.put(id, new UnwrappedDocumentKey(cachedDek));
+            } else {
+                uncachedEdeks.put(id, edek);
+            }
         });
+        if (uncachedEdeks.isEmpty()) {
+            return CompletableFuture.completedFuture(
+                    new BatchUnwrappedDocumentKeys(cachedKeys, new HashMap<>()));
+        }
+        CompletableFuture<BatchUnwrappedDocumentKeys> request =
+                this.encryptionService.batchUnwrapKeys(uncachedEdeks, metadata, deadline);
+        return CompletableFutures.propagateCancellation(request.thenApply(batchResponse -> {
+            batchResponse.getKeys().forEach((id, key) -> this.dekCache.put(tenantId,
+                    uncachedEdeks.get(id), key.getDocumentKey()));
+            cachedKeys.putAll(batchResponse.getKeys());
+            return new BatchUnwrappedDocumentKeys(cachedKeys, batchResponse.getFailures());
+        }), request);
+    }
+
+    /**
+     * Utility method to create a new client instance which returns a CompletableFuture to help
+     * handle error situations which can occur on class construction.
+     *
+     * @param tspDomain Domain where the Tenant Security Proxy is running.
+     * @param apiKey    Key to use for requests to the Tenant Security Proxy.
+     * @return CompletableFuture that resolves in a instance of the TenantSecurityKMSClient class.
+     */
+    public static CompletableFuture<TenantSecurityClient> create(String tspDomain, String apiKey) {
+        return CompletableFutures
+                .tryCatchNonFatal(() -> new TenantSecurityClient(tspDomain, apiKey));
+    }
+
+    /**
+     * Check if an IronCore header is present in some bytes, indicating that it is ciphertext.
+     *
+     * @param bytes bytes to be checked
+     */
+    public static boolean isCiphertext(byte[] bytes) {
+        return CryptoUtils.isCiphertext(bytes);
+    }
+
+    /**
+     * Get the number of bytes needed to hold the result of encrypting a plaintext of the provided
+     * length with encrypt(ByteBuffer, ByteBuffer, DocumentMetadata). This includes the IronCore
+     * header, IV and authentication tag, and can be used to size output buffers.
+     *
+     * @param plaintextLength Number of plaintext bytes that will be encrypted.
+     * @return Number of bytes the encrypted result will take up.
+     */
+    public static int getEncryptedLength(int plaintextLength) {
+        return CryptoUtils.encryptedLength(plaintextLength);
     }
 
     /**
      * Encrypt the provided map of fields using the provided encryption key (DEK) and return the
      * resulting encrypted fields in a map from String to encrypted bytes.
      */
-    private Map<String, byte[]> encryptFields(Map<String, byte[]> document, byte[] dek) {
-        // First, iterate over the map of documents and kick off the encrypt operation
-        // Future for each one. As part of doing this, we kick off the operation on to
-        // another thread so they run in parallel.
-        Map<String, CompletableFuture<byte[]>> encryptOps = document.entrySet().stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, entry -> {
-                    // Do this mapping in the .collect because we can just map the value. If we
-                    // tried doing this in a .map above the .collect we'd have to return another
-                    // Entry which is more complicated
-                    return CompletableFuture.supplyAsync(
-                            () -> encryptBytes(entry.getValue(), dek).join(), encryptionExecutor);
-                }));
+    private Map<String, byte[]> encryptFields(Map<String, byte[]> document, DocumentKey dek) {
+        return encryptFields(document, dek, false);
+    }
 
-        // Now iterate over our map of keys to Futures and call join on all of them. We
-        // do this in a separate stream() because if we called join() above it'd block
-        // each iteration and cause them to be run in CompletableFutures.sequence.
-        return encryptOps.entrySet().stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().join()));
+    /**
+     * Encrypt the provided map of fields using the provided encryption key (DEK), optionally using
+     * the segmented format which supports decrypting a range of each field.
+     */
+    private Map<String, byte[]> encryptFields(Map<String, byte[]> document, DocumentKey dek,
+            boolean segmented) {
+        return fieldWorkSplitter.process(document, encryptOperation(dek, segmented));
     }
 
     /**
      * Encrypt the provided map of encrypted fields using the provided DEK and return the resulting
      * decrypted fields in a map from String name to decrypted bytes.
      */
-    private Map<String, byte[]> decryptFields(Map<String, byte[]> document, byte[] dek) {
-        // First map over the encrypted document map and convert the values from
-        // encrypted bytes to Futures of decrypted bytes. Make sure each decrypt happens
-        // on it's own thread to run them in parallel.
-        Map<String, CompletableFuture<byte[]>> decryptOps = document.entrySet().stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, entry -> {
-                    // Do this mapping in the .collect because we can just map the value. If we
-                    // tried doing this in a .map above the .collect we'd have to return another
-                    // Entry which is more complicated
-                    return CompletableFuture.supplyAsync(() -> parseDocumentParts(entry.getValue())
-                            .thenCompose(encryptedDocument -> decryptBytes(encryptedDocument, dek))
-                            .join(), encryptionExecutor);
-                }));
-        // Then iterate over the map of Futures and join them to get the decrypted bytes
-        // out. Return the map with the same keys passed in, but the values will now be
-        // decrypted.
-        return decryptOps.entrySet().stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().join()));
+    private Map<String, byte[]> decryptFields(Map<String, byte[]> document, DocumentKey dek) {
+        return fieldWorkSplitter.process(document, decryptOperation(dek));
+    }
+
+    private FieldWorkSplitter.FieldOperation encryptOperation(DocumentKey dek,
+            boolean segmented) {
+        final SecretKeySpec documentKey = dek.aesKey();
+        if (segmented) {
+            return timed(ClientMetrics.CryptoOperation.ENCRYPT,
+                    field -> CryptoUtils.encryptSegmented(field, documentKey, secureRandom,
+                            CryptoUtils.DEFAULT_SEGMENT_SIZE));
+        }
+        return timed(ClientMetrics.CryptoOperation.ENCRYPT,
+                field -> CryptoUtils.encryptBytes(field, documentKey, secureRandom).join());
+    }
+
+    private FieldWorkSplitter.FieldOperation decryptOperation(DocumentKey dek) {
+        final SecretKeySpec documentKey = dek.aesKey();
+        return timed(ClientMetrics.CryptoOperation.DECRYPT,
+                field -> CryptoUtils.decryptDocument(field, documentKey).join());
     }
 
     /**
@@ -340,14 +1036,15 @@ public final class TenantSecurityClient implements Closeable {
     private ConcurrentMap<String, EncryptedDocument> encryptBatchOfDocuments(
             Map<String, Map<String, byte[]>> documents,
             ConcurrentMap<String, WrappedDocumentKey> dekList) {
-        return dekList.entrySet().parallelStream()
-                .collect(Collectors.toConcurrentMap(ConcurrentMap.Entry::getKey, dekResult -> {
-                    String documentId = dekResult.getKey();
-                    WrappedDocumentKey documentKeys = dekResult.getValue();
-                    Map<String, byte[]> encryptedDoc =
-                            encryptFields(documents.get(documentId), documentKeys.getDekBytes());
-                    return new EncryptedDocument(encryptedDoc, documentKeys.getEdek());
-                }));
+        List<FieldWorkSplitter.DocumentWork<String>> work = new ArrayList<>(dekList.size());
+        dekList.forEach((documentId, documentKeys) -> work.add(
+                new FieldWorkSplitter.DocumentWork<>(documentId, documents.get(documentId),
+                        encryptOperation(documentKeys.getDocumentKey(), false))));
+        ConcurrentMap<String, EncryptedDocument> encryptedDocuments = new ConcurrentHashMap<>();
+        fieldWorkSplitter.processAll(work)
+                .forEach((documentId, encryptedDoc) -> encryptedDocuments.put(documentId,
+                        new EncryptedDocument(encryptedDoc, dekList.get(documentId).getEdek())));
+        return encryptedDocuments;
     }
 
     /**
@@ -359,15 +1056,16 @@ public final class TenantSecurityClient implements Closeable {
     private ConcurrentMap<String, EncryptedDocument> encryptExistingBatchOfDocuments(
             Map<String, PlaintextDocument> documents,
             ConcurrentMap<String, UnwrappedDocumentKey> dekList) {
-        return dekList.entrySet().parallelStream()
-                .collect(Collectors.toConcurrentMap(ConcurrentMap.Entry::getKey, dekResult -> {
-                    String documentId = dekResult.getKey();
-                    UnwrappedDocumentKey documentKeys = dekResult.getValue();
-                    Map<String, byte[]> encryptedDoc =
-                            encryptFields(documents.get(documentId).getDecryptedFields(),
-                                    documentKeys.getDekBytes());
-                    return new EncryptedDocument(encryptedDoc, documents.get(documentId).getEdek());
-                }));
+        List<FieldWorkSplitter.DocumentWork<String>> work = new ArrayList<>(dekList.size());
+        dekList.forEach((documentId, documentKeys) -> work.add(
+                new FieldWorkSplitter.DocumentWork<>(documentId,
+                        documents.get(documentId).getDecryptedFields(),
+                        encryptOperation(documentKeys.getDocumentKey(), false))));
+        ConcurrentMap<String, EncryptedDocument> encryptedDocuments = new ConcurrentHashMap<>();
+        fieldWorkSplitter.processAll(work)
+                .forEach((documentId, encryptedDoc) -> encryptedDocuments.put(documentId,
+                        new EncryptedDocument(encryptedDoc, documents.get(documentId).getEdek())));
+        return encryptedDocuments;
     }
 
     /**
@@ -379,15 +1077,16 @@ public final class TenantSecurityClient implements Closeable {
     private ConcurrentMap<String, PlaintextDocument> decryptBatchDocuments(
             Map<String, EncryptedDocument> documents,
             ConcurrentMap<String, UnwrappedDocumentKey> dekList) {
-        return dekList.entrySet().parallelStream()
-                .collect(Collectors.toConcurrentMap(ConcurrentMap.Entry::getKey, dekResult -> {
-                    String documentId = dekResult.getKey();
-                    UnwrappedDocumentKey documentKeys = dekResult.getValue();
-                    EncryptedDocument eDoc = documents.get(documentId);
-                    Map<String, byte[]> decryptedDoc =
-                            decryptFields(eDoc.getEncryptedFields(), documentKeys.getDekBytes());
-                    return new PlaintextDocument(decryptedDoc, eDoc.getEdek());
-                }));
+        List<FieldWorkSplitter.DocumentWork<String>> work = new ArrayList<>(dekList.size());
+        dekList.forEach((documentId, documentKeys) -> work.add(
+                new FieldWorkSplitter.DocumentWork<>(documentId,
+                        documents.get(documentId).getEncryptedFields(),
+                        decryptOperation(documentKeys.getDocumentKey()))));
+        ConcurrentMap<String, PlaintextDocument> decryptedDocuments = new ConcurrentHashMap<>();
+        fieldWorkSplitter.processAll(work)
+                .forEach((documentId, decryptedDoc) -> decryptedDocuments.put(documentId,
+                        new PlaintextDocument(decryptedDoc, documents.get(documentId).getEdek())));
+        return decryptedDocuments;
     }
 
     /**
@@ -396,7 +1095,7 @@ public final class TenantSecurityClient implements Closeable {
      */
     private ConcurrentMap<String, TenantSecurityException> getBatchFailures(
             ConcurrentMap<String, ErrorResponse> failures) {
-        return failures.entrySet().parallelStream()
+        return failures.entrySet().stream()
                 .collect(Collectors.toConcurrentMap(ConcurrentMap.Entry::getKey, failure -> {
                     ErrorResponse errorResponse = failure.getValue();
                     return errorResponse.toTenantSecurityException(0);
@@ -418,10 +1117,53 @@ public final class TenantSecurityClient implements Closeable {
      */
     public CompletableFuture<EncryptedDocument> encrypt(Map<String, byte[]> document,
             DocumentMetadata metadata) {
-        return this.encryptionService.wrapKey(metadata).thenApplyAsync(newDocumentKeys -> {
-            return new EncryptedDocument(encryptFields(document, newDocumentKeys.getDekBytes()),
-                    newDocumentKeys.getEdek());
-        });
+        return encrypt(document, metadata, null);
+    }
+
+    /**
+     * Encrypt the provided document like encrypt(), giving up once the deadline passes. The
+     * deadline is checked before the key request is sent, before each retry and before the fields
+     * are encrypted.
+     *
+     * @param document Document to encrypt. Each field in the provided document will be encrypted
+     *                 with the same key.
+     * @param metadata Metadata about the document being encrypted.
+     * @param deadline Deadline for the whole operation. Fails with DEADLINE_EXCEEDED once it
+     *                 passes.
+     * @return Encrypted document and base64 encrypted document key (EDEK) wrapped in a
+     *         EncryptedResult class.
+     */
+    public CompletableFuture<EncryptedDocument> encrypt(Map<String, byte[]> document,
+            DocumentMetadata metadata, Deadline deadline) {
+        return afterKey(this.wrapKey(metadata, deadline), WrappedDocumentKey::destroy,
+                newDocumentKeys -> {
+                    Deadline.check(deadline, "encrypting the document");
+                    return new EncryptedDocument(
+                            encryptFields(document, newDocumentKeys.getDocumentKey()),
+                            newDocumentKeys.getEdek());
+                });
+    }
+
+    /**
+     * Encrypt the provided document so that ranges of each field can later be decrypted with
+     * decryptRange() without decrypting the whole field. Works like encrypt(), but each field is
+     * split into fixed size segments which are authenticated independently. The resulting fields
+     * can also be decrypted in full with decrypt() or decryptStream().
+     *
+     * @param document Document to encrypt. Each field in the provided document will be encrypted
+     *                 with the same key.
+     * @param metadata Metadata about the document being encrypted.
+     * @return Encrypted document and base64 encrypted document key (EDEK) wrapped in a
+     *         EncryptedResult class.
+     */
+    public CompletableFuture<EncryptedDocument> encryptSeekable(Map<String, byte[]> document,
+            DocumentMetadata metadata) {
+        return afterKey(this.wrapKey(metadata, null), WrappedDocumentKey::destroy,
+                newDocumentKeys -> {
+                    return new EncryptedDocument(
+                            encryptFields(document, newDocumentKeys.getDocumentKey(), true),
+                            newDocumentKeys.getEdek());
+                });
     }
 
     /**
@@ -441,10 +1183,29 @@ public final class TenantSecurityClient implements Closeable {
      */
     public CompletableFuture<EncryptedDocument> encrypt(PlaintextDocument document,
             DocumentMetadata metadata) {
-        return this.encryptionService.unwrapKey(document.getEdek(), metadata)
-                .thenApplyAsync(dek -> new EncryptedDocument(
-                        encryptFields(document.getDecryptedFields(), dek), document.getEdek()),
-                        encryptionExecutor);
+        return encrypt(document, metadata, null);
+    }
+
+    /**
+     * Encrypt the provided document reusing its existing EDEK like encrypt(), giving up once the
+     * deadline passes.
+     *
+     * @param document PlaintextDocument which contains the encrypted document key (EDEK) as well as
+     *                 the Map of bytes to encrypt.
+     * @param metadata Metadata about the document being encrypted.
+     * @param deadline Deadline for the whole operation. Fails with DEADLINE_EXCEEDED once it
+     *                 passes.
+     * @return EncryptedDocument which contains a map of encrypted bytes and base64 encrypted
+     *         document key (EDEK).
+     */
+    public CompletableFuture<EncryptedDocument> encrypt(PlaintextDocument document,
+            DocumentMetadata metadata, Deadline deadline) {
+        return afterKey(this.unwrapKey(document.getEdek(), metadata, deadline),
+                DocumentKey::close, dek -> {
+                    Deadline.check(deadline, "encrypting the document");
+                    return new EncryptedDocument(encryptFields(document.getDecryptedFields(), dek),
+                            document.getEdek());
+                });
     }
 
     /**
@@ -461,19 +1222,34 @@ public final class TenantSecurityClient implements Closeable {
      */
     public CompletableFuture<BatchResult<EncryptedDocument>> encryptBatch(
             Map<String, Map<String, byte[]>> plaintextDocuments, DocumentMetadata metadata) {
-        return this.encryptionService.batchWrapKeys(plaintextDocuments.keySet(), metadata)
-                .thenComposeAsync(batchResponse -> {
+        return encryptBatch(plaintextDocuments, metadata, null);
+    }
+
+    /**
+     * Encrypt a map of documents like encryptBatch(), giving up on the whole batch once the
+     * deadline passes.
+     *
+     * @param plaintextDocuments Map of document ID to map of fields to encrypt.
+     * @param metadata           Metadata about all of the documents being encrypted
+     * @param deadline           Deadline for the whole operation. Fails with DEADLINE_EXCEEDED
+     *                           once it passes.
+     * @return Collection of successes and failures that occurred during operation. The keys of each
+     *         map returned will be the same keys provided in the original plaintextDocuments map.
+     */
+    public CompletableFuture<BatchResult<EncryptedDocument>> encryptBatch(
+            Map<String, Map<String, byte[]>> plaintextDocuments, DocumentMetadata metadata,
+            Deadline deadline) {
+        return afterKey(this.encryptionService.batchWrapKeys(plaintextDocuments.keySet(),
+                metadata, deadline), BatchWrappedDocumentKeys::destroy, batchResponse -> {
+                    Deadline.check(deadline, "encrypting the documents");
                     ConcurrentMap<String, WrappedDocumentKey> dekList =
                             new ConcurrentHashMap<>(batchResponse.getKeys());
                     ConcurrentMap<String, ErrorResponse> failureList =
                             new ConcurrentHashMap<>(batchResponse.getFailures());
-                    return CompletableFuture
-                            .supplyAsync(() -> encryptBatchOfDocuments(plaintextDocuments, dekList))
-                            .thenCombine(
-                                    CompletableFuture
-                                            .supplyAsync(() -> getBatchFailures(failureList)),
-                                    (s, f) -> new BatchResult<EncryptedDocument>(s, f));
-                }, encryptionExecutor);
+                    return new BatchResult<EncryptedDocument>(
+                            encryptBatchOfDocuments(plaintextDocuments, dekList),
+                            getBatchFailures(failureList));
+                });
     }
 
     /**
@@ -490,23 +1266,38 @@ public final class TenantSecurityClient implements Closeable {
      */
     public CompletableFuture<BatchResult<EncryptedDocument>> encryptExistingBatch(
             Map<String, PlaintextDocument> plaintextDocuments, DocumentMetadata metadata) {
+        return encryptExistingBatch(plaintextDocuments, metadata, null);
+    }
+
+    /**
+     * Re-encrypt a map of documents like encryptExistingBatch(), giving up on the whole batch once
+     * the deadline passes.
+     *
+     * @param plaintextDocuments Map of previously encrypted document from ID to document.
+     * @param metadata           Metadata about all of the documents being encrypted
+     * @param deadline           Deadline for the whole operation. Fails with DEADLINE_EXCEEDED
+     *                           once it passes.
+     * @return Collection of successes and failures that occurred during operation. The keys of each
+     *         map returned will be the same keys provided in the original plaintextDocuments map.
+     */
+    public CompletableFuture<BatchResult<EncryptedDocument>> encryptExistingBatch(
+            Map<String, PlaintextDocument> plaintextDocuments, DocumentMetadata metadata,
+            Deadline deadline) {
         // First convert the map from doc ID to plaintext document to a map from doc ID
         // to EDEK to send to batch endpoint
         Map<String, String> edekMap = plaintextDocuments.entrySet().stream()
                 .collect(Collectors.toMap(Map.Entry::getKey, (eDoc) -> eDoc.getValue().getEdek()));
-        return this.encryptionService.batchUnwrapKeys(edekMap, metadata)
-                .thenComposeAsync(batchResponse -> {
+        return afterKey(this.batchUnwrapKeys(edekMap, metadata, deadline),
+                BatchUnwrappedDocumentKeys::destroy, batchResponse -> {
+                    Deadline.check(deadline, "encrypting the documents");
                     ConcurrentMap<String, UnwrappedDocumentKey> dekList =
                             new ConcurrentHashMap<>(batchResponse.getKeys());
                     ConcurrentMap<String, ErrorResponse> failureList =
                             new ConcurrentHashMap<>(batchResponse.getFailures());
-                    return CompletableFuture.supplyAsync(
-                            () -> encryptExistingBatchOfDocuments(plaintextDocuments, dekList))
-                            .thenCombine(
-                                    CompletableFuture
-                                            .supplyAsync(() -> getBatchFailures(failureList)),
-                                    (s, f) -> new BatchResult<EncryptedDocument>(s, f));
-                }, encryptionExecutor);
+                    return new BatchResult<EncryptedDocument>(
+                            encryptExistingBatchOfDocuments(plaintextDocuments, dekList),
+                            getBatchFailures(failureList));
+                });
     }
 
     /**
@@ -520,14 +1311,197 @@ public final class TenantSecurityClient implements Closeable {
      */
     public CompletableFuture<PlaintextDocument> decrypt(EncryptedDocument encryptedDocument,
             DocumentMetadata metadata) {
-        return this.encryptionService.unwrapKey(encryptedDocument.getEdek(), metadata)
-                .thenApplyAsync(decryptedDocumentAESKey -> {
+        return decrypt(encryptedDocument, metadata, null);
+    }
+
+    /**
+     * Decrypt the provided EncryptedDocument like decrypt(), giving up once the deadline passes.
+     * The deadline is checked before the unwrap request is sent, before each retry and before the
+     * fields are decrypted.
+     *
+     * @param encryptedDocument Document to decrypt which includes encrypted bytes as well as EDEK.
+     * @param metadata          Metadata about the document being decrypted.
+     * @param deadline          Deadline for the whole operation. Fails with DEADLINE_EXCEEDED
+     *                          once it passes.
+     * @return PlaintextDocument which contains each documents decrypted field bytes.
+     */
+    public CompletableFuture<PlaintextDocument> decrypt(EncryptedDocument encryptedDocument,
+            DocumentMetadata metadata, Deadline deadline) {
+        return afterKey(this.unwrapKey(encryptedDocument.getEdek(), metadata, deadline),
+                DocumentKey::close, decryptedDocumentAESKey -> {
+                    Deadline.check(deadline, "decrypting the document");
                     Map<String, byte[]> decryptedFields = decryptFields(
                             encryptedDocument.getEncryptedFields(), decryptedDocumentAESKey);
                     return new PlaintextDocument(decryptedFields, encryptedDocument.getEdek());
                 });
     }
 
+    /**
+     * Decrypt a range of a single field of the provided EncryptedDocument. Decrypts the documents
+     * encrypted document key (EDEK) using the Tenant Security Proxy. If the field was encrypted
+     * with encryptSeekable() only the segments covering the requested range are decrypted;
+     * otherwise the whole field is decrypted and the range is copied out of it. As with an HTTP
+     * range request, a range which extends past the end of the field is truncated.
+     *
+     * @param encryptedDocument Document which contains the field to decrypt as well as the EDEK.
+     * @param field             Name of the field to decrypt a range of.
+     * @param offset            Offset into the field's plaintext of the first byte to return.
+     * @param length            Maximum number of plaintext bytes to return.
+     * @param metadata          Metadata about the document being decrypted.
+     * @return The decrypted bytes of the requested range.
+     */
+    public CompletableFuture<byte[]> decryptRange(EncryptedDocument encryptedDocument,
+            String field, int offset, int length, DocumentMetadata metadata) {
+        byte[] encryptedField = encryptedDocument.getEncryptedFields().get(field);
+        if (encryptedField == null) {
+            return CompletableFutures.tryCatchNonFatal(() -> {
+                throw new IllegalArgumentException(
+                        String.format("Provided document does not contain field '%s'.", field));
+            });
+        }
+        return afterKey(this.unwrapKey(encryptedDocument.getEdek(), metadata, null),
+                DocumentKey::close, dek -> {
+                    try {
+                        SecretKeySpec documentKey = dek.aesKey();
+                        if (CryptoUtils.isCiphertext(encryptedField)
+                                && CryptoUtils.isSegmented(encryptedField)) {
+                            return CryptoUtils.decryptSegmentedRange(encryptedField, documentKey,
+                                    offset, length);
+                        }
+                        byte[] decrypted =
+                                CryptoUtils.decryptDocument(encryptedField, documentKey).join();
+                        if (offset < 0 || length < 0 || offset > decrypted.length) {
+                            throw new IllegalArgumentException(String.format(
+                                    "Requested range (offset %d, length %d) is outside of the %d byte document.",
+                                    offset, length, decrypted.length));
+                        }
+                        return Arrays.copyOfRange(decrypted, offset,
+                                (int) Math.min((long) offset + length, decrypted.length));
+                    } catch (CompletionException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
+
+    /**
+     * Encrypt the remaining bytes of the input buffer and write the IronCore header, IV and
+     * ciphertext into the output buffer. Uses the Tenant Security Proxy to generate a new document
+     * encryption key (DEK) and its encrypted form (EDEK). Either buffer can be a heap or direct
+     * buffer, so callers can encrypt directly between pooled buffers without intermediate
+     * arrays. The output buffer must have at least getEncryptedLength(input.remaining()) bytes
+     * remaining. On success the input's position is moved to its limit and the output's position
+     * is moved past the encrypted bytes. The buffers must not be used by the caller until the
+     * returned future completes. The output is in the same format as a single field produced by
+     * encrypt().
+     *
+     * @param input    Buffer of plaintext bytes to encrypt.
+     * @param output   Buffer to write the encrypted bytes to.
+     * @param metadata Metadata about the document being encrypted.
+     * @return StreamingResponse which contains the EDEK needed to later decrypt the output.
+     */
+    public CompletableFuture<StreamingResponse> encrypt(ByteBuffer input, ByteBuffer output,
+            DocumentMetadata metadata) {
+        return afterKey(this.wrapKey(metadata, null), WrappedDocumentKey::destroy, newKeys -> {
+            try {
+                long start = System.nanoTime();
+                int bytes = input.remaining();
+                CryptoUtils.encryptBuffer(input, output, newKeys.getDocumentKey().aesKey(),
+                        secureRandom);
+                this.metrics.crypto(ClientMetrics.CryptoOperation.ENCRYPT, bytes,
+                        System.nanoTime() - start);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+            return new StreamingResponse(newKeys.getEdek());
+        });
+    }
+
+    /**
+     * Decrypt the encrypted bytes remaining in the input buffer and write the plaintext into the
+     * output buffer. Decrypts the provided encrypted document key (EDEK) using the Tenant Security
+     * Proxy and uses it to decrypt the buffer. The input can be a field produced by encrypt(),
+     * encryptStream() or encrypt(ByteBuffer, ByteBuffer, DocumentMetadata); segmented fields from
+     * encryptSeekable() are not supported. The output buffer must have room for the plaintext,
+     * which is getEncryptedLength(0) bytes shorter than the input. On success the input's position
+     * is moved to its limit and the output's position is moved past the decrypted bytes. The
+     * buffers must not be used by the caller until the returned future completes.
+     *
+     * @param edek     Encrypted document key that was used to encrypt the input buffer.
+     * @param input    Buffer of encrypted bytes to decrypt.
+     * @param output   Buffer to write the decrypted bytes to.
+     * @param metadata Metadata about the document being decrypted.
+     * @return StreamingResponse which contains the EDEK that was used to decrypt the input.
+     */
+    public CompletableFuture<StreamingResponse> decrypt(String edek, ByteBuffer input,
+            ByteBuffer output, DocumentMetadata metadata) {
+        return afterKey(this.unwrapKey(edek, metadata, null), DocumentKey::close, dek -> {
+            try {
+                long start = System.nanoTime();
+                int bytes = input.remaining();
+                CryptoUtils.decryptBuffer(input, output, dek.aesKey());
+                this.metrics.crypto(ClientMetrics.CryptoOperation.DECRYPT, bytes,
+                        System.nanoTime() - start);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+            return new StreamingResponse(edek);
+        });
+    }
+
+    /**
+     * Encrypt the bytes read from the provided input stream and write the encrypted result to the
+     * provided output stream. Uses the Tenant Security Proxy to generate a new document encryption
+     * key (DEK) and its encrypted form (EDEK). The input is encrypted in fixed size chunks so the
+     * full document never needs to be held in memory. The output is in the same format as a single
+     * field produced by encrypt(), so it can be checked with isCiphertext() and decrypted with
+     * either decrypt() or decryptStream(). Neither stream is closed by this method.
+     *
+     * @param input    Stream of plaintext bytes to encrypt.
+     * @param output   Stream to write the encrypted bytes to.
+     * @param metadata Metadata about the document being encrypted.
+     * @return StreamingResponse which contains the EDEK needed to later decrypt the output.
+     */
+    public CompletableFuture<StreamingResponse> encryptStream(InputStream input,
+            OutputStream output, DocumentMetadata metadata) {
+        return afterKey(this.wrapKey(metadata, null), WrappedDocumentKey::destroy, newKeys -> {
+            try {
+                CryptoUtils.encryptStream(input, output, newKeys.getDocumentKey().aesKey(),
+                        secureRandom);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+            return new StreamingResponse(newKeys.getEdek());
+        });
+    }
+
+    /**
+     * Decrypt the encrypted bytes read from the provided input stream and write the plaintext to
+     * the provided output stream. Decrypts the provided encrypted document key (EDEK) using the
+     * Tenant Security Proxy and uses it to decrypt the stream. The input can be any field produced
+     * by encrypt() or the output of encryptStream(). Note that AES-GCM authenticates the whole
+     * document, so no plaintext is written to the output until the entire input has been read and
+     * verified. Neither stream is closed by this method.
+     *
+     * @param edek     Encrypted document key that was used to encrypt the input stream.
+     * @param input    Stream of encrypted bytes to decrypt.
+     * @param output   Stream to write the decrypted bytes to.
+     * @param metadata Metadata about the document being decrypted.
+     * @return StreamingResponse which contains the EDEK that was used to decrypt the input.
+     */
+    public CompletableFuture<StreamingResponse> decryptStream(String edek, InputStream input,
+            OutputStream output, DocumentMetadata metadata) {
+        return afterKey(this.unwrapKey(edek, metadata, null), DocumentKey::close, dek -> {
+            try {
+                CryptoUtils.decryptStream(input, output, dek.aesKey());
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+            return new StreamingResponse(edek);
+        });
+    }
+
         /**
          * Re-key an EncryptedDocument to a new tenant without decrypting the document data. Decrypts the 
          * document's encrypted document key (EDEK) then re-encrypts it to the new tenant. The DEK is then discarded.
@@ -540,9 +1514,12 @@ public final class TenantSecurityClient implements Closeable {
          */
         public CompletableFuture<EncryptedDocument> rekeyDocument(EncryptedDocument encryptedDocument,
                         DocumentMetadata metadata, String newTenantId) {
-                return this.encryptionService.rekey(encryptedDocument.getEdek(), metadata, newTenantId)
-                                .thenApply(newKey -> new EncryptedDocument(encryptedDocument.getEncryptedFields(),
-                                                newKey.getEdek()));
+                CompletableFuture<RekeyedDocumentKey> rekey =
+                                this.encryptionService.rekey(encryptedDocument.getEdek(), metadata, newTenantId);
+                return CompletableFutures.propagateCancellation(
+                                rekey.thenApply(newKey -> new EncryptedDocument(
+                                                encryptedDocument.getEncryptedFields(), newKey.getEdek())),
+                                rekey);
         }
 
     /**
@@ -559,21 +1536,37 @@ public final class TenantSecurityClient implements Closeable {
      */
     public CompletableFuture<BatchResult<PlaintextDocument>> decryptBatch(
             Map<String, EncryptedDocument> encryptedDocuments, DocumentMetadata metadata) {
+        return decryptBatch(encryptedDocuments, metadata, null);
+    }
+
+    /**
+     * Decrypt a map of documents like decryptBatch(), giving up on the whole batch once the
+     * deadline passes.
+     *
+     * @param encryptedDocuments Map of documents to decrypt from ID of the document to the
+     *                           EncryptedDocument
+     * @param metadata           Metadata to use for each decrypt operation.
+     * @param deadline           Deadline for the whole operation. Fails with DEADLINE_EXCEEDED
+     *                           once it passes.
+     * @return Collection of successes and failures that occurred during operation. The keys of each
+     *         map returned will be the same keys provided in the original encryptedDocuments map.
+     */
+    public CompletableFuture<BatchResult<PlaintextDocument>> decryptBatch(
+            Map<String, EncryptedDocument> encryptedDocuments, DocumentMetadata metadata,
+            Deadline deadline) {
         Map<String, String> edekMap = encryptedDocuments.entrySet().stream()
                 .collect(Collectors.toMap(Map.Entry::getKey, (eDoc) -> eDoc.getValue().getEdek()));
-        return this.encryptionService.batchUnwrapKeys(edekMap, metadata)
-                .thenComposeAsync(batchResponse -> {
+        return afterKey(this.batchUnwrapKeys(edekMap, metadata, deadline),
+                BatchUnwrappedDocumentKeys::destroy, batchResponse -> {
+                    Deadline.check(deadline, "decrypting the documents");
                     ConcurrentMap<String, UnwrappedDocumentKey> dekList =
                             new ConcurrentHashMap<>(batchResponse.getKeys());
                     ConcurrentMap<String, ErrorResponse> failureList =
                             new ConcurrentHashMap<>(batchResponse.getFailures());
-                    return CompletableFuture
-                            .supplyAsync(() -> decryptBatchDocuments(encryptedDocuments, dekList))
-                            .thenCombine(
-                                    CompletableFuture
-                                            .supplyAsync(() -> getBatchFailures(failureList)),
-                                    (s, f) -> new BatchResult<PlaintextDocument>(s, f));
-                }, encryptionExecutor);
+                    return new BatchResult<PlaintextDocument>(
+                            decryptBatchDocuments(encryptedDocuments, dekList),
+                            getBatchFailures(failureList));
+                });
     }
 
     /**
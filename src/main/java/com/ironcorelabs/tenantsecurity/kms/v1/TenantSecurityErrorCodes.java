@@ -10,6 +10,10 @@ public enum TenantSecurityErrorCodes {
 
     // map to TspServiceException
     UNABLE_TO_MAKE_REQUEST(0, "Request to Tenant Security Proxy could not be made"),
+    // raised by the client itself, never returned by the Tenant Security Proxy
+    CIRCUIT_BREAKER_OPEN(1, "Request to Tenant Security Proxy was not made because the circuit breaker is open."),
+    CONCURRENCY_LIMIT_EXCEEDED(2, "Request to Tenant Security Proxy was not made because too many requests are in flight."),
+    DEADLINE_EXCEEDED(3, "Operation was abandoned because its deadline passed."),
     UNKNOWN_ERROR(100, "Unknown request error occurred"),
     UNAUTHORIZED_REQUEST(101, "Request authorization header API key was incorrect."),
     INVALID_REQUEST_BODY(102, "Request body was invalid."),
@@ -1,96 +1,86 @@
 package com.ironcorelabs.tenantsecurity.kms.v1;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import com.google.api.client.http.GenericUrl;
-import com.google.api.client.http.HttpHeaders;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.HttpRequestFactory;
-import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.HttpStatusCodes;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.apache.v2.ApacheHttpTransport;
-import com.google.api.client.http.json.JsonHttpContent;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.JsonObjectParser;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.ironcorelabs.tenantsecurity.kms.v1.exception.TenantSecurityException;
 import com.ironcorelabs.tenantsecurity.kms.v1.exception.TspServiceException;
 import com.ironcorelabs.tenantsecurity.logdriver.v1.EventMetadata;
 import com.ironcorelabs.tenantsecurity.logdriver.v1.SecurityEvent;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import com.ironcorelabs.tenantsecurity.utils.CompletableFutures;
 
 /**
  * Handles requests to the Tenant Security Proxy Docker image for wrapping and unwrapping keys. Also
- * works to parse out error codes on wrap/unwrap failures.
+ * works to parse out error codes on wrap/unwrap failures. The requests themselves are sent by a
+ * TspTransport.
  */
 final class TenantSecurityRequest implements Closeable {
     private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+    private static final int STATUS_CODE_UNAUTHORIZED = 401;
 
-    // Fixed sized thread pool for web requests. Limit the amount of parallel web
-    // requests that we let go out at any given time. We don't want to DoS our
-    // Tenant Security Proxy with too many requests at the same time. The size of
-    // this thread pools is configurable on construction.
-    private ExecutorService webRequestExecutor;
-
-    private final HttpHeaders httpHeaders;
-    private final GenericUrl wrapEndpoint;
-    private final GenericUrl batchWrapEndpoint;
-    private final GenericUrl unwrapEndpoint;
-    private final GenericUrl batchUnwrapEndpoint;
-    private final GenericUrl rekeyEndpoint;
-    private final GenericUrl securityEventEndpoint;
-    private final HttpRequestFactory requestFactory;
-    private final int timeout;
+    private final TspTransport transport;
+    // Retries transient failures. Null if retries aren't enabled.
+    private final Retrier retrier;
+    // Circuit breakers and adaptive limit around each attempt. Null if neither is enabled.
+    private final RequestGuard guard;
+    // Per-tenant partitions of requests in flight. Null if not enabled.
+    private final TenantBulkhead bulkhead;
+    private final ClientMetrics metrics;
+    private final Map<String, String> headers;
+    private final String wrapEndpoint;
+    private final String batchWrapEndpoint;
+    private final String unwrapEndpoint;
+    private final String batchUnwrapEndpoint;
+    private final String rekeyEndpoint;
+    private final String securityEventEndpoint;
 
     TenantSecurityRequest(String tspDomain, String apiKey, int requestThreadSize, int timeout) {
-        HttpHeaders headers = new HttpHeaders();
-        headers.put("Content-Type", "application/json");
-        headers.put("Authorization", "cmk " + apiKey);
-        this.httpHeaders = headers;
+        this(tspDomain, apiKey, new BlockingHttpTransport(requestThreadSize, timeout));
+    }
+
+    TenantSecurityRequest(String tspDomain, String apiKey, TspTransport transport) {
+        this(tspDomain, apiKey, transport, null, null, null, ClientMetrics.NONE);
+    }
+
+    TenantSecurityRequest(String tspDomain, String apiKey, TspTransport transport,
+            Retrier retrier, RequestGuard guard, TenantBulkhead bulkhead, ClientMetrics metrics) {
+        this.retrier = retrier;
+        this.guard = guard;
+        this.bulkhead = bulkhead;
+        this.metrics = metrics;
+        this.headers = Collections.singletonMap("Authorization", "cmk " + apiKey);
 
         String tspApiPrefix = tspDomain + "/api/1/";
-        this.wrapEndpoint = new GenericUrl(tspApiPrefix + "document/wrap");
-        this.batchWrapEndpoint = new GenericUrl(tspApiPrefix + "document/batch-wrap");
-        this.unwrapEndpoint = new GenericUrl(tspApiPrefix + "document/unwrap");
-        this.batchUnwrapEndpoint = new GenericUrl(tspApiPrefix + "document/batch-unwrap");
-        this.rekeyEndpoint = new GenericUrl(tspApiPrefix + "document/rekey");
-        this.securityEventEndpoint = new GenericUrl(tspApiPrefix + "event/security-event");
-
-        this.webRequestExecutor = Executors.newFixedThreadPool(requestThreadSize);
-        this.requestFactory = provideHttpRequestFactory(requestThreadSize, requestThreadSize);
-        this.timeout = timeout;
+        this.wrapEndpoint = tspApiPrefix + "document/wrap";
+        this.batchWrapEndpoint = tspApiPrefix + "document/batch-wrap";
+        this.unwrapEndpoint = tspApiPrefix + "document/unwrap";
+        this.batchUnwrapEndpoint = tspApiPrefix + "document/batch-unwrap";
+        this.rekeyEndpoint = tspApiPrefix + "document/rekey";
+        this.securityEventEndpoint = tspApiPrefix + "event/security-event";
+
+        this.transport = transport;
     }
 
     public void close() throws IOException {
-        this.webRequestExecutor.shutdown();
+        this.transport.close();
     }
 
-    /**
-     * Build up a generic HttpRequest which includes the appropriate headers to make requests to the
-     * Tenant Security Proxy.
-     */
-    private HttpRequest getApiRequest(Map<String, Object> postData, GenericUrl endpoint)
-            throws Exception {
-        return requestFactory
-                .buildPostRequest(endpoint, new JsonHttpContent(JSON_FACTORY, postData))
-                // Clone the headers on use. Otherwise Google will keep appending their custom
-                // user agent string and it will grow big enough to cause header overflow
-                // errors.
-                .setHeaders(this.httpHeaders.clone()).setReadTimeout(this.timeout)
-                .setConnectTimeout(this.timeout)
-                // We want to parse out error codes, so don't throw when we get a non-200
-                // response code
-                .setThrowExceptionOnExecuteError(false);
+    ConnectionPoolStats getConnectionPoolStats() {
+        return this.transport.getConnectionPoolStats();
     }
 
     /**
@@ -98,16 +88,15 @@ final class TenantSecurityRequest implements Closeable {
      * callers. Attempts to parse the response as JSON and convert the received error code over to
      * the type of failure that occurred.
      */
-    private TenantSecurityException parseFailureFromRequest(HttpResponse resp) {
-        if (resp.getStatusCode() == HttpStatusCodes.STATUS_CODE_UNAUTHORIZED) {
-            // The Google client wont parse 401 response bodies. The only way we can get a 401
-            // response is if the header
-            // was wrong, so hardcode that result here
+    private TenantSecurityException parseFailureFromResponse(TspTransport.Response resp) {
+        if (resp.getStatusCode() == STATUS_CODE_UNAUTHORIZED) {
+            // The only way we can get a 401 response is if the header was wrong, so hardcode that
+            // result here
             return new TspServiceException(TenantSecurityErrorCodes.UNAUTHORIZED_REQUEST,
                     resp.getStatusCode());
         }
         try {
-            ErrorResponse errorResponse = resp.parseAs(ErrorResponse.class);
+            ErrorResponse errorResponse = parseBody(resp.getBody(), ErrorResponse.class);
             return errorResponse.toTenantSecurityException(resp.getStatusCode());
         } catch (Exception e) {
             /* Fall through and return unknown error below */
@@ -116,42 +105,223 @@ final class TenantSecurityRequest implements Closeable {
                 resp.getStatusCode());
     }
 
+    private static <T> T parseBody(byte[] body, Class<T> jsonType) throws IOException {
+        if (jsonType == Void.class) {
+            return null;
+        }
+        return JSON_FACTORY
+                .createJsonParser(new ByteArrayInputStream(body), StandardCharsets.UTF_8)
+                .parseAndClose(jsonType);
+    }
 
+    /**
+     * Serializes a request body.
+     */
+    private interface RequestBody {
+        byte[] write() throws IOException;
+    }
+
+    /**
+     * Parses a successful response body.
+     */
+    private interface ResponseParser<T> {
+        T parse(byte[] body) throws IOException;
+    }
 
     /**
      * Generic method for making a request to the provided URL with the provided post data. Returns
      * an instance of the provided generic JSON class or an error message with the provided error.
      */
-    private <T> CompletableFuture<T> makeRequestAndParseFailure(GenericUrl url,
-            Map<String, Object> postData, Class<T> jsonType, String errorMessage) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                HttpResponse resp = this.getApiRequest(postData, url).execute();
-                if (resp.isSuccessStatusCode()) {
-                    return resp.parseAs(jsonType);
-                }
-                throw parseFailureFromRequest(resp);
-            } catch (Exception cause) {
-                if (cause instanceof TenantSecurityException) {
+    private <T> CompletableFuture<T> makeRequestAndParseFailure(ClientMetrics.Endpoint endpoint,
+            String url, Map<String, Object> postData, Class<T> jsonType, String errorMessage) {
+        return makeRequestAndParseFailure(endpoint, url, () -> JSON_FACTORY.toByteArray(postData),
+                body -> parseBody(body, jsonType), errorMessage, null);
+    }
+
+    /**
+     * Generic method for making a request to the provided URL with the provided request body.
+     * Returns the parsed response or an error message with the provided error. If the deadline
+     * passes before or while the request is made it fails with DEADLINE_EXCEEDED.
+     */
+    private <T> CompletableFuture<T> makeRequestAndParseFailure(ClientMetrics.Endpoint endpoint,
+            String url, RequestBody body, ResponseParser<T> parser, String errorMessage,
+            Deadline deadline) {
+        long startedAt = this.metrics == ClientMetrics.NONE ? 0 : System.nanoTime();
+        CompletableFuture<TspTransport.Response> response;
+        try {
+            response = this.transport.post(url, this.headers, body.write(), deadline);
+        } catch (Exception cause) {
+            response = new CompletableFuture<>();
+            response.completeExceptionally(cause);
+        }
+        CompletableFuture<T> result = response.handle((resp, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause()
+                        : error;
+                if (cause instanceof TenantSecurityException
+                        || cause instanceof CancellationException) {
                     throw new CompletionException(cause);
                 }
+                if (deadline != null && deadline.isExpired()) {
+                    // Most likely the read timeout which was shortened to the time remaining
+                    throw new CompletionException(new TspServiceException(
+                            TenantSecurityErrorCodes.DEADLINE_EXCEEDED, 0, errorMessage, cause));
+                }
                 throw new CompletionException(new TspServiceException(
-                        TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, 0, errorMessage,
-                        cause));
+                        TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, 0, errorMessage, cause));
+            }
+            if (!resp.isSuccess()) {
+                throw new CompletionException(parseFailureFromResponse(resp));
             }
-        }, webRequestExecutor);
+            try {
+                return parser.parse(resp.getBody());
+            } catch (Exception cause) {
+                throw new CompletionException(new TspServiceException(
+                        TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, resp.getStatusCode(),
+                        errorMessage, cause));
+            }
+        });
+        if (this.metrics != ClientMetrics.NONE) {
+            result.whenComplete((value, error) -> {
+                TenantSecurityErrorCodes code = errorCode(error);
+                if (error == null || code != null) {
+                    this.metrics.tspRequest(endpoint, System.nanoTime() - startedAt, code);
+                }
+            });
+        }
+        // Cancelling the request aborts it in the transport
+        return CompletableFutures.propagateCancellation(result, response);
+    }
+
+    /**
+     * Get the error code of a failed request, or null if it succeeded or was cancelled.
+     */
+    private static TenantSecurityErrorCodes errorCode(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause()
+                : error;
+        if (cause == null || cause instanceof CancellationException) {
+            return null;
+        }
+        return cause instanceof TenantSecurityException
+                ? ((TenantSecurityException) cause).getErrorCode()
+                : TenantSecurityErrorCodes.UNKNOWN_ERROR;
+    }
+
+    /**
+     * Record the error a request finally failed with, once any retries are done.
+     */
+    private <T> CompletableFuture<T> recordError(ClientMetrics.Endpoint endpoint,
+            CompletableFuture<T> request) {
+        if (this.metrics != ClientMetrics.NONE) {
+            request.whenComplete((value, error) -> {
+                TenantSecurityErrorCodes code = errorCode(error);
+                if (code != null) {
+                    this.metrics.error(endpoint, code);
+                }
+            });
+        }
+        return request;
+    }
+
+    /**
+     * Record an error for each document that a batch request finally failed for, once any retries
+     * are done.
+     */
+    private <B extends BatchDocumentKeys<?>> CompletableFuture<B> recordBatchErrors(
+            ClientMetrics.Endpoint endpoint, int documents, CompletableFuture<B> request) {
+        if (this.metrics != ClientMetrics.NONE) {
+            request.whenComplete((batch, error) -> {
+                TenantSecurityErrorCodes code = errorCode(error);
+                if (code != null) {
+                    for (int i = 0; i < documents; i++) {
+                        this.metrics.error(endpoint, code);
+                    }
+                } else if (batch != null && batch.getFailures() != null) {
+                    batch.getFailures().values().forEach(failure -> this.metrics.error(endpoint,
+                            failure.toTenantSecurityException(0).getErrorCode()));
+                }
+            });
+        }
+        return request;
+    }
+
+    /**
+     * Make the request, retrying transient failures if retries are enabled. Each attempt waits for
+     * a permit from the tenant's bulkhead and then goes through the circuit breakers and adaptive
+     * limit, for whichever of those are enabled.
+     */
+    private <T> CompletableFuture<T> withRetry(String tenantId, Deadline deadline,
+            Supplier<CompletableFuture<T>> request) {
+        return withRetry(tenantId, deadline, Retrier::isRetryable, request);
+    }
+
+    /**
+     * Make the request like withRetry, but only retry the failures which the predicate accepts.
+     */
+    private <T> CompletableFuture<T> withRetry(String tenantId, Deadline deadline,
+            Predicate<Throwable> retryable, Supplier<CompletableFuture<T>> request) {
+        Supplier<CompletableFuture<T>> attempt = guarded(tenantId, deadline, request);
+        return this.retrier == null ? attempt.get()
+                : this.retrier.execute(attempt, deadline, retryable);
+    }
+
+    private <T> Supplier<CompletableFuture<T>> guarded(String tenantId, Deadline deadline,
+            Supplier<CompletableFuture<T>> request) {
+        // The bulkhead goes outside the guard so that requests waiting for a tenant permit don't
+        // hold a slot of the adaptive limit, and the deadline is checked in between so requests
+        // which expired while waiting don't take one either
+        Supplier<CompletableFuture<T>> guarded =
+                this.guard == null ? request : () -> this.guard.execute(tenantId, request);
+        Supplier<CompletableFuture<T>> checked = deadline == null ? guarded : () -> {
+            if (deadline.isExpired()) {
+                CompletableFuture<T> expired = new CompletableFuture<>();
+                expired.completeExceptionally(Deadline.exceeded("sending the request"));
+                return expired;
+            }
+            return guarded.get();
+        };
+        return this.bulkhead == null || tenantId == null ? checked
+                : () -> this.bulkhead.submit(tenantId, checked);
+    }
+
+    /**
+     * Make the batch request, retrying transient failures of the whole request and of individual
+     * documents if retries are enabled.
+     */
+    private <K, B extends BatchDocumentKeys<K>> CompletableFuture<B> withBatchRetry(
+            ClientMetrics.Endpoint endpoint, String tenantId, Deadline deadline,
+            Collection<String> documentIds,
+            Function<Collection<String>, CompletableFuture<B>> request,
+            BiFunction<Map<String, K>, Map<String, ErrorResponse>, B> createResult) {
+        Function<Collection<String>, CompletableFuture<B>> attempt =
+                ids -> guarded(tenantId, deadline, () -> {
+                    this.metrics.batchSize(endpoint, ids.size());
+                    return request.apply(ids);
+                }).get();
+        return this.retrier == null ? attempt.apply(documentIds)
+                : this.retrier.executeBatch(documentIds, attempt, createResult, deadline);
     }
 
     /**
      * Request wrap endpoint to generate a DEK and EDEK.
      */
     CompletableFuture<WrappedDocumentKey> wrapKey(DocumentMetadata metadata) {
-        Map<String, Object> postData = metadata.getAsPostData();
+        return wrapKey(metadata, null);
+    }
+
+    /**
+     * Request wrap endpoint to generate a DEK and EDEK, giving up once the deadline passes.
+     */
+    CompletableFuture<WrappedDocumentKey> wrapKey(DocumentMetadata metadata, Deadline deadline) {
         String error = String.format(
                 "Unable to make request to Tenant Security Proxy wrap endpoint. Endpoint requested: %s",
                 this.wrapEndpoint);
-        return this.makeRequestAndParseFailure(this.wrapEndpoint, postData,
-                WrappedDocumentKey.class, error);
+        return recordError(ClientMetrics.Endpoint.WRAP, withRetry(metadata.getTenantId(), deadline,
+                () -> this.makeRequestAndParseFailure(ClientMetrics.Endpoint.WRAP,
+                        this.wrapEndpoint, () -> TspJson.wrapRequest(metadata),
+                        TspJson::parseWrapResponse, error, deadline)));
     }
 
     /**
@@ -159,34 +329,50 @@ final class TenantSecurityRequest implements Closeable {
      */
     CompletableFuture<BatchWrappedDocumentKeys> batchWrapKeys(Collection<String> documentIds,
             DocumentMetadata metadata) {
-        Map<String, Object> postData = metadata.getAsPostData();
-        postData.put("documentIds", documentIds);
+        return batchWrapKeys(documentIds, metadata, null);
+    }
+
+    /**
+     * Request batch wrap endpoint to generate the provided number of DEK/EDEK pairs, giving up once
+     * the deadline passes.
+     */
+    CompletableFuture<BatchWrappedDocumentKeys> batchWrapKeys(Collection<String> documentIds,
+            DocumentMetadata metadata, Deadline deadline) {
         String error = String.format(
                 "Unable to make request to Tenant Security Proxy batch wrap endpoint. Endpoint requested: %s",
                 this.batchWrapEndpoint);
-        return this.makeRequestAndParseFailure(this.batchWrapEndpoint, postData,
-                BatchWrappedDocumentKeys.class, error);
+        return recordBatchErrors(ClientMetrics.Endpoint.BATCH_WRAP, documentIds.size(),
+                withBatchRetry(ClientMetrics.Endpoint.BATCH_WRAP, metadata.getTenantId(),
+                        deadline, documentIds,
+                        ids -> this.makeRequestAndParseFailure(ClientMetrics.Endpoint.BATCH_WRAP,
+                                this.batchWrapEndpoint,
+                                () -> TspJson.batchWrapRequest(ids, metadata),
+                                TspJson::parseBatchWrapResponse, error, deadline),
+                        BatchWrappedDocumentKeys::new));
     }
 
     /**
      * Request unwrap endpoint with the provided edek. Returns the resulting DEK.
      */
-    CompletableFuture<byte[]> unwrapKey(String edek, DocumentMetadata metadata) {
-        Map<String, Object> postData = metadata.getAsPostData();
-        postData.put("encryptedDocumentKey", edek);
+    CompletableFuture<DocumentKey> unwrapKey(String edek, DocumentMetadata metadata) {
+        return unwrapKey(edek, metadata, null);
+    }
+
+    /**
+     * Request unwrap endpoint with the provided edek, giving up once the deadline passes.
+     */
+    CompletableFuture<DocumentKey> unwrapKey(String edek, DocumentMetadata metadata,
+            Deadline deadline) {
         String error = String.format(
                 "Unable to make request to Tenant Security Proxy unwrap endpoint. Endpoint requested: %s",
                 this.unwrapEndpoint);
-        return this.makeRequestAndParseFailure(this.unwrapEndpoint, postData,
-                UnwrappedDocumentKey.class, error).thenApply(unwrapResponse -> {
-                    try {
-                        return unwrapResponse.getDekBytes();
-                    } catch (Exception e) {
-                        throw new CompletionException(new TspServiceException(
-                                TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, 0,
-                                e.getMessage(), e));
-                    }
-                });
+        CompletableFuture<UnwrappedDocumentKey> response = withRetry(metadata.getTenantId(),
+                deadline,
+                () -> this.makeRequestAndParseFailure(ClientMetrics.Endpoint.UNWRAP,
+                        this.unwrapEndpoint, () -> TspJson.unwrapRequest(edek, metadata),
+                        TspJson::parseUnwrapResponse, error, deadline));
+        return recordError(ClientMetrics.Endpoint.UNWRAP, CompletableFutures.propagateCancellation(
+                response.thenApply(UnwrappedDocumentKey::getDocumentKey), response));
     }
 
     /**
@@ -195,26 +381,49 @@ final class TenantSecurityRequest implements Closeable {
      */
     CompletableFuture<BatchUnwrappedDocumentKeys> batchUnwrapKeys(Map<String, String> edeks,
             DocumentMetadata metadata) {
-        Map<String, Object> postData = metadata.getAsPostData();
-        postData.put("edeks", edeks);
+        return batchUnwrapKeys(edeks, metadata, null);
+    }
+
+    /**
+     * Request batch unwrap endpoint with the provided map of edeks, giving up once the deadline
+     * passes.
+     */
+    CompletableFuture<BatchUnwrappedDocumentKeys> batchUnwrapKeys(Map<String, String> edeks,
+            DocumentMetadata metadata, Deadline deadline) {
         String error = String.format(
                 "Unable to make request to Tenant Security Proxy batch unwrap endpoint. Endpoint requested: %s",
                 this.batchWrapEndpoint);
-        return this.makeRequestAndParseFailure(this.batchUnwrapEndpoint, postData,
-                BatchUnwrappedDocumentKeys.class, error);
+        return recordBatchErrors(ClientMetrics.Endpoint.BATCH_UNWRAP, edeks.size(),
+                withBatchRetry(ClientMetrics.Endpoint.BATCH_UNWRAP, metadata.getTenantId(),
+                        deadline, edeks.keySet(),
+                        ids -> this.makeRequestAndParseFailure(
+                                ClientMetrics.Endpoint.BATCH_UNWRAP, this.batchUnwrapEndpoint,
+                                () -> TspJson.batchUnwrapRequest(subset(edeks, ids), metadata),
+                                TspJson::parseBatchUnwrapResponse, error, deadline),
+                        BatchUnwrappedDocumentKeys::new));
+    }
+
+    private static Map<String, String> subset(Map<String, String> edeks, Collection<String> ids) {
+        if (ids.size() == edeks.size()) {
+            return edeks;
+        }
+        Map<String, String> subset = new HashMap<>();
+        ids.forEach(id -> subset.put(id, edeks.get(id)));
+        return subset;
     }
 
     /**
      * Request re-key endpoint to unwrap an EDEK encrypted to the metadata's tenantId and then wrap it to the newTenantId.
      */
     CompletableFuture<RekeyedDocumentKey> rekey(String edek, DocumentMetadata metadata, String newTenantId) {
-        Map<String, Object> postData = metadata.getAsPostData();
-        postData.put("encryptedDocumentKey", edek);
-        postData.put("newTenantId", newTenantId);
         String error = String.format(
                 "Unable to make request to Tenant Security Proxy rekey endpoint. Endpoint requested: %s",
                 this.rekeyEndpoint);
-        return this.makeRequestAndParseFailure(this.rekeyEndpoint, postData, RekeyedDocumentKey.class, error);
+        return recordError(ClientMetrics.Endpoint.REKEY, withRetry(metadata.getTenantId(), null,
+                () -> this.makeRequestAndParseFailure(ClientMetrics.Endpoint.REKEY,
+                        this.rekeyEndpoint,
+                        () -> TspJson.rekeyRequest(edek, metadata, newTenantId),
+                        TspJson::parseRekeyResponse, error, null)));
     }
 
     /**
@@ -229,8 +438,13 @@ final class TenantSecurityRequest implements Closeable {
         String error = String.format(
                 "Unable to make request to Tenant Security Proxy security event endpoint. Endpoint requested: %s",
                 this.securityEventEndpoint);
-        return this.makeRequestAndParseFailure(this.securityEventEndpoint, postData, Void.class,
-                error);
+        // Logging an event twice would duplicate it in the audit trail, so it's only retried if it
+        // never reached the TSP
+        return recordError(ClientMetrics.Endpoint.SECURITY_EVENT,
+                withRetry(metadata.getTenantId(), null, Retrier::isRetryableUnsent,
+                        () -> this.makeRequestAndParseFailure(
+                                ClientMetrics.Endpoint.SECURITY_EVENT, this.securityEventEndpoint,
+                                postData, Void.class, error)));
     }
 
     private Map<String, Object> combinePostableEventAndMetadata(SecurityEvent event,
@@ -244,28 +458,4 @@ final class TenantSecurityRequest implements Closeable {
         postData.put("iclFields", iclFields);
         return postData;
     }
-
-    /**
-     * Create the factory for http requests. The main reason for this is to provide connection
-     * pooling for situations where large numbers of requests are desired.
-     *
-     * @param maxConnections      global max connections
-     * @param maxRouteConnections max connections for a single HTTP endpoint
-     * @return HttpRequestFactory with connection pooling enabled.
-     */
-    static HttpRequestFactory provideHttpRequestFactory(int maxConnections,
-            int maxRouteConnections) {
-        final PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
-        // Increase max total connections
-        cm.setMaxTotal(maxConnections);
-        // Increase default max connection per route
-        cm.setDefaultMaxPerRoute(maxRouteConnections);
-
-        final CloseableHttpClient httpClient = HttpClients.createMinimal(cm);
-        final HttpTransport httpTransport = new ApacheHttpTransport(httpClient);
-
-        return httpTransport.createRequestFactory((HttpRequest request) -> {
-            request.setParser(new JsonObjectParser(JSON_FACTORY));
-        });
-    }
 }
@@ -0,0 +1,269 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Streaming JSON writers for document key requests to the Tenant Security Proxy and readers for
+ * the document key responses. Requests are written straight from the metadata and EDEKs and
+ * responses are read straight into key objects, so large batches don't go through intermediate
+ * Maps or reflective parsing. Base64 DEKs are decoded once, directly into byte arrays, and never
+ * held as Strings.
+ */
+final class TspJson {
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private TspJson() {}
+
+    /**
+     * Writes the fields of a request body after the metadata fields.
+     */
+    private interface FieldWriter {
+        void write(JsonGenerator generator) throws IOException;
+    }
+
+    private static byte[] writeRequest(DocumentMetadata metadata, FieldWriter fields)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        try (JsonGenerator generator = FACTORY.createGenerator(body)) {
+            generator.writeStartObject();
+            metadata.writePostData(generator);
+            fields.write(generator);
+            generator.writeEndObject();
+        }
+        return body.toByteArray();
+    }
+
+    static byte[] wrapRequest(DocumentMetadata metadata) throws IOException {
+        return writeRequest(metadata, generator -> {
+        });
+    }
+
+    static byte[] batchWrapRequest(Collection<String> documentIds, DocumentMetadata metadata)
+            throws IOException {
+        return writeRequest(metadata, generator -> {
+            generator.writeArrayFieldStart("documentIds");
+            for (String documentId : documentIds) {
+                generator.writeString(documentId);
+            }
+            generator.writeEndArray();
+        });
+    }
+
+    static byte[] unwrapRequest(String edek, DocumentMetadata metadata) throws IOException {
+        return writeRequest(metadata,
+                generator -> generator.writeStringField("encryptedDocumentKey", edek));
+    }
+
+    static byte[] batchUnwrapRequest(Map<String, String> edeks, DocumentMetadata metadata)
+            throws IOException {
+        return writeRequest(metadata, generator -> {
+            generator.writeObjectFieldStart("edeks");
+            for (Map.Entry<String, String> edek : edeks.entrySet()) {
+                generator.writeStringField(edek.getKey(), edek.getValue());
+            }
+            generator.writeEndObject();
+        });
+    }
+
+    static byte[] rekeyRequest(String edek, DocumentMetadata metadata, String newTenantId)
+            throws IOException {
+        return writeRequest(metadata, generator -> {
+            generator.writeStringField("encryptedDocumentKey", edek);
+            generator.writeStringField("newTenantId", newTenantId);
+        });
+    }
+
+    /**
+     * Reads a key object, positioned at its START_OBJECT. Either a whole single key response or one
+     * entry of a batch response's keys object.
+     */
+    private interface KeyReader<T> {
+        T read(JsonParser parser) throws IOException;
+    }
+
+    static WrappedDocumentKey parseWrapResponse(byte[] body) throws IOException {
+        return parseResponse(body, TspJson::readWrappedKey);
+    }
+
+    static UnwrappedDocumentKey parseUnwrapResponse(byte[] body) throws IOException {
+        return parseResponse(body, TspJson::readUnwrappedKey);
+    }
+
+    static RekeyedDocumentKey parseRekeyResponse(byte[] body) throws IOException {
+        return parseResponse(body, parser -> {
+            String edek = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if (field.equals("edek")) {
+                    edek = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (edek == null) {
+                throw new IOException("Rekey response was missing its EDEK.");
+            }
+            return new RekeyedDocumentKey(edek);
+        });
+    }
+
+    static BatchWrappedDocumentKeys parseBatchWrapResponse(byte[] body) throws IOException {
+        Map<String, WrappedDocumentKey> keys = new HashMap<>();
+        Map<String, ErrorResponse> failures = new HashMap<>();
+        parseBatchResponse(body, keys, failures, TspJson::readWrappedKey,
+                WrappedDocumentKey::destroy);
+        return new BatchWrappedDocumentKeys(keys, failures);
+    }
+
+    static BatchUnwrappedDocumentKeys parseBatchUnwrapResponse(byte[] body) throws IOException {
+        Map<String, UnwrappedDocumentKey> keys = new HashMap<>();
+        Map<String, ErrorResponse> failures = new HashMap<>();
+        parseBatchResponse(body, keys, failures, TspJson::readUnwrappedKey,
+                UnwrappedDocumentKey::destroy);
+        return new BatchUnwrappedDocumentKeys(keys, failures);
+    }
+
+    private static WrappedDocumentKey readWrappedKey(JsonParser parser) throws IOException {
+        byte[] dek = null;
+        String edek = null;
+        try {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if (field.equals("dek")) {
+                    zero(dek);
+                    dek = parser.getBinaryValue();
+                } else if (field.equals("edek")) {
+                    edek = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (dek == null || edek == null) {
+                throw new IOException("Wrap response was missing its DEK or EDEK.");
+            }
+        } catch (IOException | RuntimeException e) {
+            // The decoded DEK is only zeroed once it's moved into a DocumentKey
+            zero(dek);
+            throw e;
+        }
+        return new WrappedDocumentKey(dek, edek);
+    }
+
+    private static UnwrappedDocumentKey readUnwrappedKey(JsonParser parser) throws IOException {
+        byte[] dek = null;
+        try {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if (field.equals("dek")) {
+                    zero(dek);
+                    dek = parser.getBinaryValue();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            zero(dek);
+            throw e;
+        }
+        if (dek == null) {
+            throw new IOException("Unwrap response was missing its DEK.");
+        }
+        return new UnwrappedDocumentKey(dek);
+    }
+
+    private static void zero(byte[] dek) {
+        if (dek != null) {
+            Arrays.fill(dek, (byte) 0);
+        }
+    }
+
+    private static <T> T parseResponse(byte[] body, KeyReader<T> keyReader) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(body)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            return keyReader.read(parser);
+        }
+    }
+
+    /**
+     * Parse a batch response into the keys and failures. If the response is malformed the keys
+     * already read are destroyed before the error is thrown, since the caller never sees them.
+     */
+    private static <T> void parseBatchResponse(byte[] body, Map<String, T> keys,
+            Map<String, ErrorResponse> failures, KeyReader<T> keyReader,
+            Consumer<? super T> destroy) throws IOException {
+        try {
+            readBatchResponse(body, keys, failures, keyReader, destroy);
+        } catch (IOException | RuntimeException e) {
+            keys.values().forEach(destroy);
+            keys.clear();
+            throw e;
+        }
+    }
+
+    private static <T> void readBatchResponse(byte[] body, Map<String, T> keys,
+            Map<String, ErrorResponse> failures, KeyReader<T> keyReader,
+            Consumer<? super T> destroy) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(body)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals("keys") && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String id = parser.getCurrentName();
+                        expect(parser.nextToken(), JsonToken.START_OBJECT);
+                        T replaced = keys.put(id, keyReader.read(parser));
+                        if (replaced != null) {
+                            destroy.accept(replaced);
+                        }
+                    }
+                } else if (field.equals("failures") && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String id = parser.getCurrentName();
+                        expect(parser.nextToken(), JsonToken.START_OBJECT);
+                        failures.put(id, readErrorResponse(parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private static ErrorResponse readErrorResponse(JsonParser parser) throws IOException {
+        int code = 0;
+        String message = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals("code")) {
+                code = parser.getIntValue();
+            } else if (field.equals("message")) {
+                message = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new ErrorResponse(code, message);
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException(
+                    String.format("Expected %s in JSON response but found %s.", expected, actual));
+        }
+    }
+}
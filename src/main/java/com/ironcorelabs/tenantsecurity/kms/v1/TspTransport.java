@@ -0,0 +1,76 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends JSON POST requests to the Tenant Security Proxy. Implementations only deal with moving
+ * bytes; building request bodies and parsing responses and failures happens in
+ * TenantSecurityRequest so every transport behaves the same.
+ */
+interface TspTransport extends Closeable {
+    /**
+     * POST the provided JSON body to the URL. The returned future completes with the response for
+     * any HTTP status code and only completes exceptionally if no response was received.
+     *
+     * @param url     Full URL of the endpoint.
+     * @param headers Headers to add to the request in addition to the JSON content type.
+     * @param body    Serialized JSON request body.
+     */
+    CompletableFuture<Response> post(String url, Map<String, String> headers, byte[] body);
+
+    /**
+     * POST the provided JSON body to the URL unless the deadline passes first, in which case the
+     * returned future fails with DEADLINE_EXCEEDED without the request being sent. Transports that
+     * queue requests override this to check the deadline once the request leaves the queue and to
+     * shorten their read timeout to the time remaining.
+     *
+     * @param url      Full URL of the endpoint.
+     * @param headers  Headers to add to the request in addition to the JSON content type.
+     * @param body     Serialized JSON request body.
+     * @param deadline Deadline of the operation, or null if it has none.
+     */
+    default CompletableFuture<Response> post(String url, Map<String, String> headers, byte[] body,
+            Deadline deadline) {
+        if (deadline != null && deadline.isExpired()) {
+            CompletableFuture<Response> expired = new CompletableFuture<>();
+            expired.completeExceptionally(Deadline.exceeded("sending the request"));
+            return expired;
+        }
+        return post(url, headers, body);
+    }
+
+    /**
+     * Get the current usage of the transport's connection pool. Transports without a pool report
+     * zeros.
+     */
+    default ConnectionPoolStats getConnectionPoolStats() {
+        return new ConnectionPoolStats(0, 0, 0, 0);
+    }
+
+    /**
+     * Status code and raw body of a response from the Tenant Security Proxy.
+     */
+    final class Response {
+        private final int statusCode;
+        private final byte[] body;
+
+        Response(int statusCode, byte[] body) {
+            this.statusCode = statusCode;
+            this.body = body == null ? new byte[0] : body;
+        }
+
+        int getStatusCode() {
+            return statusCode;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        boolean isSuccess() {
+            return statusCode >= 200 && statusCode < 300;
+        }
+    }
+}
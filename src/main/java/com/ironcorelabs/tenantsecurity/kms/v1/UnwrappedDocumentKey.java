@@ -1,22 +1,35 @@
 package com.ironcorelabs.tenantsecurity.kms.v1;
 
-import java.util.Base64;
-
-import com.google.api.client.util.Key;
-
 /**
  * Represents the JSON response object from the document/unwrap endpoint which
- * includes the dek.
+ * includes the dek, decoded from Base64 when the response is parsed and held off heap.
  */
 public class UnwrappedDocumentKey {
-    @Key
-    private String dek;
+    private final DocumentKey dek;
+
+    UnwrappedDocumentKey(byte[] dek) {
+        this(DocumentKey.moveFrom(dek));
+    }
+
+    UnwrappedDocumentKey(DocumentKey dek) {
+        this.dek = dek;
+    }
 
+    /**
+     * Get a copy of the DEK. The copy is not zeroed by the client.
+     */
     public byte[] getDekBytes() {
-        try {
-            return Base64.getDecoder().decode(this.dek);
-        } catch (IllegalArgumentException e) {
-            throw new IllegalArgumentException("Unwrap DEK response from the Tenant Security Proxy was not valid base64.");
-        }
+        return this.dek.getBytes();
+    }
+
+    DocumentKey getDocumentKey() {
+        return this.dek;
+    }
+
+    /**
+     * Zero the DEK once the key has been used or is being discarded.
+     */
+    void destroy() {
+        this.dek.close();
     }
-}
\ No newline at end of file
+}
@@ -1,30 +1,37 @@
 package com.ironcorelabs.tenantsecurity.kms.v1;
 
-import java.util.Base64;
-
-import com.google.api.client.util.Key;
-
 /**
- * A new DEK wrapped by the tenant's KMS and its encrypted form (EDEK), both in
- * Base64 format.
+ * A new DEK wrapped by the tenant's KMS and its encrypted form (EDEK). The DEK is decoded from
+ * Base64 when the response is parsed and held off heap; the EDEK stays in Base64 format.
  */
 public class WrappedDocumentKey {
-    @Key
-    private String dek;
+    private final DocumentKey dek;
+    private final String edek;
 
-    @Key
-    private String edek;
+    WrappedDocumentKey(byte[] dek, String edek) {
+        this.dek = DocumentKey.moveFrom(dek);
+        this.edek = edek;
+    }
 
+    /**
+     * Get a copy of the DEK. The copy is not zeroed by the client.
+     */
     public byte[] getDekBytes() {
-        try {
-            return Base64.getDecoder().decode(this.dek);
-        } catch (IllegalArgumentException e) {
-            throw new IllegalArgumentException(
-                    "Wrapped document key response from the Tenant Security Proxy was not valid base64.");
-        }
+        return this.dek.getBytes();
     }
 
     public String getEdek() {
         return this.edek;
     }
-}
\ No newline at end of file
+
+    DocumentKey getDocumentKey() {
+        return this.dek;
+    }
+
+    /**
+     * Zero the DEK once the key has been used or is being discarded.
+     */
+    void destroy() {
+        this.dek.close();
+    }
+}
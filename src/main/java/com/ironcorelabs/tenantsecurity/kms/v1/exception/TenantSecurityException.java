@@ -55,4 +55,23 @@ public class TenantSecurityException extends Exception {
     public int getHttpResponseCode() {
         return httpResponseCode;
     }
+
+    /**
+     * Whether the request that failed with this error may succeed if it is made again. True if the
+     * request couldn't be made at all (no HTTP response was received), if the TSP couldn't reach
+     * the tenant's KMS, or if a proxy in front of the TSP returned 502, 503 or 504. A response
+     * from the TSP that couldn't be parsed is not retryable. These are the errors that are retried
+     * when retries are enabled.
+     *
+     * @return True if the error is transient.
+     */
+    public boolean isRetryable() {
+        if (errorCode == TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST) {
+            return httpResponseCode == 0;
+        }
+        if (errorCode == TenantSecurityErrorCodes.UNKNOWN_ERROR) {
+            return httpResponseCode == 502 || httpResponseCode == 503 || httpResponseCode == 504;
+        }
+        return errorCode == TenantSecurityErrorCodes.KMS_UNREACHABLE;
+    }
 }
\ No newline at end of file
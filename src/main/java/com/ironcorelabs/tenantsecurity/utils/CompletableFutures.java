@@ -3,6 +3,7 @@ package com.ironcorelabs.tenantsecurity.utils;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 /**
@@ -10,11 +11,31 @@ import java.util.stream.Collectors;
  */
 public final class CompletableFutures {
     /**
-     * Convert a List of CompletableFutures into a CompletableFuture of a List.
+     * Convert a List of CompletableFutures into a CompletableFuture of a List. The List is built
+     * on the thread that completes the last future rather than on the common pool.
      */
     public static <T> CompletableFuture<List<T>> sequence(List<CompletableFuture<T>> futures) {
         return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]))
-                .thenApplyAsync(v -> futures.stream().map(future -> future.join()).collect(Collectors.<T>toList()));
+                .thenApply(v -> futures.stream().map(future -> future.join()).collect(Collectors.<T>toList()));
+    }
+
+    /**
+     * Cancel the upstream future when the downstream one is cancelled. Completion only flows
+     * forward through a chain of stages, so cancelling the future at the end of a chain otherwise
+     * leaves the work it depends on running.
+     *
+     * @param downstream Future which may be cancelled, usually one returned to a caller.
+     * @param upstream   Future for the work the downstream future is waiting on.
+     * @return The downstream future.
+     */
+    public static <T> CompletableFuture<T> propagateCancellation(CompletableFuture<T> downstream,
+            Future<?> upstream) {
+        downstream.whenComplete((value, error) -> {
+            if (downstream.isCancelled()) {
+                upstream.cancel(true);
+            }
+        });
+        return downstream;
     }
 
     /**
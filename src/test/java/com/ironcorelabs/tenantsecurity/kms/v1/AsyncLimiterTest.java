@@ -0,0 +1,83 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class AsyncLimiterTest {
+    public void limitsOperationsInFlight() {
+        AsyncLimiter limiter = new AsyncLimiter(2);
+        List<CompletableFuture<Integer>> started = new ArrayList<>();
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(limiter.submit(() -> {
+                CompletableFuture<Integer> operation = new CompletableFuture<>();
+                started.add(operation);
+                return operation;
+            }));
+        }
+        assertEquals(started.size(), 2);
+        assertEquals(limiter.getQueueDepth(), 3);
+
+        started.get(0).complete(0);
+        assertTrue(results.get(0).isDone());
+        assertEquals(started.size(), 3);
+        started.get(1).completeExceptionally(new RuntimeException("failed"));
+        assertTrue(results.get(1).isCompletedExceptionally());
+        assertEquals(started.size(), 4);
+        assertFalse(results.get(4).isDone());
+        assertEquals(limiter.getQueueDepth(), 1);
+    }
+
+    public void synchronousOperationsDoNotRecurse() {
+        AsyncLimiter limiter = new AsyncLimiter(1);
+        CompletableFuture<Integer> blocker = new CompletableFuture<>();
+        limiter.submit(() -> blocker);
+        AtomicInteger completed = new AtomicInteger();
+        // Enough queued operations to overflow the stack if each completion recursed
+        for (int i = 0; i < 100000; i++) {
+            limiter.submit(() -> CompletableFuture.completedFuture(1))
+                    .thenRun(completed::incrementAndGet);
+        }
+        blocker.complete(0);
+        assertEquals(completed.get(), 100000);
+        assertEquals(limiter.getQueueDepth(), 0);
+    }
+
+    public void operationThatThrowsReleasesItsPermit() {
+        AsyncLimiter limiter = new AsyncLimiter(1);
+        CompletableFuture<Integer> failed = limiter.submit(() -> {
+            throw new IllegalStateException("failed");
+        });
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(limiter.submit(() -> CompletableFuture.completedFuture(1)).join(),
+                Integer.valueOf(1));
+    }
+
+    public void cancelledOperationsAreDroppedOrCancelled() {
+        AsyncLimiter limiter = new AsyncLimiter(1);
+        CompletableFuture<Integer> running = new CompletableFuture<>();
+        CompletableFuture<Integer> first = limiter.submit(() -> running);
+        AtomicInteger started = new AtomicInteger();
+        CompletableFuture<Integer> queued = limiter.submit(() -> {
+            started.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        assertEquals(limiter.getQueueDepth(), 1);
+
+        queued.cancel(true);
+        assertEquals(limiter.getQueueDepth(), 0);
+        first.cancel(true);
+        assertTrue(running.isCancelled());
+        // The cancelled operation's permit was released and the dropped one never started
+        assertEquals(limiter.submit(() -> CompletableFuture.completedFuture(1)).join(),
+                Integer.valueOf(1));
+        assertEquals(started.get(), 0);
+    }
+}
@@ -0,0 +1,150 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class ClientMetricsTest {
+    private final DocumentMetadata metadata = new DocumentMetadata("tenant", "service", "label");
+
+    /**
+     * Records every call as a string so tests can assert on what was measured.
+     */
+    private static final class RecordingMetrics implements ClientMetrics {
+        final List<String> requests = new CopyOnWriteArrayList<>();
+        final List<String> errors = new CopyOnWriteArrayList<>();
+        final List<String> batchSizes = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void tspRequest(Endpoint endpoint, long latencyNanos,
+                TenantSecurityErrorCodes error) {
+            assertTrue(latencyNanos >= 0);
+            requests.add(endpoint + " " + error);
+        }
+
+        @Override
+        public void batchSize(Endpoint endpoint, int documents) {
+            batchSizes.add(endpoint + " " + documents);
+        }
+
+        @Override
+        public void error(Endpoint endpoint, TenantSecurityErrorCodes error) {
+            errors.add(endpoint + " " + error);
+        }
+    }
+
+    private static TspTransport respondWith(int status, String body) {
+        return new TspTransport() {
+            @Override
+            public CompletableFuture<Response> post(String url, Map<String, String> headers,
+                    byte[] requestBody) {
+                return CompletableFuture.completedFuture(
+                        new Response(status, body.getBytes(StandardCharsets.UTF_8)));
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    private TenantSecurityRequest request(TspTransport transport, ClientMetrics metrics) {
+        return new TenantSecurityRequest("http://localhost", "apiKey", transport, null, null, null,
+                metrics);
+    }
+
+    public void recordsRequestLatencyAndErrors() throws Exception {
+        RecordingMetrics metrics = new RecordingMetrics();
+        request(respondWith(200, "{\"dek\":\"AQID\",\"edek\":\"edek\"}"), metrics)
+                .wrapKey(metadata).get();
+        try {
+            request(respondWith(500, "{\"code\":202,\"message\":\"KMS unreachable\"}"), metrics)
+                    .unwrapKey("edek", metadata).get();
+            fail("Unwrap should have failed.");
+        } catch (ExecutionException e) {
+            // Expected
+        }
+        TenantSecurityErrorCodes kmsError = TenantSecurityErrorCodes.valueOf(202);
+        assertEquals(metrics.requests, Arrays.asList("WRAP null", "UNWRAP " + kmsError));
+        assertEquals(metrics.errors, Arrays.asList("UNWRAP " + kmsError));
+    }
+
+    public void recordsBatchSizeAndFailedDocuments() throws Exception {
+        RecordingMetrics metrics = new RecordingMetrics();
+        BatchWrappedDocumentKeys keys = request(respondWith(200,
+                "{\"keys\":{\"a\":{\"dek\":\"AQID\",\"edek\":\"edek\"}},"
+                        + "\"failures\":{\"b\":{\"code\":202,\"message\":\"KMS unreachable\"}}}"),
+                metrics).batchWrapKeys(Arrays.asList("a", "b"), metadata).get();
+        assertEquals(keys.getKeys().size(), 1);
+        assertEquals(metrics.batchSizes, Arrays.asList("BATCH_WRAP 2"));
+        assertEquals(metrics.requests, Arrays.asList("BATCH_WRAP null"));
+        assertEquals(metrics.errors,
+                Arrays.asList("BATCH_WRAP " + TenantSecurityErrorCodes.valueOf(202)));
+    }
+
+    public void micrometerRecordsToRegistry() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ClientMetrics metrics = new MicrometerClientMetrics(registry);
+        metrics.tspRequest(ClientMetrics.Endpoint.WRAP, 1_000_000, null);
+        metrics.tspRequest(ClientMetrics.Endpoint.WRAP, 3_000_000, null);
+        metrics.queueWait(ClientMetrics.WorkQueue.CRYPTO, 1000);
+        metrics.batchSize(ClientMetrics.Endpoint.BATCH_UNWRAP, 25);
+        metrics.error(ClientMetrics.Endpoint.UNWRAP, TenantSecurityErrorCodes.DEADLINE_EXCEEDED);
+        metrics.crypto(ClientMetrics.CryptoOperation.ENCRYPT, 4096, 2000);
+        metrics.connectionPool(() -> new ConnectionPoolStats(3, 1, 2, 10));
+
+        assertEquals(registry.get("tenant_security.tsp.requests").tag("endpoint", "wrap")
+                .tag("outcome", "success").timer().count(), 2);
+        assertEquals(registry.get("tenant_security.queue.wait").tag("queue", "crypto").timer()
+                .count(), 1);
+        assertEquals(registry.get("tenant_security.tsp.batch.size")
+                .tag("endpoint", "batch_unwrap").summary().totalAmount(), 25.0);
+        assertEquals(registry.get("tenant_security.errors").tag("code", "deadline_exceeded")
+                .counter().count(), 1.0);
+        assertEquals(registry.get("tenant_security.crypto.bytes").tag("operation", "encrypt")
+                .counter().count(), 4096.0);
+        assertEquals(registry.get("tenant_security.connections.leased").gauge().value(), 3.0);
+        assertEquals(registry.get("tenant_security.connections.max").gauge().value(), 10.0);
+    }
+
+    public void connectionPoolGaugesArePerTransport() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ClientMetrics metrics = new MicrometerClientMetrics(registry);
+        TspTransport first = new BlockingHttpTransport(Executors.newFixedThreadPool(1), true, 4,
+                5000, 5000, 0, 0, null, metrics);
+        TspTransport second = new BlockingHttpTransport(Executors.newFixedThreadPool(1), true, 6,
+                5000, 5000, 0, 0, null, metrics);
+        assertEquals(registry.find("tenant_security.connections.max").gauges().stream()
+                .mapToDouble(Gauge::value).sum(), 10.0);
+
+        first.close();
+        assertEquals(registry.get("tenant_security.connections.max").gauge().value(), 6.0);
+        second.close();
+        assertTrue(registry.find("tenant_security.connections.max").gauges().isEmpty());
+    }
+
+    public void transportsReportConnectionPool() throws Exception {
+        try (TspTransport blocking = new BlockingHttpTransport(4, 5000);
+                TspTransport http2 =
+                        new AsyncHttpTransport(new AsyncTransportConfig(8, 1, true), 5000)) {
+            ConnectionPoolStats stats = blocking.getConnectionPoolStats();
+            assertEquals(stats.getMax(), 4);
+            assertEquals(stats.getLeased(), 0);
+            stats = http2.getConnectionPoolStats();
+            assertEquals(stats.getMax(), 8);
+            assertEquals(stats.getAvailable(), 8);
+            assertEquals(stats.getUtilization(), 0.0);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.spec.SecretKeySpec;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class CryptoUtilsTest {
+    private SecureRandom secureRandom = new SecureRandom();
+
+    private SecretKeySpec getRandomKey() {
+        return CryptoUtils.aesKey(getRandomBytes(32));
+    }
+
+    private byte[] getRandomBytes(int length) {
+        byte[] bytes = new byte[length];
+        secureRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    public void encryptStreamDecryptsWithDecryptBytes() throws Exception {
+        SecretKeySpec key = getRandomKey();
+        // Span a few chunks so the loop is exercised
+        byte[] plaintext = getRandomBytes(CryptoUtils.STREAM_CHUNK_SIZE * 3 + 17);
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        CryptoUtils.encryptStream(new ByteArrayInputStream(plaintext), encrypted, key,
+                secureRandom);
+        byte[] encryptedBytes = encrypted.toByteArray();
+        assertTrue(CryptoUtils.isCiphertext(encryptedBytes));
+
+        byte[] decrypted = CryptoUtils.parseDocumentParts(encryptedBytes)
+                .thenCompose(parts -> CryptoUtils.decryptBytes(parts, key)).get();
+        assertEquals(decrypted, plaintext);
+    }
+
+    public void encryptBytesDecryptsWithDecryptStream() throws Exception {
+        SecretKeySpec key = getRandomKey();
+        byte[] plaintext = getRandomBytes(1000);
+
+        byte[] encryptedBytes = CryptoUtils.encryptBytes(plaintext, key, secureRandom).get();
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        CryptoUtils.decryptStream(new ByteArrayInputStream(encryptedBytes), decrypted, key);
+        assertEquals(decrypted.toByteArray(), plaintext);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void decryptStreamRejectsNonIronCoreBytes() throws Exception {
+        CryptoUtils.decryptStream(new ByteArrayInputStream(getRandomBytes(100)),
+                new ByteArrayOutputStream(), getRandomKey());
+    }
+
+    @Test(expectedExceptions = javax.crypto.AEADBadTagException.class)
+    public void decryptStreamFailsWithWrongKey() throws Exception {
+        byte[] encryptedBytes =
+                CryptoUtils.encryptBytes(getRandomBytes(100), getRandomKey(), secureRandom)
+                        .get();
+        CryptoUtils.decryptStream(new ByteArrayInputStream(encryptedBytes),
+                new ByteArrayOutputStream(), getRandomKey());
+    }
+
+    public void segmentedRoundtrip() throws Exception {
+        SecretKeySpec key = getRandomKey();
+        for (int length : new int[] {0, 1, 99, 100, 101, 1000}) {
+            byte[] plaintext = getRandomBytes(length);
+            byte[] encrypted = CryptoUtils.encryptSegmented(plaintext, key, secureRandom, 100);
+            assertTrue(CryptoUtils.isCiphertext(encrypted));
+            assertEquals(CryptoUtils.decryptDocument(encrypted, key).get(), plaintext);
+
+            ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+            CryptoUtils.decryptStream(new ByteArrayInputStream(encrypted), decrypted, key);
+            assertEquals(decrypted.toByteArray(), plaintext);
+        }
+    }
+
+    public void segmentedRangeSpansSegments() throws Exception {
+        SecretKeySpec key = getRandomKey();
+        byte[] plaintext = getRandomBytes(1000);
+        byte[] encrypted = CryptoUtils.encryptSegmented(plaintext, key, secureRandom, 64);
+
+        assertEquals(CryptoUtils.decryptSegmentedRange(encrypted, key, 0, 10),
+                Arrays.copyOfRange(plaintext, 0, 10));
+        assertEquals(CryptoUtils.decryptSegmentedRange(encrypted, key, 60, 200),
+                Arrays.copyOfRange(plaintext, 60, 260));
+        assertEquals(CryptoUtils.decryptSegmentedRange(encrypted, key, 128, 64),
+                Arrays.copyOfRange(plaintext, 128, 192));
+        // Ranges past the end are truncated
+        assertEquals(CryptoUtils.decryptSegmentedRange(encrypted, key, 990, 100),
+                Arrays.copyOfRange(plaintext, 990, 1000));
+        assertEquals(CryptoUtils.decryptSegmentedRange(encrypted, key, 1000, 100).length, 0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void segmentedRangeRejectsOffsetPastEnd() throws Exception {
+        SecretKeySpec key = getRandomKey();
+        byte[] encrypted =
+                CryptoUtils.encryptSegmented(getRandomBytes(100), key, secureRandom, 64);
+        CryptoUtils.decryptSegmentedRange(encrypted, key, 101, 1);
+    }
+
+    @Test(expectedExceptions = javax.crypto.AEADBadTagException.class)
+    public void segmentedTruncationIsDetected() throws Exception {
+        SecretKeySpec key = getRandomKey();
+        byte[] encrypted =
+                CryptoUtils.encryptSegmented(getRandomBytes(256), key, secureRandom, 64);
+        // Drop the final segment, leaving what looks like a complete document
+        byte[] truncated = Arrays.copyOf(encrypted, encrypted.length - (64 + 16));
+        CryptoUtils.decryptSegmented(truncated, key);
+    }
+
+    @Test(expectedExceptions = javax.crypto.AEADBadTagException.class)
+    public void segmentedHeaderIsAuthenticated() throws Exception {
+        SecretKeySpec key = getRandomKey();
+        byte[] encrypted =
+                CryptoUtils.encryptSegmented(getRandomBytes(256), key, secureRandom, 64);
+        // Change the segment size from 64 to 80
+        encrypted[10] = 80;
+        CryptoUtils.decryptSegmentedRange(encrypted, key, 0, 1);
+    }
+
+    public void reusedCipherRecoversAfterFailedDecrypt() throws Exception {
+        SecretKeySpec key = getRandomKey();
+        byte[] plaintext = getRandomBytes(100);
+        byte[] encrypted = CryptoUtils.encryptBytes(plaintext, key, secureRandom).get();
+        try {
+            CryptoUtils.decryptDocument(encrypted, getRandomKey()).join();
+            fail("Decrypting with the wrong key should fail.");
+        } catch (java.util.concurrent.CompletionException e) {
+            assertTrue(e.getCause() instanceof javax.crypto.AEADBadTagException);
+        }
+        // The same thread's cipher is re-initialized and works for the next call
+        assertEquals(CryptoUtils.decryptDocument(encrypted, key).get(), plaintext);
+        assertTrue(CryptoUtils.getCipher() == CryptoUtils.getCipher());
+    }
+
+    public void bufferRoundtripHeapAndDirect() throws Exception {
+        SecretKeySpec key = getRandomKey();
+        byte[] plaintext = getRandomBytes(500);
+        int encryptedLength = CryptoUtils.encryptedLength(plaintext.length);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(encryptedLength + 10);
+        direct.position(10);
+        ByteBuffer input = ByteBuffer.wrap(plaintext);
+        assertEquals(CryptoUtils.encryptBuffer(input, direct, key, secureRandom), encryptedLength);
+        assertEquals(input.remaining(), 0);
+        assertEquals(direct.remaining(), 0);
+
+        // The buffer output is the same format as encryptBytes
+        direct.position(10);
+        byte[] encrypted = new byte[encryptedLength];
+        direct.duplicate().get(encrypted);
+        assertTrue(CryptoUtils.isCiphertext(encrypted));
+        assertEquals(CryptoUtils.decryptDocument(encrypted, key).get(), plaintext);
+
+        ByteBuffer decrypted = ByteBuffer.allocate(plaintext.length);
+        assertEquals(CryptoUtils.decryptBuffer(direct, decrypted, key), plaintext.length);
+        assertEquals(decrypted.array(), plaintext);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void encryptBufferRejectsShortOutput() throws Exception {
+        CryptoUtils.encryptBuffer(ByteBuffer.wrap(getRandomBytes(100)),
+                ByteBuffer.allocate(CryptoUtils.encryptedLength(100) - 1), getRandomKey(),
+                secureRandom);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void decryptBufferRejectsSegmentedDocuments() throws Exception {
+        SecretKeySpec key = getRandomKey();
+        byte[] encrypted = CryptoUtils.encryptSegmented(getRandomBytes(100), key, secureRandom, 64);
+        CryptoUtils.decryptBuffer(ByteBuffer.wrap(encrypted), ByteBuffer.allocate(100), key);
+    }
+}
@@ -0,0 +1,156 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TenantSecurityException;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TspServiceException;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class DeadlineTest {
+    private final DocumentMetadata metadata = new DocumentMetadata("tenant", "service", "label");
+
+    /**
+     * Transport that counts requests and fails each one as if the TSP couldn't be reached.
+     */
+    private static TspTransport unreachable(AtomicInteger calls) {
+        return new TspTransport() {
+            @Override
+            public CompletableFuture<Response> post(String url, Map<String, String> headers,
+                    byte[] body) {
+                calls.incrementAndGet();
+                CompletableFuture<Response> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new java.net.ConnectException("Connection refused"));
+                return failed;
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    private static TenantSecurityErrorCodes errorCode(CompletableFuture<?> future)
+            throws InterruptedException {
+        try {
+            future.get();
+            fail("Request should have failed");
+            return null;
+        } catch (ExecutionException e) {
+            return ((TenantSecurityException) e.getCause()).getErrorCode();
+        }
+    }
+
+    public void expiredDeadlineIsNotSent() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        TenantSecurityRequest request =
+                new TenantSecurityRequest("http://localhost", "apiKey", unreachable(calls));
+        assertEquals(errorCode(request.wrapKey(metadata, Deadline.after(0, TimeUnit.SECONDS))),
+                TenantSecurityErrorCodes.DEADLINE_EXCEEDED);
+        assertEquals(calls.get(), 0);
+    }
+
+    public void retryNotScheduledPastDeadline() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        // Backoffs are picked up to a second, so most are past the deadline and must be skipped
+        Retrier retrier = new Retrier(new RetryConfig(3, 1000, 1000, 1, 10), scheduler, true);
+        try (TenantSecurityRequest request = new TenantSecurityRequest("http://localhost",
+                "apiKey", unreachable(calls), retrier, null, null, ClientMetrics.NONE)) {
+            long start = System.nanoTime();
+            TenantSecurityErrorCodes code =
+                    errorCode(request.wrapKey(metadata, Deadline.after(200, TimeUnit.MILLISECONDS)));
+            // A short enough backoff may still be taken, but never one past the deadline
+            assertTrue(code == TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST
+                    || code == TenantSecurityErrorCodes.DEADLINE_EXCEEDED);
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+        } finally {
+            retrier.close();
+        }
+    }
+
+    public void requestExpiredWhileQueuedIsDropped() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        BlockingHttpTransport transport =
+                new BlockingHttpTransport(executor, true, 1, 5000, 5000, 0, 0, null,
+                        ClientMetrics.NONE);
+        try {
+            // Nothing listens on port 1, so the request would fail differently if it were sent
+            CompletableFuture<TspTransport.Response> response = transport.post(
+                    "http://localhost:1/api/1/document/wrap", java.util.Collections.emptyMap(),
+                    new byte[0], Deadline.after(20, TimeUnit.MILLISECONDS));
+            Thread.sleep(50);
+            release.countDown();
+            try {
+                response.get();
+                fail("Request should have expired in the queue");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TspServiceException);
+                assertEquals(((TspServiceException) e.getCause()).getErrorCode(),
+                        TenantSecurityErrorCodes.DEADLINE_EXCEEDED);
+            }
+        } finally {
+            transport.close();
+        }
+    }
+
+    public void readTimeoutShortenedToDeadline() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/api/1/document/wrap", exchange -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "{\"dek\":\"AQID\",\"edek\":\"edek\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        String domain = "http://localhost:" + server.getAddress().getPort();
+        try (TenantSecurityRequest request = new TenantSecurityRequest(domain, "apiKey",
+                new BlockingHttpTransport(1, 20000))) {
+            long start = System.nanoTime();
+            assertEquals(
+                    errorCode(request.wrapKey(metadata, Deadline.after(200, TimeUnit.MILLISECONDS))),
+                    TenantSecurityErrorCodes.DEADLINE_EXCEEDED);
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    public void timeoutCappedByTimeRemaining() {
+        assertEquals(Deadline.timeoutMillis(null, 20000), 20000);
+        int capped = Deadline.timeoutMillis(Deadline.after(100, TimeUnit.MILLISECONDS), 20000);
+        assertTrue(capped > 0 && capped <= 100);
+        // A configured timeout of 0 means none, so the time remaining is used instead
+        int unlimited = Deadline.timeoutMillis(Deadline.after(1, TimeUnit.HOURS), 0);
+        assertTrue(unlimited > 0 && unlimited <= TimeUnit.HOURS.toMillis(1));
+        assertEquals(Deadline.timeoutMillis(Deadline.after(0, TimeUnit.SECONDS), 20000), 1);
+    }
+}
@@ -0,0 +1,98 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class DekCacheTest {
+    private static final long MILLIS = 1000000;
+    private final byte[] dek = {1, 2, 3, 4};
+
+    private DocumentKey key() {
+        return DocumentKey.moveFrom(dek.clone());
+    }
+
+    private static byte[] bytes(DocumentKey key) {
+        return key == null ? null : key.getBytes();
+    }
+
+    public void hitsAndMissesAreCounted() {
+        DekCache cache = new DekCache(new DekCacheConfig(10, 1000));
+        assertNull(cache.get("tenant", "edek"));
+        cache.put("tenant", "edek", key());
+        assertEquals(bytes(cache.get("tenant", "edek")), dek);
+        assertEquals(bytes(cache.get("tenant", "edek")), dek);
+
+        DekCacheStats stats = cache.getStats();
+        assertEquals(stats.getHits(), 2);
+        assertEquals(stats.getMisses(), 1);
+        assertEquals(stats.getSize(), 1);
+    }
+
+    public void entriesAreScopedByTenant() {
+        DekCache cache = new DekCache(new DekCacheConfig(10, 1000));
+        cache.put("tenant", "edek", key());
+        assertNull(cache.get("otherTenant", "edek"));
+    }
+
+    public void callersGetCopies() {
+        DekCache cache = new DekCache(new DekCacheConfig(10, 1000));
+        DocumentKey original = key();
+        cache.put("tenant", "edek", original);
+        original.close();
+        DocumentKey cached = cache.get("tenant", "edek");
+        assertEquals(cached.getBytes(), dek);
+        cached.close();
+        assertEquals(bytes(cache.get("tenant", "edek")), dek);
+    }
+
+    public void entriesExpire() {
+        AtomicLong clock = new AtomicLong();
+        DekCache cache = new DekCache(new DekCacheConfig(10, 100), clock::get);
+        cache.put("tenant", "edek", key());
+        clock.set(99 * MILLIS);
+        assertEquals(bytes(cache.get("tenant", "edek")), dek);
+        clock.set(100 * MILLIS);
+        assertNull(cache.get("tenant", "edek"));
+        assertEquals(cache.getStats().getEvictions(), 1);
+        assertEquals(cache.getStats().getSize(), 0);
+    }
+
+    public void evictExpiredRemovesOnlyExpiredEntries() {
+        AtomicLong clock = new AtomicLong();
+        DekCache cache = new DekCache(new DekCacheConfig(10, 100), clock::get);
+        cache.put("tenant", "old", key());
+        clock.set(50 * MILLIS);
+        cache.put("tenant", "new", key());
+        clock.set(120 * MILLIS);
+        cache.evictExpired();
+        assertEquals(cache.getStats().getSize(), 1);
+        assertEquals(bytes(cache.get("tenant", "new")), dek);
+    }
+
+    public void leastRecentlyUsedEntryIsEvicted() {
+        DekCache cache = new DekCache(new DekCacheConfig(2, 1000));
+        cache.put("tenant", "one", key());
+        cache.put("tenant", "two", key());
+        // Touch "one" so "two" is the least recently used
+        cache.get("tenant", "one");
+        cache.put("tenant", "three", key());
+
+        assertNull(cache.get("tenant", "two"));
+        assertEquals(bytes(cache.get("tenant", "one")), dek);
+        assertEquals(bytes(cache.get("tenant", "three")), dek);
+        assertEquals(cache.getStats().getEvictions(), 1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidMaxEntries() {
+        new DekCacheConfig(0, 1000);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidTtl() {
+        new DekCacheConfig(10, 0);
+    }
+}
@@ -0,0 +1,176 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class DekPoolTest {
+    private static final long MILLIS = 1000000;
+    private final DocumentMetadata metadata = new DocumentMetadata("tenant", "service", "label");
+
+    /**
+     * Fake batch wrap which records each request and leaves it pending until completed by the test.
+     */
+    private static final class FakeBatchWrap {
+        private final List<CompletableFuture<BatchWrappedDocumentKeys>> pending = new ArrayList<>();
+        private final List<Integer> requestSizes = new ArrayList<>();
+        private final AtomicInteger edekCounter = new AtomicInteger();
+
+        CompletableFuture<BatchWrappedDocumentKeys> batchWrap(Collection<String> ids,
+                DocumentMetadata metadata) {
+            CompletableFuture<BatchWrappedDocumentKeys> future = new CompletableFuture<>();
+            pending.add(future);
+            requestSizes.add(ids.size());
+            return future;
+        }
+
+        void completeNext() {
+            int count = requestSizes.get(requestSizes.size() - pending.size());
+            Map<String, WrappedDocumentKey> keys = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                keys.put(Integer.toString(i), new WrappedDocumentKey(new byte[] {1, 2, 3},
+                        "edek" + edekCounter.getAndIncrement()));
+            }
+            pending.remove(0).complete(new BatchWrappedDocumentKeys(keys, new HashMap<>()));
+        }
+
+        void failNext() {
+            pending.remove(0).completeExceptionally(new RuntimeException("TSP down"));
+        }
+    }
+
+    public void emptyPoolFallsBackAndRefills() {
+        FakeBatchWrap fake = new FakeBatchWrap();
+        DekPool pool = new DekPool(new DekPoolConfig(4, 2, 1000), fake::batchWrap);
+
+        assertNull(pool.take(metadata));
+        assertEquals(fake.requestSizes, java.util.Arrays.asList(4));
+        // Only one refill in flight per tenant
+        assertNull(pool.take(metadata));
+        assertEquals(fake.requestSizes.size(), 1);
+
+        fake.completeNext();
+        assertEquals(pool.getStats().getSize(), 4);
+        WrappedDocumentKey key = pool.take(metadata);
+        assertNotNull(key);
+        assertEquals(key.getDekBytes(), new byte[] {1, 2, 3});
+
+        DekPoolStats stats = pool.getStats();
+        assertEquals(stats.getHits(), 1);
+        assertEquals(stats.getExhaustions(), 2);
+        assertEquals(stats.getSize(), 3);
+    }
+
+    public void refillsBelowThresholdUpToPoolSize() {
+        FakeBatchWrap fake = new FakeBatchWrap();
+        DekPool pool = new DekPool(new DekPoolConfig(4, 2, 1000), fake::batchWrap);
+        pool.take(metadata);
+        fake.completeNext();
+
+        pool.take(metadata);
+        pool.take(metadata);
+        assertEquals(fake.requestSizes.size(), 1);
+        // Dropping to 1 key is below the threshold of 2
+        pool.take(metadata);
+        assertEquals(fake.requestSizes, java.util.Arrays.asList(4, 3));
+    }
+
+    public void keysAreNotReused() {
+        FakeBatchWrap fake = new FakeBatchWrap();
+        DekPool pool = new DekPool(new DekPoolConfig(3, 1, 1000), fake::batchWrap);
+        pool.take(metadata);
+        fake.completeNext();
+        String first = pool.take(metadata).getEdek();
+        String second = pool.take(metadata).getEdek();
+        assertEquals(first.equals(second), false);
+    }
+
+    public void poolsArePerTenant() {
+        FakeBatchWrap fake = new FakeBatchWrap();
+        DekPool pool = new DekPool(new DekPoolConfig(2, 1, 1000), fake::batchWrap);
+        pool.take(metadata);
+        fake.completeNext();
+        assertNull(pool.take(new DocumentMetadata("otherTenant", "service", "label")));
+        assertEquals(fake.requestSizes.size(), 2);
+    }
+
+    public void expiredKeysAreDiscardedAndZeroed() {
+        AtomicLong clock = new AtomicLong();
+        FakeBatchWrap fake = new FakeBatchWrap();
+        DekPool pool = new DekPool(new DekPoolConfig(2, 1, 100), fake::batchWrap, clock::get);
+        pool.take(metadata);
+        fake.completeNext();
+
+        clock.addAndGet(100 * MILLIS);
+        assertNull(pool.take(metadata));
+        DekPoolStats stats = pool.getStats();
+        assertEquals(stats.getExpired(), 2);
+        assertEquals(stats.getSize(), 0);
+    }
+
+    public void sweepZeroesExpiredKeysAndDropsIdlePools() {
+        AtomicLong clock = new AtomicLong();
+        FakeBatchWrap fake = new FakeBatchWrap();
+        DekPool pool = new DekPool(new DekPoolConfig(2, 1, 100), fake::batchWrap, clock::get);
+        pool.take(metadata);
+        fake.completeNext();
+        WrappedDocumentKey pooled = pool.take(metadata);
+
+        clock.addAndGet(50 * MILLIS);
+        pool.evictExpired();
+        assertEquals(pool.getStats().getSize(), 1);
+        assertEquals(pool.getTenantCount(), 1);
+
+        // The tenant stopped encrypting, so its remaining key is zeroed and its pool dropped
+        clock.addAndGet(50 * MILLIS);
+        pool.evictExpired();
+        DekPoolStats stats = pool.getStats();
+        assertEquals(stats.getExpired(), 1);
+        assertEquals(stats.getSize(), 0);
+        assertEquals(pool.getTenantCount(), 0);
+        // Keys already handed out aren't touched
+        assertEquals(pooled.getDekBytes(), new byte[] {1, 2, 3});
+    }
+
+    public void failedRefillBacksOff() {
+        AtomicLong clock = new AtomicLong();
+        FakeBatchWrap fake = new FakeBatchWrap();
+        DekPool pool = new DekPool(new DekPoolConfig(2, 1, 100000), fake::batchWrap, clock::get);
+        pool.take(metadata);
+        fake.failNext();
+        assertEquals(pool.getStats().getRefillFailures(), 1);
+
+        pool.take(metadata);
+        assertEquals(fake.requestSizes.size(), 1);
+        clock.addAndGet(DekPool.REFILL_FAILURE_BACKOFF_MILLIS * MILLIS);
+        pool.take(metadata);
+        assertEquals(fake.requestSizes.size(), 2);
+    }
+
+    public void closeZeroesPooledKeys() {
+        FakeBatchWrap fake = new FakeBatchWrap();
+        DekPool pool = new DekPool(new DekPoolConfig(2, 1, 1000), fake::batchWrap);
+        pool.take(metadata);
+        fake.completeNext();
+        pool.close();
+        assertEquals(pool.getStats().getSize(), 0);
+        // No refills after close
+        assertNull(pool.take(metadata));
+        assertEquals(fake.requestSizes.size(), 1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void configRejectsThresholdAbovePoolSize() {
+        new DekPoolConfig(2, 3, 1000);
+    }
+}
@@ -0,0 +1,165 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class DocumentKeyTest {
+    private final DocumentMetadata metadata = new DocumentMetadata("tenant", "service", "label");
+    private final List<DocumentKey> unwrapped = new ArrayList<>();
+
+    @BeforeMethod
+    public void clearUnwrapped() {
+        unwrapped.clear();
+    }
+
+    /**
+     * Unwrap a key through a transport that responds with the provided future, keeping hold of the
+     * key so the tests can check whether it was zeroed.
+     */
+    private CompletableFuture<DocumentKey> unwrap(
+            CompletableFuture<TspTransport.Response> response) {
+        TspTransport transport = new TspTransport() {
+            @Override
+            public CompletableFuture<Response> post(String url, Map<String, String> headers,
+                    byte[] body) {
+                return response;
+            }
+
+            @Override
+            public void close() {}
+        };
+        CompletableFuture<DocumentKey> key = new TenantSecurityRequest("http://localhost",
+                "apiKey", transport, null, null, null, ClientMetrics.NONE)
+                        .unwrapKey("edek", metadata);
+        key.thenAccept(unwrapped::add);
+        return key;
+    }
+
+    private static TspTransport.Response unwrapResponse() {
+        return new TspTransport.Response(200,
+                "{\"dek\":\"AQID\"}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void moveFromZeroesTheSource() {
+        byte[] dek = {1, 2, 3, 4};
+        DocumentKey key = DocumentKey.moveFrom(dek);
+        assertEquals(dek, new byte[4]);
+        assertEquals(key.getBytes(), new byte[] {1, 2, 3, 4});
+        assertEquals(key.aesKey().getEncoded(), new byte[] {1, 2, 3, 4});
+    }
+
+    public void copiesCloseIndependently() {
+        DocumentKey key = DocumentKey.moveFrom(new byte[] {1, 2, 3, 4});
+        DocumentKey copy = key.copy();
+        key.close();
+        assertEquals(copy.getBytes(), new byte[] {1, 2, 3, 4});
+        copy.close();
+        // Closing again has no effect
+        copy.close();
+    }
+
+    public void closedKeysCantBeUsed() {
+        DocumentKey key = DocumentKey.moveFrom(new byte[] {1, 2, 3, 4});
+        key.close();
+        try {
+            key.aesKey();
+            fail("A closed key shouldn't be usable.");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void keyResponsesAreDestroyed() {
+        WrappedDocumentKey wrapped = new WrappedDocumentKey(new byte[] {1, 2, 3}, "edek");
+        assertEquals(wrapped.getDekBytes(), new byte[] {1, 2, 3});
+        wrapped.destroy();
+        try {
+            wrapped.getDekBytes();
+            fail("A destroyed key shouldn't be usable.");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void keyIsZeroedAfterTheCrypto() throws Exception {
+        byte[] dek = TenantSecurityClient.afterKey(
+                unwrap(CompletableFuture.completedFuture(unwrapResponse())), Runnable::run,
+                DocumentKey::close, DocumentKey::getBytes).get();
+        assertEquals(dek, new byte[] {1, 2, 3});
+        assertTrue(unwrapped.get(0).isClosed());
+    }
+
+    public void keyIsZeroedWhenTheCryptoFails() throws Exception {
+        CompletableFuture<byte[]> result = TenantSecurityClient.afterKey(
+                unwrap(CompletableFuture.completedFuture(unwrapResponse())), Runnable::run,
+                DocumentKey::close, key -> {
+                    throw new IllegalArgumentException("Bad document");
+                });
+        try {
+            result.get();
+            fail("The crypto failure should fail the operation.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        assertTrue(unwrapped.get(0).isClosed());
+    }
+
+    public void keyIsZeroedWhenCancelledBeforeTheCrypto() throws Exception {
+        List<Runnable> queued = new ArrayList<>();
+        AtomicBoolean ran = new AtomicBoolean();
+        CompletableFuture<TspTransport.Response> response = new CompletableFuture<>();
+        CompletableFuture<byte[]> result = TenantSecurityClient.afterKey(unwrap(response),
+                queued::add, DocumentKey::close, key -> {
+                    ran.set(true);
+                    return key.getBytes();
+                });
+        // The key arrives but its crypto is still queued when the caller cancels
+        response.complete(unwrapResponse());
+        result.cancel(true);
+        assertTrue(unwrapped.get(0).isClosed());
+        queued.forEach(Runnable::run);
+        assertFalse(ran.get());
+    }
+
+    public void runningCryptoKeepsItsKeyWhenCancelled() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<byte[]> read = new CompletableFuture<>();
+        CompletableFuture<Object> result = TenantSecurityClient.afterKey(
+                unwrap(CompletableFuture.completedFuture(unwrapResponse())),
+                task -> new Thread(task).start(), DocumentKey::close, key -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    read.complete(key.getBytes());
+                    return null;
+                });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        result.cancel(true);
+        assertFalse(unwrapped.get(0).isClosed());
+        release.countDown();
+        assertEquals(read.get(5, TimeUnit.SECONDS), new byte[] {1, 2, 3});
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!unwrapped.get(0).isClosed() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(unwrapped.get(0).isClosed());
+    }
+}
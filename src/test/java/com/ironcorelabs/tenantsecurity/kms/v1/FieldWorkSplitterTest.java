@@ -0,0 +1,128 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class FieldWorkSplitterTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterClass
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static byte[] reversed(byte[] field) {
+        byte[] out = new byte[field.length];
+        for (int i = 0; i < field.length; i++) {
+            out[i] = field[field.length - 1 - i];
+        }
+        return out;
+    }
+
+    private static Map<String, byte[]> fields(int count, int size) {
+        Map<String, byte[]> fields = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            byte[] field = new byte[size];
+            for (int j = 0; j < size; j++) {
+                field[j] = (byte) (i + j);
+            }
+            fields.put("field" + i, field);
+        }
+        return fields;
+    }
+
+    private static void assertReversed(Map<String, byte[]> input, Map<String, byte[]> output) {
+        assertEquals(output.keySet(), input.keySet());
+        input.forEach((name, field) -> assertEquals(output.get(name), reversed(field)));
+    }
+
+    public void smallFieldsRunOnTheCallingThread() {
+        // 50 fields of 4 bytes plus per-field overhead fit in a single 64 KiB unit
+        FieldWorkSplitter splitter = new FieldWorkSplitter(executor, 4, 64 * 1024);
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        Map<String, byte[]> input = fields(50, 4);
+        Map<String, byte[]> output = splitter.process(input, field -> {
+            threads.add(Thread.currentThread());
+            return reversed(field);
+        });
+        assertReversed(input, output);
+        assertEquals(threads.size(), 1);
+        assertTrue(threads.contains(Thread.currentThread()));
+    }
+
+    public void largeFieldsAreSpreadAcrossThreads() {
+        FieldWorkSplitter splitter = new FieldWorkSplitter(executor, 4, 16);
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        Map<String, byte[]> input = fields(8, 64);
+        Map<String, byte[]> output = splitter.process(input, field -> {
+            threads.add(Thread.currentThread());
+            // Give the helpers a chance to pick up work before the caller finishes it all
+            Thread.sleep(20);
+            return reversed(field);
+        });
+        assertReversed(input, output);
+        assertTrue(threads.size() > 1);
+    }
+
+    public void processAllKeepsDocumentsSeparate() {
+        FieldWorkSplitter splitter = new FieldWorkSplitter(executor, 4, 100);
+        List<FieldWorkSplitter.DocumentWork<String>> work = new ArrayList<>();
+        Map<String, Map<String, byte[]>> inputs = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            Map<String, byte[]> input = fields(i % 5, i * 10);
+            inputs.put("doc" + i, input);
+            work.add(new FieldWorkSplitter.DocumentWork<>("doc" + i, input,
+                    FieldWorkSplitterTest::reversed));
+        }
+        Map<String, Map<String, byte[]>> outputs = splitter.processAll(work);
+        assertEquals(outputs.keySet(), inputs.keySet());
+        inputs.forEach((id, input) -> assertReversed(input, outputs.get(id)));
+    }
+
+    public void failureFailsTheCall() {
+        FieldWorkSplitter splitter = new FieldWorkSplitter(executor, 4, 16);
+        IllegalStateException failure = new IllegalStateException("bad field");
+        try {
+            splitter.process(fields(10, 64), field -> {
+                if (field[0] == 5) {
+                    throw failure;
+                }
+                return field;
+            });
+            fail("Failure in one field should fail the call.");
+        } catch (CompletionException e) {
+            assertEquals(e.getCause(), failure);
+        }
+    }
+
+    public void doesNotDeadlockWhenCalledFromASaturatedExecutor() throws Exception {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            FieldWorkSplitter splitter = new FieldWorkSplitter(single, 4, 16);
+            Map<String, byte[]> input = fields(10, 64);
+            // The only executor thread is busy running the caller, so no helper can ever start
+            Map<String, byte[]> output = CompletableFuture
+                    .supplyAsync(() -> splitter.process(input, FieldWorkSplitterTest::reversed),
+                            single)
+                    .get(5, TimeUnit.SECONDS);
+            assertReversed(input, output);
+        } finally {
+            single.shutdown();
+        }
+    }
+}
@@ -1,6 +1,21 @@
 package com.ironcorelabs.tenantsecurity.kms.v1;
 
 
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.sun.net.httpserver.HttpServer;
 import org.testng.annotations.Test;
 
 @Test(groups = {"unit"})
@@ -36,4 +51,112 @@ public class KMSClientTest {
                 TenantSecurityClient.DEFAULT_REQUEST_THREADPOOL_SIZE,
                 TenantSecurityClient.DEFAULT_AES_THREADPOOL_SIZE, null).close();
     }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void builderInvalidRequestThreadpoolSize() throws Exception {
+        TenantSecurityClient.builder("http://localhost", "apiKey").requestThreadSize(0).build()
+                .close();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void builderMissingRandomGen() throws Exception {
+        TenantSecurityClient.builder("http://localhost", "apiKey").randomGen(null);
+    }
+
+    public void builderWithDekCache() throws Exception {
+        TenantSecurityClient client = TenantSecurityClient.builder("http://localhost", "apiKey")
+                .dekCache(new DekCacheConfig(100, 60000)).build();
+        assertEquals(client.getDekCacheStats().getSize(), 0);
+        client.close();
+    }
+
+    /**
+     * Single thread executor which counts the tasks run on it.
+     */
+    private static ThreadPoolExecutor countingExecutor(AtomicInteger count) {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>()) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                count.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Start a TSP stand-in which answers every document request with the same all zero DEK.
+     */
+    private static HttpServer keyServer() throws Exception {
+        String keyResponse = "{\"dek\":\"" + Base64.getEncoder().encodeToString(new byte[32])
+                + "\",\"edek\":\"edek\"}";
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/1/document/", exchange -> {
+            byte[] body = keyResponse.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static void assertRoundtrip(TenantSecurityClient client) throws Exception {
+        DocumentMetadata metadata = new DocumentMetadata("tenant", "service", "label");
+        Map<String, byte[]> document =
+                Collections.singletonMap("field", "data".getBytes(StandardCharsets.UTF_8));
+        EncryptedDocument encrypted = client.encrypt(document, metadata).get();
+        PlaintextDocument decrypted = client.decrypt(encrypted, metadata).get();
+        assertEquals(decrypted.getDecryptedFields().get("field"), document.get("field"));
+    }
+
+    public void builderWithInjectedExecutors() throws Exception {
+        HttpServer server = keyServer();
+        AtomicInteger cryptoTasks = new AtomicInteger();
+        AtomicInteger ioTasks = new AtomicInteger();
+        ExecutorService cryptoExecutor = countingExecutor(cryptoTasks);
+        ExecutorService ioExecutor = countingExecutor(ioTasks);
+        try {
+            TenantSecurityClient client = TenantSecurityClient
+                    .builder("http://localhost:" + server.getAddress().getPort(), "apiKey")
+                    .cryptoExecutor(cryptoExecutor).ioExecutor(ioExecutor).build();
+            assertRoundtrip(client);
+            client.close();
+
+            // Both requests were made on the I/O executor and both crypto steps on the crypto one
+            assertEquals(ioTasks.get(), 2);
+            assertEquals(cryptoTasks.get(), 2);
+            assertFalse(cryptoExecutor.isShutdown());
+            assertFalse(ioExecutor.isShutdown());
+        } finally {
+            cryptoExecutor.shutdown();
+            ioExecutor.shutdown();
+            server.stop(0);
+        }
+        assertTrue(cryptoExecutor.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    public void sharedTransportOutlivesClients() throws Exception {
+        HttpServer server = keyServer();
+        String domain = "http://localhost:" + server.getAddress().getPort();
+        try (SharedTransport transport = SharedTransport.builder().requestThreadSize(2)
+                .connectionTimeToLive(60000).keepAlive(5000).build()) {
+            TenantSecurityClient first =
+                    TenantSecurityClient.builder(domain, "apiKey").transport(transport).build();
+            assertRoundtrip(first);
+            first.close();
+            // Closing the first client leaves the shared transport usable by the next one
+            TenantSecurityClient second =
+                    TenantSecurityClient.builder(domain, "apiKey").transport(transport).build();
+            assertRoundtrip(second);
+            second.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void builderNegativeKeepAlive() throws Exception {
+        TenantSecurityClient.builder("http://localhost", "apiKey").keepAlive(-1);
+    }
 }
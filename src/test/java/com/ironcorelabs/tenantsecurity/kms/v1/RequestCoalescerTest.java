@@ -0,0 +1,186 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.KmsException;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TspServiceException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class RequestCoalescerTest {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final DocumentMetadata metadata = new DocumentMetadata("tenant", "service", "label");
+
+    @AfterClass
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * Fake batch unwrap that echoes each EDEK back as its DEK, failing any EDEK named "bad".
+     */
+    private static final class EchoSender
+            implements RequestCoalescer.BatchSender<String, UnwrappedDocumentKey> {
+        private final List<Map<String, String>> batches = new ArrayList<>();
+
+        @Override
+        public synchronized CompletableFuture<BatchUnwrappedDocumentKeys> send(
+                Map<String, String> requests, DocumentMetadata metadata) {
+            batches.add(requests);
+            Map<String, UnwrappedDocumentKey> keys = new HashMap<>();
+            Map<String, ErrorResponse> failures = new HashMap<>();
+            requests.forEach((id, edek) -> {
+                if (edek.equals("bad")) {
+                    failures.put(id, new ErrorResponse(
+                            TenantSecurityErrorCodes.KMS_UNWRAP_FAILED.getCode(), "failed"));
+                } else {
+                    keys.put(id, new UnwrappedDocumentKey(edek.getBytes()));
+                }
+            });
+            return CompletableFuture
+                    .completedFuture(new BatchUnwrappedDocumentKeys(keys, failures));
+        }
+    }
+
+    public void requestsWithinWindowShareABatch() throws Exception {
+        EchoSender sender = new EchoSender();
+        RequestCoalescer<String, UnwrappedDocumentKey> coalescer = new RequestCoalescer<>(
+                new RequestCoalescingConfig(50, 100), scheduler, sender,
+                UnwrappedDocumentKey::destroy);
+
+        CompletableFuture<UnwrappedDocumentKey> first = coalescer.submit("one", metadata);
+        CompletableFuture<UnwrappedDocumentKey> second = coalescer.submit("two", metadata);
+        assertFalse(first.isDone());
+
+        assertEquals(first.get(1, TimeUnit.SECONDS).getDekBytes(), "one".getBytes());
+        assertEquals(second.get(1, TimeUnit.SECONDS).getDekBytes(), "two".getBytes());
+        assertEquals(sender.batches.size(), 1);
+        assertEquals(sender.batches.get(0).size(), 2);
+    }
+
+    public void fullBatchIsSentImmediately() throws Exception {
+        EchoSender sender = new EchoSender();
+        RequestCoalescer<String, UnwrappedDocumentKey> coalescer = new RequestCoalescer<>(
+                new RequestCoalescingConfig(60000, 2), scheduler, sender,
+                UnwrappedDocumentKey::destroy);
+
+        CompletableFuture<UnwrappedDocumentKey> first = coalescer.submit("one", metadata);
+        CompletableFuture<UnwrappedDocumentKey> second = coalescer.submit("two", metadata);
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+        CompletableFuture<UnwrappedDocumentKey> third = coalescer.submit("three", metadata);
+        assertFalse(third.isDone());
+        coalescer.flush();
+        assertTrue(third.isDone());
+        assertEquals(sender.batches.size(), 2);
+    }
+
+    public void differentMetadataIsNotCoalesced() throws Exception {
+        EchoSender sender = new EchoSender();
+        RequestCoalescer<String, UnwrappedDocumentKey> coalescer = new RequestCoalescer<>(
+                new RequestCoalescingConfig(60000, 100), scheduler, sender,
+                UnwrappedDocumentKey::destroy);
+
+        coalescer.submit("one", metadata);
+        coalescer.submit("two", new DocumentMetadata("otherTenant", "service", "label"));
+        coalescer.submit("three", new DocumentMetadata("tenant", "otherService", "label"));
+        coalescer.submit("four", new DocumentMetadata("tenant", "service", "label"));
+        coalescer.flush();
+        assertEquals(sender.batches.size(), 3);
+    }
+
+    public void failuresGoToTheirOwnCaller() throws Exception {
+        EchoSender sender = new EchoSender();
+        RequestCoalescer<String, UnwrappedDocumentKey> coalescer = new RequestCoalescer<>(
+                new RequestCoalescingConfig(60000, 2), scheduler, sender,
+                UnwrappedDocumentKey::destroy);
+
+        CompletableFuture<UnwrappedDocumentKey> good = coalescer.submit("good", metadata);
+        CompletableFuture<UnwrappedDocumentKey> bad = coalescer.submit("bad", metadata);
+        assertEquals(good.get().getDekBytes(), "good".getBytes());
+        try {
+            bad.get();
+            fail("Failed batch entry should fail its caller.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof KmsException);
+        }
+    }
+
+    public void failedBatchRequestFailsEveryCaller() throws Exception {
+        RuntimeException requestFailure = new RuntimeException("TSP down");
+        RequestCoalescer<String, UnwrappedDocumentKey> coalescer = new RequestCoalescer<>(
+                new RequestCoalescingConfig(60000, 2), scheduler, (requests, m) -> {
+                    CompletableFuture<BatchUnwrappedDocumentKeys> failed =
+                            new CompletableFuture<>();
+                    failed.completeExceptionally(requestFailure);
+                    return failed;
+                }, UnwrappedDocumentKey::destroy);
+
+        CompletableFuture<UnwrappedDocumentKey> first = coalescer.submit("one", metadata);
+        CompletableFuture<UnwrappedDocumentKey> second = coalescer.submit("two", metadata);
+        for (CompletableFuture<UnwrappedDocumentKey> result : Arrays.asList(first, second)) {
+            try {
+                result.get();
+                fail("Every caller in a failed batch should fail.");
+            } catch (ExecutionException e) {
+                assertEquals(e.getCause(), requestFailure);
+            }
+        }
+    }
+
+    public void closeSendsOpenBatchesAndFailsNewRequests() throws Exception {
+        EchoSender sender = new EchoSender();
+        RequestCoalescer<String, UnwrappedDocumentKey> coalescer = new RequestCoalescer<>(
+                new RequestCoalescingConfig(60000, 100), scheduler, sender,
+                UnwrappedDocumentKey::destroy);
+        CompletableFuture<UnwrappedDocumentKey> open = coalescer.submit("one", metadata);
+        coalescer.close();
+        assertEquals(open.get(1, TimeUnit.SECONDS).getDekBytes(), "one".getBytes());
+        try {
+            coalescer.submit("two", metadata).get(1, TimeUnit.SECONDS);
+            fail("Request after close should fail");
+        } catch (ExecutionException e) {
+            assertEquals(((TspServiceException) e.getCause()).getErrorCode(),
+                    TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST);
+        }
+    }
+
+    public void batchIsSentRightAwayIfTheSchedulerIsShutDown() throws Exception {
+        ScheduledExecutorService stopped = Executors.newSingleThreadScheduledExecutor();
+        stopped.shutdown();
+        EchoSender sender = new EchoSender();
+        RequestCoalescer<String, UnwrappedDocumentKey> coalescer = new RequestCoalescer<>(
+                new RequestCoalescingConfig(60000, 100), stopped, sender,
+                UnwrappedDocumentKey::destroy);
+        assertEquals(coalescer.submit("one", metadata).get(1, TimeUnit.SECONDS).getDekBytes(),
+                "one".getBytes());
+    }
+
+    public void resultsForCancelledCallersAreDestroyed() throws Exception {
+        CompletableFuture<BatchUnwrappedDocumentKeys> response = new CompletableFuture<>();
+        RequestCoalescer<String, UnwrappedDocumentKey> coalescer = new RequestCoalescer<>(
+                new RequestCoalescingConfig(60000, 1), scheduler, (requests, m) -> response,
+                UnwrappedDocumentKey::destroy);
+
+        // The batch is full, so it's sent before the caller cancels
+        coalescer.submit("one", metadata).cancel(true);
+        UnwrappedDocumentKey key = new UnwrappedDocumentKey(new byte[] {1, 2, 3});
+        Map<String, UnwrappedDocumentKey> keys = new HashMap<>();
+        keys.put("0", key);
+        response.complete(new BatchUnwrappedDocumentKeys(keys, new HashMap<>()));
+        assertTrue(key.getDocumentKey().isClosed());
+    }
+}
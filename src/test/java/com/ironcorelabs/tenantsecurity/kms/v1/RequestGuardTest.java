@@ -0,0 +1,250 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.KmsException;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TenantSecurityException;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TspServiceException;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class RequestGuardTest {
+    // Opens once half of at least 4 recorded calls fail, stays open 1s, closes after 2 trials
+    private static final CircuitBreakerConfig BREAKER = new CircuitBreakerConfig(0.5, 10, 4, 1000, 2);
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private static <T> CompletableFuture<T> failed(Exception e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private static CompletableFuture<String> connectionRefused() {
+        return failed(new TspServiceException(TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, 0,
+                "Connection refused"));
+    }
+
+    private static CompletableFuture<String> kmsUnreachable() {
+        return failed(new KmsException(TenantSecurityErrorCodes.KMS_UNREACHABLE, 500,
+                "KMS unreachable"));
+    }
+
+    private static TenantSecurityErrorCodes errorCode(CompletableFuture<?> future)
+            throws InterruptedException {
+        try {
+            future.get();
+            fail("Request should have failed");
+            return null;
+        } catch (ExecutionException e) {
+            return ((TenantSecurityException) e.getCause()).getErrorCode();
+        }
+    }
+
+    private static void drain(CompletableFuture<?> future) {
+        future.handle((value, error) -> null).join();
+    }
+
+    public void tspBreakerOpensOnTransportFailuresAndFailsFast() throws Exception {
+        RequestGuard guard = new RequestGuard(BREAKER, null, clock::get);
+        for (int i = 0; i < 4; i++) {
+            drain(guard.execute("tenant", RequestGuardTest::connectionRefused));
+        }
+        assertEquals(guard.getState(), CircuitBreakerState.OPEN);
+
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> rejected = guard.execute("other-tenant", () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("ok");
+        });
+        assertEquals(errorCode(rejected), TenantSecurityErrorCodes.CIRCUIT_BREAKER_OPEN);
+        assertEquals(calls.get(), 0);
+        assertFalse(Retrier.isRetryable(new TspServiceException(
+                TenantSecurityErrorCodes.CIRCUIT_BREAKER_OPEN, 0, "open")));
+    }
+
+    public void halfOpenBreakerClosesAfterSuccessfulTrials() throws Exception {
+        RequestGuard guard = new RequestGuard(BREAKER, null, clock::get);
+        for (int i = 0; i < 4; i++) {
+            drain(guard.execute("tenant", RequestGuardTest::connectionRefused));
+        }
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(guard.getState(), CircuitBreakerState.HALF_OPEN);
+
+        // Two trials are let through while they're in flight, a third is not
+        CompletableFuture<String> first = new CompletableFuture<>();
+        CompletableFuture<String> second = new CompletableFuture<>();
+        CompletableFuture<String> firstResult = guard.execute("tenant", () -> first);
+        CompletableFuture<String> secondResult = guard.execute("tenant", () -> second);
+        assertEquals(errorCode(guard.execute("tenant", () -> CompletableFuture.completedFuture("ok"))),
+                TenantSecurityErrorCodes.CIRCUIT_BREAKER_OPEN);
+
+        first.complete("ok");
+        second.complete("ok");
+        assertEquals(firstResult.get(), "ok");
+        assertEquals(secondResult.get(), "ok");
+        assertEquals(guard.getState(), CircuitBreakerState.CLOSED);
+    }
+
+    public void failedTrialReopensBreaker() throws Exception {
+        RequestGuard guard = new RequestGuard(BREAKER, null, clock::get);
+        for (int i = 0; i < 4; i++) {
+            drain(guard.execute("tenant", RequestGuardTest::connectionRefused));
+        }
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        drain(guard.execute("tenant", RequestGuardTest::connectionRefused));
+        assertEquals(guard.getState(), CircuitBreakerState.OPEN);
+    }
+
+    public void kmsFailuresOnlyOpenTheTenantBreaker() throws Exception {
+        RequestGuard guard = new RequestGuard(BREAKER, null, clock::get);
+        for (int i = 0; i < 4; i++) {
+            drain(guard.execute("slow-kms", RequestGuardTest::kmsUnreachable));
+        }
+        assertEquals(guard.getState("slow-kms"), CircuitBreakerState.OPEN);
+        assertEquals(guard.getState(), CircuitBreakerState.CLOSED);
+        assertEquals(guard.getState("healthy"), CircuitBreakerState.CLOSED);
+
+        assertEquals(errorCode(guard.execute("slow-kms",
+                () -> CompletableFuture.completedFuture("ok"))),
+                TenantSecurityErrorCodes.CIRCUIT_BREAKER_OPEN);
+        assertEquals(guard.execute("healthy", () -> CompletableFuture.completedFuture("ok")).get(),
+                "ok");
+    }
+
+    public void timeoutsCountAgainstTheTenant() {
+        RequestGuard guard = new RequestGuard(BREAKER, null, clock::get);
+        for (int i = 0; i < 4; i++) {
+            drain(guard.execute("slow-kms",
+                    () -> failed(new TspServiceException(
+                            TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, 0, "Read timed out",
+                            new SocketTimeoutException("Read timed out")))));
+        }
+        assertEquals(guard.getState("slow-kms"), CircuitBreakerState.OPEN);
+        assertEquals(guard.getState(), CircuitBreakerState.CLOSED);
+    }
+
+    public void connectTimeoutsCountAgainstTheTsp() {
+        RequestGuard guard = new RequestGuard(BREAKER, null, clock::get);
+        for (int i = 0; i < 4; i++) {
+            // Alternate tenants and both HTTP clients' connect timeouts, which extend or wrap a
+            // SocketTimeoutException
+            Exception timeout = i % 2 == 0
+                    ? new org.apache.hc.client5.http.ConnectTimeoutException("Connect timed out")
+                    : new org.apache.http.conn.ConnectTimeoutException("Connect timed out");
+            drain(guard.execute("tenant" + i,
+                    () -> failed(new TspServiceException(
+                            TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, 0,
+                            "Connect timed out", timeout))));
+        }
+        assertEquals(guard.getState(), CircuitBreakerState.OPEN);
+        assertEquals(guard.getState("tenant0"), CircuitBreakerState.CLOSED);
+    }
+
+    public void permanentErrorsDontOpenBreakers() {
+        RequestGuard guard = new RequestGuard(BREAKER, null, clock::get);
+        for (int i = 0; i < 10; i++) {
+            drain(guard.execute("tenant",
+                    () -> failed(new KmsException(TenantSecurityErrorCodes.INVALID_PROVIDED_EDEK,
+                            400, "Bad EDEK"))));
+        }
+        assertEquals(guard.getState(), CircuitBreakerState.CLOSED);
+        assertEquals(guard.getState("tenant"), CircuitBreakerState.CLOSED);
+    }
+
+    public void idleClosedTenantBreakersAreEvicted() {
+        RequestGuard guard = new RequestGuard(BREAKER, null, clock::get);
+        guard.execute("idle", () -> CompletableFuture.completedFuture("ok")).join();
+        for (int i = 0; i < 4; i++) {
+            drain(guard.execute("open", RequestGuardTest::kmsUnreachable));
+        }
+        CompletableFuture<String> inFlight = new CompletableFuture<>();
+        guard.execute("inFlight", () -> inFlight);
+        assertEquals(guard.getTenantBreakerCount(), 3);
+
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        guard.execute("new", () -> CompletableFuture.completedFuture("ok")).join();
+        // Open breakers and breakers with calls in flight are kept
+        assertEquals(guard.getTenantBreakerCount(), 3);
+        assertTrue(guard.getState("open") != CircuitBreakerState.CLOSED);
+        assertEquals(guard.getState("idle"), CircuitBreakerState.CLOSED);
+
+        inFlight.complete("ok");
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        guard.execute("new", () -> CompletableFuture.completedFuture("ok")).join();
+        assertEquals(guard.getTenantBreakerCount(), 2);
+    }
+
+    public void adaptiveLimitRejectsRequestsOverTheLimit() throws Exception {
+        RequestGuard guard =
+                new RequestGuard(null, new AdaptiveLimitConfig(2, 1, 10, 1000, 0.5), clock::get);
+        CompletableFuture<String> first = new CompletableFuture<>();
+        CompletableFuture<String> second = new CompletableFuture<>();
+        CompletableFuture<String> firstResult = guard.execute("tenant", () -> first);
+        guard.execute("tenant", () -> second);
+        assertEquals(errorCode(guard.execute("tenant",
+                () -> CompletableFuture.completedFuture("ok"))),
+                TenantSecurityErrorCodes.CONCURRENCY_LIMIT_EXCEEDED);
+
+        first.complete("ok");
+        assertEquals(firstResult.get(), "ok");
+        assertEquals(guard.execute("tenant", () -> CompletableFuture.completedFuture("ok")).get(),
+                "ok");
+    }
+
+    public void adaptiveLimitShrinksOnFailureAndGrowsWhenFast() {
+        RequestGuard guard =
+                new RequestGuard(null, new AdaptiveLimitConfig(8, 1, 10, 1000, 0.5), clock::get);
+        drain(guard.execute("tenant", RequestGuardTest::connectionRefused));
+        assertEquals(guard.getConcurrencyLimit(), 4);
+
+        // Slow responses shrink the limit even when they succeed
+        drain(guard.execute("tenant", () -> {
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+            return CompletableFuture.completedFuture("ok");
+        }));
+        assertEquals(guard.getConcurrencyLimit(), 2);
+
+        // Fast responses with the limit in use grow it by about one per limit's worth of requests
+        for (int i = 0; i < 10; i++) {
+            CompletableFuture<String> first = new CompletableFuture<>();
+            CompletableFuture<String> second = new CompletableFuture<>();
+            guard.execute("tenant", () -> first);
+            guard.execute("tenant", () -> second);
+            first.complete("ok");
+            second.complete("ok");
+        }
+        assertTrue(guard.getConcurrencyLimit() > 2);
+    }
+
+    public void invalidConfigsRejected() {
+        try {
+            new CircuitBreakerConfig(0, 10, 5, 1000, 1);
+            fail("Zero failure rate threshold should be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new CircuitBreakerConfig(0.5, 10, 11, 1000, 1);
+            fail("Minimum calls larger than the window should be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new AdaptiveLimitConfig(20, 1, 10, 1000, 0.9);
+            fail("Initial limit above the max should be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new AdaptiveLimitConfig(5, 1, 10, 1000, 1);
+            fail("Backoff ratio of 1 should be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.KmsException;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TspServiceException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class RetrierTest {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @AfterClass
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    private Retrier retrier(int maxAttempts, double budgetRatio, int minRetries) {
+        return new Retrier(new RetryConfig(maxAttempts, 1, 5, budgetRatio, minRetries), scheduler,
+                false);
+    }
+
+    private static <T> CompletableFuture<T> failed(Exception e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private static CompletableFuture<String> failUntil(AtomicInteger calls, int successfulCall) {
+        if (calls.incrementAndGet() < successfulCall) {
+            return failed(new TspServiceException(TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST,
+                    0, "Connection reset"));
+        }
+        return CompletableFuture.completedFuture("ok");
+    }
+
+    public void retriesTransientFailures() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals(retrier(3, 0.2, 10).execute(() -> failUntil(calls, 3)).get(), "ok");
+        assertEquals(calls.get(), 3);
+    }
+
+    public void stopsAfterMaxAttempts() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            retrier(3, 0.2, 10).execute(() -> failUntil(calls, 10)).get();
+            fail("Request should have failed.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TspServiceException);
+        }
+        assertEquals(calls.get(), 3);
+    }
+
+    public void doesNotRetryPermanentFailures() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            retrier(3, 0.2, 10).execute(() -> {
+                calls.incrementAndGet();
+                return failed(new KmsException(TenantSecurityErrorCodes.KMS_CONFIGURATION_INVALID,
+                        403, "Invalid key"));
+            }).get();
+            fail("Request should have failed.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof KmsException);
+        }
+        assertEquals(calls.get(), 1);
+    }
+
+    public void budgetLimitsRetries() throws Exception {
+        // One retry available up front and none earned by requests
+        Retrier retrier = retrier(5, 0, 1);
+        AtomicInteger calls = new AtomicInteger();
+        retrier.execute(() -> failUntil(calls, 10)).handle((v, e) -> v).get();
+        assertEquals(calls.get(), 2);
+        calls.set(0);
+        retrier.execute(() -> failUntil(calls, 10)).handle((v, e) -> v).get();
+        assertEquals(calls.get(), 1);
+    }
+
+    public void batchRetriesOnlyFailedDocuments() throws Exception {
+        List<Collection<String>> requests = new ArrayList<>();
+        BatchUnwrappedDocumentKeys result = retrier(3, 0.2, 10).executeBatch(
+                Arrays.asList("a", "b", "c"), ids -> {
+                    requests.add(new ArrayList<>(ids));
+                    Map<String, UnwrappedDocumentKey> keys = new HashMap<>();
+                    Map<String, ErrorResponse> failures = new HashMap<>();
+                    for (String id : ids) {
+                        if (id.equals("c")) {
+                            failures.put(id, new ErrorResponse(207, "Invalid key"));
+                        } else if (id.equals("b") && requests.size() == 1) {
+                            failures.put(id, new ErrorResponse(208, "KMS unreachable"));
+                        } else {
+                            keys.put(id, new UnwrappedDocumentKey(new byte[] {1}));
+                        }
+                    }
+                    return CompletableFuture
+                            .completedFuture(new BatchUnwrappedDocumentKeys(keys, failures));
+                }, BatchUnwrappedDocumentKeys::new).get();
+        assertEquals(requests.size(), 2);
+        assertEquals(requests.get(1), Arrays.asList("b"));
+        assertEquals(result.getKeys().keySet(), new HashSet<>(Arrays.asList("a", "b")));
+        assertEquals(result.getFailures().keySet(), Collections.singleton("c"));
+    }
+
+    public void backoffIsJitteredAndCapped() {
+        Retrier retrier = new Retrier(new RetryConfig(10, 10, 50, 0.2, 10), scheduler, false);
+        for (int i = 0; i < 100; i++) {
+            long first = retrier.backoffMillis(1);
+            assertTrue(first >= 0 && first <= 10);
+            long third = retrier.backoffMillis(3);
+            assertTrue(third >= 0 && third <= 40);
+            assertTrue(retrier.backoffMillis(40) <= 50);
+        }
+    }
+
+    public void classifiesErrors() {
+        assertTrue(Retrier.isRetryable(
+                new TspServiceException(TenantSecurityErrorCodes.UNKNOWN_ERROR, 503)));
+        assertFalse(Retrier.isRetryable(
+                new TspServiceException(TenantSecurityErrorCodes.UNKNOWN_ERROR, 500)));
+        // A successful response that couldn't be parsed won't parse any better the second time
+        assertFalse(Retrier.isRetryable(
+                new TspServiceException(TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, 200)));
+        assertTrue(Retrier.isRetryable(
+                new KmsException(TenantSecurityErrorCodes.KMS_UNREACHABLE, 500, "Unreachable")));
+        assertFalse(Retrier.isRetryable(new IllegalStateException()));
+    }
+
+    public void batchRetriesShareTheAttemptsOfTheWholeRequest() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        BatchUnwrappedDocumentKeys result = retrier(3, 0.2, 10).executeBatch(
+                Arrays.asList("a", "b"), ids -> {
+                    if (calls.incrementAndGet() < 3) {
+                        return failed(new TspServiceException(
+                                TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, 0, "Reset"));
+                    }
+                    return CompletableFuture.completedFuture(new BatchUnwrappedDocumentKeys(
+                            Collections.emptyMap(),
+                            Collections.singletonMap("b", new ErrorResponse(208, "Unreachable"))));
+                }, BatchUnwrappedDocumentKeys::new).get();
+        // The third attempt was the last one, so the failed document isn't requested again
+        assertEquals(calls.get(), 3);
+        assertEquals(result.getFailures().keySet(), Collections.singleton("b"));
+    }
+
+    public void unsentFailuresAreRetryableForNonIdempotentRequests() {
+        assertTrue(Retrier.isRetryableUnsent(new TspServiceException(
+                TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, 0, "Unable to make request",
+                new ConnectException("Connection refused"))));
+        // The request may have reached the TSP before the connection was reset
+        assertFalse(Retrier.isRetryableUnsent(new TspServiceException(
+                TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, 0, "Unable to make request",
+                new SocketException("Connection reset"))));
+        assertFalse(Retrier.isRetryableUnsent(
+                new TspServiceException(TenantSecurityErrorCodes.UNKNOWN_ERROR, 503)));
+    }
+
+    public void exceptionRetryabilityMatchesTheRetrier() {
+        TspServiceException parseFailure =
+                new TspServiceException(TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, 200);
+        assertFalse(parseFailure.isRetryable());
+        assertEquals(Retrier.isRetryable(parseFailure), parseFailure.isRetryable());
+        TspServiceException unreachable =
+                new TspServiceException(TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST, 0);
+        assertTrue(unreachable.isRetryable());
+        assertEquals(Retrier.isRetryable(unreachable), unreachable.isRetryable());
+    }
+
+    public void cancellingStopsRetries() throws Exception {
+        // Backoff of up to a second leaves time to cancel before the retry is made
+        Retrier retrier = new Retrier(new RetryConfig(3, 1000, 1000, 1, 10), scheduler, false);
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> result = retrier.execute(() -> failUntil(calls, 3));
+        assertTrue(result.cancel(true));
+        int callsWhenCancelled = calls.get();
+        Thread.sleep(1100);
+        assertEquals(calls.get(), callsWhenCancelled);
+
+        CompletableFuture<String> hung = new CompletableFuture<>();
+        assertTrue(retrier.execute(() -> hung).cancel(true));
+        assertTrue(hung.isCancelled());
+    }
+}
@@ -0,0 +1,172 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TenantSecurityException;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class TenantBulkheadTest {
+    private final AtomicLong clock = new AtomicLong();
+
+    public void slowTenantDoesNotTakeOtherTenantsPermits() throws Exception {
+        TenantBulkhead bulkhead = new TenantBulkhead(new BulkheadConfig(2, 0, 10), clock::get);
+        CompletableFuture<String> hung = new CompletableFuture<>();
+        for (int i = 0; i < 5; i++) {
+            bulkhead.submit("slow", () -> hung);
+        }
+        assertEquals(bulkhead.getStats("slow").getInFlight(), 2);
+        assertEquals(bulkhead.getStats("slow").getQueueDepth(), 3);
+
+        assertEquals(bulkhead.submit("fast", () -> CompletableFuture.completedFuture("ok")).get(),
+                "ok");
+    }
+
+    public void overflowPermitsAreSharedInTurn() throws Exception {
+        TenantBulkhead bulkhead = new TenantBulkhead(new BulkheadConfig(1, 1, 10), clock::get);
+        List<String> started = new ArrayList<>();
+        List<CompletableFuture<String>> pending = new ArrayList<>();
+        for (String request : new String[] {"a1", "a2", "a3", "a4", "b1", "b2"}) {
+            CompletableFuture<String> future = new CompletableFuture<>();
+            pending.add(future);
+            bulkhead.submit(request.substring(0, 1), () -> {
+                started.add(request);
+                return future;
+            });
+        }
+        // a1 and b1 hold the reserved permits and a2 the only overflow permit
+        assertEquals(started.toString(), "[a1, a2, b1]");
+
+        // a queued first so gets the freed overflow permit, then it's b's turn even though a has
+        // more waiting
+        pending.get(1).complete("a2");
+        assertEquals(started.toString(), "[a1, a2, b1, a3]");
+        pending.get(2).complete("a3");
+        assertEquals(started.toString(), "[a1, a2, b1, a3, b2]");
+        pending.get(5).complete("b2");
+        assertEquals(started.toString(), "[a1, a2, b1, a3, b2, a4]");
+    }
+
+    public void fullQueueRejectsRequests() throws Exception {
+        TenantBulkhead bulkhead = new TenantBulkhead(new BulkheadConfig(1, 0, 1), clock::get);
+        CompletableFuture<String> hung = new CompletableFuture<>();
+        bulkhead.submit("tenant", () -> hung);
+        bulkhead.submit("tenant", () -> hung);
+        try {
+            bulkhead.submit("tenant", () -> hung).get();
+            fail("Request over the queue limit should fail");
+        } catch (ExecutionException e) {
+            assertEquals(((TenantSecurityException) e.getCause()).getErrorCode(),
+                    TenantSecurityErrorCodes.CONCURRENCY_LIMIT_EXCEEDED);
+        }
+        assertEquals(bulkhead.getStats("tenant").getRejected(), 1);
+    }
+
+    public void waitTimeIsRecorded() throws Exception {
+        TenantBulkhead bulkhead = new TenantBulkhead(new BulkheadConfig(1, 0, 10), clock::get);
+        CompletableFuture<String> first = new CompletableFuture<>();
+        bulkhead.submit("tenant", () -> first);
+        CompletableFuture<String> second =
+                bulkhead.submit("tenant", () -> CompletableFuture.completedFuture("second"));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(5));
+        first.complete("first");
+        assertEquals(second.get(), "second");
+
+        BulkheadStats stats = bulkhead.getStats("tenant");
+        assertEquals(stats.getQueued(), 1);
+        assertEquals(stats.getQueueDepth(), 0);
+        assertEquals(stats.getInFlight(), 0);
+        assertEquals(stats.getMaxWaitNanos(), TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(stats.getAverageWaitNanos(), TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(bulkhead.getStats("unknown").getQueued(), 0);
+    }
+
+    public void idleTenantsAreForgotten() throws Exception {
+        TenantBulkhead bulkhead = new TenantBulkhead(new BulkheadConfig(1, 0, 10), clock::get);
+        CompletableFuture<String> first = new CompletableFuture<>();
+        bulkhead.submit("idle", () -> first);
+        bulkhead.submit("idle", () -> CompletableFuture.completedFuture("second"));
+        CompletableFuture<String> hung = new CompletableFuture<>();
+        bulkhead.submit("busy", () -> hung);
+        bulkhead.submit("busy", () -> hung);
+        first.complete("first");
+        assertEquals(bulkhead.getStats("idle").getQueued(), 1);
+
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        bulkhead.submit("other", () -> CompletableFuture.completedFuture("ok")).get();
+        assertEquals(bulkhead.getStats("idle").getQueued(), 0);
+        // A tenant with requests in flight or waiting keeps its partition
+        assertEquals(bulkhead.getStats("busy").getQueueDepth(), 1);
+    }
+
+    public void closeFailsWaitingRequests() throws Exception {
+        TenantBulkhead bulkhead = new TenantBulkhead(new BulkheadConfig(1, 0, 10), clock::get);
+        CompletableFuture<String> inFlight = new CompletableFuture<>();
+        bulkhead.submit("tenant", () -> inFlight);
+        CompletableFuture<String> waiting =
+                bulkhead.submit("tenant", () -> CompletableFuture.completedFuture("waiting"));
+        bulkhead.close();
+        CompletableFuture<String> late =
+                bulkhead.submit("tenant", () -> CompletableFuture.completedFuture("late"));
+        for (CompletableFuture<String> failed : Arrays.asList(waiting, late)) {
+            try {
+                failed.get();
+                fail("Request should have failed once the bulkhead was closed");
+            } catch (ExecutionException e) {
+                assertEquals(((TenantSecurityException) e.getCause()).getErrorCode(),
+                        TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST);
+            }
+        }
+        // Requests already in flight are left to finish
+        assertFalse(inFlight.isDone());
+        inFlight.complete("done");
+        assertEquals(bulkhead.getStats("tenant").getInFlight(), 0);
+    }
+
+    public void synchronousCompletionsDoNotRecurse() throws Exception {
+        TenantBulkhead bulkhead = new TenantBulkhead(new BulkheadConfig(1, 0, 20000), clock::get);
+        CompletableFuture<String> first = new CompletableFuture<>();
+        bulkhead.submit("tenant", () -> first);
+        CompletableFuture<String> last = null;
+        for (int i = 0; i < 20000; i++) {
+            last = bulkhead.submit("tenant", () -> CompletableFuture.completedFuture("ok"));
+        }
+        assertFalse(last.isDone());
+        first.complete("ok");
+        assertTrue(last.isDone());
+        assertEquals(last.get(), "ok");
+    }
+
+    public void cancelledRequestsLeaveTheQueue() throws Exception {
+        TenantBulkhead bulkhead = new TenantBulkhead(new BulkheadConfig(1, 0, 10), clock::get);
+        CompletableFuture<String> running = new CompletableFuture<>();
+        CompletableFuture<String> first = bulkhead.submit("tenant", () -> running);
+        List<String> started = new ArrayList<>();
+        CompletableFuture<String> cancelled = bulkhead.submit("tenant", () -> {
+            started.add("cancelled");
+            return CompletableFuture.completedFuture("cancelled");
+        });
+        CompletableFuture<String> next = bulkhead.submit("tenant", () -> {
+            started.add("next");
+            return CompletableFuture.completedFuture("next");
+        });
+        assertEquals(bulkhead.getStats("tenant").getQueueDepth(), 2);
+
+        cancelled.cancel(true);
+        assertEquals(bulkhead.getStats("tenant").getQueueDepth(), 1);
+        first.cancel(true);
+        assertTrue(running.isCancelled());
+        assertEquals(next.get(), "next");
+        assertEquals(started.toString(), "[next]");
+        assertEquals(bulkhead.getStats("tenant").getInFlight(), 0);
+    }
+}
@@ -0,0 +1,294 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.KmsException;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TenantSecurityException;
+import com.ironcorelabs.tenantsecurity.kms.v1.exception.TspServiceException;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpVersion;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.ProtocolVersion;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.AsyncEntityProducers;
+import org.apache.hc.core5.http.nio.entity.BasicAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AsyncResponseBuilder;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http.protocol.HttpCoreContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class TenantSecurityRequestTest {
+    private static final String WRAP_RESPONSE = "{\"dek\":\"AQID\",\"edek\":\"edek\"}";
+    private final DocumentMetadata metadata = new DocumentMetadata("tenant", "service", "label");
+
+    /**
+     * Transport that always responds with the provided status and body.
+     */
+    private static TspTransport respondWith(int status, String body) {
+        return new TspTransport() {
+            @Override
+            public CompletableFuture<Response> post(String url, Map<String, String> headers,
+                    byte[] requestBody) {
+                return CompletableFuture.completedFuture(
+                        new Response(status, body.getBytes(StandardCharsets.UTF_8)));
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    private TenantSecurityException wrapFailure(TspTransport transport) throws Exception {
+        try {
+            new TenantSecurityRequest("http://localhost", "apiKey", transport).wrapKey(metadata)
+                    .get();
+        } catch (ExecutionException e) {
+            return (TenantSecurityException) e.getCause();
+        }
+        fail("Request should have failed.");
+        return null;
+    }
+
+    public void parsesSuccessfulResponse() throws Exception {
+        TenantSecurityRequest request = new TenantSecurityRequest("http://localhost", "apiKey",
+                respondWith(200, WRAP_RESPONSE));
+        WrappedDocumentKey key = request.wrapKey(metadata).get();
+        assertEquals(key.getDekBytes(), new byte[] {1, 2, 3});
+        assertEquals(key.getEdek(), "edek");
+    }
+
+    public void parsesErrorResponse() throws Exception {
+        TenantSecurityException e = wrapFailure(
+                respondWith(500, "{\"code\":202,\"message\":\"KMS unreachable\"}"));
+        assertTrue(e instanceof KmsException);
+        assertEquals(e.getErrorCode(), TenantSecurityErrorCodes.valueOf(202));
+        assertEquals(e.getHttpResponseCode(), 500);
+    }
+
+    public void unauthorizedResponse() throws Exception {
+        TenantSecurityException e = wrapFailure(respondWith(401, ""));
+        assertEquals(e.getErrorCode(), TenantSecurityErrorCodes.UNAUTHORIZED_REQUEST);
+    }
+
+    public void unparseableErrorResponse() throws Exception {
+        TenantSecurityException e = wrapFailure(respondWith(502, "<html>Bad Gateway</html>"));
+        assertEquals(e.getErrorCode(), TenantSecurityErrorCodes.UNKNOWN_ERROR);
+        assertEquals(e.getHttpResponseCode(), 502);
+    }
+
+    public void transportFailure() throws Exception {
+        TenantSecurityException e = wrapFailure(new TspTransport() {
+            @Override
+            public CompletableFuture<Response> post(String url, Map<String, String> headers,
+                    byte[] body) {
+                CompletableFuture<Response> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IOException("Connection refused"));
+                return failed;
+            }
+
+            @Override
+            public void close() {}
+        });
+        assertTrue(e instanceof TspServiceException);
+        assertEquals(e.getErrorCode(), TenantSecurityErrorCodes.UNABLE_TO_MAKE_REQUEST);
+    }
+
+    public void transportsSendSameRequest() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/1/document/wrap", exchange -> {
+            boolean valid = exchange.getRequestMethod().equals("POST")
+                    && "cmk apiKey".equals(exchange.getRequestHeaders().getFirst("Authorization"))
+                    && exchange.getRequestHeaders().getFirst("Content-Type")
+                            .startsWith("application/json");
+            byte[] body = (valid ? WRAP_RESPONSE : "{}").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(valid ? 200 : 400, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        String domain = "http://localhost:" + server.getAddress().getPort();
+        try {
+            for (TspTransport transport : new TspTransport[] {new BlockingHttpTransport(2, 5000),
+                    new AsyncHttpTransport(new AsyncTransportConfig(2, 1), 5000)}) {
+                try (TenantSecurityRequest request =
+                        new TenantSecurityRequest(domain, "apiKey", transport)) {
+                    WrappedDocumentKey key = request.wrapKey(metadata).get();
+                    assertEquals(key.getEdek(), "edek");
+                }
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    public void semaphoreLimitsBlockingRequestsInFlight() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/api/1/document/wrap", exchange -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            byte[] body = WRAP_RESPONSE.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        String domain = "http://localhost:" + server.getAddress().getPort();
+        // Unbounded pool like the virtual thread executor, so only the semaphore limits requests
+        TspTransport transport = new BlockingHttpTransport(Executors.newCachedThreadPool(), true,
+                8, 5000, 5000, 0, 0, new Semaphore(2), ClientMetrics.NONE);
+        try (TenantSecurityRequest request =
+                new TenantSecurityRequest(domain, "apiKey", transport)) {
+            List<CompletableFuture<WrappedDocumentKey>> keys = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                keys.add(request.wrapKey(metadata));
+            }
+            for (CompletableFuture<WrappedDocumentKey> key : keys) {
+                assertEquals(key.get().getEdek(), "edek");
+            }
+            assertTrue(maxInFlight.get() <= 2);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    public void cancellingFreesTransportForNextRequest() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch hang = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/api/1/document/wrap", exchange -> {
+            if (calls.incrementAndGet() == 1) {
+                try {
+                    hang.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = WRAP_RESPONSE.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            } catch (IOException e) {
+                // The client aborted the request
+            }
+        });
+        server.start();
+        String domain = "http://localhost:" + server.getAddress().getPort();
+        try {
+            // One thread or permit each, so the second request can only be made once the first
+            // has been aborted
+            for (TspTransport transport : new TspTransport[] {new BlockingHttpTransport(1, 20000),
+                    new AsyncHttpTransport(new AsyncTransportConfig(1, 1), 20000)}) {
+                calls.set(0);
+                try (TenantSecurityRequest request =
+                        new TenantSecurityRequest(domain, "apiKey", transport)) {
+                    CompletableFuture<WrappedDocumentKey> hung = request.wrapKey(metadata);
+                    while (calls.get() == 0) {
+                        Thread.sleep(5);
+                    }
+                    assertTrue(hung.cancel(true));
+                    assertEquals(request.wrapKey(metadata).get(5, TimeUnit.SECONDS).getEdek(),
+                            "edek");
+                }
+            }
+        } finally {
+            hang.countDown();
+            server.stop(0);
+        }
+    }
+
+    public void virtualThreadsDetectedFromRuntime() throws Exception {
+        String version = System.getProperty("java.specification.version");
+        boolean atLeast21 = !version.startsWith("1.") && Integer.parseInt(version) >= 21;
+        assertEquals(VirtualThreads.isSupported(), atLeast21);
+        // Falls back to a platform thread pool on older JDKs
+        BlockingHttpTransport.withVirtualThreads(4, 5000, 5000, 0, 0, ClientMetrics.NONE).close();
+    }
+
+    public void http2MultiplexesOverOneConnection() throws Exception {
+        Set<SocketAddress> clientAddresses = ConcurrentHashMap.newKeySet();
+        Set<ProtocolVersion> versions = ConcurrentHashMap.newKeySet();
+        HttpAsyncServer server = H2ServerBootstrap.bootstrap()
+                .setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_2)
+                .register("*", new AsyncServerRequestHandler<Message<HttpRequest, byte[]>>() {
+                    @Override
+                    public AsyncRequestConsumer<Message<HttpRequest, byte[]>> prepare(
+                            HttpRequest request, EntityDetails entityDetails,
+                            HttpContext context) {
+                        return new BasicRequestConsumer<>(
+                                entityDetails == null ? null : new BasicAsyncEntityConsumer());
+                    }
+
+                    @Override
+                    public void handle(Message<HttpRequest, byte[]> message,
+                            ResponseTrigger responseTrigger, HttpContext context)
+                            throws HttpException, IOException {
+                        HttpCoreContext coreContext = HttpCoreContext.adapt(context);
+                        clientAddresses.add(coreContext.getEndpointDetails().getRemoteAddress());
+                        versions.add(coreContext.getProtocolVersion());
+                        responseTrigger.submitResponse(AsyncResponseBuilder.create(200)
+                                .setEntity(AsyncEntityProducers.create(WRAP_RESPONSE,
+                                        ContentType.APPLICATION_JSON))
+                                .build(), context);
+                    }
+                }).create();
+        server.start();
+        int port = ((InetSocketAddress) server
+                .listen(new InetSocketAddress("localhost", 0), URIScheme.HTTP).get().getAddress())
+                        .getPort();
+        try (TenantSecurityRequest request = new TenantSecurityRequest("http://localhost:" + port,
+                "apiKey", new AsyncHttpTransport(new AsyncTransportConfig(8, 1, true), 5000))) {
+            List<CompletableFuture<WrappedDocumentKey>> keys = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                keys.add(request.wrapKey(metadata));
+            }
+            for (CompletableFuture<WrappedDocumentKey> key : keys) {
+                assertEquals(key.get().getEdek(), "edek");
+            }
+        } finally {
+            server.close(CloseMode.IMMEDIATE);
+        }
+        assertEquals(clientAddresses.size(), 1);
+        assertEquals(versions.iterator().next(), HttpVersion.HTTP_2);
+    }
+}
@@ -0,0 +1,128 @@
+package com.ironcorelabs.tenantsecurity.kms.v1;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import org.testng.annotations.Test;
+
+@Test(groups = {"unit"})
+public class TspJsonTest {
+    private static final JsonFactory GOOGLE_JSON = new JacksonFactory();
+
+    private final DocumentMetadata metadata;
+
+    public TspJsonTest() {
+        Map<String, String> otherData = new HashMap<>();
+        otherData.put("custom", "value \"quoted\"");
+        metadata = new DocumentMetadata("tenant", "service", "label", otherData, "requestId",
+                null, "objectId");
+    }
+
+    /**
+     * Parse JSON into a generic tree so request bodies can be compared regardless of field order.
+     */
+    private static GenericJson parse(byte[] json) throws IOException {
+        GenericJson parsed = GOOGLE_JSON.fromString(new String(json, StandardCharsets.UTF_8),
+                GenericJson.class);
+        parsed.setFactory(null);
+        return parsed;
+    }
+
+    private static GenericJson parse(Map<String, Object> postData) throws IOException {
+        return parse(GOOGLE_JSON.toByteArray(postData));
+    }
+
+    public void requestsMatchPostDataSerialization() throws Exception {
+        Map<String, Object> wrap = metadata.getAsPostData();
+        assertEquals(parse(TspJson.wrapRequest(metadata)), parse(wrap));
+
+        Map<String, Object> batchWrap = metadata.getAsPostData();
+        batchWrap.put("documentIds", Arrays.asList("a", "b"));
+        assertEquals(parse(TspJson.batchWrapRequest(Arrays.asList("a", "b"), metadata)),
+                parse(batchWrap));
+
+        Map<String, Object> unwrap = metadata.getAsPostData();
+        unwrap.put("encryptedDocumentKey", "edek");
+        assertEquals(parse(TspJson.unwrapRequest("edek", metadata)), parse(unwrap));
+
+        Map<String, String> edeks = new LinkedHashMap<>();
+        edeks.put("a", "edekA");
+        edeks.put("b", "edekB");
+        Map<String, Object> batchUnwrap = metadata.getAsPostData();
+        batchUnwrap.put("edeks", edeks);
+        assertEquals(parse(TspJson.batchUnwrapRequest(edeks, metadata)), parse(batchUnwrap));
+
+        Map<String, Object> rekey = metadata.getAsPostData();
+        rekey.put("encryptedDocumentKey", "edek");
+        rekey.put("newTenantId", "newTenant");
+        assertEquals(parse(TspJson.rekeyRequest("edek", metadata, "newTenant")), parse(rekey));
+    }
+
+    public void parsesBatchWrapResponse() throws Exception {
+        String json = "{\"keys\":{\"a\":{\"dek\":\"AQID\",\"edek\":\"edekA\",\"extra\":[1,{}]}},"
+                + "\"unknown\":{\"nested\":true},"
+                + "\"failures\":{\"b\":{\"code\":205,\"message\":\"failed\"}}}";
+        BatchWrappedDocumentKeys response =
+                TspJson.parseBatchWrapResponse(json.getBytes(StandardCharsets.UTF_8));
+        assertEquals(response.getKeys().get("a").getDekBytes(), new byte[] {1, 2, 3});
+        assertEquals(response.getKeys().get("a").getEdek(), "edekA");
+        assertEquals(response.getFailures().get("b").getCode(), 205);
+        assertEquals(response.getFailures().get("b").getMessage(), "failed");
+    }
+
+    public void parsesBatchUnwrapResponse() throws Exception {
+        String json = "{\"failures\":{},\"keys\":{\"a\":{\"dek\":\"AQID\"},\"b\":{\"dek\":\"BAUG\"}}}";
+        BatchUnwrappedDocumentKeys response =
+                TspJson.parseBatchUnwrapResponse(json.getBytes(StandardCharsets.UTF_8));
+        assertEquals(response.getKeys().get("a").getDekBytes(), new byte[] {1, 2, 3});
+        assertEquals(response.getKeys().get("b").getDekBytes(), new byte[] {4, 5, 6});
+        assertEquals(response.getFailures().size(), 0);
+    }
+
+    public void parsesSingleKeyResponses() throws Exception {
+        WrappedDocumentKey wrapped = TspJson.parseWrapResponse(
+                "{\"edek\":\"edekA\",\"extra\":{},\"dek\":\"AQID\"}"
+                        .getBytes(StandardCharsets.UTF_8));
+        assertEquals(wrapped.getDekBytes(), new byte[] {1, 2, 3});
+        assertEquals(wrapped.getEdek(), "edekA");
+        UnwrappedDocumentKey unwrapped =
+                TspJson.parseUnwrapResponse("{\"dek\":\"BAUG\"}".getBytes(StandardCharsets.UTF_8));
+        assertEquals(unwrapped.getDekBytes(), new byte[] {4, 5, 6});
+        RekeyedDocumentKey rekeyed =
+                TspJson.parseRekeyResponse("{\"edek\":\"edekB\"}".getBytes(StandardCharsets.UTF_8));
+        assertEquals(rekeyed.getEdek(), "edekB");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void rejectsUnwrapResponseWithInvalidBase64() throws Exception {
+        TspJson.parseUnwrapResponse("{\"dek\":\"not base64!\"}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void missingMapsAreEmpty() throws Exception {
+        BatchUnwrappedDocumentKeys response = TspJson
+                .parseBatchUnwrapResponse("{\"failures\":null}".getBytes(StandardCharsets.UTF_8));
+        assertEquals(response.getKeys().size(), 0);
+        assertEquals(response.getFailures().size(), 0);
+        assertNull(response.getKeys().get("a"));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void rejectsEntryWithoutDek() throws Exception {
+        TspJson.parseBatchWrapResponse(
+                "{\"keys\":{\"a\":{\"edek\":\"edekA\"}}}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void rejectsInvalidBase64() throws Exception {
+        TspJson.parseBatchUnwrapResponse(
+                "{\"keys\":{\"a\":{\"dek\":\"not base64!\"}}}".getBytes(StandardCharsets.UTF_8));
+    }
+}